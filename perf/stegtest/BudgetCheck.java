@@ -0,0 +1,349 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest;
+
+import java.util.*;
+
+import java.io.*;
+import java.lang.management.*;
+
+/*
+ * This program is the regression test for the hot paths of the codec.  It runs
+ * a fixed set of encode and decode scenarios and measures three things about
+ * each one: the bytes it allocates, the pixels it looks at, and how long it
+ * takes.  If any of them goes over the budget stored in the budget file it
+ * fails, so a change that brings back an allocation for every pixel or a scan
+ * of the whole image breaks the build instead of shipping.
+ *
+ * The allocations are counted by the JVM for this thread and the pixels are
+ * counted by the codec itself, so those two are exact and come out the same on
+ * every machine.  The time is the median CPU time of this thread over many runs,
+ * so time spent waiting for other programs on a busy machine doesn't count.
+ * It is divided by the median time of a calibration loop that walks an image
+ * sized array the way the codec does.  We run the calibration loop in the same
+ * JVM right before the scenarios, so on a slower machine both slow down and the
+ * budget still holds.  It is only there to catch big slowdowns, so its budget
+ * is loose.
+ *
+ * This has to be in the stegtest package since it calls the three dimensional
+ * methods the GUI uses and they aren't public.  Run it with the
+ * stegtest.countPixels system property set to true.  After a change that is
+ * supposed to change the numbers run it with -record to write new budgets.
+ *
+ * Usage: BudgetCheck budgets.properties [-record]
+ */
+public class BudgetCheck
+{
+    private static final int WIDTH = 1024;
+    private static final int HEIGHT = 768;
+    private static final int MESSAGE_LENGTH = 200;
+    private static final int WARMUP = 200;
+    private static final int RUNS = 50;
+
+    /*
+     * This is the room we leave on top of four times the recorded time.  The
+     * fastest scenarios take a small fraction of the calibration loop so
+     * without it timer noise alone could put them over.
+     */
+    private static final double TIME_SLACK = 0.1;
+
+    private static final String LETTERS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 .,";
+
+    private abstract static class Scenario
+    {
+        final String m_name;
+
+        Scenario(String name)
+        {
+            m_name = name;
+        }
+
+        abstract void run() throws Exception;
+    }
+
+    public static void main(String args[])
+        throws Exception
+    {
+        if (args.length < 1) {
+            System.err.println("Usage: BudgetCheck budgets.properties [-record]");
+            System.exit(1);
+        }
+
+        File budgetFile = new File(args[0]);
+        boolean record = args.length > 1 && args[1].equals("-record");
+
+        if (!StegCore.COUNT_PIXELS) {
+            System.err.println("Set the stegtest.countPixels system property to true so the codec counts pixels.");
+            System.exit(1);
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean) ||
+            !((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+            System.err.println("This JVM can't count the bytes a thread allocates.");
+            System.exit(1);
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        if (!threads.isCurrentThreadCpuTimeSupported()) {
+            System.err.println("This JVM can't measure the CPU time of a thread.");
+            System.exit(1);
+        }
+        threads.setThreadCpuTimeEnabled(true);
+
+        List<Scenario> scenarios = makeScenarios();
+
+        Properties budgets = new Properties();
+        if (!record) {
+            InputStream in = new FileInputStream(budgetFile);
+            try {
+                budgets.load(in);
+            } finally {
+                in.close();
+            }
+        }
+
+        ArrayList<String> measured = new ArrayList<String>();
+        long threadId = Thread.currentThread().getId();
+        int failures = 0;
+
+        Scenario calibration = makeCalibration();
+        for (int i = 0; i < WARMUP; i++) {
+            calibration.run();
+        }
+        long calibrationNanos = median(threads, calibration);
+        System.out.println("The calibration loop takes " + (calibrationNanos / 1000) + " micros.  Times are " +
+                           "multiples of that.");
+        System.out.println();
+
+        System.out.println(String.format("%-16s %22s %22s %18s", "", "bytes/op", "pixels/op", "time/op"));
+        for (Scenario s : scenarios) {
+            for (int i = 0; i < WARMUP; i++) {
+                s.run();
+            }
+
+            long bytes = allocations.getThreadAllocatedBytes(threadId);
+            long pixels = StegCore.getPixelsExamined();
+            long nanos = median(threads, s);
+            bytes = (allocations.getThreadAllocatedBytes(threadId) - bytes) / RUNS;
+            pixels = (StegCore.getPixelsExamined() - pixels) / RUNS;
+            double time = (double) nanos / calibrationNanos;
+
+            if (record) {
+                /*
+                 * The allocations and pixels don't change from run to run
+                 * but the JVM sometimes allocates a little on its own, so
+                 * we leave some room.  Times change a lot from run to run
+                 * so we leave a lot of room.
+                 */
+                measured.add(s.m_name + ".bytes=" + (bytes + bytes / 10 + 1024));
+                measured.add(s.m_name + ".pixels=" + pixels);
+                measured.add(s.m_name + ".time=" + String.format(Locale.US, "%.3f", 4 * time + TIME_SLACK));
+                System.out.println(String.format(Locale.US, "%-16s %22d %22d %18.3f", s.m_name, bytes, pixels, time));
+            } else {
+                boolean ok = true;
+                StringBuffer line = new StringBuffer(String.format("%-16s", s.m_name));
+                String[] values = {Long.toString(bytes), Long.toString(pixels), String.format(Locale.US, "%.3f", time)};
+                String[] kinds = {"bytes", "pixels", "time"};
+                for (int k = 0; k < kinds.length; k++) {
+                    String budget = budgets.getProperty(s.m_name + "." + kinds[k]);
+                    if (budget == null) {
+                        line.append(String.format(" %22s", values[k] + " / none"));
+                        ok = false;
+                    } else {
+                        line.append(String.format(" %22s", values[k] + " / " + budget.trim()));
+                        if (Double.parseDouble(values[k]) > Double.parseDouble(budget.trim())) {
+                            ok = false;
+                        }
+                    }
+                }
+
+                if (!ok) {
+                    line.append("  OVER BUDGET");
+                    failures++;
+                }
+                System.out.println(line);
+            }
+        }
+
+        if (record) {
+            /*
+             * We write the file ourselves so the budgets stay in the same
+             * order as the scenarios and the diffs are easy to read.
+             */
+            PrintWriter out = new PrintWriter(new FileWriter(budgetFile));
+            try {
+                out.println("# The budgets for BudgetCheck.  Written by BudgetCheck -record on");
+                out.println("# " + System.getProperty("java.vm.name") + " " + System.getProperty("java.version"));
+                out.println("# The times are multiples of the time of the calibration loop.");
+                for (String line : measured) {
+                    out.println(line);
+                }
+            } finally {
+                out.close();
+            }
+            System.out.println();
+            System.out.println("Wrote " + budgetFile);
+        } else if (failures > 0) {
+            System.out.println();
+            System.out.println(failures + " scenarios went over their budgets.");
+            System.exit(1);
+        }
+    }
+
+    /*
+     * This method runs a scenario many times and returns the median CPU time
+     * of one run in nanoseconds.
+     */
+    private static long median(ThreadMXBean threads, Scenario s)
+        throws Exception
+    {
+        long[] nanos = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            long start = threads.getCurrentThreadCpuTime();
+            s.run();
+            nanos[i] = threads.getCurrentThreadCpuTime() - start;
+        }
+
+        Arrays.sort(nanos);
+        return Math.max(nanos[RUNS / 2], 1);
+    }
+
+    /*
+     * The calibration loop reads every pixel of an image sized array and
+     * writes it to another one, which is about what the codec does to an
+     * image.  It doesn't call the codec so a change to the codec can't
+     * change it.
+     */
+    private static Scenario makeCalibration()
+    {
+        Random random = new Random(7);
+        final int[] from = new int[WIDTH * HEIGHT];
+        final int[] to = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < from.length; i++) {
+            from[i] = random.nextInt();
+        }
+
+        return new Scenario("calibration")
+            {
+                void run()
+                {
+                    int mix = 0;
+                    for (int i = 0; i < from.length; i++) {
+                        mix = (mix * 31) ^ from[i];
+                        to[i] = mix & 0xFCFCFCFC;
+                    }
+                }
+            };
+    }
+
+    /*
+     * All of the scenarios work on the same random image and message so the
+     * numbers come out the same every time.
+     */
+    private static List<Scenario> makeScenarios()
+    {
+        Random random = new Random(42);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < MESSAGE_LENGTH; i++) {
+            sb.append(LETTERS.charAt(random.nextInt(LETTERS.length())));
+        }
+
+        final String message = sb.toString();
+        final BufferPool pool = BufferPool.getPool();
+        final Carrier carrier = new Carrier(WIDTH, HEIGHT, pixels);
+        final int[] encoded = StegCore.encode(carrier, message);
+        final Carrier encodedCarrier = new Carrier(WIDTH, HEIGHT, encoded);
+        final int[][][] carrier3D = StegCore.get3DArray(pixels, WIDTH, HEIGHT);
+        final int[][][] encoded3D = StegCore.get3DArray(encoded, WIDTH, HEIGHT);
+        final byte[] buffer = new byte[256];
+        final PooledOutputStream sink = new PooledOutputStream(pool, 256);
+
+        ArrayList<Scenario> scenarios = new ArrayList<Scenario>();
+        scenarios.add(new Scenario("get3DArray")
+            {
+                void run()
+                {
+                    pool.release(StegCore.get3DArray(pixels, WIDTH, HEIGHT));
+                }
+            });
+        scenarios.add(new Scenario("encodeMessage")
+            {
+                void run()
+                {
+                    pool.release(StegCore.encodeMessage(carrier3D, WIDTH, HEIGHT, message));
+                }
+            });
+        scenarios.add(new Scenario("getMessage")
+            {
+                void run()
+                {
+                    check(StegCore.getMessage(encoded3D, WIDTH, HEIGHT));
+                }
+            });
+        scenarios.add(new Scenario("encode")
+            {
+                void run()
+                {
+                    StegCore.encode(carrier, message);
+                }
+            });
+        scenarios.add(new Scenario("decode")
+            {
+                void run()
+                {
+                    check(StegCore.decode(encodedCarrier));
+                }
+            });
+        scenarios.add(new Scenario("extractMessage")
+            {
+                void run() throws Exception
+                {
+                    sink.reset();
+                    if (StegCore.extractMessage(encoded, WIDTH, HEIGHT, buffer, sink) != MESSAGE_LENGTH) {
+                        throw new IllegalStateException("extractMessage got the wrong message");
+                    }
+                }
+            });
+        scenarios.add(new Scenario("verify")
+            {
+                void run()
+                {
+                    if (!StegVerify.verify(encoded, WIDTH, HEIGHT, message)) {
+                        throw new IllegalStateException("verify failed on a good image");
+                    }
+                }
+            });
+
+        return scenarios;
+    }
+
+    /*
+     * The check makes sure the decode really works and keeps the JIT from
+     * throwing the result away.
+     */
+    private static void check(String decoded)
+    {
+        if (decoded == null || decoded.length() != MESSAGE_LENGTH) {
+            throw new IllegalStateException("The decode got the wrong message");
+        }
+    }
+}
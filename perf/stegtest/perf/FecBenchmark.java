@@ -0,0 +1,233 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest.perf;
+
+import java.util.*;
+
+import stegtest.*;
+
+/*
+ * This program measures what Reed-Solomon costs and what it buys.  It encodes
+ * and decodes the same payload with the regular codec and with FecCodec and
+ * reports the throughput of each and the ratio between them.  Then it flips
+ * random low bits in the encoded pixels, the way a careless re-save would,
+ * and counts how often each codec still gets the payload back exactly.
+ *
+ * Usage: FecBenchmark [-width W] [-height H] [-payload BYTES] [-parity N]
+ *                     [-millis MS] [-trials N]
+ */
+public class FecBenchmark
+{
+    private static final String LETTERS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 .,";
+
+    public static void main(String args[])
+        throws Exception
+    {
+        HashMap<String, Integer> opts = new HashMap<String, Integer>();
+        opts.put("-width", 1024);
+        opts.put("-height", 768);
+        opts.put("-payload", 16384);
+        opts.put("-parity", FecCodec.DEFAULT_PARITY);
+        opts.put("-millis", 2000);
+        opts.put("-trials", 50);
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!opts.containsKey(args[i])) {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(1);
+            }
+            opts.put(args[i], Integer.valueOf(args[i + 1]));
+        }
+
+        final int width = opts.get("-width");
+        final int height = opts.get("-height");
+        final int parity = opts.get("-parity");
+        long millis = opts.get("-millis");
+        int trials = opts.get("-trials");
+
+        Random random = new Random(42);
+        final Carrier carrier = makeCarrier(random, width, height);
+        final String message = makeMessage(random, opts.get("-payload"));
+        final byte[] payload = message.getBytes("ISO-8859-1");
+
+        final int[] plainPixels = StegCore.encode(carrier, message);
+        final Carrier plain = new Carrier(width, height, plainPixels);
+        final int[] fecPixels = carrier.getPixels().clone();
+        FecCodec.embed(fecPixels, width, height, payload, parity);
+
+        System.out.println(width + " x " + height + ", " + payload.length + " byte payload, " + parity +
+                           " parity bytes in each 255 byte codeword");
+        System.out.println();
+        System.out.println("                 encode MB/s   decode MB/s");
+
+        double plainEncode = time(millis, payload.length, new Op()
+            {
+                public void run() throws Exception
+                {
+                    StegCore.encode(carrier, message);
+                }
+            });
+        double plainDecode = time(millis, payload.length, new Op()
+            {
+                public void run() throws Exception
+                {
+                    StegCore.decode(plain);
+                }
+            });
+        System.out.println(String.format("regular         %12.1f  %12.1f", plainEncode, plainDecode));
+
+        final int[] scratch = new int[fecPixels.length];
+        double fecEncode = time(millis, payload.length, new Op()
+            {
+                public void run() throws Exception
+                {
+                    /*
+                     * The regular encode copies the carrier too, so we count
+                     * the copy here.
+                     */
+                    System.arraycopy(carrier.getPixels(), 0, scratch, 0, scratch.length);
+                    FecCodec.embed(scratch, width, height, payload, parity);
+                }
+            });
+        double fecDecode = time(millis, payload.length, new Op()
+            {
+                public void run() throws Exception
+                {
+                    FecCodec.extract(fecPixels, width, height);
+                }
+            });
+        System.out.println(String.format("reed-solomon    %12.1f  %12.1f", fecEncode, fecDecode));
+        System.out.println(String.format("slowdown        %11.2fx  %11.2fx", plainEncode / fecEncode,
+                                         plainDecode / fecDecode));
+
+        /*
+         * Damage only the rows the payloads are in so every flip counts.
+         */
+        int plainLast = StegCapacity.checkMessage(width, height, message).getLastRow();
+        long fecPixelCount = ((25 + ((payload.length + 254 - parity) / (255 - parity)) * 255L) * 4 + 2) / 3;
+        int fecLast = lastRow(width, height, fecPixelCount);
+
+        System.out.println();
+        System.out.println("flipped bits     regular ok   reed-solomon ok   bytes fixed");
+        for (int flips = 1; flips <= 4096; flips *= 4) {
+            int plainOk = 0;
+            int fecOk = 0;
+            long fixed = 0;
+            for (int t = 0; t < trials; t++) {
+                int[] damaged = plainPixels.clone();
+                flip(random, damaged, width, plainLast, flips);
+                if (message.equals(StegCore.decode(new Carrier(width, height, damaged)))) {
+                    plainOk++;
+                }
+
+                damaged = fecPixels.clone();
+                flip(random, damaged, width, fecLast, flips);
+                try {
+                    java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+                    int n = FecCodec.extract(damaged, width, height, out);
+                    if (n >= 0 && Arrays.equals(payload, out.toByteArray())) {
+                        fecOk++;
+                        fixed += n;
+                    }
+                } catch (java.io.IOException e) {
+                    /*
+                     * Too much damage to fix.
+                     */
+                }
+            }
+
+            System.out.println(String.format("%12d  %12s  %16s  %12s", flips,
+                                             (100 * plainOk / trials) + "%", (100 * fecOk / trials) + "%",
+                                             fecOk == 0 ? "-" : Long.toString(fixed / fecOk)));
+        }
+    }
+
+    private interface Op
+    {
+        void run() throws Exception;
+    }
+
+    /*
+     * Run an operation over and over for a while and return the payload
+     * megabytes a second.  The first half second is just to warm up.
+     */
+    private static double time(long millis, int bytes, Op op)
+        throws Exception
+    {
+        long end = System.currentTimeMillis() + 500;
+        while (System.currentTimeMillis() < end) {
+            op.run();
+        }
+
+        int count = 0;
+        long start = System.nanoTime();
+        end = System.currentTimeMillis() + millis;
+        while (System.currentTimeMillis() < end) {
+            op.run();
+            count++;
+        }
+
+        return (count * (double) bytes) / ((System.nanoTime() - start) / 1e9) / (1024 * 1024);
+    }
+
+    /*
+     * Find the last row we reach after walking this many candidate pixels.
+     */
+    private static int lastRow(int cols, int rows, long pixels)
+    {
+        for (int row = 1; row < rows; row++) {
+            int first = 4096 / row + 1;
+            if (first < cols) {
+                pixels -= cols - first;
+                if (pixels <= 0) {
+                    return row;
+                }
+            }
+        }
+
+        return rows - 1;
+    }
+
+    private static void flip(Random random, int[] pixels, int cols, int lastRow, int flips)
+    {
+        for (int i = 0; i < flips; i++) {
+            int row = 1 + random.nextInt(lastRow);
+            int col = 4096 / row + 1 + random.nextInt(Math.max(1, cols - 4096 / row - 1));
+            if (col < cols) {
+                pixels[row * cols + col] ^= 1 << (8 * random.nextInt(3));
+            }
+        }
+    }
+
+    private static Carrier makeCarrier(Random random, int width, int height)
+    {
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+
+        return new Carrier(width, height, pixels);
+    }
+
+    private static String makeMessage(Random random, int length)
+    {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < length; i++) {
+            sb.append(LETTERS.charAt(random.nextInt(LETTERS.length())));
+        }
+
+        return sb.toString();
+    }
+}
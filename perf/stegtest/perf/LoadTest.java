@@ -0,0 +1,380 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest.perf;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import java.io.*;
+import java.lang.management.*;
+import java.nio.*;
+
+import java.awt.image.*;
+
+import stegtest.*;
+
+/*
+ * This program puts the codec under load to see how it scales with more
+ * threads and whether it holds up over hours.  It makes a set of synthetic
+ * carriers and messages and runs complete round trips on them: encode the
+ * message, compress the PNG, read the PNG back, and decode the message.  Every
+ * decoded message is checked against the one we encoded so any bug that only
+ * shows up when threads run at the same time gets counted.
+ *
+ * We run at one thread, then two, then four and so on up to the most threads
+ * asked for.  For each level we report the throughput, the latency
+ * percentiles, how fast the threads allocate memory, and how much time the
+ * JVM spent collecting garbage.  A soak run keeps the most threads going for a
+ * long time and prints a line every minute so slow leaks and GC creep show up.
+ *
+ * Usage: LoadTest [-threads N] [-seconds S] [-soak S] [-width W] [-height H]
+ *                 [-payload BYTES] [-carriers N]
+ */
+public class LoadTest
+{
+    private static final String LETTERS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 .,";
+
+    private final Carrier[] m_carriers;
+    private final String[] m_messages;
+
+    public LoadTest(int carrierCount, int width, int height, int payload)
+    {
+        Random random = new Random(42);
+        m_carriers = new Carrier[carrierCount];
+        m_messages = new String[carrierCount];
+        for (int i = 0; i < carrierCount; i++) {
+            m_carriers[i] = makeCarrier(random, width, height);
+            m_messages[i] = makeMessage(random, payload);
+            if (!StegCapacity.checkMessage(width, height, m_messages[i]).fits()) {
+                throw new IllegalArgumentException("A " + payload + " byte payload doesn't fit in a " + width + "x" +
+                                                   height + " carrier");
+            }
+        }
+    }
+
+    public static void main(String args[])
+        throws Exception
+    {
+        HashMap<String, Integer> opts = new HashMap<String, Integer>();
+        opts.put("-threads", Runtime.getRuntime().availableProcessors());
+        opts.put("-seconds", 10);
+        opts.put("-soak", 0);
+        opts.put("-width", 1024);
+        opts.put("-height", 768);
+        opts.put("-payload", 4096);
+        opts.put("-carriers", 16);
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!opts.containsKey(args[i])) {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(1);
+            }
+            opts.put(args[i], Integer.parseInt(args[i + 1]));
+        }
+
+        LoadTest test = new LoadTest(opts.get("-carriers"), opts.get("-width"), opts.get("-height"),
+                                     opts.get("-payload"));
+
+        /*
+         * A short run first so the JIT has compiled the codec before we
+         * start measuring.
+         */
+        test.run(1, 2000, 0);
+
+        System.out.println(String.format("%7s %9s %9s %9s %9s %9s %9s %10s %8s %7s",
+                                         "threads", "ops", "ops/s", "p50 ms", "p99 ms", "p99.9 ms",
+                                         "max ms", "alloc MB/s", "gc ms", "errors"));
+
+        int maxThreads = opts.get("-threads");
+        long errors = 0;
+        for (int threads = 1; ; threads = Math.min(threads * 2, maxThreads)) {
+            errors += test.run(threads, opts.get("-seconds") * 1000L, 0).print();
+            if (threads == maxThreads) {
+                break;
+            }
+        }
+
+        if (opts.get("-soak") > 0) {
+            System.out.println();
+            System.out.println("Soak test with " + maxThreads + " threads for " + opts.get("-soak") + " seconds");
+            errors += test.run(maxThreads, opts.get("-soak") * 1000L, 60000).print();
+        }
+
+        if (errors > 0) {
+            System.out.println(errors + " round trips did not decode to the message we encoded");
+            System.exit(1);
+        }
+    }
+
+    /*
+     * This method runs round trips on some threads for a while.  If interval
+     * is more than zero we print a line for each interval with just the round
+     * trips from that interval, so a soak run shows any change over time.
+     */
+    private Result run(final int threads, long millis, long interval)
+        throws InterruptedException
+    {
+        final AtomicBoolean stop = new AtomicBoolean();
+        final Worker[] workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(i);
+        }
+
+        long start = System.nanoTime();
+        for (Worker w : workers) {
+            w.start(stop);
+        }
+
+        long end = start + millis * 1000000L;
+        long intervalStart = start;
+        long gcStart = getGcMillis();
+        long allocStart = 0;
+        long errors = 0;
+        while (System.nanoTime() < end) {
+            long left = (end - System.nanoTime()) / 1000000L;
+            Thread.sleep(Math.max(interval > 0 ? Math.min(interval, left) : left, 1));
+
+            if (interval > 0) {
+                long now = System.nanoTime();
+                long gc = getGcMillis();
+                Result r = collect(workers, threads, now - intervalStart, gc - gcStart);
+                r.m_allocated -= allocStart;
+                allocStart += r.m_allocated;
+                errors += r.print();
+                intervalStart = now;
+                gcStart = gc;
+            }
+        }
+
+        stop.set(true);
+        for (Worker w : workers) {
+            w.join();
+        }
+
+        Result r = collect(workers, threads, System.nanoTime() - intervalStart, getGcMillis() - gcStart);
+        r.m_allocated -= allocStart;
+        r.m_errors += errors;
+        return r;
+    }
+
+    /*
+     * This method gathers up the round trips the workers have done since the
+     * last time we asked.
+     */
+    private Result collect(Worker[] workers, int threads, long nanos, long gcMillis)
+    {
+        Result r = new Result();
+        r.m_threads = threads;
+        r.m_nanos = nanos;
+        r.m_gcMillis = gcMillis;
+
+        ArrayList<Long> latencies = new ArrayList<Long>();
+        for (Worker w : workers) {
+            synchronized (w) {
+                latencies.addAll(w.m_latencies);
+                w.m_latencies.clear();
+                r.m_errors += w.m_errors;
+                w.m_errors = 0;
+            }
+            r.m_allocated += w.getAllocatedBytes();
+        }
+
+        r.m_latencies = new long[latencies.size()];
+        for (int i = 0; i < r.m_latencies.length; i++) {
+            r.m_latencies[i] = latencies.get(i);
+        }
+        Arrays.sort(r.m_latencies);
+
+        return r;
+    }
+
+    /*
+     * This is one full round trip with the same calls a service using the
+     * codec would make.
+     */
+    private String roundTrip(Carrier carrier, String message)
+        throws IOException
+    {
+        int[] encoded = StegCore.encode(carrier, message);
+
+        PooledOutputStream png = new PooledOutputStream(BufferPool.getPool(),
+                                                        carrier.getWidth() * carrier.getHeight() * 3);
+        try {
+            StegCore.writePng(encoded, carrier.getWidth(), carrier.getHeight(), png);
+
+            BufferedImage image = ImageInput.read(ByteBuffer.wrap(png.getBuffer(), 0, png.size()));
+            return StegCore.decode(Carrier.fromImage(image));
+        } finally {
+            png.release();
+        }
+    }
+
+    /*
+     * The carriers are smooth gradients with some noise on top, which looks
+     * more like a photo to the PNG compressor than pure noise does.
+     */
+    private static Carrier makeCarrier(Random random, int width, int height)
+    {
+        int[] pixels = new int[width * height];
+        int r0 = random.nextInt(256);
+        int g0 = random.nextInt(256);
+        int b0 = random.nextInt(256);
+        for (int y = 0, p = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (r0 + (x * 255) / width + random.nextInt(8)) & 0xFF;
+                int g = (g0 + (y * 255) / height + random.nextInt(8)) & 0xFF;
+                int b = (b0 + ((x + y) * 127) / (width + height) + random.nextInt(8)) & 0xFF;
+                pixels[p++] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+
+        return new Carrier(width, height, pixels);
+    }
+
+    private static String makeMessage(Random random, int length)
+    {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < length; i++) {
+            sb.append(LETTERS.charAt(random.nextInt(LETTERS.length())));
+        }
+
+        return sb.toString();
+    }
+
+    private static long getGcMillis()
+    {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(gc.getCollectionTime(), 0);
+        }
+
+        return total;
+    }
+
+    /*
+     * This is one load thread.  It keeps the latency of every round trip so
+     * we can work out the percentiles.
+     */
+    private class Worker
+        extends Thread
+    {
+        private final int m_index;
+        private final ArrayList<Long> m_latencies = new ArrayList<Long>();
+        private long m_errors;
+        private long m_startAllocated;
+        private volatile long m_allocated = -1;
+        private AtomicBoolean m_stop;
+
+        private Worker(int index)
+        {
+            super("stegtest-load-" + index);
+            m_index = index;
+            setDaemon(true);
+        }
+
+        private void start(AtomicBoolean stop)
+        {
+            m_stop = stop;
+            start();
+        }
+
+        public void run()
+        {
+            m_startAllocated = getThreadAllocatedBytes();
+
+            int i = m_index;
+            while (!m_stop.get()) {
+                Carrier carrier = m_carriers[i % m_carriers.length];
+                String expected = m_messages[i % m_messages.length];
+                i++;
+
+                long t0 = System.nanoTime();
+                String decoded;
+                try {
+                    decoded = roundTrip(carrier, expected);
+                } catch (Exception e) {
+                    decoded = null;
+                }
+                long t1 = System.nanoTime();
+
+                /*
+                 * Every message fits, so anything but the exact message we
+                 * sent is an error.
+                 */
+                boolean ok = expected.equals(decoded);
+
+                synchronized (this) {
+                    m_latencies.add(t1 - t0);
+                    if (!ok) {
+                        m_errors++;
+                    }
+                }
+
+                m_allocated = getThreadAllocatedBytes() - m_startAllocated;
+            }
+        }
+
+        private long getAllocatedBytes()
+        {
+            return Math.max(m_allocated, 0);
+        }
+
+        private long getThreadAllocatedBytes()
+        {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(getId());
+            }
+
+            return 0;
+        }
+    }
+
+    /*
+     * These are the numbers for one concurrency level.
+     */
+    private static class Result
+    {
+        private int m_threads;
+        private long m_nanos;
+        private long m_gcMillis;
+        private long m_allocated;
+        private long m_errors;
+        private long[] m_latencies;
+
+        private long print()
+        {
+            int n = m_latencies.length;
+            double seconds = m_nanos / 1e9;
+            System.out.println(String.format("%7d %9d %9.1f %9.2f %9.2f %9.2f %9.2f %10.1f %8d %7d",
+                                             m_threads, n, n / seconds,
+                                             percentile(0.5), percentile(0.99), percentile(0.999),
+                                             n == 0 ? 0 : m_latencies[n - 1] / 1e6,
+                                             m_allocated / seconds / (1024 * 1024),
+                                             m_gcMillis, m_errors));
+            return m_errors;
+        }
+
+        private double percentile(double p)
+        {
+            if (m_latencies.length == 0) {
+                return 0;
+            }
+
+            return m_latencies[Math.min((int) (p * m_latencies.length), m_latencies.length - 1)] / 1e6;
+        }
+    }
+}
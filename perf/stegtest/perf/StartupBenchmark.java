@@ -0,0 +1,105 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest.perf;
+
+import java.util.*;
+
+import java.io.*;
+
+/*
+ * This program measures how long the command line version takes to start.
+ * It runs the decode command in a new JVM again and again and times how long
+ * it takes until the decoded message comes out.  That's the number that
+ * matters when a script calls us for each image.
+ *
+ * Usage: StartupBenchmark <jar> <image> [runs] [JVM options...]
+ *
+ * Pass -XX:SharedArchiveFile=dist/stegtest.jsa as a JVM option to see how
+ * much the class data sharing archive from "ant appcds" saves.
+ */
+public class StartupBenchmark
+{
+    public static void main(String args[])
+        throws Exception
+    {
+        if (args.length < 2) {
+            System.err.println("Usage: StartupBenchmark <jar> <image> [runs] [JVM options...]");
+            System.exit(1);
+        }
+
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        ArrayList<String> cmd = new ArrayList<String>();
+        cmd.add(new File(System.getProperty("java.home"), "bin" + File.separator + "java").getPath());
+        for (int i = 3; i < args.length; i++) {
+            cmd.add(args[i]);
+        }
+        cmd.add("-cp");
+        cmd.add(args[0]);
+        cmd.add("stegtest.StegCli");
+        cmd.add("decode");
+        cmd.add(args[1]);
+
+        /*
+         * The first few runs warm up the disk cache so we don't count them.
+         */
+        for (int i = 0; i < 3; i++) {
+            time(cmd);
+        }
+
+        long[] times = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            times[i] = time(cmd);
+        }
+        Arrays.sort(times);
+
+        System.out.println(cmd);
+        System.out.println(String.format("%d runs, time to first decoded message: min %.1f ms, median %.1f ms, " +
+                                         "90th percentile %.1f ms, max %.1f ms",
+                                         runs, times[0] / 1e6, times[runs / 2] / 1e6,
+                                         times[(runs * 9) / 10] / 1e6, times[runs - 1] / 1e6));
+    }
+
+    /*
+     * This method starts the command and returns how long it took to print
+     * the first line.
+     */
+    private static long time(List<String> cmd)
+        throws IOException, InterruptedException
+    {
+        long start = System.nanoTime();
+        Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()));
+        try {
+            String line = in.readLine();
+            long elapsed = System.nanoTime() - start;
+
+            while (in.readLine() != null) {
+                /*
+                 * We read the rest so the process doesn't block on a full pipe.
+                 */
+            }
+
+            if (p.waitFor() != 0 || line == null) {
+                throw new IOException("The decode command failed: " + line);
+            }
+
+            return elapsed;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -39,6 +39,8 @@ public class Actions
         file.add(new OpenImageAction());
 		file.add(new SaveImageAction());
         file.add(new GetMessageAction());
+        file.add(new AnalyzeImageAction());
+        file.add(new BatchQueueAction());
 	}
 }
 
@@ -143,3 +145,71 @@ class GetMessageAction extends AbstractAction
             return super.getValue(key);
 	}
 }
+
+/*
+ * This action calls the analyzeImage method to show how easy it would be to
+ * tell the images have a hidden message.
+ */
+class AnalyzeImageAction extends AbstractAction
+{
+	public void actionPerformed(ActionEvent e)
+	{
+		StegTest.getStegTest().analyzeImage();
+	}
+	public boolean isEnabled()
+	{
+		return true;
+	}
+	
+	public Object getValue(String key)
+	{
+        if(key.equals("MnemonicKey"))
+			return (int) 'A';
+		else if(key.equals("Name"))
+			return "Analyze Image";
+		else if(key.equals("ShortDescription"))
+			return "Analyze Image";
+		else if(key.equals("SmallIcon"))
+			return null;
+		else if(key.equals("ActionCommandKey"))
+			return null;
+		else if(key.equals("AcceleratorKey"))
+			return KeyStroke.getKeyStroke(KeyEvent.VK_A, KeyEvent.CTRL_MASK);
+		else
+            return super.getValue(key);
+	}
+}
+
+/*
+ * This action calls the showBatchQueue method to open the window where lots
+ * of images can be encoded or decoded at once.
+ */
+class BatchQueueAction extends AbstractAction
+{
+	public void actionPerformed(ActionEvent e)
+	{
+		StegTest.getStegTest().showBatchQueue();
+	}
+	public boolean isEnabled()
+	{
+		return true;
+	}
+	
+	public Object getValue(String key)
+	{
+        if(key.equals("MnemonicKey"))
+			return (int) 'B';
+		else if(key.equals("Name"))
+			return "Batch Queue";
+		else if(key.equals("ShortDescription"))
+			return "Encode or decode lots of images at once";
+		else if(key.equals("SmallIcon"))
+			return null;
+		else if(key.equals("ActionCommandKey"))
+			return null;
+		else if(key.equals("AcceleratorKey"))
+			return KeyStroke.getKeyStroke(KeyEvent.VK_B, KeyEvent.CTRL_MASK);
+		else
+            return super.getValue(key);
+	}
+}
@@ -0,0 +1,925 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+import java.io.*;
+
+import java.awt.*;
+import java.awt.image.*;
+import javax.imageio.*;
+import javax.imageio.metadata.*;
+import javax.imageio.stream.*;
+
+/*
+ * This class hides a payload in the frames of an animated GIF or PNG.  Each
+ * frame is a carrier of its own, so an animation with fifty frames holds about
+ * fifty times as much as a still image of the same size.
+ *
+ * The payload is split across the frames the same way ShardCodec splits it
+ * across images, with a shard header in each frame, and the result is written
+ * as an animated PNG (APNG).  GIF only has 256 colors so it can't keep the
+ * changes we make to the low bits of each pixel.  APNG is lossless and every
+ * browser plays it.  Programs that don't know about APNG just show the first
+ * frame.
+ *
+ * The frames don't depend on each other once they are decoded, so we decode,
+ * embed, and compress them in parallel with one thread for each processor.
+ * Putting the decoded GIF frames on top of each other has to be done in order
+ * but that is just copying pixels.
+ */
+public class AnimatedCodec
+{
+    private static final byte[] PNG_SIGNATURE = {(byte) 137, 'P', 'N', 'G', '\r', '\n', 26, '\n'};
+
+    private static final int DISPOSE_NONE = 0;
+    private static final int DISPOSE_BACKGROUND = 1;
+    private static final int DISPOSE_PREVIOUS = 2;
+
+    private static final int BLEND_SOURCE = 0;
+    private static final int BLEND_OVER = 1;
+
+    private AnimatedCodec()
+    {
+        /*
+         * Everything here is static so no one should create one of these.
+         */
+    }
+
+    /**
+     * Read an animation.  Animated GIF and APNG files give every frame and any
+     * other image gives an animation with one frame.
+     *
+     * @param f      the image file
+     *
+     * @return the animation or null if the file isn't an image
+     * @exception IOException
+     *                   if the file can't be read
+     */
+    public static Animation read(File f)
+        throws IOException
+    {
+        byte[] signature = new byte[PNG_SIGNATURE.length];
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        try {
+            in.readFully(signature);
+
+            if (Arrays.equals(signature, PNG_SIGNATURE) && isApng(in)) {
+                return readApng(readFile(f));
+            }
+        } catch (EOFException e) {
+            /*
+             * A file this short can't be an image.
+             */
+            return null;
+        } finally {
+            in.close();
+        }
+
+        if (signature[0] == 'G' && signature[1] == 'I' && signature[2] == 'F') {
+            return readGif(f);
+        }
+
+        Carrier carrier = CarrierCache.getCache().get(f);
+        return carrier == null ? null : new Animation(carrier);
+    }
+
+    /**
+     * Check if an image is animated without decoding it.  For PNG files we
+     * look for the animation control chunk before the image data, and for GIF
+     * files we count the frames, which skims the file without decompressing
+     * any of them.
+     *
+     * @param f      the image file
+     *
+     * @return true if the file is an APNG or a GIF with more than one frame
+     * @exception IOException
+     *                   if the file can't be read
+     */
+    public static boolean isAnimated(File f)
+        throws IOException
+    {
+        byte[] signature = new byte[PNG_SIGNATURE.length];
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        try {
+            in.readFully(signature);
+
+            if (Arrays.equals(signature, PNG_SIGNATURE)) {
+                return isApng(in);
+            }
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            in.close();
+        }
+
+        if (signature[0] != 'G' || signature[1] != 'I' || signature[2] != 'F') {
+            return false;
+        }
+
+        ImageReader reader = getGifReader(f);
+        if (reader == null) {
+            return false;
+        }
+
+        try {
+            return reader.getNumImages(true) > 1;
+        } finally {
+            ((ImageInputStream) reader.getInput()).close();
+            reader.dispose();
+        }
+    }
+
+    /**
+     * Hide a payload in the frames of an animation and write it as an APNG.
+     *
+     * @param animation the carrier animation
+     * @param payload   the payload to hide
+     * @param out       the stream to write the APNG to
+     *
+     * @exception IOException
+     *                   if the payload doesn't fit or the APNG can't be written
+     */
+    public static void encode(final Animation animation, final byte[] payload, OutputStream out)
+        throws IOException
+    {
+        final int count = animation.getFrameCount();
+        final Carrier[] frames = animation.getFrames().toArray(new Carrier[count]);
+        final int[] offsets = new int[count + 1];
+        ShardCodec.plan(payload, frames, offsets);
+
+        final long id = ShardCodec.getPayloadId(payload);
+        final boolean alpha = !animation.isOpaque();
+
+        ExecutorService pool = newPool();
+        ArrayList<Future<PooledOutputStream>> tasks = new ArrayList<Future<PooledOutputStream>>();
+        PooledOutputStream[] compressed = new PooledOutputStream[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                final int index = i;
+                tasks.add(pool.submit(new Callable<PooledOutputStream>()
+                    {
+                        public PooledOutputStream call()
+                            throws IOException
+                        {
+                            Carrier frame = frames[index];
+                            int[] pixels = ShardCodec.embedShard(frame, payload, offsets[index],
+                                                                 offsets[index + 1] - offsets[index],
+                                                                 id, index, count);
+                            try {
+                                return compress(pixels, frame.getWidth(), frame.getHeight(), alpha);
+                            } finally {
+                                BufferPool.getPool().release(pixels);
+                            }
+                        }
+                    }));
+            }
+
+            for (int i = 0; i < count; i++) {
+                compressed[i] = ShardCodec.get(tasks.get(i));
+            }
+
+            writeApng(animation, compressed, alpha, out);
+        } finally {
+            pool.shutdown();
+
+            /*
+             * If one frame failed the others might still be running.  We let
+             * them finish so we can give all of their buffers back.
+             */
+            for (int i = 0; i < count; i++) {
+                if (compressed[i] == null && i < tasks.size()) {
+                    try {
+                        compressed[i] = tasks.get(i).get();
+                    } catch (Exception e) {
+                        /*
+                         * This frame failed so it has nothing to give back.
+                         */
+                    }
+                }
+
+                if (compressed[i] != null) {
+                    compressed[i].release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get a payload out of the frames of an animation.
+     *
+     * @param animation the animation
+     *
+     * @return the payload or null if the frames don't hold one
+     * @exception IOException
+     *                   if a frame is missing or damaged
+     */
+    public static byte[] decode(Animation animation)
+        throws IOException
+    {
+        ExecutorService pool = newPool();
+        try {
+            ArrayList<Future<ShardCodec.Shard>> reads = new ArrayList<Future<ShardCodec.Shard>>();
+            for (final Carrier frame : animation.getFrames()) {
+                reads.add(pool.submit(new Callable<ShardCodec.Shard>()
+                    {
+                        public ShardCodec.Shard call()
+                            throws IOException
+                        {
+                            return ShardCodec.readShard(frame);
+                        }
+                    }));
+            }
+
+            ArrayList<ShardCodec.Shard> shards = new ArrayList<ShardCodec.Shard>();
+            for (Future<ShardCodec.Shard> f : reads) {
+                ShardCodec.Shard shard = ShardCodec.get(f);
+                if (shard != null) {
+                    shards.add(shard);
+                }
+            }
+
+            return shards.isEmpty() ? null : ShardCodec.assemble(shards);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Read an APNG from memory.
+     *
+     * @param data   the PNG data
+     *
+     * @return the animation or null if this is a PNG that isn't animated
+     * @exception IOException
+     *                   if the data isn't a PNG or it's damaged
+     */
+    public static Animation readApng(final byte[] data)
+        throws IOException
+    {
+        for (int i = 0; i < PNG_SIGNATURE.length; i++) {
+            if (data.length <= i || data[i] != PNG_SIGNATURE[i]) {
+                throw new IOException("This is not a PNG file");
+            }
+        }
+
+        int width = 0;
+        int height = 0;
+        int colorType = -1;
+        int plays = 1;
+        boolean animated = false;
+        ArrayList<FrameInfo> frames = new ArrayList<FrameInfo>();
+        FrameInfo current = null;
+
+        CRC32 crc = new CRC32();
+        int pos = PNG_SIGNATURE.length;
+        while (pos + 12 <= data.length) {
+            int length = getInt(data, pos);
+            String type = new String(data, pos + 4, 4, "ISO-8859-1");
+            int start = pos + 8;
+            if (length < 0 || start + length + 4 > data.length) {
+                throw new IOException("The PNG file is cut short");
+            }
+
+            crc.reset();
+            crc.update(data, pos + 4, length + 4);
+            if ((int) crc.getValue() != getInt(data, start + length)) {
+                throw new IOException("The " + type + " chunk of the PNG file is damaged");
+            }
+            pos = start + length + 4;
+
+            if (type.equals("IHDR")) {
+                width = getInt(data, start);
+                height = getInt(data, start + 4);
+                colorType = data[start + 9];
+                if (data[start + 8] != 8 || (colorType != 2 && colorType != 6) || data[start + 12] != 0) {
+                    /*
+                     * This is all we ever write.  Other kinds of APNG files are
+                     * rare enough that we just say we can't read them.
+                     */
+                    colorType = -1;
+                }
+            } else if (type.equals("acTL")) {
+                animated = true;
+                plays = getInt(data, start + 4);
+            } else if (type.equals("fcTL")) {
+                current = new FrameInfo();
+                current.m_width = getInt(data, start + 4);
+                current.m_height = getInt(data, start + 8);
+                current.m_x = getInt(data, start + 12);
+                current.m_y = getInt(data, start + 16);
+                int num = ((data[start + 20] & 0xFF) << 8) | (data[start + 21] & 0xFF);
+                int den = ((data[start + 22] & 0xFF) << 8) | (data[start + 23] & 0xFF);
+                current.m_delay = (1000 * num) / (den == 0 ? 100 : den);
+                current.m_dispose = data[start + 24];
+                current.m_blend = data[start + 25];
+                if (current.m_x < 0 || current.m_y < 0 || current.m_width <= 0 || current.m_height <= 0 ||
+                    current.m_x + current.m_width > width || current.m_y + current.m_height > height) {
+                    throw new IOException("Frame " + (frames.size() + 1) + " is outside the image");
+                }
+                frames.add(current);
+            } else if (type.equals("IDAT") || type.equals("fdAT")) {
+                /*
+                 * Image data before the first frame control chunk is the
+                 * default image, which isn't part of the animation.
+                 */
+                if (current != null) {
+                    int skip = type.equals("fdAT") ? 4 : 0;
+                    current.m_chunks.add(new int[] {start + skip, length - skip});
+                }
+            } else if (type.equals("IEND")) {
+                break;
+            }
+        }
+
+        if (!animated) {
+            return null;
+        }
+
+        if (colorType == -1) {
+            throw new IOException("Only 8-bit RGB and RGBA animated PNG files are supported");
+        }
+
+        if (frames.isEmpty()) {
+            throw new IOException("The animated PNG file has no frames");
+        }
+
+        /*
+         * Each frame is compressed on its own so we can decompress them all
+         * at the same time.
+         */
+        final int bytesPerPixel = colorType == 6 ? 4 : 3;
+        ExecutorService pool = newPool();
+        try {
+            ArrayList<Future<int[]>> decodes = new ArrayList<Future<int[]>>();
+            for (final FrameInfo frame : frames) {
+                decodes.add(pool.submit(new Callable<int[]>()
+                    {
+                        public int[] call()
+                            throws IOException
+                        {
+                            return inflate(data, frame, bytesPerPixel);
+                        }
+                    }));
+            }
+
+            /*
+             * Putting the frames together has to go in order since each frame
+             * is drawn on top of the one before it.
+             */
+            int[] canvas = new int[width * height];
+            ArrayList<Carrier> carriers = new ArrayList<Carrier>();
+            int[] delays = new int[frames.size()];
+            for (int i = 0; i < frames.size(); i++) {
+                FrameInfo frame = frames.get(i);
+                int[] pixels = ShardCodec.get(decodes.get(i));
+
+                int dispose = frame.m_dispose;
+                if (i == 0 && dispose == DISPOSE_PREVIOUS) {
+                    dispose = DISPOSE_BACKGROUND;
+                }
+                int[] previous = dispose == DISPOSE_PREVIOUS ? canvas.clone() : null;
+
+                for (int y = 0; y < frame.m_height; y++) {
+                    int src = y * frame.m_width;
+                    int dst = (frame.m_y + y) * width + frame.m_x;
+                    if (frame.m_blend == BLEND_OVER) {
+                        for (int x = 0; x < frame.m_width; x++) {
+                            canvas[dst + x] = over(pixels[src + x], canvas[dst + x]);
+                        }
+                    } else {
+                        System.arraycopy(pixels, src, canvas, dst, frame.m_width);
+                    }
+                }
+
+                carriers.add(new Carrier(width, height, canvas.clone()));
+                delays[i] = frame.m_delay;
+
+                if (dispose == DISPOSE_BACKGROUND) {
+                    for (int y = 0; y < frame.m_height; y++) {
+                        int dst = (frame.m_y + y) * width + frame.m_x;
+                        Arrays.fill(canvas, dst, dst + frame.m_width, 0);
+                    }
+                } else if (previous != null) {
+                    canvas = previous;
+                }
+            }
+
+            return new Animation(width, height, carriers, delays, plays);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /*
+     * GIF frames are decoded by several ImageReaders at the same time.  Each
+     * reader has to skim the file to find the frames it reads but skimming is
+     * much faster than decompressing.
+     */
+    private static Animation readGif(final File f)
+        throws IOException
+    {
+        ImageReader reader = getGifReader(f);
+        if (reader == null) {
+            return null;
+        }
+
+        int count;
+        int width;
+        int height;
+        IIOMetadataNode[] metadata;
+        try {
+            count = reader.getNumImages(true);
+            metadata = new IIOMetadataNode[count];
+            for (int i = 0; i < count; i++) {
+                metadata[i] = (IIOMetadataNode) reader.getImageMetadata(i).getAsTree("javax_imageio_gif_image_1.0");
+            }
+
+            IIOMetadataNode screen = getChild((IIOMetadataNode) reader.getStreamMetadata().
+                                              getAsTree("javax_imageio_gif_stream_1.0"),
+                                              "LogicalScreenDescriptor");
+            width = getIntAttribute(screen, "logicalScreenWidth");
+            height = getIntAttribute(screen, "logicalScreenHeight");
+            if (width <= 0 || height <= 0) {
+                width = reader.getWidth(0);
+                height = reader.getHeight(0);
+            }
+        } finally {
+            ((ImageInputStream) reader.getInput()).close();
+            reader.dispose();
+        }
+
+        if (count == 0) {
+            return null;
+        }
+
+        final BufferedImage[] raw = new BufferedImage[count];
+        final int threads = Math.min(count, Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = newPool();
+        try {
+            ArrayList<Future<?>> decodes = new ArrayList<Future<?>>();
+            for (int t = 0; t < threads; t++) {
+                final int first = t;
+                decodes.add(pool.submit(new Callable<Object>()
+                    {
+                        public Object call()
+                            throws IOException
+                        {
+                            ImageReader r = getGifReader(f);
+                            try {
+                                for (int i = first; i < raw.length; i += threads) {
+                                    raw[i] = r.read(i);
+                                }
+                            } finally {
+                                ((ImageInputStream) r.getInput()).close();
+                                r.dispose();
+                            }
+                            return null;
+                        }
+                    }));
+            }
+
+            for (Future<?> d : decodes) {
+                ShardCodec.get(d);
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        BufferedImage canvas = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] canvasPixels = ((DataBufferInt) canvas.getRaster().getDataBuffer()).getData();
+        Graphics2D g = canvas.createGraphics();
+
+        ArrayList<Carrier> frames = new ArrayList<Carrier>();
+        int[] delays = new int[count];
+        int plays = getPlays(metadata[0]);
+        try {
+            for (int i = 0; i < count; i++) {
+                IIOMetadataNode descriptor = getChild(metadata[i], "ImageDescriptor");
+                int x = getIntAttribute(descriptor, "imageLeftPosition");
+                int y = getIntAttribute(descriptor, "imageTopPosition");
+
+                IIOMetadataNode control = getChild(metadata[i], "GraphicControlExtension");
+                String disposal = control == null ? "none" : control.getAttribute("disposalMethod");
+                delays[i] = control == null ? 0 : 10 * getIntAttribute(control, "delayTime");
+
+                int[] previous = disposal.equals("restoreToPrevious") ? canvasPixels.clone() : null;
+
+                g.drawImage(raw[i], x, y, null);
+                frames.add(new Carrier(width, height, canvasPixels.clone()));
+
+                if (disposal.equals("restoreToBackgroundColor")) {
+                    g.setComposite(AlphaComposite.Clear);
+                    g.fillRect(x, y, raw[i].getWidth(), raw[i].getHeight());
+                    g.setComposite(AlphaComposite.SrcOver);
+                } else if (previous != null) {
+                    System.arraycopy(previous, 0, canvasPixels, 0, previous.length);
+                }
+                raw[i] = null;
+            }
+        } finally {
+            g.dispose();
+        }
+
+        return new Animation(width, height, frames, delays, plays);
+    }
+
+    private static ImageReader getGifReader(File f)
+        throws IOException
+    {
+        ImageInputStream in = ImageIO.createImageInputStream(f);
+        if (in == null) {
+            throw new IOException("Unable to read " + f);
+        }
+
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) {
+            in.close();
+            return null;
+        }
+
+        ImageReader reader = readers.next();
+        reader.setInput(in, false);
+        return reader;
+    }
+
+    /*
+     * GIF files say how many times to loop in a Netscape application
+     * extension.  Without one the animation plays once.
+     */
+    private static int getPlays(IIOMetadataNode metadata)
+    {
+        IIOMetadataNode extensions = getChild(metadata, "ApplicationExtensions");
+        if (extensions == null) {
+            return 1;
+        }
+
+        for (int i = 0; i < extensions.getLength(); i++) {
+            IIOMetadataNode ext = (IIOMetadataNode) extensions.item(i);
+            if (ext.getAttribute("applicationID").equals("NETSCAPE") && ext.getUserObject() instanceof byte[]) {
+                byte[] data = (byte[]) ext.getUserObject();
+                if (data.length >= 3 && data[0] == 1) {
+                    return (data[1] & 0xFF) | ((data[2] & 0xFF) << 8);
+                }
+            }
+        }
+
+        return 1;
+    }
+
+    private static IIOMetadataNode getChild(IIOMetadataNode node, String name)
+    {
+        for (int i = 0; i < node.getLength(); i++) {
+            if (node.item(i).getNodeName().equals(name)) {
+                return (IIOMetadataNode) node.item(i);
+            }
+        }
+
+        return null;
+    }
+
+    private static int getIntAttribute(IIOMetadataNode node, String name)
+    {
+        try {
+            return node == null ? 0 : Integer.parseInt(node.getAttribute(name));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /*
+     * This method checks if a PNG has an animation control chunk.  It has to
+     * come before the first image data so we can stop looking there.  The
+     * stream must be just past the signature.
+     */
+    private static boolean isApng(DataInputStream in)
+        throws IOException
+    {
+        byte[] type = new byte[4];
+        while (true) {
+            int length = in.readInt();
+            in.readFully(type);
+
+            if (type[0] == 'a' && type[1] == 'c' && type[2] == 'T' && type[3] == 'L') {
+                return true;
+            } else if (type[0] == 'I' && type[1] == 'D' && type[2] == 'A' && type[3] == 'T') {
+                return false;
+            }
+
+            long skip = (length & 0xFFFFFFFFL) + 4;
+            while (skip > 0) {
+                long skipped = in.skip(skip);
+                if (skipped <= 0) {
+                    return false;
+                }
+                skip -= skipped;
+            }
+        }
+    }
+
+    /*
+     * This method decompresses one frame of an APNG and undoes the PNG
+     * filters to get the ARGB pixels of the frame.
+     */
+    private static int[] inflate(byte[] data, FrameInfo frame, int bytesPerPixel)
+        throws IOException
+    {
+        int rowLength = frame.m_width * bytesPerPixel;
+        byte[] row = new byte[rowLength + 1];
+        byte[] prior = new byte[rowLength + 1];
+        int[] pixels = new int[frame.m_width * frame.m_height];
+
+        Inflater inflater = new Inflater();
+        try {
+            int chunk = 0;
+            for (int y = 0; y < frame.m_height; y++) {
+                int filled = 0;
+                while (filled < row.length) {
+                    if (inflater.needsInput()) {
+                        if (chunk == frame.m_chunks.size()) {
+                            throw new IOException("The image data is cut short");
+                        }
+                        int[] c = frame.m_chunks.get(chunk++);
+                        inflater.setInput(data, c[0], c[1]);
+                        continue;
+                    }
+
+                    int n = inflater.inflate(row, filled, row.length - filled);
+                    if (n == 0 && (inflater.finished() || inflater.needsDictionary())) {
+                        throw new IOException("The image data is cut short");
+                    }
+                    filled += n;
+                }
+
+                unfilter(row, prior, bytesPerPixel);
+
+                int p = y * frame.m_width;
+                for (int i = 1; i < row.length; i += bytesPerPixel) {
+                    int alpha = bytesPerPixel == 4 ? row[i + 3] & 0xFF : 0xFF;
+                    pixels[p++] = (alpha << 24) | ((row[i] & 0xFF) << 16) | ((row[i + 1] & 0xFF) << 8) | (row[i + 2] & 0xFF);
+                }
+
+                byte[] swap = prior;
+                prior = row;
+                row = swap;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("The image data is damaged");
+        } finally {
+            inflater.end();
+        }
+
+        return pixels;
+    }
+
+    /*
+     * These are the five PNG filters.  The first byte of the row says which
+     * filter it uses and the rest is the row.
+     */
+    static void unfilter(byte[] row, byte[] prior, int bpp)
+        throws IOException
+    {
+        int filter = row[0];
+        switch (filter) {
+        case 0:
+            break;
+        case 1:
+            for (int i = 1 + bpp; i < row.length; i++) {
+                row[i] += row[i - bpp];
+            }
+            break;
+        case 2:
+            for (int i = 1; i < row.length; i++) {
+                row[i] += prior[i];
+            }
+            break;
+        case 3:
+            for (int i = 1; i < row.length; i++) {
+                int left = i > bpp ? row[i - bpp] & 0xFF : 0;
+                row[i] += (left + (prior[i] & 0xFF)) >>> 1;
+            }
+            break;
+        case 4:
+            for (int i = 1; i < row.length; i++) {
+                int a = i > bpp ? row[i - bpp] & 0xFF : 0;
+                int b = prior[i] & 0xFF;
+                int c = i > bpp ? prior[i - bpp] & 0xFF : 0;
+                int p = a + b - c;
+                int pa = Math.abs(p - a);
+                int pb = Math.abs(p - b);
+                int pc = Math.abs(p - c);
+                row[i] += (pa <= pb && pa <= pc) ? a : (pb <= pc ? b : c);
+            }
+            break;
+        default:
+            throw new IOException("The image data uses an unknown filter");
+        }
+    }
+
+    /*
+     * This draws one ARGB pixel over another.
+     */
+    private static int over(int src, int dst)
+    {
+        int sa = src >>> 24;
+        if (sa == 0xFF) {
+            return src;
+        } else if (sa == 0) {
+            return dst;
+        }
+
+        int da = ((dst >>> 24) * (0xFF - sa)) / 0xFF;
+        int a = sa + da;
+        int r = ((((src >> 16) & 0xFF) * sa) + (((dst >> 16) & 0xFF) * da)) / a;
+        int g = ((((src >> 8) & 0xFF) * sa) + (((dst >> 8) & 0xFF) * da)) / a;
+        int b = (((src & 0xFF) * sa) + ((dst & 0xFF) * da)) / a;
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    /*
+     * This method filters and compresses the pixels of one frame.  We use the
+     * Sub filter on every row.  It does almost as well as trying all five for
+     * each row and it is much faster.
+     */
+    private static PooledOutputStream compress(int[] pixels, int cols, int rows, boolean alpha)
+        throws IOException
+    {
+        int bpp = alpha ? 4 : 3;
+        byte[] row = new byte[cols * bpp + 1];
+        row[0] = 1;
+
+        PooledOutputStream data = new PooledOutputStream(BufferPool.getPool(), cols * rows);
+        Deflater deflater = new Deflater();
+        try {
+            DeflaterOutputStream out = new DeflaterOutputStream(data, deflater, 64 * 1024);
+            for (int y = 0; y < rows; y++) {
+                int last = 0;
+                for (int x = 0, i = 1, p = y * cols; x < cols; x++, p++) {
+                    int pixel = pixels[p];
+                    row[i++] = (byte) ((pixel >> 16) - (last >> 16));
+                    row[i++] = (byte) ((pixel >> 8) - (last >> 8));
+                    row[i++] = (byte) (pixel - last);
+                    if (alpha) {
+                        row[i++] = (byte) ((pixel >>> 24) - (last >>> 24));
+                    }
+                    last = pixel;
+                }
+                out.write(row);
+            }
+            out.finish();
+        } catch (IOException e) {
+            data.release();
+            throw e;
+        } finally {
+            deflater.end();
+        }
+
+        return data;
+    }
+
+    private static void writeApng(Animation animation, PooledOutputStream[] frames, boolean alpha, OutputStream out)
+        throws IOException
+    {
+        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        dout.write(PNG_SIGNATURE);
+
+        byte[] header = new byte[13];
+        putInt(header, 0, animation.getWidth());
+        putInt(header, 4, animation.getHeight());
+        header[8] = 8;
+        header[9] = (byte) (alpha ? 6 : 2);
+        writeChunk(dout, "IHDR", header, 0, header.length);
+
+        byte[] control = new byte[8];
+        putInt(control, 0, frames.length);
+        putInt(control, 4, animation.getPlays());
+        writeChunk(dout, "acTL", control, 0, control.length);
+
+        /*
+         * Every frame covers the whole image and replaces what was there so
+         * the frames we read back are exactly the frames we wrote.
+         */
+        int sequence = 0;
+        byte[] frameControl = new byte[26];
+        for (int i = 0; i < frames.length; i++) {
+            int delay = Math.min(animation.getDelay(i), 0xFFFF);
+            putInt(frameControl, 0, sequence++);
+            putInt(frameControl, 4, animation.getWidth());
+            putInt(frameControl, 8, animation.getHeight());
+            putInt(frameControl, 12, 0);
+            putInt(frameControl, 16, 0);
+            frameControl[20] = (byte) (delay >> 8);
+            frameControl[21] = (byte) delay;
+            frameControl[22] = (byte) (1000 >> 8);
+            frameControl[23] = (byte) 1000;
+            frameControl[24] = DISPOSE_NONE;
+            frameControl[25] = BLEND_SOURCE;
+            writeChunk(dout, "fcTL", frameControl, 0, frameControl.length);
+
+            if (i == 0) {
+                /*
+                 * The first frame is also the default image that programs
+                 * without APNG support show.
+                 */
+                writeChunk(dout, "IDAT", frames[i].getBuffer(), 0, frames[i].size());
+            } else {
+                byte[] seq = new byte[4];
+                putInt(seq, 0, sequence++);
+                CRC32 crc = new CRC32();
+                crc.update("fdAT".getBytes("ISO-8859-1"));
+                crc.update(seq);
+                crc.update(frames[i].getBuffer(), 0, frames[i].size());
+
+                dout.writeInt(frames[i].size() + 4);
+                dout.writeBytes("fdAT");
+                dout.write(seq);
+                dout.write(frames[i].getBuffer(), 0, frames[i].size());
+                dout.writeInt((int) crc.getValue());
+            }
+        }
+
+        writeChunk(dout, "IEND", new byte[0], 0, 0);
+        dout.flush();
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] data, int off, int len)
+        throws IOException
+    {
+        CRC32 crc = new CRC32();
+        crc.update(type.getBytes("ISO-8859-1"));
+        crc.update(data, off, len);
+
+        out.writeInt(len);
+        out.writeBytes(type);
+        out.write(data, off, len);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static ExecutorService newPool()
+    {
+        return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    private static byte[] readFile(File f)
+        throws IOException
+    {
+        if (f.length() > Integer.MAX_VALUE) {
+            throw new IOException(f + " is too large");
+        }
+
+        byte[] data = new byte[(int) f.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+
+        return data;
+    }
+
+    private static void putInt(byte[] b, int off, int value)
+    {
+        b[off] = (byte) (value >>> 24);
+        b[off + 1] = (byte) (value >>> 16);
+        b[off + 2] = (byte) (value >>> 8);
+        b[off + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] b, int off)
+    {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+
+    /*
+     * This is the frame control information and image data chunks of one
+     * APNG frame.
+     */
+    private static class FrameInfo
+    {
+        private int m_x;
+        private int m_y;
+        private int m_width;
+        private int m_height;
+        private int m_delay;
+        private int m_dispose;
+        private int m_blend;
+        private final ArrayList<int[]> m_chunks = new ArrayList<int[]>();
+    }
+}
@@ -0,0 +1,124 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest;
+
+import java.util.*;
+
+/*
+ * This is a decoded animation.  Each frame is a carrier with the whole frame
+ * as it is shown on the screen, after it has been drawn over the frames before
+ * it.  GIF and APNG files can store just the part of each frame that changed,
+ * but we always keep whole frames so each one can be used as a carrier on its
+ * own.
+ *
+ * An image that isn't animated is an animation with one frame.
+ */
+public class Animation
+{
+    private final int m_width;
+    private final int m_height;
+    private final List<Carrier> m_frames;
+    private final int[] m_delays;
+    private final int m_plays;
+
+    /**
+     * Create a new animation.
+     *
+     * @param width  the width of the animation
+     * @param height the height of the animation
+     * @param frames the frames.  They must all be the full size of the animation.
+     * @param delays how long to show each frame in milliseconds
+     * @param plays  how many times to play the animation or 0 to play it forever
+     */
+    public Animation(int width, int height, List<Carrier> frames, int[] delays, int plays)
+    {
+        m_width = width;
+        m_height = height;
+        m_frames = Collections.unmodifiableList(new ArrayList<Carrier>(frames));
+        m_delays = delays;
+        m_plays = plays;
+    }
+
+    /**
+     * Create an animation with just one frame.
+     *
+     * @param carrier the frame
+     */
+    public Animation(Carrier carrier)
+    {
+        this(carrier.getWidth(), carrier.getHeight(), Collections.singletonList(carrier), new int[1], 1);
+    }
+
+    public int getWidth()
+    {
+        return m_width;
+    }
+
+    public int getHeight()
+    {
+        return m_height;
+    }
+
+    public int getFrameCount()
+    {
+        return m_frames.size();
+    }
+
+    public Carrier getFrame(int index)
+    {
+        return m_frames.get(index);
+    }
+
+    public List<Carrier> getFrames()
+    {
+        return m_frames;
+    }
+
+    /**
+     * @param index  the frame
+     *
+     * @return how long to show the frame in milliseconds
+     */
+    public int getDelay(int index)
+    {
+        return m_delays[index];
+    }
+
+    /**
+     * @return how many times to play the animation or 0 to play it forever
+     */
+    public int getPlays()
+    {
+        return m_plays;
+    }
+
+    /**
+     * @return true if every pixel of every frame is fully opaque
+     */
+    public boolean isOpaque()
+    {
+        for (Carrier frame : m_frames) {
+            int[] pixels = frame.getPixels();
+            for (int i = 0; i < pixels.length; i++) {
+                if ((pixels[i] >>> 24) != 0xFF) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+}
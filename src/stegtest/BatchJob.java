@@ -0,0 +1,138 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest;
+
+import java.util.*;
+
+import java.io.*;
+
+/*
+ * This is one encode request for the BatchPipeline.  It holds the request and
+ * everything the stages of the pipeline hand to each other as the job moves
+ * through it.
+ */
+public class BatchJob
+{
+    private final File m_carrierFile;
+    private final File m_outFile;
+    private final String m_message;
+
+    /*
+     * These are filled in by the stages as the job moves through the pipeline.
+     */
+    Carrier m_carrier;
+    String m_cacheKey;
+    int[] m_encoded;
+    PooledOutputStream m_png;
+
+    private volatile boolean m_done;
+    private volatile Exception m_error;
+
+    /**
+     * Create a new job.
+     *
+     * @param carrierFile
+     *                the image to hide the message in
+     * @param outFile the PNG file to write
+     * @param message the message
+     */
+    public BatchJob(File carrierFile, File outFile, String message)
+    {
+        m_carrierFile = carrierFile;
+        m_outFile = outFile;
+        m_message = message;
+    }
+
+    /**
+     * Read a list of jobs from a file.  Each line of the file has the carrier
+     * image, the output file, and the message separated by tabs.  Blank lines
+     * and lines starting with # are skipped.
+     *
+     * @param jobFile the file to read
+     *
+     * @return the jobs
+     * @exception IOException
+     *                   if the file can't be read or a line is missing fields
+     */
+    public static List<BatchJob> readJobs(File jobFile)
+        throws IOException
+    {
+        ArrayList<BatchJob> jobs = new ArrayList<BatchJob>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(jobFile), "UTF-8"));
+        try {
+            String line;
+            int lineNum = 0;
+            while ((line = in.readLine()) != null) {
+                lineNum++;
+                if (line.trim().length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+
+                String[] fields = line.split("\t", 3);
+                if (fields.length != 3) {
+                    throw new IOException(jobFile + ":" + lineNum + ": expected carrier, output, and message separated by tabs");
+                }
+
+                jobs.add(new BatchJob(new File(fields[0]), new File(fields[1]), fields[2]));
+            }
+        } finally {
+            in.close();
+        }
+
+        return jobs;
+    }
+
+    public File getCarrierFile()
+    {
+        return m_carrierFile;
+    }
+
+    public File getOutFile()
+    {
+        return m_outFile;
+    }
+
+    public String getMessage()
+    {
+        return m_message;
+    }
+
+    /**
+     * @return true if the job finished without an error
+     */
+    public boolean isDone()
+    {
+        return m_done;
+    }
+
+    /**
+     * @return the error that stopped this job or null if there wasn't one
+     */
+    public Exception getError()
+    {
+        return m_error;
+    }
+
+    void setDone()
+    {
+        m_done = true;
+    }
+
+    void setError(Exception error)
+    {
+        m_error = error;
+    }
+}
@@ -0,0 +1,363 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import java.io.*;
+
+/*
+ * This class encodes a batch of images.  Encoding an image is four steps:
+ * read and decode the carrier, embed the message, compress the PNG, and write
+ * the file.  Reading and writing wait on the disk and embedding and compressing
+ * wait on the CPU.  If one thread does all four steps the CPU sits idle while
+ * we read and the disk sits idle while we compress.
+ *
+ * The pipeline gives each step its own threads and its own queue.  Each stage
+ * takes jobs from its queue, does its step, and puts the job on the queue of
+ * the next stage.  The queues are bounded so when a stage falls behind the
+ * stages in front of it block until it catches up.  That keeps us from
+ * decoding thousands of images into memory faster than we can write them.
+ *
+ * Each stage keeps track of how long its threads spend working, waiting for
+ * work, and waiting for the next stage.  The report at the end shows how busy
+ * each stage was so you can tell which pool needs more threads.
+ */
+public class BatchPipeline
+{
+    /*
+     * This is put on a queue to tell a stage thread there are no more jobs.
+     */
+    private static final BatchJob END = new BatchJob(null, null, null);
+
+    private final Stage m_read;
+    private final Stage m_embed;
+    private final Stage m_compress;
+    private final Stage m_write;
+
+    private long m_wallNanos;
+
+    /**
+     * Create a new pipeline.
+     *
+     * @param readers     the number of threads reading and decoding carriers
+     * @param embedders   the number of threads embedding messages
+     * @param compressors the number of threads compressing PNG data
+     * @param writers     the number of threads writing files
+     */
+    public BatchPipeline(int readers, int embedders, int compressors, int writers)
+    {
+        m_write = new Stage("write", writers, null)
+            {
+                protected boolean process(BatchJob job)
+                    throws Exception
+                {
+                    FileOutputStream out = new FileOutputStream(job.getOutFile());
+                    try {
+                        job.m_png.writeTo(out);
+                    } finally {
+                        out.close();
+                    }
+
+                    ResultCache cache = ResultCache.getCache();
+                    if (cache != null && job.m_cacheKey != null) {
+                        cache.put(job.m_cacheKey, job.m_png.getBuffer(), job.m_png.size());
+                    }
+
+                    job.m_png.release();
+                    job.m_png = null;
+                    return true;
+                }
+            };
+
+        m_compress = new Stage("compress", compressors, m_write)
+            {
+                protected boolean process(BatchJob job)
+                    throws Exception
+                {
+                    int cols = job.m_carrier.getWidth();
+                    int rows = job.m_carrier.getHeight();
+
+                    /*
+                     * The buffer is sized by what we expect the output to be,
+                     * not the raw pixels, since it sits in the write queue
+                     * until the writer gets to it.
+                     */
+                    String format = StegCore.getImageFormat(job.getOutFile());
+                    job.m_png = new PooledOutputStream(BufferPool.getPool(),
+                                                       StegCore.estimateImageSize(format, cols, rows));
+                    StegCore.writeImage(job.m_encoded, cols, rows, format, job.m_png);
+                    job.m_encoded = null;
+                    job.m_carrier = null;
+                    return false;
+                }
+            };
+
+        m_embed = new Stage("embed", embedders, m_compress)
+            {
+                protected boolean process(BatchJob job)
+                    throws Exception
+                {
+                    job.m_encoded = StegCore.encode(job.m_carrier, job.getMessage());
+                    return false;
+                }
+            };
+
+        m_read = new Stage("read", readers, m_embed)
+            {
+                protected boolean process(BatchJob job)
+                    throws Exception
+                {
+                    /*
+                     * If we've done this job before we just copy the result
+                     * and skip the rest of the pipeline.
+                     */
+                    ResultCache cache = ResultCache.getCache();
+                    if (cache != null) {
+                        String params = StegCore.getCodecParams(StegCore.getImageFormat(job.getOutFile()));
+                        job.m_cacheKey = cache.getKey(job.getCarrierFile(), job.getMessage().getBytes("ISO-8859-1"),
+                                                      params);
+                        if (cache.copyTo(job.m_cacheKey, job.getOutFile())) {
+                            return true;
+                        }
+                    }
+
+                    /*
+                     * Reading the header is much cheaper than decoding the
+                     * image so we turn away messages that don't fit first.
+                     */
+                    StegCore.checkFit(job.getCarrierFile(), job.getMessage());
+
+                    job.m_carrier = CarrierCache.getCache().get(job.getCarrierFile());
+                    if (job.m_carrier == null) {
+                        throw new IOException("Unable to read the image at " + job.getCarrierFile());
+                    }
+
+                    return false;
+                }
+            };
+    }
+
+    /**
+     * Run a batch of jobs.  This method returns once every job is finished.
+     * Check each job to see if it worked.  A pipeline can only run one batch.
+     *
+     * @param jobs   the jobs to run
+     *
+     * @exception InterruptedException
+     *                   if we are interrupted while waiting for the jobs
+     */
+    public void run(List<BatchJob> jobs)
+        throws InterruptedException
+    {
+        long start = System.nanoTime();
+
+        m_write.start();
+        m_compress.start();
+        m_embed.start();
+        m_read.start();
+
+        for (BatchJob job : jobs) {
+            m_read.m_queue.put(job);
+        }
+        m_read.finish();
+
+        m_write.await();
+        m_wallNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Get a report of how busy each stage was during the last run.  A stage
+     * that is busy close to 100% of the time is the one holding up the rest.
+     * A stage that spends a lot of time blocked is waiting on the stage after it.
+     *
+     * @return the report
+     */
+    public String getReport()
+    {
+        StringBuffer sb = new StringBuffer();
+        sb.append(String.format("%-10s %7s %7s %7s %7s %7s %9s%n",
+                                "stage", "threads", "jobs", "errors", "busy%", "idle%", "blocked%"));
+
+        Stage[] stages = {m_read, m_embed, m_compress, m_write};
+        for (Stage s : stages) {
+            double total = (double) m_wallNanos * s.m_threadCount;
+            sb.append(String.format("%-10s %7d %7d %7d %7.1f %7.1f %9.1f%n",
+                                    s.m_name, s.m_threadCount, s.m_jobs.get(), s.m_errors.get(),
+                                    100.0 * s.m_busyNanos.get() / total,
+                                    100.0 * s.m_idleNanos.get() / total,
+                                    100.0 * s.m_blockedNanos.get() / total));
+        }
+
+        sb.append(String.format("%.1f seconds%n", m_wallNanos / 1e9));
+        return sb.toString();
+    }
+
+    /*
+     * A stage of the pipeline is a queue and the threads that work on it.
+     */
+    private abstract static class Stage
+    {
+        private final String m_name;
+        private final int m_threadCount;
+        private final Stage m_next;
+        private final BlockingQueue<BatchJob> m_queue;
+        private final CountDownLatch m_running;
+
+        private final AtomicLong m_jobs = new AtomicLong();
+        private final AtomicLong m_errors = new AtomicLong();
+        private final AtomicLong m_busyNanos = new AtomicLong();
+        private final AtomicLong m_idleNanos = new AtomicLong();
+        private final AtomicLong m_blockedNanos = new AtomicLong();
+
+        private Stage(String name, int threadCount, Stage next)
+        {
+            m_name = name;
+            m_threadCount = Math.max(threadCount, 1);
+            m_next = next;
+
+            /*
+             * Two jobs a thread is enough to keep every thread busy without
+             * letting too many decoded images pile up.
+             */
+            m_queue = new ArrayBlockingQueue<BatchJob>(2 * m_threadCount);
+            m_running = new CountDownLatch(m_threadCount);
+        }
+
+        /**
+         * Do this stage's step for a job.
+         *
+         * @return true if the job is finished and false if it should go on
+         *         to the next stage
+         */
+        protected abstract boolean process(BatchJob job)
+            throws Exception;
+
+        private void start()
+        {
+            for (int i = 0; i < m_threadCount; i++) {
+                Thread t = new Thread("stegtest-" + m_name + "-" + i)
+                    {
+                        public void run()
+                        {
+                            try {
+                                work();
+                            } catch (InterruptedException e) {
+                                /*
+                                 * We just stop if someone interrupts us.
+                                 */
+                            } finally {
+                                m_running.countDown();
+                            }
+                        }
+                    };
+                t.setDaemon(true);
+                t.start();
+            }
+
+            /*
+             * When all of our threads are done we tell the next stage there
+             * won't be any more jobs.
+             */
+            if (m_next != null) {
+                Thread t = new Thread("stegtest-" + m_name + "-finish")
+                    {
+                        public void run()
+                        {
+                            try {
+                                m_running.await();
+                                m_next.finish();
+                            } catch (InterruptedException e) {
+                                /*
+                                 * We just stop if someone interrupts us.
+                                 */
+                            }
+                        }
+                    };
+                t.setDaemon(true);
+                t.start();
+            }
+        }
+
+        private void work()
+            throws InterruptedException
+        {
+            while (true) {
+                long t0 = System.nanoTime();
+                BatchJob job = m_queue.take();
+                long t1 = System.nanoTime();
+                m_idleNanos.addAndGet(t1 - t0);
+
+                if (job == END) {
+                    return;
+                }
+
+                boolean finished;
+                try {
+                    finished = process(job);
+                } catch (Exception e) {
+                    job.setError(e);
+                    m_errors.incrementAndGet();
+                    finished = true;
+                } catch (OutOfMemoryError e) {
+                    job.setError(new IOException("Out of memory: " + e.getMessage()));
+                    m_errors.incrementAndGet();
+                    finished = true;
+                }
+
+                long t2 = System.nanoTime();
+                m_busyNanos.addAndGet(t2 - t1);
+                m_jobs.incrementAndGet();
+
+                if (finished) {
+                    if (job.getError() == null) {
+                        job.setDone();
+                    }
+
+                    /*
+                     * The job might have stopped part way so we give back any
+                     * buffers it was holding.
+                     */
+                    if (job.m_png != null) {
+                        job.m_png.release();
+                        job.m_png = null;
+                    }
+                    job.m_encoded = null;
+                    job.m_carrier = null;
+                } else {
+                    m_next.m_queue.put(job);
+                    m_blockedNanos.addAndGet(System.nanoTime() - t2);
+                }
+            }
+        }
+
+        private void finish()
+            throws InterruptedException
+        {
+            for (int i = 0; i < m_threadCount; i++) {
+                m_queue.put(END);
+            }
+        }
+
+        private void await()
+            throws InterruptedException
+        {
+            m_running.await();
+        }
+    }
+}
@@ -0,0 +1,723 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import java.io.*;
+import java.lang.ref.*;
+
+import java.awt.*;
+import java.awt.datatransfer.*;
+import java.awt.event.*;
+import java.awt.image.*;
+import javax.imageio.*;
+import javax.imageio.stream.*;
+import javax.swing.*;
+import javax.swing.table.*;
+
+/*
+ * This panel encodes or decodes lots of images at once.  Users drop files or
+ * whole directories on the table and each one becomes a row.  Encode All and
+ * Decode All run every waiting row on a pool of background threads and the
+ * table shows how each one is doing.
+ *
+ * The table has to stay quick with thousands of rows.  The worker threads
+ * never touch Swing.  They just change their row and set a flag, and a timer
+ * on the event thread repaints the table a few times a second.  Thumbnails
+ * are only made for rows the table actually draws.  They are read with
+ * subsampling so we never decode a whole image for a thumbnail, and they are
+ * held with soft references so the garbage collector can drop them if there
+ * are too many.
+ */
+public class BatchQueuePanel extends JPanel implements ActionListener
+{
+    private static final int THUMB_SIZE = 32;
+
+    /*
+     * When the user scrolls quickly through a long list we don't want to
+     * make thumbnails for every row that went past.  We make the most recent
+     * requests first and forget the oldest ones past this many.
+     */
+    private static final int MAX_THUMB_REQUESTS = 256;
+
+    private static final String[] COLUMNS = {"", "File", "Status", "Time (ms)", "Message / Error"};
+
+    private static final String WAITING = "Waiting";
+    private static final String QUEUED = "Queued";
+    private static final String RUNNING = "Running";
+    private static final String DONE = "Done";
+    private static final String FAILED = "Failed";
+
+    /*
+     * This is one image in the queue.  The worker threads change the
+     * status fields so they are volatile.
+     */
+    private static class Entry
+    {
+        final File m_file;
+        volatile String m_status = WAITING;
+        volatile String m_result = "";
+        volatile long m_millis = -1;
+        volatile SoftReference<Icon> m_thumb;
+        volatile boolean m_thumbRequested;
+
+        Entry(File file)
+        {
+            m_file = file;
+        }
+    }
+
+    private final ArrayList<Entry> m_entries = new ArrayList<Entry>();
+    private final HashSet<File> m_files = new HashSet<File>();
+    private final EntryModel m_model = new EntryModel();
+    private final JTable m_table = new JTable(m_model);
+
+    private final JTextField m_message = new JTextField(30);
+    private final JTextField m_outDir = new JTextField(20);
+    private final JButton m_encodeBtn = new JButton("Encode All");
+    private final JButton m_decodeBtn = new JButton("Decode All");
+    private final JButton m_stopBtn = new JButton("Stop");
+    private final JButton m_clearBtn = new JButton("Clear");
+    private final JButton m_outDirBtn = new JButton("Save To...");
+    private final JLabel m_status = new JLabel(" ");
+
+    private final ExecutorService m_workers;
+    private final javax.swing.Timer m_timer;
+    private final LinkedList<Entry> m_thumbRequests = new LinkedList<Entry>();
+
+    /*
+     * Stop works by moving to a new generation.  Jobs from an older
+     * generation see that when they start and don't run.
+     */
+    private final AtomicInteger m_generation = new AtomicInteger();
+    private final AtomicBoolean m_dirty = new AtomicBoolean();
+    private final AtomicInteger m_running = new AtomicInteger();
+    private final AtomicInteger m_finished = new AtomicInteger();
+    private final AtomicInteger m_failed = new AtomicInteger();
+    private final AtomicLong m_busyMillis = new AtomicLong();
+    private volatile long m_startMillis;
+
+    /**
+     * Open the batch queue in its own window.
+     *
+     * @param owner  the main window
+     */
+    public static void showWindow(Frame owner)
+    {
+        JFrame frame = new JFrame("Batch Queue");
+        frame.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+        final BatchQueuePanel panel = new BatchQueuePanel();
+        frame.getContentPane().add(panel, BorderLayout.CENTER);
+        frame.addWindowListener(new WindowAdapter()
+            {
+                public void windowClosed(WindowEvent e)
+                {
+                    panel.shutdown();
+                }
+            });
+
+        frame.setSize(900, 600);
+        frame.setLocationRelativeTo(owner);
+        frame.setVisible(true);
+    }
+
+    public BatchQueuePanel()
+    {
+        super(new BorderLayout());
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        m_workers = Executors.newFixedThreadPool(threads, new DaemonFactory("stegtest-batch-queue"));
+
+        Thread thumbs = new DaemonFactory("stegtest-thumbnails").newThread(new Runnable()
+            {
+                public void run()
+                {
+                    makeThumbnails();
+                }
+            });
+        thumbs.setPriority(Thread.MIN_PRIORITY);
+        thumbs.start();
+
+        JPanel controls = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        controls.add(new JLabel("Message:"));
+        controls.add(m_message);
+        controls.add(m_outDirBtn);
+        controls.add(m_outDir);
+        m_outDir.setToolTipText("Encoded images go next to the originals if this is empty");
+
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        buttons.add(m_encodeBtn);
+        buttons.add(m_decodeBtn);
+        buttons.add(m_stopBtn);
+        buttons.add(m_clearBtn);
+
+        JPanel top = new JPanel(new GridLayout(2, 1));
+        top.add(controls);
+        top.add(buttons);
+        add(top, BorderLayout.NORTH);
+
+        m_encodeBtn.addActionListener(this);
+        m_decodeBtn.addActionListener(this);
+        m_stopBtn.addActionListener(this);
+        m_clearBtn.addActionListener(this);
+        m_outDirBtn.addActionListener(this);
+
+        m_table.setRowHeight(THUMB_SIZE + 4);
+        TableColumnModel columns = m_table.getColumnModel();
+        columns.getColumn(0).setMaxWidth(THUMB_SIZE + 8);
+        columns.getColumn(0).setCellRenderer(new ThumbRenderer());
+        columns.getColumn(1).setPreferredWidth(300);
+        columns.getColumn(2).setPreferredWidth(60);
+        columns.getColumn(3).setPreferredWidth(60);
+        columns.getColumn(4).setPreferredWidth(300);
+
+        /*
+         * Files can be dropped anywhere on the table, even below the last
+         * row.
+         */
+        JScrollPane scroll = new JScrollPane(m_table);
+        FileDropHandler dropHandler = new FileDropHandler();
+        m_table.setTransferHandler(dropHandler);
+        scroll.setTransferHandler(dropHandler);
+
+        add(scroll, BorderLayout.CENTER);
+        add(m_status, BorderLayout.SOUTH);
+        m_status.setText("Drop images or directories here");
+
+        m_timer = new javax.swing.Timer(250, new ActionListener()
+            {
+                public void actionPerformed(ActionEvent e)
+                {
+                    refresh();
+                }
+            });
+        m_timer.start();
+    }
+
+    public void actionPerformed(ActionEvent e)
+    {
+        if (e.getSource() == m_encodeBtn) {
+            start(true);
+        } else if (e.getSource() == m_decodeBtn) {
+            start(false);
+        } else if (e.getSource() == m_stopBtn) {
+            /*
+             * The tasks already handed to the workers see the new generation
+             * and skip their rows.  We put the rows back to waiting here so
+             * the next start picks them up again right away.
+             */
+            m_generation.incrementAndGet();
+            for (Entry entry : m_entries) {
+                synchronized (entry) {
+                    if (entry.m_status == QUEUED) {
+                        entry.m_status = WAITING;
+                    }
+                }
+            }
+            m_dirty.set(true);
+        } else if (e.getSource() == m_clearBtn) {
+            m_generation.incrementAndGet();
+            synchronized (m_thumbRequests) {
+                m_thumbRequests.clear();
+            }
+            m_entries.clear();
+            m_files.clear();
+            m_model.fireTableDataChanged();
+            m_finished.set(0);
+            m_failed.set(0);
+            m_busyMillis.set(0);
+            m_status.setText("Drop images or directories here");
+        } else if (e.getSource() == m_outDirBtn) {
+            JFileChooser chooser = new JFileChooser(m_outDir.getText());
+            chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+            if (chooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+                m_outDir.setText(chooser.getSelectedFile().getPath());
+            }
+        }
+    }
+
+    /**
+     * Add files to the queue.  Directories are searched for images.  Files
+     * that are already in the queue are skipped.  This must be called on
+     * the event thread.
+     *
+     * @param files  the files to add
+     */
+    public void addFiles(java.util.List<File> files)
+    {
+        int first = m_entries.size();
+        for (File f : files) {
+            f = f.getAbsoluteFile();
+            if (m_files.add(f)) {
+                m_entries.add(new Entry(f));
+            }
+        }
+
+        if (m_entries.size() > first) {
+            m_model.fireTableRowsInserted(first, m_entries.size() - 1);
+        }
+        m_dirty.set(true);
+    }
+
+    /*
+     * Queue every waiting or failed row on the worker threads.
+     */
+    private void start(final boolean encode)
+    {
+        final String message = m_message.getText();
+        if (encode && message.length() == 0) {
+            JOptionPane.showMessageDialog(this, "You have to type a message to encode",
+                                          "No Message", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+
+        final File outDir = m_outDir.getText().trim().length() == 0 ? null : new File(m_outDir.getText().trim());
+        if (outDir != null && !outDir.isDirectory() && !outDir.mkdirs()) {
+            JOptionPane.showMessageDialog(this, "Unable to create " + outDir,
+                                          "Unable To Save", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        final int generation = m_generation.get();
+        if (m_running.get() == 0) {
+            m_startMillis = System.currentTimeMillis();
+            m_finished.set(0);
+            m_failed.set(0);
+            m_busyMillis.set(0);
+        }
+
+        for (final Entry entry : m_entries) {
+            if (entry.m_status == RUNNING || entry.m_status == QUEUED || entry.m_status == DONE) {
+                continue;
+            }
+
+            entry.m_status = QUEUED;
+            entry.m_result = "";
+            m_running.incrementAndGet();
+            m_workers.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        try {
+                            if (claim(entry, generation)) {
+                                process(entry, encode, message, outDir);
+                            }
+                        } finally {
+                            m_running.decrementAndGet();
+                            m_dirty.set(true);
+                        }
+                    }
+                });
+        }
+        m_dirty.set(true);
+    }
+
+    /*
+     * A task only runs its row if Stop hasn't been pressed since the task
+     * was queued.  If it was, the row was put back to waiting and may already
+     * be queued again by a newer task, so we leave it alone.
+     */
+    private boolean claim(Entry entry, int generation)
+    {
+        synchronized (entry) {
+            if (generation != m_generation.get() || entry.m_status != QUEUED) {
+                return false;
+            }
+
+            entry.m_status = RUNNING;
+            return true;
+        }
+    }
+
+    /*
+     * This runs on a worker thread.
+     */
+    private void process(Entry entry, boolean encode, String message, File outDir)
+    {
+        m_dirty.set(true);
+
+        long start = System.currentTimeMillis();
+        try {
+            if (encode) {
+                File out = getOutputFile(entry.m_file, outDir);
+                StegCore.encodeFile(entry.m_file, message, out);
+                entry.m_result = out.getPath();
+            } else {
+                /*
+                 * Each file in the queue is only decoded once so we don't
+                 * put it in the carrier cache.
+                 */
+                BufferedImage image = ImageInput.read(entry.m_file);
+                if (image == null) {
+                    throw new IOException("Unable to read the image at " + entry.m_file);
+                }
+
+                String decoded = StegCore.decode(Carrier.fromImage(image));
+                entry.m_result = decoded == null ? "No message" : decoded;
+            }
+            entry.m_status = DONE;
+            m_finished.incrementAndGet();
+        } catch (Throwable t) {
+            entry.m_result = t.getMessage() == null ? t.toString() : t.getMessage();
+            entry.m_status = FAILED;
+            m_failed.incrementAndGet();
+        }
+
+        entry.m_millis = System.currentTimeMillis() - start;
+        m_busyMillis.addAndGet(entry.m_millis);
+    }
+
+    private static File getOutputFile(File in, File outDir)
+    {
+        String name = in.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+
+        return new File(outDir == null ? in.getParentFile() : outDir, name + "-encoded.png");
+    }
+
+    /*
+     * This runs on the event thread a few times a second.  Repainting the
+     * rows only redraws the ones on the screen, so this costs the same with
+     * ten rows or ten thousand.
+     */
+    private void refresh()
+    {
+        if (!m_dirty.getAndSet(false) || m_entries.size() == 0) {
+            return;
+        }
+
+        m_model.fireTableRowsUpdated(0, m_entries.size() - 1);
+
+        int finished = m_finished.get();
+        int failed = m_failed.get();
+        int running = m_running.get();
+        StringBuffer status = new StringBuffer();
+        status.append(m_entries.size()).append(" images, ").append(finished).append(" done, ");
+        status.append(failed).append(" failed, ").append(running).append(" to go");
+
+        long elapsed = System.currentTimeMillis() - m_startMillis;
+        int count = finished + failed;
+        if (count > 0 && m_startMillis > 0 && elapsed > 0) {
+            status.append(String.format(", %.1f images/s, %d ms each", (1000.0 * count) / elapsed,
+                                        m_busyMillis.get() / count));
+        }
+        m_status.setText(status.toString());
+    }
+
+    private void shutdown()
+    {
+        m_generation.incrementAndGet();
+        m_timer.stop();
+        m_workers.shutdownNow();
+        synchronized (m_thumbRequests) {
+            m_thumbRequests.clear();
+            m_thumbRequests.add(new Entry(null));
+            m_thumbRequests.notifyAll();
+        }
+    }
+
+    /*
+     * This is called by the renderer on the event thread when it draws a
+     * row that doesn't have a thumbnail yet.
+     */
+    private void requestThumbnail(Entry entry)
+    {
+        if (entry.m_thumbRequested) {
+            return;
+        }
+
+        entry.m_thumbRequested = true;
+        synchronized (m_thumbRequests) {
+            m_thumbRequests.addLast(entry);
+            if (m_thumbRequests.size() > MAX_THUMB_REQUESTS) {
+                /*
+                 * If this row comes back on screen the renderer will ask
+                 * for it again.
+                 */
+                m_thumbRequests.removeFirst().m_thumbRequested = false;
+            }
+            m_thumbRequests.notifyAll();
+        }
+    }
+
+    /*
+     * This runs on its own low priority thread.  It always makes the most
+     * recently requested thumbnail first since that row is most likely still
+     * on the screen.
+     */
+    private void makeThumbnails()
+    {
+        while (true) {
+            Entry entry;
+            synchronized (m_thumbRequests) {
+                while (m_thumbRequests.isEmpty()) {
+                    try {
+                        m_thumbRequests.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                entry = m_thumbRequests.removeLast();
+            }
+
+            if (entry.m_file == null) {
+                /*
+                 * The window closed.
+                 */
+                return;
+            }
+
+            Icon icon;
+            try {
+                BufferedImage thumb = readThumbnail(entry.m_file);
+                icon = thumb == null ? new BlankIcon() : new ImageIcon(thumb);
+            } catch (Throwable t) {
+                icon = new BlankIcon();
+            }
+
+            entry.m_thumb = new SoftReference<Icon>(icon);
+            entry.m_thumbRequested = false;
+            m_dirty.set(true);
+        }
+    }
+
+    /*
+     * We ask the reader to skip rows and columns so a huge image only costs
+     * us about as much as a small one.
+     */
+    private static BufferedImage readThumbnail(File f)
+        throws IOException
+    {
+        ImageInputStream in = ImageIO.createImageInputStream(f);
+        if (in == null) {
+            return null;
+        }
+
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                /*
+                 * ImageIO doesn't know our raw QOI and PAM images, but they
+                 * are quick to read whole.
+                 */
+                BufferedImage image = ImageInput.read(f);
+                return image == null ? null : scale(image);
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                int step = Math.max(1, Math.max(width, height) / (THUMB_SIZE * 2));
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                return scale(reader.read(0, param));
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static BufferedImage scale(BufferedImage image)
+    {
+        double scale = Math.min(1.0, (double) THUMB_SIZE / Math.max(image.getWidth(), image.getHeight()));
+        int w = Math.max(1, (int) (image.getWidth() * scale));
+        int h = Math.max(1, (int) (image.getHeight() * scale));
+        BufferedImage thumb = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = thumb.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(image, 0, 0, w, h, null);
+        } finally {
+            g.dispose();
+        }
+        return thumb;
+    }
+
+    /*
+     * Find the images in a directory and all of the directories under it.
+     */
+    private static void findImages(File f, java.util.List<File> out)
+    {
+        if (f.isDirectory()) {
+            File[] children = f.listFiles();
+            if (children != null) {
+                Arrays.sort(children);
+                for (File child : children) {
+                    findImages(child, out);
+                }
+            }
+        } else {
+            String name = f.getName().toLowerCase();
+            if (name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".png") ||
+                name.endsWith(".gif") || name.endsWith(".bmp") || name.endsWith(".qoi") || name.endsWith(".pam")) {
+                out.add(f);
+            }
+        }
+    }
+
+    private class EntryModel extends AbstractTableModel
+    {
+        public int getRowCount()
+        {
+            return m_entries.size();
+        }
+
+        public int getColumnCount()
+        {
+            return COLUMNS.length;
+        }
+
+        public String getColumnName(int col)
+        {
+            return COLUMNS[col];
+        }
+
+        public Object getValueAt(int row, int col)
+        {
+            Entry entry = m_entries.get(row);
+            switch (col) {
+            case 0:
+                return entry;
+            case 1:
+                return entry.m_file.getPath();
+            case 2:
+                return entry.m_status;
+            case 3:
+                return entry.m_millis < 0 ? "" : Long.toString(entry.m_millis);
+            default:
+                return entry.m_result;
+            }
+        }
+    }
+
+    private class ThumbRenderer extends DefaultTableCellRenderer
+    {
+        public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected,
+                                                       boolean hasFocus, int row, int column)
+        {
+            super.getTableCellRendererComponent(table, "", isSelected, hasFocus, row, column);
+
+            Entry entry = (Entry) value;
+            SoftReference<Icon> ref = entry.m_thumb;
+            Icon icon = ref == null ? null : ref.get();
+            if (icon == null) {
+                requestThumbnail(entry);
+            }
+            setIcon(icon);
+            setHorizontalAlignment(CENTER);
+            return this;
+        }
+    }
+
+    /*
+     * This takes the files dropped on the table.  Looking through big
+     * directories can take a while so we do that off the event thread.
+     */
+    private class FileDropHandler extends TransferHandler
+    {
+        public boolean canImport(JComponent comp, DataFlavor[] flavors)
+        {
+            for (DataFlavor flavor : flavors) {
+                if (DataFlavor.javaFileListFlavor.equals(flavor)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        public boolean importData(JComponent comp, Transferable t)
+        {
+            final java.util.List<?> dropped;
+            try {
+                dropped = (java.util.List<?>) t.getTransferData(DataFlavor.javaFileListFlavor);
+            } catch (Exception e) {
+                return false;
+            }
+
+            m_status.setText("Looking for images...");
+            Thread finder = new DaemonFactory("stegtest-find-images").newThread(new Runnable()
+                {
+                    public void run()
+                    {
+                        final ArrayList<File> files = new ArrayList<File>();
+                        for (Object o : dropped) {
+                            findImages((File) o, files);
+                        }
+
+                        SwingUtilities.invokeLater(new Runnable()
+                            {
+                                public void run()
+                                {
+                                    addFiles(files);
+                                }
+                            });
+                    }
+                });
+            finder.start();
+            return true;
+        }
+    }
+
+    /*
+     * We show this for images we can't make a thumbnail for so we don't try
+     * again every time the row is drawn.
+     */
+    private static class BlankIcon implements Icon
+    {
+        public int getIconWidth()
+        {
+            return THUMB_SIZE;
+        }
+
+        public int getIconHeight()
+        {
+            return THUMB_SIZE;
+        }
+
+        public void paintIcon(Component c, Graphics g, int x, int y)
+        {
+        }
+    }
+
+    private static class DaemonFactory implements ThreadFactory
+    {
+        private final String m_name;
+
+        DaemonFactory(String name)
+        {
+            m_name = name;
+        }
+
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, m_name);
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
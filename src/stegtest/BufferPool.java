@@ -0,0 +1,503 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import java.awt.image.*;
+
+/*
+ * This class is a pool of the large arrays we need to encode and decode an
+ * image.  Every encode allocates a raster, a three dimensional copy of that
+ * raster, and a scratch array of two bit pairs, all sized to the image.  When
+ * we process the same size image again and again the garbage collector spends
+ * more time cleaning up these arrays than we spend using them.  The pool keeps
+ * the arrays around so the next image of the same size can borrow them instead.
+ *
+ * Arrays are kept in buckets keyed by their size.  Each thread keeps a couple
+ * of arrays for itself so a thread encoding images in a loop never has to touch
+ * the shared buckets.  Together the thread slots and the shared buckets never
+ * hold more than the byte limit we are created with.  When an array comes back
+ * and there isn't room we let go of arrays threads are no longer using to make
+ * room, and if that isn't enough we leave it for the garbage collector.
+ */
+public class BufferPool
+{
+    /*
+     * This is the pool everyone shares.  The limit defaults to a quarter of
+     * the heap and can be changed with the stegtest.pool.maxBytes system
+     * property.
+     */
+    private static final BufferPool POOL = new BufferPool(Long.getLong("stegtest.pool.maxBytes",
+                                                                       Runtime.getRuntime().maxMemory() / 4).longValue());
+
+    /*
+     * This is the number of arrays each thread will hold onto for itself.
+     * These arrays count against the limit just like the shared ones.
+     */
+    private static final int THREAD_SLOTS = 2;
+
+    /*
+     * Byte arrays are rounded up to a power of two so scratch buffers for
+     * messages of slightly different lengths end up in the same bucket.
+     * We never round up arrays smaller than this.
+     */
+    private static final int MIN_BYTE_BUCKET = 1024;
+
+    private final long m_maxBytes;
+    private final AtomicLong m_pooledBytes = new AtomicLong();
+
+    private final AtomicLong m_hits = new AtomicLong();
+    private final AtomicLong m_misses = new AtomicLong();
+    private final AtomicLong m_drops = new AtomicLong();
+
+    private final ConcurrentHashMap<Key, ConcurrentLinkedQueue<Object>> m_buckets =
+        new ConcurrentHashMap<Key, ConcurrentLinkedQueue<Object>>();
+
+    /*
+     * We keep track of the slots of every thread so we can take arrays back
+     * from threads that have gone away or are hanging onto them when the pool
+     * is full.
+     */
+    private final Set<Slots> m_allSlots = Collections.newSetFromMap(new ConcurrentHashMap<Slots, Boolean>());
+
+    private final ThreadLocal<Slots> m_local = new ThreadLocal<Slots>()
+        {
+            protected Slots initialValue()
+            {
+                /*
+                 * This is a good time to clean up after threads that have
+                 * finished so we don't collect slots for every thread we
+                 * ever saw.
+                 */
+                releaseFinishedThreads();
+
+                Slots slots = new Slots(Thread.currentThread());
+                m_allSlots.add(slots);
+                return slots;
+            }
+        };
+
+    /**
+     * Create a new pool.
+     *
+     * @param maxBytes the largest number of bytes the pool will hold
+     */
+    public BufferPool(long maxBytes)
+    {
+        m_maxBytes = maxBytes;
+    }
+
+    public static BufferPool getPool()
+    {
+        return POOL;
+    }
+
+    /**
+     * Borrow a byte array.  The array may be longer than we asked for and it
+     * will have junk in it from the last time it was used.
+     *
+     * @param minLength the smallest length the array can have
+     *
+     * @return the array
+     */
+    public byte[] borrowBytes(int minLength)
+    {
+        int length = MIN_BYTE_BUCKET;
+        while (length < minLength && length > 0) {
+            length <<= 1;
+        }
+
+        if (length <= 0) {
+            /*
+             * This is too big to round up so we just use the exact size.
+             */
+            length = minLength;
+        }
+
+        byte[] data = (byte[]) take(new Key('B', length, 0));
+        if (data == null) {
+            data = new byte[length];
+        }
+
+        return data;
+    }
+
+    /**
+     * Borrow an int array of exactly the given length.  It will have junk in
+     * it from the last time it was used.
+     *
+     * @param length the length of the array
+     *
+     * @return the array
+     */
+    public int[] borrowInts(int length)
+    {
+        int[] data = (int[]) take(new Key('I', length, 0));
+        if (data == null) {
+            data = new int[length];
+        }
+
+        return data;
+    }
+
+    /**
+     * Borrow a three dimensional pixel array like the one get3DArray creates.
+     * It will have junk in it from the last time it was used.
+     *
+     * @param rows   the number of rows in the image
+     * @param cols   the number of columns in the image
+     *
+     * @return the array
+     */
+    public int[][][] borrowPixels(int rows, int cols)
+    {
+        int[][][] data = (int[][][]) take(new Key('P', rows, cols));
+        if (data == null) {
+            data = new int[rows][cols][4];
+        }
+
+        return data;
+    }
+
+    /**
+     * Borrow an ARGB buffered image backed by a pooled int array.  The image
+     * is cleared so it is safe to draw images with transparency into it.  Give
+     * it back with release(BufferedImage) when you are done with it.
+     *
+     * @param width  the width of the image
+     * @param height the height of the image
+     *
+     * @return the image
+     */
+    public BufferedImage borrowImage(int width, int height)
+    {
+        return borrowImage(width, height, true);
+    }
+
+    /**
+     * Borrow a buffered image backed by a pooled int array.  This works just
+     * like borrowImage(int, int) except you can ask for an RGB image without
+     * alpha data, which is what we want when we write PNG files.
+     *
+     * @param width    the width of the image
+     * @param height   the height of the image
+     * @param hasAlpha true for an ARGB image and false for an RGB image
+     *
+     * @return the image
+     */
+    public BufferedImage borrowImage(int width, int height, boolean hasAlpha)
+    {
+        int[] data = borrowInts(width * height);
+        Arrays.fill(data, 0);
+
+        DirectColorModel cm = hasAlpha ?
+            (DirectColorModel) ColorModel.getRGBdefault() :
+            new DirectColorModel(24, 0x00FF0000, 0x0000FF00, 0x000000FF);
+        WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(data, data.length), width, height, width,
+                                                          cm.getMasks(), null);
+        return new BufferedImage(cm, raster, false, null);
+    }
+
+    public void release(byte[] data)
+    {
+        if (data != null) {
+            give(new Key('B', data.length, 0), data);
+        }
+    }
+
+    public void release(int[] data)
+    {
+        if (data != null) {
+            give(new Key('I', data.length, 0), data);
+        }
+    }
+
+    public void release(int[][][] data)
+    {
+        if (data != null && data.length > 0) {
+            give(new Key('P', data.length, data[0].length), data);
+        }
+    }
+
+    /**
+     * Give back an image from borrowImage.  The image must not be used after
+     * this.
+     *
+     * @param image  the image to release
+     */
+    public void release(BufferedImage image)
+    {
+        if (image != null && image.getRaster().getDataBuffer() instanceof DataBufferInt) {
+            release(((DataBufferInt) image.getRaster().getDataBuffer()).getData());
+        }
+    }
+
+    /**
+     * @return the number of times we were able to hand out a pooled array
+     */
+    public long getHits()
+    {
+        return m_hits.get();
+    }
+
+    /**
+     * @return the number of times we had to allocate a new array
+     */
+    public long getMisses()
+    {
+        return m_misses.get();
+    }
+
+    /**
+     * @return the number of arrays we let go because the pool was full
+     */
+    public long getDrops()
+    {
+        return m_drops.get();
+    }
+
+    /**
+     * @return the number of bytes in the pool right now
+     */
+    public long getPooledBytes()
+    {
+        return m_pooledBytes.get();
+    }
+
+    public String toString()
+    {
+        return "BufferPool[hits=" + getHits() + ", misses=" + getMisses() + ", drops=" + getDrops() +
+            ", pooledBytes=" + getPooledBytes() + "/" + m_maxBytes + "]";
+    }
+
+    private Object take(Key key)
+    {
+        /*
+         * We check the arrays this thread gave back first since we don't
+         * have to synchronize with anyone to get those.
+         */
+        Object data = m_local.get().take(key);
+        if (data == null) {
+            ConcurrentLinkedQueue<Object> bucket = m_buckets.get(key);
+            if (bucket != null) {
+                data = bucket.poll();
+            }
+        }
+
+        if (data == null) {
+            m_misses.incrementAndGet();
+            return null;
+        }
+
+        m_pooledBytes.addAndGet(-key.getBytes());
+        m_hits.incrementAndGet();
+        return data;
+    }
+
+    private void give(Key key, Object data)
+    {
+        /*
+         * Every array we hold counts against the limit, even the ones in
+         * the thread slots.  If there isn't room we try to make some.
+         */
+        long bytes = key.getBytes();
+        if (bytes > m_maxBytes) {
+            m_drops.incrementAndGet();
+            return;
+        }
+
+        if (m_pooledBytes.addAndGet(bytes) > m_maxBytes) {
+            trim();
+            if (m_pooledBytes.get() > m_maxBytes) {
+                m_pooledBytes.addAndGet(-bytes);
+                m_drops.incrementAndGet();
+                return;
+            }
+        }
+
+        /*
+         * The newest array goes in this thread's slots.  If the slots are
+         * full the oldest one moves to the shared buckets.  It was already
+         * counted so we don't have to check the limit again.
+         */
+        Entry oldest = m_local.get().add(new Entry(key, data));
+        if (oldest == null) {
+            return;
+        }
+
+        ConcurrentLinkedQueue<Object> bucket = m_buckets.get(oldest.m_key);
+        if (bucket == null) {
+            m_buckets.putIfAbsent(oldest.m_key, new ConcurrentLinkedQueue<Object>());
+            bucket = m_buckets.get(oldest.m_key);
+        }
+
+        bucket.offer(oldest.m_data);
+    }
+
+    /*
+     * Let go of arrays until we are back under the limit.  We start with
+     * the slots of threads that have finished since no one will ever take
+     * those arrays again.  Then we empty the shared buckets, and last we
+     * take the oldest arrays out of the slots of threads that are still
+     * running.
+     */
+    private void trim()
+    {
+        releaseFinishedThreads();
+
+        for (Map.Entry<Key, ConcurrentLinkedQueue<Object>> bucket : m_buckets.entrySet()) {
+            while (m_pooledBytes.get() > m_maxBytes && bucket.getValue().poll() != null) {
+                drop(bucket.getKey());
+            }
+        }
+
+        for (Slots slots : m_allSlots) {
+            Entry e;
+            while (m_pooledBytes.get() > m_maxBytes && (e = slots.removeOldest()) != null) {
+                drop(e.m_key);
+            }
+        }
+    }
+
+    private void releaseFinishedThreads()
+    {
+        for (Iterator<Slots> it = m_allSlots.iterator(); it.hasNext();) {
+            Slots slots = it.next();
+            if (!slots.m_thread.isAlive()) {
+                it.remove();
+                for (Entry e = slots.removeOldest(); e != null; e = slots.removeOldest()) {
+                    drop(e.m_key);
+                }
+            }
+        }
+    }
+
+    private void drop(Key key)
+    {
+        m_pooledBytes.addAndGet(-key.getBytes());
+        m_drops.incrementAndGet();
+    }
+
+    /*
+     * The key for a bucket is the kind of array and its dimensions.
+     */
+    private static class Key
+    {
+        private final char m_type;
+        private final int m_a;
+        private final int m_b;
+
+        private Key(char type, int a, int b)
+        {
+            m_type = type;
+            m_a = a;
+            m_b = b;
+        }
+
+        /*
+         * This is about how much memory an array with this key uses.  For
+         * pixel arrays each pixel is an array of four ints plus the array
+         * header.  The header size depends on the JVM so this is just an
+         * estimate.
+         */
+        private long getBytes()
+        {
+            switch (m_type) {
+            case 'B':
+                return m_a;
+            case 'I':
+                return 4L * m_a;
+            default:
+                return 32L * m_a * m_b;
+            }
+        }
+
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key k = (Key) o;
+            return k.m_type == m_type && k.m_a == m_a && k.m_b == m_b;
+        }
+
+        public int hashCode()
+        {
+            return (m_type * 31 + m_a) * 31 + m_b;
+        }
+    }
+
+    /*
+     * These are the arrays one thread is holding onto for itself.  Only that
+     * thread adds to them, but other threads can take them away when the
+     * pool is full so we still have to synchronize.  That lock is almost
+     * never contended.
+     */
+    private static class Slots
+    {
+        private final Thread m_thread;
+        private final LinkedList<Entry> m_entries = new LinkedList<Entry>();
+
+        private Slots(Thread thread)
+        {
+            m_thread = thread;
+        }
+
+        private synchronized Object take(Key key)
+        {
+            for (Iterator<Entry> it = m_entries.iterator(); it.hasNext();) {
+                Entry e = it.next();
+                if (e.m_key.equals(key)) {
+                    it.remove();
+                    return e.m_data;
+                }
+            }
+
+            return null;
+        }
+
+        /*
+         * Add an array and hand back the oldest one if that leaves us with
+         * too many.
+         */
+        private synchronized Entry add(Entry e)
+        {
+            m_entries.addFirst(e);
+            return m_entries.size() > THREAD_SLOTS ? m_entries.removeLast() : null;
+        }
+
+        private synchronized Entry removeOldest()
+        {
+            return m_entries.pollLast();
+        }
+    }
+
+    private static class Entry
+    {
+        private final Key m_key;
+        private final Object m_data;
+
+        private Entry(Key key, Object data)
+        {
+            m_key = key;
+            m_data = data;
+        }
+    }
+}
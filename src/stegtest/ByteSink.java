@@ -0,0 +1,42 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest;
+
+import java.io.*;
+
+/*
+ * This is where the codec puts the bytes of a message as it reads them out of
+ * an image.  The codec hands over the bytes in batches from a buffer it reuses
+ * so a sink that copies them somewhere it keeps lets the whole decode run
+ * without allocating anything.  PooledOutputStream is a sink, so one stream
+ * can be reset and reused for any number of images.
+ */
+public interface ByteSink
+{
+    /**
+     * Take some of the bytes of a message.  The array is reused after this
+     * method returns so copy anything you want to keep.
+     *
+     * @param b      the bytes
+     * @param off    the first byte
+     * @param len    the number of bytes
+     *
+     * @exception IOException
+     *                   if the sink can't take the bytes
+     */
+    void write(byte[] b, int off, int len)
+        throws IOException;
+}
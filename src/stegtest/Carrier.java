@@ -0,0 +1,173 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest;
+
+import java.awt.image.*;
+
+/*
+ * This is a decoded carrier image.  It holds the pixels of the image as ARGB
+ * ints in the order of each line of the image from left to right, the same way
+ * DataBufferInt does for a TYPE_INT_ARGB image.
+ *
+ * Carriers are shared by the CarrierCache so the pixels must never be changed.
+ * Make a copy first if you want to change them.
+ */
+public class Carrier
+{
+    private final int m_width;
+    private final int m_height;
+    private final int[] m_pixels;
+
+    /**
+     * Create a new carrier.
+     *
+     * @param width  the width of the image
+     * @param height the height of the image
+     * @param pixels the ARGB pixels of the image
+     */
+    public Carrier(int width, int height, int[] pixels)
+    {
+        m_width = width;
+        m_height = height;
+        m_pixels = pixels;
+    }
+
+    /**
+     * Create a carrier from an image.  We draw the image into an ARGB image if
+     * it isn't one already so the pixels are in the format the codec expects.
+     *
+     * @param image  the image
+     *
+     * @return the carrier
+     */
+    public static Carrier fromImage(BufferedImage image)
+    {
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        /*
+         * ImageIO gives us JPEG and most PNG files as interleaved bytes.  We
+         * can copy those into ARGB ints ourselves, which is faster than
+         * drawing them and doesn't have to start up the Java 2D renderer.
+         */
+        int[] copied = copyPixels(image);
+        if (copied != null) {
+            return new Carrier(width, height, copied);
+        }
+
+        if (image.getType() != BufferedImage.TYPE_INT_ARGB) {
+            BufferedImage argb = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            argb.getGraphics().drawImage(image, 0, 0, null);
+            image = argb;
+        }
+
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        return new Carrier(width, height, pixels);
+    }
+
+    private static int[] copyPixels(BufferedImage image)
+    {
+        int type = image.getType();
+        if (type != BufferedImage.TYPE_3BYTE_BGR && type != BufferedImage.TYPE_4BYTE_ABGR &&
+            type != BufferedImage.TYPE_INT_RGB) {
+            return null;
+        }
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        WritableRaster raster = image.getRaster();
+        if (!(raster.getSampleModel() instanceof ComponentSampleModel) &&
+            !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel)) {
+            return null;
+        }
+
+        int[] pixels = new int[width * height];
+        if (type == BufferedImage.TYPE_INT_RGB) {
+            SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) raster.getSampleModel();
+            DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+            int[] data = buffer.getData();
+            int stride = sm.getScanlineStride();
+            int base = buffer.getOffset() - raster.getSampleModelTranslateY() * stride -
+                raster.getSampleModelTranslateX();
+            for (int y = 0, p = 0; y < height; y++) {
+                int i = base + y * stride;
+                for (int x = 0; x < width; x++) {
+                    pixels[p++] = 0xFF000000 | data[i++];
+                }
+            }
+        } else {
+            ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+            DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+            byte[] data = buffer.getData();
+            int pixelStride = sm.getPixelStride();
+            int stride = sm.getScanlineStride();
+            int[] offsets = sm.getBandOffsets();
+            int r = offsets[0];
+            int g = offsets[1];
+            int b = offsets[2];
+            int a = offsets.length > 3 ? offsets[3] : -1;
+            int base = buffer.getOffset() - raster.getSampleModelTranslateY() * stride -
+                raster.getSampleModelTranslateX() * pixelStride;
+            for (int y = 0, p = 0; y < height; y++) {
+                int i = base + y * stride;
+                for (int x = 0; x < width; x++, i += pixelStride) {
+                    int alpha = a < 0 ? 0xFF : data[i + a] & 0xFF;
+                    pixels[p++] = (alpha << 24) | ((data[i + r] & 0xFF) << 16) | ((data[i + g] & 0xFF) << 8) |
+                        (data[i + b] & 0xFF);
+                }
+            }
+        }
+
+        return pixels;
+    }
+
+    /**
+     * Create an ARGB image which shares the pixels of this carrier.  The image
+     * must not be changed.
+     *
+     * @return the image
+     */
+    public BufferedImage toImage()
+    {
+        DirectColorModel cm = (DirectColorModel) ColorModel.getRGBdefault();
+        WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(m_pixels, m_pixels.length),
+                                                          m_width, m_height, m_width, cm.getMasks(), null);
+        return new BufferedImage(cm, raster, false, null);
+    }
+
+    public int getWidth()
+    {
+        return m_width;
+    }
+
+    public int getHeight()
+    {
+        return m_height;
+    }
+
+    public int[] getPixels()
+    {
+        return m_pixels;
+    }
+
+    /**
+     * @return about how many bytes of heap this carrier uses
+     */
+    public long getBytes()
+    {
+        return 4L * m_pixels.length;
+    }
+}
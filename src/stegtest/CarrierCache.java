@@ -0,0 +1,448 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.security.*;
+
+import java.awt.image.*;
+
+/*
+ * This class caches decoded carrier images.  Decoding a large JPEG takes much
+ * longer than encoding a message into it, and we often encode different
+ * messages into the same few carrier images.  The cache keeps the decoded
+ * pixels so we only decode each carrier once.
+ *
+ * The decoded images are kept on the heap in a least recently used list until
+ * they use more than the byte limit.  When we push an image off the end of the
+ * list we write its raw pixels to a file in the spill directory.  The next time
+ * someone asks for that image we map the file into memory and read the pixels
+ * right out of it instead of decoding the image again.  The spill files are
+ * named after the image path and hold its size and modification time, so they
+ * are still good after a restart and are thrown away once the image changes.
+ *
+ * The spill directory has its own byte limit.  When it goes over we delete the
+ * spill files that were used the longest time ago.  We use the modification
+ * time of the spill file to keep track of when it was last used.
+ */
+public class CarrierCache
+{
+    /*
+     * This is the cache everyone shares.  The heap limit defaults to an eighth
+     * of the heap and can be set with the stegtest.carrierCache.maxBytes system
+     * property.  The spill directory can be set with stegtest.carrierCache.dir
+     * and its limit, which defaults to 2 GB, with
+     * stegtest.carrierCache.maxSpillBytes.
+     */
+    private static final CarrierCache CACHE =
+        new CarrierCache(Long.getLong("stegtest.carrierCache.maxBytes", Runtime.getRuntime().maxMemory() / 8).longValue(),
+                         new File(System.getProperty("stegtest.carrierCache.dir",
+                                                     new File(System.getProperty("java.io.tmpdir"),
+                                                              "stegtest-carriers").getPath())),
+                         Long.getLong("stegtest.carrierCache.maxSpillBytes", 2L << 30).longValue());
+
+    /*
+     * Every spill file starts with this so we know it is one of ours.
+     */
+    private static final int SPILL_MAGIC = 0x53544543;
+
+    /*
+     * The header is the magic number, the width, the height, the image size,
+     * and the image modification time.
+     */
+    private static final int SPILL_HEADER = 4 + 4 + 4 + 8 + 8;
+
+    private final long m_maxBytes;
+    private final File m_spillDir;
+    private final long m_maxSpillBytes;
+    private long m_heapBytes;
+
+    /*
+     * This is how many bytes we think are in the spill directory.  We don't
+     * know until we list the directory the first time, and other programs
+     * may share the directory, so we list it again whenever we go over.
+     */
+    private final Object m_spillLock = new Object();
+    private long m_spillBytes = -1;
+
+    private final AtomicLong m_heapHits = new AtomicLong();
+    private final AtomicLong m_spillHits = new AtomicLong();
+    private final AtomicLong m_misses = new AtomicLong();
+
+    /*
+     * This map is in access order so the first entry is always the one that
+     * was used the longest time ago.
+     */
+    private final LinkedHashMap<String, Carrier> m_heap = new LinkedHashMap<String, Carrier>(16, 0.75f, true);
+
+    /**
+     * Create a new cache.
+     *
+     * @param maxBytes the largest number of bytes of pixels to keep on the heap
+     * @param spillDir the directory to write evicted images to
+     * @param maxSpillBytes
+     *                 the largest number of bytes to keep in the spill directory
+     */
+    public CarrierCache(long maxBytes, File spillDir, long maxSpillBytes)
+    {
+        m_maxBytes = maxBytes;
+        m_spillDir = spillDir;
+        m_maxSpillBytes = maxSpillBytes;
+    }
+
+    public static CarrierCache getCache()
+    {
+        return CACHE;
+    }
+
+    /**
+     * Get the decoded pixels of an image.  The pixels are shared with
+     * everyone else who asks for this image so they must not be changed.
+     *
+     * @param file   the image file
+     *
+     * @return the decoded image or null if the file isn't an image we can read
+     * @exception IOException
+     *                   if we can't read the file
+     */
+    public Carrier get(File file)
+        throws IOException
+    {
+        file = file.getAbsoluteFile();
+        long size = file.length();
+        long modified = file.lastModified();
+        String key = file.getPath() + "|" + size + "|" + modified;
+
+        synchronized (this) {
+            Carrier carrier = m_heap.get(key);
+            if (carrier != null) {
+                m_heapHits.incrementAndGet();
+                return carrier;
+            }
+        }
+
+        Carrier carrier = readSpill(file, size, modified);
+        if (carrier != null) {
+            m_spillHits.incrementAndGet();
+        } else {
+            m_misses.incrementAndGet();
+
+            BufferedImage image = ImageInput.read(file);
+            if (image == null) {
+                return null;
+            }
+
+            carrier = Carrier.fromImage(image);
+        }
+
+        put(key, carrier, size, modified);
+        return carrier;
+    }
+
+    /**
+     * @return the number of times we found the image on the heap
+     */
+    public long getHeapHits()
+    {
+        return m_heapHits.get();
+    }
+
+    /**
+     * @return the number of times we read the image from a spill file
+     */
+    public long getSpillHits()
+    {
+        return m_spillHits.get();
+    }
+
+    /**
+     * @return the number of times we had to decode the image
+     */
+    public long getMisses()
+    {
+        return m_misses.get();
+    }
+
+    public String toString()
+    {
+        return "CarrierCache[heapHits=" + getHeapHits() + ", spillHits=" + getSpillHits() +
+            ", misses=" + getMisses() + "]";
+    }
+
+    private void put(String key, Carrier carrier, long size, long modified)
+    {
+        if (carrier.getBytes() > m_maxBytes) {
+            /*
+             * This image is too big to ever fit on the heap so it goes
+             * straight to the spill directory.
+             */
+            writeSpill(key, carrier);
+            return;
+        }
+
+        ArrayList<String> evictedKeys = new ArrayList<String>();
+        ArrayList<Carrier> evicted = new ArrayList<Carrier>();
+
+        synchronized (this) {
+            Carrier old = m_heap.put(key, carrier);
+            if (old != null) {
+                m_heapBytes -= old.getBytes();
+            }
+            m_heapBytes += carrier.getBytes();
+
+            Iterator<Map.Entry<String, Carrier>> it = m_heap.entrySet().iterator();
+            while (m_heapBytes > m_maxBytes && it.hasNext()) {
+                Map.Entry<String, Carrier> e = it.next();
+                evictedKeys.add(e.getKey());
+                evicted.add(e.getValue());
+                m_heapBytes -= e.getValue().getBytes();
+                it.remove();
+            }
+        }
+
+        /*
+         * We write the spill files outside of the lock so other threads
+         * can keep using the cache while we are writing.
+         */
+        for (int i = 0; i < evicted.size(); i++) {
+            writeSpill(evictedKeys.get(i), evicted.get(i));
+        }
+    }
+
+    private File getSpillFile(String path)
+    {
+        /*
+         * We use a hash of the path for the file name.  Every version of an
+         * image gets the same name so a new version replaces the old one.
+         */
+        StringBuffer name = new StringBuffer();
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(path.getBytes("UTF-8"));
+            for (byte b : digest) {
+                name.append(Integer.toHexString((b >> 4) & 0xF));
+                name.append(Integer.toHexString(b & 0xF));
+            }
+        } catch (Exception e) {
+            /*
+             * Every platform has SHA-1 and UTF-8 so this should never happen.
+             */
+            throw new IllegalStateException(e.toString());
+        }
+
+        name.append(".raw");
+        return new File(m_spillDir, name.toString());
+    }
+
+    private void writeSpill(String key, Carrier carrier)
+    {
+        /*
+         * The key is the path, the size, and the modification time.
+         */
+        int modifiedAt = key.lastIndexOf('|');
+        int sizeAt = key.lastIndexOf('|', modifiedAt - 1);
+        long size = Long.parseLong(key.substring(sizeAt + 1, modifiedAt));
+        long modified = Long.parseLong(key.substring(modifiedAt + 1));
+
+        long bytes = SPILL_HEADER + 4L * carrier.getPixels().length;
+        if (bytes > m_maxSpillBytes) {
+            return;
+        }
+
+        File f = getSpillFile(key.substring(0, sizeAt));
+        if (readHeader(f, size, modified) != null) {
+            /*
+             * We already have this version of the image.
+             */
+            f.setLastModified(System.currentTimeMillis());
+            return;
+        }
+
+        m_spillDir.mkdirs();
+
+        /*
+         * We write to a temporary file and rename it so nobody ever maps a
+         * half written spill file.  The rename replaces the spill file for
+         * an older version of the image if there is one.
+         */
+        File tmp = new File(m_spillDir, f.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try {
+                int[] pixels = carrier.getPixels();
+                MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+                buf.putInt(SPILL_MAGIC);
+                buf.putInt(carrier.getWidth());
+                buf.putInt(carrier.getHeight());
+                buf.putLong(size);
+                buf.putLong(modified);
+                buf.asIntBuffer().put(pixels);
+                buf.force();
+            } finally {
+                raf.close();
+            }
+
+            synchronized (m_spillLock) {
+                long replaced = f.length();
+                if (!tmp.renameTo(f) && !(f.delete() && tmp.renameTo(f))) {
+                    tmp.delete();
+                    return;
+                }
+
+                if (m_spillBytes >= 0) {
+                    m_spillBytes += bytes - replaced;
+                }
+                trimSpill();
+            }
+        } catch (IOException e) {
+            /*
+             * If we can't write the spill file we'll just decode the image
+             * again the next time.
+             */
+            e.printStackTrace();
+            tmp.delete();
+        }
+    }
+
+    /*
+     * Delete the spill files that were used the longest time ago until the
+     * spill directory is under its limit.  The caller holds the spill lock.
+     */
+    private void trimSpill()
+    {
+        if (m_spillBytes >= 0 && m_spillBytes <= m_maxSpillBytes) {
+            return;
+        }
+
+        File[] files = m_spillDir.listFiles(new FilenameFilter()
+            {
+                public boolean accept(File dir, String name)
+                {
+                    return name.endsWith(".raw");
+                }
+            });
+        if (files == null) {
+            return;
+        }
+
+        final long[] used = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        long total = 0;
+        for (int i = 0; i < files.length; i++) {
+            used[i] = files[i].lastModified();
+            order[i] = Integer.valueOf(i);
+            total += files[i].length();
+        }
+
+        Arrays.sort(order, new Comparator<Integer>()
+            {
+                public int compare(Integer a, Integer b)
+                {
+                    return used[a.intValue()] < used[b.intValue()] ? -1 :
+                        (used[a.intValue()] == used[b.intValue()] ? 0 : 1);
+                }
+            });
+
+        for (int i = 0; i < order.length && total > m_maxSpillBytes; i++) {
+            File f = files[order[i].intValue()];
+            long length = f.length();
+            if (f.delete()) {
+                total -= length;
+            }
+        }
+
+        m_spillBytes = total;
+    }
+
+    /*
+     * This maps a spill file and checks its header.  It returns null if
+     * there is no spill file or it is for another version of the image.
+     */
+    private MappedByteBuffer readHeader(File f, long size, long modified)
+    {
+        if (!f.exists()) {
+            return null;
+        }
+
+        try {
+            RandomAccessFile raf = new RandomAccessFile(f, "r");
+            try {
+                MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                if (buf.remaining() < SPILL_HEADER || buf.getInt() != SPILL_MAGIC) {
+                    return null;
+                }
+
+                int width = buf.getInt();
+                int height = buf.getInt();
+                if (buf.getLong() != size || buf.getLong() != modified ||
+                    buf.remaining() != 4L * width * height) {
+                    return null;
+                }
+
+                buf.position(4);
+                return buf;
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private Carrier readSpill(File file, long size, long modified)
+    {
+        /*
+         * Nothing has been spilled until the spill directory exists.  Most
+         * command line runs stop here without ever loading the SHA-1 code.
+         */
+        if (!m_spillDir.isDirectory()) {
+            return null;
+        }
+
+        File f = getSpillFile(file.getPath());
+        MappedByteBuffer buf = readHeader(f, size, modified);
+        if (buf == null) {
+            /*
+             * The spill file is for a version of the image that is gone now
+             * so no one will ever use it again.
+             */
+            if (f.exists()) {
+                synchronized (m_spillLock) {
+                    long length = f.length();
+                    if (f.delete() && m_spillBytes >= 0) {
+                        m_spillBytes -= length;
+                    }
+                }
+            }
+            return null;
+        }
+
+        f.setLastModified(System.currentTimeMillis());
+
+        int width = buf.getInt();
+        int height = buf.getInt();
+        buf.position(SPILL_HEADER);
+
+        int[] pixels = new int[width * height];
+        buf.asIntBuffer().get(pixels);
+        return new Carrier(width, height, pixels);
+    }
+}
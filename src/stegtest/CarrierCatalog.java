@@ -0,0 +1,510 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import java.io.*;
+
+import java.awt.image.*;
+
+/*
+ * This class keeps a catalog of carrier images so we can pick one for a
+ * payload without opening any of them.  For each image it keeps the size,
+ * how much it can hold, the pixel type, and how noisy its low bits already
+ * are.  The catalog is kept in a small binary file next to the images or
+ * anywhere else.
+ *
+ * Building the catalog decodes and analyzes every image once, spread across
+ * one thread for each processor.  After that an update only looks at images
+ * that were added or changed since the last one and drops the ones that are
+ * gone, so keeping a catalog of tens of thousands of images up to date takes
+ * about as long as listing the directories.
+ *
+ * The best carrier for a payload is the one with the lowest detectability
+ * score that is sure to hold it.  The images are kept sorted by how much they
+ * hold, and for each position we also keep the best image from there to the
+ * end.  A query is a binary search and one lookup.
+ */
+public class CarrierCatalog
+{
+    private static final int MAGIC = 0x53544341;
+    private static final int VERSION = 1;
+
+    /*
+     * This is one image in the catalog.  Images we couldn't read are kept
+     * too, with a capacity of -1, so we don't try them again until they
+     * change.
+     */
+    public static class Entry
+    {
+        private final String m_path;
+        private final long m_length;
+        private final long m_modified;
+        private final int m_width;
+        private final int m_height;
+        private final String m_format;
+        private final int m_imageType;
+        private final long m_capacity;
+        private final float m_score;
+        private final float m_lsbEntropy;
+
+        Entry(String path, long length, long modified, int width, int height, String format, int imageType,
+              long capacity, float score, float lsbEntropy)
+        {
+            m_path = path;
+            m_length = length;
+            m_modified = modified;
+            m_width = width;
+            m_height = height;
+            m_format = format;
+            m_imageType = imageType;
+            m_capacity = capacity;
+            m_score = score;
+            m_lsbEntropy = lsbEntropy;
+        }
+
+        public File getFile()
+        {
+            return new File(m_path);
+        }
+
+        public int getWidth()
+        {
+            return m_width;
+        }
+
+        public int getHeight()
+        {
+            return m_height;
+        }
+
+        /**
+         * @return the image format, like jpeg or png
+         */
+        public String getFormat()
+        {
+            return m_format;
+        }
+
+        /**
+         * @return the BufferedImage type the image decodes to
+         */
+        public int getImageType()
+        {
+            return m_imageType;
+        }
+
+        /**
+         * @return the longest message in bytes that always fits, or -1 if
+         *         we couldn't read the image
+         */
+        public long getCapacity()
+        {
+            return m_capacity;
+        }
+
+        /**
+         * @return the detectability score of the image before anything is
+         *         hidden in it.  Lower is better.
+         */
+        public float getScore()
+        {
+            return m_score;
+        }
+
+        /**
+         * @return the entropy of the two low bits of each color in bits,
+         *         from 0 for flat low bits to 2 for pure noise
+         */
+        public float getLsbEntropy()
+        {
+            return m_lsbEntropy;
+        }
+
+        public String toString()
+        {
+            return m_path + " " + m_width + "x" + m_height + " " + m_format + ", holds " + m_capacity +
+                " bytes, score " + String.format("%.3f", m_score) + ", LSB entropy " +
+                String.format("%.3f", m_lsbEntropy);
+        }
+    }
+
+    /*
+     * This is everything a query needs.  We build a new one after each
+     * update and swap it in, so queries never need a lock.
+     */
+    private static class Index
+    {
+        final long[] m_capacities;
+        final Entry[] m_sorted;
+        final int[] m_bestFrom;
+
+        Index(Collection<Entry> entries)
+        {
+            ArrayList<Entry> usable = new ArrayList<Entry>();
+            for (Entry e : entries) {
+                if (e.m_capacity >= 0) {
+                    usable.add(e);
+                }
+            }
+
+            Collections.sort(usable, new Comparator<Entry>()
+                {
+                    public int compare(Entry a, Entry b)
+                    {
+                        return a.m_capacity < b.m_capacity ? -1 : (a.m_capacity == b.m_capacity ? 0 : 1);
+                    }
+                });
+
+            m_sorted = usable.toArray(new Entry[usable.size()]);
+            m_capacities = new long[m_sorted.length];
+            m_bestFrom = new int[m_sorted.length];
+            for (int i = m_sorted.length - 1; i >= 0; i--) {
+                m_capacities[i] = m_sorted[i].m_capacity;
+                m_bestFrom[i] = i;
+                if (i + 1 < m_sorted.length && isBetter(m_sorted[m_bestFrom[i + 1]], m_sorted[i])) {
+                    m_bestFrom[i] = m_bestFrom[i + 1];
+                }
+            }
+        }
+
+        /*
+         * A lower score is better.  If two images score the same we take
+         * the one with noisier low bits, and then the smaller one so the
+         * big ones are left for big payloads.
+         */
+        private static boolean isBetter(Entry a, Entry b)
+        {
+            if (a.m_score != b.m_score) {
+                return a.m_score < b.m_score;
+            } else if (a.m_lsbEntropy != b.m_lsbEntropy) {
+                return a.m_lsbEntropy > b.m_lsbEntropy;
+            }
+
+            return a.m_capacity < b.m_capacity;
+        }
+    }
+
+    private final File m_indexFile;
+    private final HashMap<String, Entry> m_entries = new HashMap<String, Entry>();
+    private volatile Index m_index = new Index(new ArrayList<Entry>());
+
+    /**
+     * Open a catalog.  If the index file exists we read it.
+     *
+     * @param indexFile the file the catalog is kept in
+     *
+     * @exception IOException
+     *                   if the index file exists but can't be read
+     */
+    public CarrierCatalog(File indexFile)
+        throws IOException
+    {
+        m_indexFile = indexFile;
+        if (indexFile.exists()) {
+            load();
+        }
+    }
+
+    /**
+     * Find the best carrier for a payload.
+     *
+     * @param bytes  the length of the payload
+     *
+     * @return the image or null if none of them are big enough
+     */
+    public Entry best(long bytes)
+    {
+        Index index = m_index;
+        int i = Arrays.binarySearch(index.m_capacities, bytes);
+        if (i < 0) {
+            i = -i - 1;
+        } else {
+            /*
+             * There might be several images with this capacity and the
+             * binary search can land on any of them.
+             */
+            while (i > 0 && index.m_capacities[i - 1] == bytes) {
+                i--;
+            }
+        }
+
+        return i < index.m_sorted.length ? index.m_sorted[index.m_bestFrom[i]] : null;
+    }
+
+    /**
+     * @return the number of images in the catalog we can use
+     */
+    public int size()
+    {
+        return m_index.m_sorted.length;
+    }
+
+    /**
+     * Bring the catalog up to date with the images under some directories
+     * and save it.  Only new and changed images are read.  Images under
+     * other directories stay in the catalog as they are; images under the
+     * given ones that no longer exist are dropped.
+     *
+     * @param roots   the directories or image files to look in
+     * @param threads the number of images to read at the same time
+     *
+     * @return the number of images we read
+     * @exception IOException
+     *                   if the catalog can't be saved
+     * @exception InterruptedException
+     *                   if we are interrupted while reading the images
+     */
+    public synchronized int update(List<File> roots, int threads)
+        throws IOException, InterruptedException
+    {
+        ArrayList<File> files = new ArrayList<File>();
+        ArrayList<String> prefixes = new ArrayList<String>();
+        for (File root : roots) {
+            root = root.getAbsoluteFile();
+            findImages(root, files);
+            prefixes.add(root.getPath());
+        }
+
+        HashSet<String> found = new HashSet<String>();
+        for (File f : files) {
+            found.add(f.getPath());
+        }
+
+        HashMap<String, Entry> current = new HashMap<String, Entry>(m_entries);
+        for (Iterator<String> it = current.keySet().iterator(); it.hasNext();) {
+            String path = it.next();
+            if (!found.contains(path) && isUnder(path, prefixes)) {
+                it.remove();
+            }
+        }
+
+        ArrayList<File> changed = new ArrayList<File>();
+        for (File f : files) {
+            Entry e = m_entries.get(f.getPath());
+            if (e == null || e.m_length != f.length() || e.m_modified != f.lastModified()) {
+                changed.add(f);
+            }
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(threads, 1), new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "stegtest-catalog");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        try {
+            ArrayList<Future<Entry>> results = new ArrayList<Future<Entry>>();
+            for (final File f : changed) {
+                results.add(pool.submit(new Callable<Entry>()
+                    {
+                        public Entry call()
+                        {
+                            return examine(f);
+                        }
+                    }));
+            }
+
+            for (Future<Entry> result : results) {
+                try {
+                    Entry e = result.get();
+                    current.put(e.m_path, e);
+                } catch (ExecutionException e) {
+                    throw new IOException("Unable to read an image: " + e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        m_entries.clear();
+        m_entries.putAll(current);
+        m_index = new Index(m_entries.values());
+        save();
+
+        return changed.size();
+    }
+
+    /*
+     * Decode and analyze one image.  This runs on the pool.  We don't go
+     * through the carrier cache since we only look at each image once and
+     * thousands of them would push everything else out.
+     */
+    private static Entry examine(File f)
+    {
+        long length = f.length();
+        long modified = f.lastModified();
+        String format = getFormat(f.getName());
+        try {
+            BufferedImage image = ImageInput.read(f);
+            if (image != null) {
+                Carrier carrier = Carrier.fromImage(image);
+                int w = carrier.getWidth();
+                int h = carrier.getHeight();
+                StegAnalysis.Report report = StegAnalysis.analyze(carrier.getPixels(), w, h);
+
+                double entropy = 0;
+                for (int ch = 0; ch < 3; ch++) {
+                    long[] hist = report.getLsbHistogram(ch);
+                    long total = 0;
+                    for (long n : hist) {
+                        total += n;
+                    }
+                    for (long n : hist) {
+                        if (n > 0) {
+                            double p = (double) n / total;
+                            entropy -= p * Math.log(p) / Math.log(2);
+                        }
+                    }
+                }
+
+                return new Entry(f.getPath(), length, modified, w, h, format, image.getType(),
+                                 StegCapacity.getSafeMessageLength(w, h), (float) report.getScore(),
+                                 (float) (entropy / 3));
+            }
+        } catch (IOException e) {
+            /*
+             * We keep a record of the image so we don't try it again.
+             */
+        } catch (RuntimeException e) {
+            /*
+             * Damaged images can make the decoders throw all sorts of
+             * things.
+             */
+        }
+
+        return new Entry(f.getPath(), length, modified, 0, 0, format, 0, -1, 0, 0);
+    }
+
+    private void load()
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(m_indexFile)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(m_indexFile + " is not a carrier catalog");
+            }
+            if (in.readInt() != VERSION) {
+                throw new IOException(m_indexFile + " was written by a different version of this program");
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry e = new Entry(in.readUTF(), in.readLong(), in.readLong(), in.readInt(), in.readInt(),
+                                    in.readUTF(), in.readInt(), in.readLong(), in.readFloat(), in.readFloat());
+                m_entries.put(e.m_path, e);
+            }
+        } finally {
+            in.close();
+        }
+
+        m_index = new Index(m_entries.values());
+    }
+
+    /*
+     * We write to a temporary file and rename it so a crash never leaves a
+     * half written catalog.
+     */
+    private void save()
+        throws IOException
+    {
+        File dir = m_indexFile.getAbsoluteFile().getParentFile();
+        dir.mkdirs();
+        File tmp = new File(dir, m_indexFile.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(m_entries.size());
+            for (Entry e : m_entries.values()) {
+                out.writeUTF(e.m_path);
+                out.writeLong(e.m_length);
+                out.writeLong(e.m_modified);
+                out.writeInt(e.m_width);
+                out.writeInt(e.m_height);
+                out.writeUTF(e.m_format);
+                out.writeInt(e.m_imageType);
+                out.writeLong(e.m_capacity);
+                out.writeFloat(e.m_score);
+                out.writeFloat(e.m_lsbEntropy);
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(m_indexFile)) {
+            m_indexFile.delete();
+            if (!tmp.renameTo(m_indexFile)) {
+                throw new IOException("Unable to write " + m_indexFile);
+            }
+        }
+    }
+
+    private static boolean isUnder(String path, List<String> roots)
+    {
+        for (String root : roots) {
+            if (path.equals(root)) {
+                return true;
+            }
+
+            String dir = root.endsWith(File.separator) ? root : root + File.separator;
+            if (path.startsWith(dir)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static void findImages(File f, List<File> out)
+    {
+        if (f.isDirectory()) {
+            File[] children = f.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    findImages(child, out);
+                }
+            }
+        } else if (getFormat(f.getName()) != null) {
+            out.add(f);
+        }
+    }
+
+    private static String getFormat(String name)
+    {
+        name = name.toLowerCase();
+        if (name.endsWith(".jpg") || name.endsWith(".jpeg")) {
+            return "jpeg";
+        } else if (name.endsWith(".png")) {
+            return "png";
+        } else if (name.endsWith(".gif")) {
+            return "gif";
+        } else if (name.endsWith(".bmp")) {
+            return "bmp";
+        } else if (name.endsWith(".qoi")) {
+            return "qoi";
+        } else if (name.endsWith(".pam")) {
+            return "pam";
+        }
+
+        return null;
+    }
+}
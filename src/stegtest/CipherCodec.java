@@ -0,0 +1,434 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest;
+
+import java.util.*;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.security.*;
+import java.security.spec.*;
+
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/*
+ * This class hides an encrypted payload in an image.  The regular codec is
+ * about obscurity rather than security, so anyone who knows the program can
+ * read the message.  Here the payload is encrypted with AES-GCM, which also
+ * tells us if anyone changed it.
+ *
+ * The payload is encrypted in chunks as it goes into the pixels, and each
+ * chunk is decrypted as it comes out.  We never need the whole payload in
+ * memory and we never make a second pass over it.
+ *
+ * The payload starts at the first pixel and fills six bits of each pixel.  It
+ * starts with a 36 byte header:
+ *
+ *     ~~$          3 bytes
+ *     version      1 byte
+ *     salt        16 bytes  random for each payload
+ *     length       8 bytes  the length of the payload before encryption
+ *     check        8 bytes  a keyed hash of the first 28 bytes
+ *
+ * The header fits in the first 48 pixels.  An image without a payload is
+ * turned away after the first 4 pixels, and the check turns away the wrong key
+ * before we read any of the payload.
+ *
+ * The key is stretched once with PBKDF2 when the codec is made.  Each payload
+ * gets its own AES key from an HMAC of the stretched key and the salt.  That
+ * means checking a key against thousands of images only costs an HMAC each.
+ *
+ * After the header come the chunks.  Each chunk is up to 64K of the payload
+ * followed by a 16 byte GCM tag.  The nonce is the chunk number and the
+ * header and a last chunk flag are authenticated with each chunk, so chunks
+ * can't be moved, dropped, or taken from another payload.
+ */
+public class CipherCodec
+{
+    private static final byte[] MAGIC = {'~', '~', '$'};
+    private static final int VERSION = 1;
+    private static final int SALT_LENGTH = 16;
+    private static final int CHECK_LENGTH = 8;
+    private static final int HEADER_LENGTH = 4 + SALT_LENGTH + 8 + CHECK_LENGTH;
+    private static final int TAG_LENGTH = 16;
+    private static final int CHUNK_LENGTH = 64 * 1024;
+
+    /*
+     * This is how many times PBKDF2 runs.  It only happens once for each
+     * codec so it can be high.
+     */
+    private static final int ITERATIONS = 100000;
+
+    private static final byte[] KDF_SALT = {'s', 't', 'e', 'g', 't', 'e', 's', 't', '-', 'c', 'i', 'p', 'h', 'e', 'r'};
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final byte[] m_masterKey;
+
+    /**
+     * Create a new codec.
+     *
+     * @param key    the secret key.  It's stretched with PBKDF2 so a password
+     *               is fine.
+     */
+    public CipherCodec(char[] key)
+    {
+        try {
+            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+            m_masterKey = factory.generateSecret(new PBEKeySpec(key, KDF_SALT, ITERATIONS, 256)).getEncoded();
+        } catch (GeneralSecurityException e) {
+            /*
+             * Every Java 8 platform has PBKDF2 with SHA-256 so this should
+             * never happen.
+             */
+            throw new IllegalStateException(e.toString());
+        }
+    }
+
+    /**
+     * Get the largest payload that fits in an image.
+     *
+     * @param cols   the width of the image
+     * @param rows   the height of the image
+     *
+     * @return the largest payload in bytes
+     */
+    public static long getCapacity(int cols, int rows)
+    {
+        return getCapacity((long) cols * rows);
+    }
+
+    private static long getCapacity(long pixelCount)
+    {
+        long bytes = (pixelCount * 3) / 4 - HEADER_LENGTH;
+        long chunks = (bytes + CHUNK_LENGTH + TAG_LENGTH - 1) / (CHUNK_LENGTH + TAG_LENGTH);
+        return Math.max(0, bytes - chunks * TAG_LENGTH);
+    }
+
+    /**
+     * Hide a payload in an image.
+     *
+     * @param pixels  the ARGB pixels of the image.  They are changed in place.
+     * @param payload the payload
+     *
+     * @exception IOException
+     *                   if the payload doesn't fit in the image
+     */
+    public void embed(int[] pixels, byte[] payload)
+        throws IOException
+    {
+        embed(pixels, new ByteArrayInputStream(payload), payload.length);
+    }
+
+    /**
+     * Hide a payload in an image.  The payload is read and encrypted a chunk
+     * at a time.
+     *
+     * @param pixels  the ARGB pixels of the image.  They are changed in place.
+     * @param payload the payload
+     * @param length  the number of bytes to read from the payload
+     *
+     * @exception IOException
+     *                   if the payload doesn't fit in the image or can't be
+     *                   read
+     */
+    public void embed(int[] pixels, InputStream payload, long length)
+        throws IOException
+    {
+        if (length < 0 || getTotalLength(length) > (pixels.length * 3L) / 4) {
+            throw new IOException("The payload is " + length + " bytes, but this image only holds " +
+                                  getCapacity(pixels.length) + " bytes");
+        }
+
+        byte[] header = new byte[HEADER_LENGTH];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        header[3] = (byte) VERSION;
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        System.arraycopy(salt, 0, header, 4, SALT_LENGTH);
+        putLong(header, 4 + SALT_LENGTH, length);
+        System.arraycopy(check(header), 0, header, HEADER_LENGTH - CHECK_LENGTH, CHECK_LENGTH);
+
+        PairCursor cursor = new PairCursor(pixels);
+        cursor.write(header, 0, HEADER_LENGTH);
+
+        Cipher cipher = getCipher();
+        SecretKeySpec key = new SecretKeySpec(hmac(salt, "encrypt"), "AES");
+        BufferPool pool = BufferPool.getPool();
+        byte[] plain = pool.borrowBytes(CHUNK_LENGTH);
+        byte[] sealed = pool.borrowBytes(CHUNK_LENGTH + TAG_LENGTH);
+        try {
+            long left = length;
+            int chunk = 0;
+            do {
+                int n = (int) Math.min(CHUNK_LENGTH, left);
+                readFully(payload, plain, n);
+                left -= n;
+
+                cipher.init(Cipher.ENCRYPT_MODE, key, getNonce(chunk));
+                cipher.updateAAD(header);
+                cipher.updateAAD(new byte[] {(byte) (left == 0 ? 1 : 0)});
+                int sealedLength = cipher.doFinal(plain, 0, n, sealed, 0);
+                cursor.write(sealed, 0, sealedLength);
+                chunk++;
+            } while (left > 0);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to encrypt the payload: " + e);
+        } finally {
+            pool.release(plain);
+            pool.release(sealed);
+        }
+    }
+
+    /**
+     * Get a payload out of an image.
+     *
+     * @param pixels the ARGB pixels of the image
+     *
+     * @return the payload or null if the image doesn't have one
+     * @exception IOException
+     *                   if the key is wrong or the payload is damaged
+     */
+    public byte[] extract(int[] pixels)
+        throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        return extract(pixels, out) ? out.toByteArray() : null;
+    }
+
+    /**
+     * Get a payload out of an image.  Each chunk is decrypted and written
+     * to the stream once we know it's good.  If this throws an exception the
+     * stream might already have the chunks before the bad one, so the caller
+     * should throw away whatever was written.
+     *
+     * @param pixels the ARGB pixels of the image
+     * @param out    the stream to write the payload to
+     *
+     * @return true if there was a payload or false if the image doesn't have
+     *         one
+     * @exception IOException
+     *                   if the key is wrong, the payload is damaged, or the
+     *                   stream can't be written
+     */
+    public boolean extract(int[] pixels, OutputStream out)
+        throws IOException
+    {
+        if (pixels.length < (4 * HEADER_LENGTH) / 3) {
+            return false;
+        }
+
+        PairCursor cursor = new PairCursor(pixels);
+        byte[] header = new byte[HEADER_LENGTH];
+
+        /*
+         * The magic number is in the first four pixels.  Most images that
+         * don't have a payload stop here.
+         */
+        cursor.read(header, 0, 3);
+        if (header[0] != MAGIC[0] || header[1] != MAGIC[1] || header[2] != MAGIC[2]) {
+            return false;
+        }
+
+        cursor.read(header, 3, HEADER_LENGTH - 3);
+        if (!MessageDigest.isEqual(check(header), Arrays.copyOfRange(header, HEADER_LENGTH - CHECK_LENGTH,
+                                                                      HEADER_LENGTH))) {
+            throw new IOException("The key is wrong or this image doesn't have a payload");
+        }
+
+        if (header[3] != VERSION) {
+            throw new IOException("This payload was written by a newer version of this program");
+        }
+
+        long length = getLong(header, 4 + SALT_LENGTH);
+        if (length < 0 || getTotalLength(length) > (pixels.length * 3L) / 4) {
+            throw new IOException("The payload is damaged");
+        }
+
+        byte[] salt = Arrays.copyOfRange(header, 4, 4 + SALT_LENGTH);
+        Cipher cipher = getCipher();
+        SecretKeySpec key = new SecretKeySpec(hmac(salt, "encrypt"), "AES");
+        BufferPool pool = BufferPool.getPool();
+        byte[] sealed = pool.borrowBytes(CHUNK_LENGTH + TAG_LENGTH);
+        byte[] plain = pool.borrowBytes(CHUNK_LENGTH + TAG_LENGTH);
+        try {
+            long left = length;
+            int chunk = 0;
+            do {
+                int n = (int) Math.min(CHUNK_LENGTH, left);
+                left -= n;
+                cursor.read(sealed, 0, n + TAG_LENGTH);
+
+                cipher.init(Cipher.DECRYPT_MODE, key, getNonce(chunk));
+                cipher.updateAAD(header);
+                cipher.updateAAD(new byte[] {(byte) (left == 0 ? 1 : 0)});
+                int plainLength = cipher.doFinal(sealed, 0, n + TAG_LENGTH, plain, 0);
+                out.write(plain, 0, plainLength);
+                chunk++;
+            } while (left > 0);
+        } catch (AEADBadTagException e) {
+            throw new IOException("The payload is damaged");
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to decrypt the payload: " + e);
+        } finally {
+            pool.release(sealed);
+            pool.release(plain);
+        }
+
+        return true;
+    }
+
+    /*
+     * This is the number of bytes the header, the payload, and all of the
+     * tags take up.
+     */
+    private static long getTotalLength(long length)
+    {
+        long chunks = Math.max(1, (length + CHUNK_LENGTH - 1) / CHUNK_LENGTH);
+        return HEADER_LENGTH + length + chunks * TAG_LENGTH;
+    }
+
+    private byte[] check(byte[] header)
+    {
+        Mac mac = getMac();
+        mac.update("check".getBytes(StandardCharsets.US_ASCII));
+        mac.update(header, 0, HEADER_LENGTH - CHECK_LENGTH);
+        return Arrays.copyOf(mac.doFinal(), CHECK_LENGTH);
+    }
+
+    /*
+     * This makes the key for one payload.  Each payload has its own salt so
+     * no two payloads use the same key, which is what makes it safe to use
+     * the chunk number as the nonce.
+     */
+    private byte[] hmac(byte[] salt, String use)
+    {
+        Mac mac = getMac();
+        mac.update(use.getBytes(StandardCharsets.US_ASCII));
+        mac.update(salt);
+        return Arrays.copyOf(mac.doFinal(), 16);
+    }
+
+    private Mac getMac()
+    {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(m_masterKey, "HmacSHA256"));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            /*
+             * Every platform has HMAC with SHA-256 so this should never
+             * happen.
+             */
+            throw new IllegalStateException(e.toString());
+        }
+    }
+
+    private static Cipher getCipher()
+    {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            /*
+             * Every Java 8 platform has AES-GCM so this should never happen.
+             */
+            throw new IllegalStateException(e.toString());
+        }
+    }
+
+    private static GCMParameterSpec getNonce(int chunk)
+    {
+        byte[] nonce = new byte[12];
+        nonce[8] = (byte) (chunk >>> 24);
+        nonce[9] = (byte) (chunk >>> 16);
+        nonce[10] = (byte) (chunk >>> 8);
+        nonce[11] = (byte) chunk;
+        return new GCMParameterSpec(TAG_LENGTH * 8, nonce);
+    }
+
+    private static void readFully(InputStream in, byte[] b, int len)
+        throws IOException
+    {
+        int off = 0;
+        while (off < len) {
+            int n = in.read(b, off, len - off);
+            if (n < 0) {
+                throw new EOFException("The payload ended early");
+            }
+            off += n;
+        }
+    }
+
+    private static void putLong(byte[] b, int off, long value)
+    {
+        for (int i = 0; i < 8; i++) {
+            b[off + i] = (byte) (value >>> (56 - 8 * i));
+        }
+    }
+
+    private static long getLong(byte[] b, int off)
+    {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (b[off + i] & 0xFF);
+        }
+
+        return value;
+    }
+
+    /*
+     * This reads and writes bytes two bits at a time through the red, green,
+     * and blue of each pixel in turn, so a byte can start anywhere in a
+     * pixel.
+     */
+    private static class PairCursor
+    {
+        private final int[] m_pixels;
+        private long m_pair;
+
+        PairCursor(int[] pixels)
+        {
+            m_pixels = pixels;
+        }
+
+        void write(byte[] b, int off, int len)
+        {
+            for (int i = off; i < off + len; i++) {
+                for (int shift = 6; shift >= 0; shift -= 2) {
+                    int pixel = (int) (m_pair / 3);
+                    int channel = 16 - 8 * (int) (m_pair % 3);
+                    m_pixels[pixel] = (m_pixels[pixel] & ~(StegCore.LSB_MASK_READ << channel)) |
+                        (((b[i] >> shift) & StegCore.LSB_MASK_READ) << channel);
+                    m_pair++;
+                }
+            }
+        }
+
+        void read(byte[] b, int off, int len)
+        {
+            for (int i = off; i < off + len; i++) {
+                int value = 0;
+                for (int n = 0; n < 4; n++) {
+                    int channel = 16 - 8 * (int) (m_pair % 3);
+                    value = (value << 2) | ((m_pixels[(int) (m_pair / 3)] >> channel) & StegCore.LSB_MASK_READ);
+                    m_pair++;
+                }
+                b[i] = (byte) value;
+            }
+        }
+    }
+}
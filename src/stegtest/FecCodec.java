@@ -0,0 +1,352 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest;
+
+import java.io.*;
+
+/*
+ * This class hides a payload with Reed-Solomon error correction so it can
+ * still be read after some of the pixels were changed.  One flipped bit is
+ * enough to break a regular message.  If it lands in a skip value every
+ * pixel after it is read from the wrong place, and no amount of parity can
+ * fix that.
+ *
+ * So this codec walks the same candidate pixels in the same order as the
+ * regular codec, but it uses every one of them instead of skipping ahead.
+ * Each byte always lands on the same pixels, so a damaged pixel only damages
+ * the bytes in it and the parity can fix them.
+ *
+ * The payload is cut into blocks and each block becomes a 255 byte codeword.
+ * Damage tends to come in runs, like a strip of the image that was painted
+ * over, so we interleave the codewords in groups of sixteen.  The first byte
+ * of each codeword in the group comes first, then the second byte of each,
+ * and so on.  A run of damaged bytes is spread across the whole group, so
+ * with the default 32 parity bytes a group can lose a run of 256 bytes and
+ * still be read.  We fix each group as soon as it has been read, so we never
+ * need the whole payload in memory.
+ *
+ * Before the groups there is a 25 byte header codeword with its own 16 parity
+ * bytes:
+ *
+ *     ~~*          3 bytes
+ *     version      1 byte
+ *     parity       1 byte   the number of parity bytes in each data codeword
+ *     length       4 bytes  the length of the payload
+ */
+public class FecCodec
+{
+    private static final byte[] MAGIC = {'~', '~', '*'};
+    private static final int VERSION = 1;
+    private static final int HEADER_DATA = 9;
+    private static final int HEADER_PARITY = 16;
+    private static final int HEADER_LENGTH = HEADER_DATA + HEADER_PARITY;
+    private static final int CODEWORD = ReedSolomon.MAX_LENGTH;
+    private static final int DEPTH = 16;
+
+    public static final int DEFAULT_PARITY = 32;
+
+    private static final ReedSolomon HEADER_CODE = new ReedSolomon(HEADER_PARITY);
+    private static ReedSolomon s_dataCode = new ReedSolomon(DEFAULT_PARITY);
+
+    private FecCodec()
+    {
+        /*
+         * Everything here is static so no one should create one of these.
+         */
+    }
+
+    /**
+     * Get the largest payload that fits in an image.
+     *
+     * @param cols   the width of the image
+     * @param rows   the height of the image
+     * @param parity the number of parity bytes in each 255 byte codeword
+     *
+     * @return the largest payload in bytes
+     */
+    public static long getCapacity(int cols, int rows, int parity)
+    {
+        long bytes = (StegCore.countCandidates(cols, rows) * 3) / 4 - HEADER_LENGTH;
+        return Math.max(0, bytes / CODEWORD) * (CODEWORD - parity);
+    }
+
+    /**
+     * Hide a payload in an image.
+     *
+     * @param pixels  the ARGB pixels of the image.  They are changed in place.
+     * @param cols    the width of the image
+     * @param rows    the height of the image
+     * @param payload the payload
+     * @param parity  the number of parity bytes in each 255 byte codeword.
+     *                Each codeword can have half this many damaged bytes.
+     *
+     * @exception IOException
+     *                   if the payload doesn't fit in the image
+     */
+    public static void embed(int[] pixels, int cols, int rows, byte[] payload, int parity)
+        throws IOException
+    {
+        if (parity < 2 || parity > 128 || parity % 2 != 0) {
+            throw new IOException("The number of parity bytes must be an even number from 2 to 128");
+        }
+
+        if (payload.length > getCapacity(cols, rows, parity)) {
+            throw new IOException("The payload is " + payload.length + " bytes, but this image only holds " +
+                                  getCapacity(cols, rows, parity) + " bytes with " + parity + " parity bytes");
+        }
+
+        PixelCursor cursor = new PixelCursor(pixels, cols, rows);
+
+        byte[] header = new byte[HEADER_LENGTH];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        header[3] = (byte) VERSION;
+        header[4] = (byte) parity;
+        putInt(header, 5, payload.length);
+        HEADER_CODE.encode(header, 0, HEADER_DATA);
+        cursor.write(header, 0, HEADER_LENGTH);
+
+        ReedSolomon code = getCode(parity);
+        int dataLength = CODEWORD - parity;
+        int codewords = (payload.length + dataLength - 1) / dataLength;
+
+        BufferPool pool = BufferPool.getPool();
+        byte[] group = pool.borrowBytes(DEPTH * CODEWORD);
+        byte[] interleaved = pool.borrowBytes(DEPTH * CODEWORD);
+        try {
+            for (int first = 0; first < codewords; first += DEPTH) {
+                int depth = Math.min(DEPTH, codewords - first);
+                for (int j = 0; j < depth; j++) {
+                    int off = (first + j) * dataLength;
+                    int n = Math.max(0, Math.min(dataLength, payload.length - off));
+                    System.arraycopy(payload, off, group, j * CODEWORD, n);
+                    for (int i = n; i < dataLength; i++) {
+                        group[j * CODEWORD + i] = 0;
+                    }
+                    code.encode(group, j * CODEWORD, dataLength);
+                }
+
+                for (int i = 0; i < CODEWORD; i++) {
+                    for (int j = 0; j < depth; j++) {
+                        interleaved[i * depth + j] = group[j * CODEWORD + i];
+                    }
+                }
+                cursor.write(interleaved, 0, depth * CODEWORD);
+            }
+        } finally {
+            pool.release(group);
+            pool.release(interleaved);
+        }
+    }
+
+    /**
+     * Get a payload out of an image.
+     *
+     * @param pixels the ARGB pixels of the image
+     * @param cols   the width of the image
+     * @param rows   the height of the image
+     *
+     * @return the payload or null if the image doesn't have one
+     * @exception IOException
+     *                   if the payload is too damaged to fix
+     */
+    public static byte[] extract(int[] pixels, int cols, int rows)
+        throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        return extract(pixels, cols, rows, out) < 0 ? null : out.toByteArray();
+    }
+
+    /**
+     * Get a payload out of an image and fix any damage.  Each group of
+     * codewords is fixed and written to the stream as soon as it is read.
+     *
+     * @param pixels the ARGB pixels of the image
+     * @param cols   the width of the image
+     * @param rows   the height of the image
+     * @param out    the stream to write the payload to
+     *
+     * @return the number of damaged bytes we fixed or -1 if the image doesn't
+     *         have a payload
+     * @exception IOException
+     *                   if the payload is too damaged to fix or the stream
+     *                   can't be written
+     */
+    public static int extract(int[] pixels, int cols, int rows, OutputStream out)
+        throws IOException
+    {
+        if ((StegCore.countCandidates(cols, rows) * 3) / 4 < HEADER_LENGTH) {
+            return -1;
+        }
+
+        PixelCursor cursor = new PixelCursor(pixels, cols, rows);
+        byte[] header = new byte[HEADER_LENGTH];
+        cursor.read(header, 0, HEADER_LENGTH);
+
+        /*
+         * The header has enough parity that random pixels almost never look
+         * like a header we can fix.
+         */
+        int fixed = HEADER_CODE.decode(header, 0, HEADER_LENGTH);
+        if (fixed < 0 || header[0] != MAGIC[0] || header[1] != MAGIC[1] || header[2] != MAGIC[2]) {
+            return -1;
+        }
+
+        if (header[3] != VERSION) {
+            throw new IOException("This payload was written by a newer version of this program");
+        }
+
+        int parity = header[4] & 0xFF;
+        int length = getInt(header, 5);
+        if (parity < 2 || parity > 128 || length < 0 || length > getCapacity(cols, rows, parity)) {
+            throw new IOException("The payload header is damaged");
+        }
+
+        ReedSolomon code = getCode(parity);
+        int dataLength = CODEWORD - parity;
+        int codewords = (length + dataLength - 1) / dataLength;
+
+        BufferPool pool = BufferPool.getPool();
+        byte[] group = pool.borrowBytes(DEPTH * CODEWORD);
+        byte[] interleaved = pool.borrowBytes(DEPTH * CODEWORD);
+        try {
+            int left = length;
+            for (int first = 0; first < codewords; first += DEPTH) {
+                int depth = Math.min(DEPTH, codewords - first);
+                cursor.read(interleaved, 0, depth * CODEWORD);
+                for (int i = 0; i < CODEWORD; i++) {
+                    for (int j = 0; j < depth; j++) {
+                        group[j * CODEWORD + i] = interleaved[i * depth + j];
+                    }
+                }
+
+                for (int j = 0; j < depth; j++) {
+                    int n = code.decode(group, j * CODEWORD, CODEWORD);
+                    if (n < 0) {
+                        throw new IOException("Codeword " + (first + j) + " of the payload is too damaged to fix");
+                    }
+                    fixed += n;
+
+                    int len = Math.min(dataLength, left);
+                    out.write(group, j * CODEWORD, len);
+                    left -= len;
+                }
+            }
+        } finally {
+            pool.release(group);
+            pool.release(interleaved);
+        }
+
+        return fixed;
+    }
+
+    /*
+     * Building a code takes a few tables, so we keep the last one we made.
+     * It's almost always the default.
+     */
+    private static synchronized ReedSolomon getCode(int parity)
+    {
+        if (s_dataCode.getParity() != parity) {
+            s_dataCode = new ReedSolomon(parity);
+        }
+
+        return s_dataCode;
+    }
+
+    private static void putInt(byte[] b, int off, int value)
+    {
+        b[off] = (byte) (value >>> 24);
+        b[off + 1] = (byte) (value >>> 16);
+        b[off + 2] = (byte) (value >>> 8);
+        b[off + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] b, int off)
+    {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+
+    /*
+     * This walks the candidate pixels in the same order as the regular codec
+     * without skipping any.  Bytes are read and written two bits at a time
+     * through the red, green, and blue of each pixel, so a byte can start
+     * anywhere in a pixel.
+     */
+    private static class PixelCursor
+    {
+        private final int[] m_pixels;
+        private final int m_cols;
+        private final int m_rows;
+        private int m_row = 0;
+        private int m_col;
+        private int m_channel = 3;
+        private int m_index;
+
+        PixelCursor(int[] pixels, int cols, int rows)
+        {
+            m_pixels = pixels;
+            m_cols = cols;
+            m_rows = rows;
+            m_col = cols;
+        }
+
+        void write(byte[] b, int off, int len)
+        {
+            for (int i = off; i < off + len; i++) {
+                for (int shift = 6; shift >= 0; shift -= 2) {
+                    int channel = next();
+                    m_pixels[m_index] = (m_pixels[m_index] & ~(StegCore.LSB_MASK_READ << channel)) |
+                        (((b[i] >> shift) & StegCore.LSB_MASK_READ) << channel);
+                }
+            }
+        }
+
+        void read(byte[] b, int off, int len)
+        {
+            for (int i = off; i < off + len; i++) {
+                int value = 0;
+                for (int n = 0; n < 4; n++) {
+                    int channel = next();
+                    value = (value << 2) | ((m_pixels[m_index] >> channel) & StegCore.LSB_MASK_READ);
+                }
+                b[i] = (byte) value;
+            }
+        }
+
+        /*
+         * Move to the next pair and return how far it is shifted in the
+         * pixel.
+         */
+        private int next()
+        {
+            if (m_channel == 3) {
+                m_channel = 0;
+                if (++m_col >= m_cols) {
+                    do {
+                        m_row++;
+                        m_col = StegCore.INSERTIONPOINT / m_row + 1;
+                    } while (m_col >= m_cols && m_row < m_rows);
+
+                    if (m_row >= m_rows) {
+                        throw new IllegalStateException("We ran out of pixels");
+                    }
+                }
+                m_index = m_row * m_cols + m_col;
+            }
+
+            return 16 - 8 * m_channel++;
+        }
+    }
+}
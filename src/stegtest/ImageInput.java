@@ -0,0 +1,296 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest;
+
+import java.util.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+import java.awt.image.*;
+import javax.imageio.*;
+import javax.imageio.stream.*;
+
+/*
+ * This class reads images faster than ImageIO.read when we read a lot of them.
+ * ImageIO.read does three slow things for every image.  It asks every
+ * installed reader if it can read the file, it makes a new reader, and for
+ * streams it copies everything it reads to a temporary file so it can seek
+ * back.  Here we do none of those.
+ *
+ * Small files are read into a pooled buffer with one read and big files are
+ * mapped into memory.  Either way the reader sees the whole image as a
+ * ByteBuffer it can seek around in for free, so ImageIO never needs its cache.
+ * We look at the first few bytes to tell the format and each thread keeps one
+ * reader for each format that it resets and uses again.
+ */
+public class ImageInput
+{
+    /*
+     * Files bigger than this are mapped.  Mapping a small file costs more
+     * than reading it.
+     */
+    private static final int MAP_BYTES = 256 * 1024;
+
+    static {
+        /*
+         * All of our streams can already seek, so ImageIO never needs to
+         * write temporary files.
+         */
+        ImageIO.setUseCache(false);
+    }
+
+    /*
+     * Readers aren't thread safe so each thread gets its own.  Our worker
+     * threads live in pools so they keep their readers from image to image.
+     */
+    private static final ThreadLocal<HashMap<String, ImageReader>> READERS =
+        new ThreadLocal<HashMap<String, ImageReader>>()
+        {
+            protected HashMap<String, ImageReader> initialValue()
+            {
+                return new HashMap<String, ImageReader>();
+            }
+        };
+
+    private ImageInput()
+    {
+        /*
+         * Everything here is static so no one should create one of these.
+         */
+    }
+
+    /**
+     * Read an image file.
+     *
+     * @param f      the image file
+     *
+     * @return the image or null if this isn't an image we can read
+     * @exception IOException
+     *                   if the file can't be read
+     */
+    public static BufferedImage read(File f)
+        throws IOException
+    {
+        return (BufferedImage) open(f, false);
+    }
+
+    /**
+     * Read an image from memory.  The position of the buffer isn't changed.
+     *
+     * @param data   the bytes of the image from the position to the limit
+     *
+     * @return the image or null if this isn't an image we can read
+     * @exception IOException
+     *                   if the image is damaged
+     */
+    public static BufferedImage read(ByteBuffer data)
+        throws IOException
+    {
+        return (BufferedImage) decode(data.slice(), false);
+    }
+
+    /**
+     * Read the width and height of an image from its header without
+     * decoding the pixels.
+     *
+     * @param f      the image file
+     *
+     * @return the width and the height or null if this isn't an image we can read
+     * @exception IOException
+     *                   if the file can't be read
+     */
+    public static int[] readSize(File f)
+        throws IOException
+    {
+        return (int[]) open(f, true);
+    }
+
+    private static Object open(File f, boolean sizeOnly)
+        throws IOException
+    {
+        FileInputStream in = new FileInputStream(f);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(f + " is too large");
+            }
+
+            if (size > MAP_BYTES) {
+                /*
+                 * The mapping goes away when the buffer is collected.  Only
+                 * the pages the reader touches are ever read from disk, so
+                 * reading the size of a huge image stays cheap.
+                 */
+                return decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), sizeOnly);
+            }
+
+            BufferPool pool = BufferPool.getPool();
+            byte[] bytes = pool.borrowBytes((int) size);
+            try {
+                ByteBuffer buf = ByteBuffer.wrap(bytes, 0, (int) size);
+                while (buf.hasRemaining() && channel.read(buf) >= 0) {
+                    /*
+                     * Keep reading until we have the whole file.
+                     */
+                }
+                buf.flip();
+                return decode(buf, sizeOnly);
+            } finally {
+                pool.release(bytes);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Object decode(ByteBuffer data, boolean sizeOnly)
+        throws IOException
+    {
+        /*
+         * We read our own raw formats ourselves.  ImageIO doesn't know them.
+         */
+        if (QoiImage.isQoi(data)) {
+            return sizeOnly ? (Object) QoiImage.readSize(data) : QoiImage.read(data).toImage();
+        } else if (PamImage.isPam(data)) {
+            return sizeOnly ? (Object) PamImage.readSize(data) : PamImage.read(data).toImage();
+        }
+
+        ImageInputStream in = new BufferInputStream(data);
+        String format = getFormat(data);
+        HashMap<String, ImageReader> readers = READERS.get();
+        ImageReader reader = format == null ? null : readers.remove(format);
+        if (reader == null) {
+            Iterator<ImageReader> it = format == null ? ImageIO.getImageReaders(in) :
+                ImageIO.getImageReadersByFormatName(format);
+            if (!it.hasNext()) {
+                return null;
+            }
+            reader = it.next();
+        }
+
+        /*
+         * We take the reader out of the map while we use it.  If it fails
+         * we throw it away in case it was left in a bad state.
+         */
+        boolean ok = false;
+        try {
+            reader.setInput(in, true, true);
+            Object result;
+            if (sizeOnly) {
+                result = new int[] {reader.getWidth(0), reader.getHeight(0)};
+            } else {
+                result = reader.read(0, reader.getDefaultReadParam());
+            }
+            ok = true;
+            return result;
+        } finally {
+            if (ok && format != null) {
+                reader.reset();
+                readers.put(format, reader);
+            } else {
+                reader.dispose();
+            }
+        }
+    }
+
+    /*
+     * Every format we care about starts with a few bytes that tell us what it
+     * is.  Anything else goes through the slow ImageIO lookup.
+     */
+    private static String getFormat(ByteBuffer data)
+    {
+        if (data.remaining() < 4) {
+            return null;
+        }
+
+        int b0 = data.get(0) & 0xFF;
+        int b1 = data.get(1) & 0xFF;
+        int b2 = data.get(2) & 0xFF;
+        int b3 = data.get(3) & 0xFF;
+        if (b0 == 0x89 && b1 == 'P' && b2 == 'N' && b3 == 'G') {
+            return "png";
+        } else if (b0 == 0xFF && b1 == 0xD8 && b2 == 0xFF) {
+            return "jpeg";
+        } else if (b0 == 'G' && b1 == 'I' && b2 == 'F' && b3 == '8') {
+            return "gif";
+        } else if (b0 == 'B' && b1 == 'M') {
+            return "bmp";
+        }
+
+        return null;
+    }
+
+    /*
+     * This is an image stream over a buffer that is already in memory.
+     * Seeking just moves the position of the buffer.
+     */
+    private static class BufferInputStream extends ImageInputStreamImpl
+    {
+        private final ByteBuffer m_buf;
+
+        BufferInputStream(ByteBuffer buf)
+        {
+            m_buf = buf.duplicate();
+        }
+
+        public int read()
+            throws IOException
+        {
+            checkClosed();
+            bitOffset = 0;
+            if (!m_buf.hasRemaining()) {
+                return -1;
+            }
+
+            streamPos++;
+            return m_buf.get() & 0xFF;
+        }
+
+        public int read(byte[] b, int off, int len)
+            throws IOException
+        {
+            checkClosed();
+            bitOffset = 0;
+            if (len == 0) {
+                return 0;
+            }
+
+            int n = Math.min(len, m_buf.remaining());
+            if (n <= 0) {
+                return -1;
+            }
+
+            m_buf.get(b, off, n);
+            streamPos += n;
+            return n;
+        }
+
+        public long length()
+        {
+            return m_buf.limit();
+        }
+
+        public void seek(long pos)
+            throws IOException
+        {
+            super.seek(pos);
+            m_buf.position((int) Math.min(pos, m_buf.limit()));
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest;
+
+/*
+ * This is the main class of the JAR file.  If the first argument is one of the
+ * command line commands we run StegCli and otherwise we start the GUI.  This
+ * class doesn't use AWT or Swing so the command line never waits for them to
+ * load.
+ */
+public class Launcher
+{
+    public static void main(String args[])
+    {
+        if (args.length > 0 && StegCli.isCommand(args[0])) {
+            StegCli.main(args);
+        } else {
+            StegTest.main(args);
+        }
+    }
+}
@@ -0,0 +1,630 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import java.io.*;
+import java.security.*;
+
+import java.awt.image.*;
+
+/*
+ * This class keeps the messages we found in a collection of images so we can
+ * search them again without decoding any images.
+ *
+ * Each image is kept with its size, modification time, and a SHA-1 hash of its
+ * contents.  Messages are kept once for each hash, so copies of the same image
+ * share one message.  An update only hashes images whose size or modification
+ * time changed, and only decodes images whose hash we haven't seen before.
+ *
+ * Searches go through an inverted index of trigrams, the runs of three
+ * characters in each message.  A message can only contain the text we're
+ * looking for if it contains every trigram of that text, so we intersect the
+ * lists for those trigrams and only look at the text of the messages that are
+ * left.  Searches ignore case.
+ *
+ * Everything is kept in one binary file.  Each trigram list is kept as the
+ * differences between the sorted message numbers, written in as few bytes as
+ * they fit in.
+ */
+public class MessageIndex
+{
+    private static final int MAGIC = 0x53544D49;
+    private static final int VERSION = 1;
+
+    /**
+     * This is an image with a message that matched a search.
+     */
+    public static class Hit
+    {
+        private final File m_file;
+        private final String m_message;
+
+        Hit(File file, String message)
+        {
+            m_file = file;
+            m_message = message;
+        }
+
+        public File getFile()
+        {
+            return m_file;
+        }
+
+        public String getMessage()
+        {
+            return m_message;
+        }
+
+        public String toString()
+        {
+            return m_file.getPath();
+        }
+    }
+
+    /*
+     * This is one image.  The hash is the key of its message.
+     */
+    private static class FileEntry
+    {
+        final String m_path;
+        final long m_length;
+        final long m_modified;
+        final String m_hash;
+
+        FileEntry(String path, long length, long modified, String hash)
+        {
+            m_path = path;
+            m_length = length;
+            m_modified = modified;
+            m_hash = hash;
+        }
+    }
+
+    private final File m_indexFile;
+    private final HashMap<String, FileEntry> m_files = new HashMap<String, FileEntry>();
+
+    /*
+     * This maps a hash to the message in those images, or to null if they
+     * don't have one.  We keep the nulls so we don't decode those images
+     * again.
+     */
+    private final HashMap<String, String> m_messages = new HashMap<String, String>();
+
+    /*
+     * These are built from the maps above.  Message number N is the message
+     * for m_hashes[N].
+     */
+    private String[] m_hashes = new String[0];
+    private String[] m_lowerCase = new String[0];
+    private HashMap<Integer, int[]> m_trigrams = new HashMap<Integer, int[]>();
+    private HashMap<String, List<String>> m_pathsByHash = new HashMap<String, List<String>>();
+
+    /**
+     * Open an index.  If the index file exists we read it.
+     *
+     * @param indexFile the file the index is kept in
+     *
+     * @exception IOException
+     *                   if the index file exists but can't be read
+     */
+    public MessageIndex(File indexFile)
+        throws IOException
+    {
+        m_indexFile = indexFile;
+        if (indexFile.exists()) {
+            load();
+        }
+    }
+
+    /**
+     * @return the number of images in the index
+     */
+    public synchronized int size()
+    {
+        return m_files.size();
+    }
+
+    /**
+     * Bring the index up to date with the images under some directories and
+     * save it.
+     *
+     * @param roots   the directories or image files to look in
+     * @param threads the number of images to read at the same time
+     *
+     * @return the number of images we had to decode
+     * @exception IOException
+     *                   if the index can't be saved
+     * @exception InterruptedException
+     *                   if we are interrupted while reading the images
+     */
+    public synchronized int update(List<File> roots, int threads)
+        throws IOException, InterruptedException
+    {
+        ArrayList<File> files = new ArrayList<File>();
+        for (File root : roots) {
+            findImages(root.getAbsoluteFile(), files);
+        }
+
+        HashMap<String, FileEntry> current = new HashMap<String, FileEntry>();
+        ArrayList<File> changed = new ArrayList<File>();
+        for (File f : files) {
+            FileEntry e = m_files.get(f.getPath());
+            if (e != null && e.m_length == f.length() && e.m_modified == f.lastModified()) {
+                current.put(e.m_path, e);
+            } else {
+                changed.add(f);
+            }
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(threads, 1), new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "stegtest-index");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+        /*
+         * These are the hashes we have messages for or someone is decoding.
+         * The first thread to add a hash decodes it, so copies of the same
+         * new image are only decoded once.
+         */
+        final Set<String> known = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        known.addAll(m_messages.keySet());
+
+        int decoded = 0;
+        try {
+            ArrayList<Future<Object[]>> results = new ArrayList<Future<Object[]>>();
+            for (final File f : changed) {
+                results.add(pool.submit(new Callable<Object[]>()
+                    {
+                        public Object[] call()
+                            throws IOException
+                        {
+                            return examine(f, known);
+                        }
+                    }));
+            }
+
+            for (Future<Object[]> result : results) {
+                Object[] r;
+                try {
+                    r = result.get();
+                } catch (ExecutionException e) {
+                    throw new IOException("Unable to read an image: " + e.getCause());
+                }
+
+                FileEntry entry = (FileEntry) r[0];
+                current.put(entry.m_path, entry);
+                if (r[1] != null) {
+                    decoded++;
+                    String message = (String) r[1];
+                    m_messages.put(entry.m_hash, message.length() == 0 ? null : message);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        m_files.clear();
+        m_files.putAll(current);
+
+        /*
+         * Forget the messages of images that are gone.
+         */
+        HashSet<String> used = new HashSet<String>();
+        for (FileEntry e : m_files.values()) {
+            used.add(e.m_hash);
+        }
+        m_messages.keySet().retainAll(used);
+
+        buildIndex(null);
+        save();
+        return decoded;
+    }
+
+    /**
+     * Find the images with messages that contain some text.
+     *
+     * @param text       the text to look for.  Case doesn't matter.
+     * @param wholeWords true to only match the text where it isn't part of
+     *                   a longer word
+     *
+     * @return the images, sorted by path
+     */
+    public synchronized List<Hit> search(String text, boolean wholeWords)
+    {
+        String lower = text.toLowerCase(Locale.ROOT);
+        int[] candidates = null;
+        for (int i = 0; i + 3 <= lower.length(); i++) {
+            int[] list = m_trigrams.get(Integer.valueOf(trigram(lower, i)));
+            if (list == null) {
+                return new ArrayList<Hit>();
+            }
+            candidates = candidates == null ? list : intersect(candidates, list);
+        }
+
+        ArrayList<Hit> hits = new ArrayList<Hit>();
+        int count = candidates == null ? m_hashes.length : candidates.length;
+        for (int i = 0; i < count; i++) {
+            int id = candidates == null ? i : candidates[i];
+            String message = m_lowerCase[id];
+            if (message == null || !matches(message, lower, wholeWords)) {
+                continue;
+            }
+
+            for (String path : m_pathsByHash.get(m_hashes[id])) {
+                hits.add(new Hit(new File(path), m_messages.get(m_hashes[id])));
+            }
+        }
+
+        Collections.sort(hits, new Comparator<Hit>()
+            {
+                public int compare(Hit a, Hit b)
+                {
+                    return a.m_file.getPath().compareTo(b.m_file.getPath());
+                }
+            });
+        return hits;
+    }
+
+    /*
+     * Hash one image and decode it if we haven't seen its contents before.
+     * This runs on the pool.  It returns the new entry and the message we
+     * decoded, which is an empty string if there isn't one and null if we
+     * didn't decode anything.
+     */
+    private static Object[] examine(File f, Set<String> known)
+        throws IOException
+    {
+        long length = f.length();
+        long modified = f.lastModified();
+        String hash = hash(f);
+        FileEntry entry = new FileEntry(f.getPath(), length, modified, hash);
+        if (!known.add(hash)) {
+            return new Object[] {entry, null};
+        }
+
+        String message = null;
+        try {
+            BufferedImage image = ImageInput.read(f);
+            if (image != null) {
+                message = StegCore.decode(Carrier.fromImage(image));
+            }
+        } catch (IOException e) {
+            /*
+             * We can't read it, so it has no message we can find.
+             */
+        } catch (RuntimeException e) {
+            /*
+             * Damaged images can make the decoders throw all sorts of
+             * things.
+             */
+        }
+
+        return new Object[] {entry, message == null ? "" : message};
+    }
+
+    private static String hash(File f)
+        throws IOException
+    {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            /*
+             * Every platform has SHA-1 so this should never happen.
+             */
+            throw new IllegalStateException(e.toString());
+        }
+
+        BufferPool pool = BufferPool.getPool();
+        byte[] buf = pool.borrowBytes(64 * 1024);
+        InputStream in = new FileInputStream(f);
+        try {
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                digest.update(buf, 0, n);
+            }
+        } finally {
+            in.close();
+            pool.release(buf);
+        }
+
+        StringBuffer hex = new StringBuffer();
+        for (byte b : digest.digest()) {
+            hex.append(Integer.toHexString((b >> 4) & 0xF));
+            hex.append(Integer.toHexString(b & 0xF));
+        }
+        return hex.toString();
+    }
+
+    /*
+     * Number the messages and build the lookup tables.  If we just read the
+     * trigram lists from the index file we use those instead of building
+     * them again.
+     */
+    private void buildIndex(HashMap<Integer, int[]> trigrams)
+    {
+        ArrayList<String> hashes = new ArrayList<String>(m_messages.keySet());
+        Collections.sort(hashes);
+        m_hashes = hashes.toArray(new String[hashes.size()]);
+        m_lowerCase = new String[m_hashes.length];
+        for (int i = 0; i < m_hashes.length; i++) {
+            String message = m_messages.get(m_hashes[i]);
+            m_lowerCase[i] = message == null ? null : message.toLowerCase(Locale.ROOT);
+        }
+
+        m_pathsByHash = new HashMap<String, List<String>>();
+        for (FileEntry e : m_files.values()) {
+            List<String> paths = m_pathsByHash.get(e.m_hash);
+            if (paths == null) {
+                paths = new ArrayList<String>(1);
+                m_pathsByHash.put(e.m_hash, paths);
+            }
+            paths.add(e.m_path);
+        }
+
+        if (trigrams != null) {
+            m_trigrams = trigrams;
+            return;
+        }
+
+        /*
+         * We go through the messages in order so each list comes out
+         * sorted.  The last number on a list tells us if this message is
+         * already on it.
+         */
+        HashMap<Integer, int[]> lists = new HashMap<Integer, int[]>();
+        HashMap<Integer, Integer> sizes = new HashMap<Integer, Integer>();
+        for (int id = 0; id < m_lowerCase.length; id++) {
+            String message = m_lowerCase[id];
+            if (message == null) {
+                continue;
+            }
+
+            for (int i = 0; i + 3 <= message.length(); i++) {
+                Integer key = Integer.valueOf(trigram(message, i));
+                int[] list = lists.get(key);
+                int size = list == null ? 0 : sizes.get(key).intValue();
+                if (size > 0 && list[size - 1] == id) {
+                    continue;
+                }
+
+                if (list == null) {
+                    list = new int[4];
+                    lists.put(key, list);
+                } else if (size == list.length) {
+                    list = Arrays.copyOf(list, size * 2);
+                    lists.put(key, list);
+                }
+                list[size] = id;
+                sizes.put(key, Integer.valueOf(size + 1));
+            }
+        }
+
+        m_trigrams = new HashMap<Integer, int[]>();
+        for (Map.Entry<Integer, int[]> e : lists.entrySet()) {
+            m_trigrams.put(e.getKey(), Arrays.copyOf(e.getValue(), sizes.get(e.getKey()).intValue()));
+        }
+    }
+
+    private static boolean matches(String message, String text, boolean wholeWords)
+    {
+        for (int i = message.indexOf(text); i >= 0; i = message.indexOf(text, i + 1)) {
+            if (!wholeWords) {
+                return true;
+            }
+
+            int end = i + text.length();
+            if ((i == 0 || !Character.isLetterOrDigit(message.charAt(i - 1))) &&
+                (end == message.length() || !Character.isLetterOrDigit(message.charAt(end)))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /*
+     * Messages are ISO-8859-1, so each character fits in a byte and three of
+     * them fit in an int.
+     */
+    private static int trigram(String s, int i)
+    {
+        return ((s.charAt(i) & 0xFF) << 16) | ((s.charAt(i + 1) & 0xFF) << 8) | (s.charAt(i + 2) & 0xFF);
+    }
+
+    private static int[] intersect(int[] a, int[] b)
+    {
+        int[] out = new int[Math.min(a.length, b.length)];
+        int n = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                out[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+
+        return Arrays.copyOf(out, n);
+    }
+
+    private void load()
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(m_indexFile), 64 * 1024));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(m_indexFile + " is not a message index");
+            }
+            if (in.readInt() != VERSION) {
+                throw new IOException(m_indexFile + " was written by a different version of this program");
+            }
+
+            int files = in.readInt();
+            for (int i = 0; i < files; i++) {
+                FileEntry e = new FileEntry(in.readUTF(), in.readLong(), in.readLong(), in.readUTF());
+                m_files.put(e.m_path, e);
+            }
+
+            int messages = in.readInt();
+            for (int i = 0; i < messages; i++) {
+                String hash = in.readUTF();
+                int length = in.readInt();
+                String message = null;
+                if (length >= 0) {
+                    byte[] bytes = new byte[length];
+                    in.readFully(bytes);
+                    message = new String(bytes, "ISO-8859-1");
+                }
+                m_messages.put(hash, message);
+            }
+
+            int count = in.readInt();
+            HashMap<Integer, int[]> trigrams = new HashMap<Integer, int[]>(count * 2);
+            for (int i = 0; i < count; i++) {
+                int key = in.readInt();
+                int[] list = new int[readVarInt(in)];
+                for (int j = 0, id = 0; j < list.length; j++) {
+                    id += readVarInt(in);
+                    list[j] = id;
+                }
+                trigrams.put(Integer.valueOf(key), list);
+            }
+
+            buildIndex(trigrams);
+        } finally {
+            in.close();
+        }
+    }
+
+    /*
+     * We write to a temporary file and rename it so a crash never leaves a
+     * half written index.
+     */
+    private void save()
+        throws IOException
+    {
+        File dir = m_indexFile.getAbsoluteFile().getParentFile();
+        dir.mkdirs();
+        File tmp = new File(dir, m_indexFile.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            out.writeInt(m_files.size());
+            for (FileEntry e : m_files.values()) {
+                out.writeUTF(e.m_path);
+                out.writeLong(e.m_length);
+                out.writeLong(e.m_modified);
+                out.writeUTF(e.m_hash);
+            }
+
+            /*
+             * The messages go in the order of their numbers so the trigram
+             * lists still point at the right ones when we read them back.
+             */
+            out.writeInt(m_hashes.length);
+            for (String hash : m_hashes) {
+                out.writeUTF(hash);
+                String message = m_messages.get(hash);
+                if (message == null) {
+                    out.writeInt(-1);
+                } else {
+                    byte[] bytes = message.getBytes("ISO-8859-1");
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            }
+
+            out.writeInt(m_trigrams.size());
+            for (Map.Entry<Integer, int[]> e : m_trigrams.entrySet()) {
+                int[] list = e.getValue();
+                out.writeInt(e.getKey().intValue());
+                writeVarInt(out, list.length);
+                for (int j = 0, last = 0; j < list.length; j++) {
+                    writeVarInt(out, list[j] - last);
+                    last = list[j];
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(m_indexFile)) {
+            m_indexFile.delete();
+            if (!tmp.renameTo(m_indexFile)) {
+                throw new IOException("Unable to write " + m_indexFile);
+            }
+        }
+    }
+
+    /*
+     * Seven bits go in each byte and the high bit says another byte follows.
+     */
+    private static void writeVarInt(DataOutputStream out, int value)
+        throws IOException
+    {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in)
+        throws IOException
+    {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private static void findImages(File f, List<File> out)
+    {
+        if (f.isDirectory()) {
+            File[] children = f.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    findImages(child, out);
+                }
+            }
+            return;
+        }
+
+        String name = f.getName().toLowerCase(Locale.ROOT);
+        if (name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".png") || name.endsWith(".gif") ||
+            name.endsWith(".bmp") || name.endsWith(".qoi") || name.endsWith(".pam")) {
+            out.add(f);
+        }
+    }
+}
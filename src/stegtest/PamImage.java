@@ -0,0 +1,208 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest;
+
+import java.io.*;
+import java.nio.*;
+
+/*
+ * This class reads and writes PAM images.  PAM is the Netpbm format with a
+ * short text header and then the raw samples, so reading and writing one is
+ * little more than a copy.  The files are as big as the pixels, which is fine
+ * for handing images between stages on the same machine or over a fast
+ * network.  The header looks like this:
+ *
+ *     P7
+ *     WIDTH 640
+ *     HEIGHT 480
+ *     DEPTH 3
+ *     MAXVAL 255
+ *     TUPLTYPE RGB
+ *     ENDHDR
+ *
+ * We write RGB just like our PNG files.  We read RGB and RGB_ALPHA, and
+ * GRAYSCALE too, all with eight bit samples.
+ */
+public class PamImage
+{
+    /*
+     * No header we can read is anywhere near this long.
+     */
+    private static final int MAX_HEADER = 4096;
+
+    private PamImage()
+    {
+        /*
+         * Everything here is static so no one should create one of these.
+         */
+    }
+
+    /**
+     * @param data   the bytes of a file from position 0
+     *
+     * @return true if the bytes are a PAM image
+     */
+    public static boolean isPam(ByteBuffer data)
+    {
+        return data.limit() >= 3 && data.get(0) == 'P' && data.get(1) == '7' && data.get(2) == '\n';
+    }
+
+    /**
+     * Read the width and height from the header.
+     *
+     * @param data   the bytes of a PAM file from position 0
+     *
+     * @return the width and the height
+     * @exception IOException
+     *                   if we can't read the header
+     */
+    public static int[] readSize(ByteBuffer data)
+        throws IOException
+    {
+        int[] header = readHeader(data);
+        return new int[] {header[0], header[1]};
+    }
+
+    /**
+     * Read a PAM image.
+     *
+     * @param data   the bytes of a PAM file from position 0
+     *
+     * @return the image
+     * @exception IOException
+     *                   if the image is damaged or isn't one we can read
+     */
+    public static Carrier read(ByteBuffer data)
+        throws IOException
+    {
+        int[] header = readHeader(data);
+        int width = header[0];
+        int height = header[1];
+        int depth = header[2];
+        int p = header[3];
+        if (data.limit() - p < (long) width * height * depth) {
+            throw new IOException("The PAM image is too short");
+        }
+
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++, p += depth) {
+            if (depth == 1) {
+                int v = data.get(p) & 0xFF;
+                pixels[i] = 0xFF000000 | (v << 16) | (v << 8) | v;
+            } else {
+                int alpha = depth == 4 ? data.get(p + 3) & 0xFF : 0xFF;
+                pixels[i] = (alpha << 24) | ((data.get(p) & 0xFF) << 16) | ((data.get(p + 1) & 0xFF) << 8) |
+                    (data.get(p + 2) & 0xFF);
+            }
+        }
+
+        return new Carrier(width, height, pixels);
+    }
+
+    /**
+     * Write an image as PAM.  Like our PNG files the alpha channel isn't
+     * written.
+     *
+     * @param pixels the ARGB pixels of the image
+     * @param cols   the width of the image
+     * @param rows   the height of the image
+     * @param out    the stream to write to.  It isn't closed.
+     *
+     * @exception IOException
+     *                   if the write fails
+     */
+    public static void write(int[] pixels, int cols, int rows, OutputStream out)
+        throws IOException
+    {
+        out.write(("P7\nWIDTH " + cols + "\nHEIGHT " + rows + "\nDEPTH 3\nMAXVAL 255\nTUPLTYPE RGB\nENDHDR\n")
+                  .getBytes("US-ASCII"));
+
+        /*
+         * We write a row at a time from a pooled buffer.
+         */
+        BufferPool pool = BufferPool.getPool();
+        byte[] row = pool.borrowBytes(3 * cols);
+        try {
+            for (int y = 0, i = 0; y < rows; y++) {
+                for (int x = 0, n = 0; x < cols; x++, i++) {
+                    int px = pixels[i];
+                    row[n++] = (byte) (px >> 16);
+                    row[n++] = (byte) (px >> 8);
+                    row[n++] = (byte) px;
+                }
+                out.write(row, 0, 3 * cols);
+            }
+        } finally {
+            pool.release(row);
+        }
+    }
+
+    /*
+     * This returns the width, the height, the depth, and where the samples
+     * start.
+     */
+    private static int[] readHeader(ByteBuffer data)
+        throws IOException
+    {
+        int width = -1;
+        int height = -1;
+        int depth = -1;
+        int maxval = -1;
+
+        int end = Math.min(data.limit(), MAX_HEADER);
+        StringBuffer line = new StringBuffer();
+        for (int p = 3; p < end; p++) {
+            char c = (char) (data.get(p) & 0xFF);
+            if (c != '\n') {
+                line.append(c);
+                continue;
+            }
+
+            String text = line.toString();
+            String[] fields = text.trim().split("\\s+");
+            line.setLength(0);
+            try {
+                if (fields[0].equals("ENDHDR")) {
+                    if (width <= 0 || height <= 0 || (long) width * height > Integer.MAX_VALUE) {
+                        throw new IOException("The PAM image has no size");
+                    }
+                    if (maxval != 255 || (depth != 1 && depth != 3 && depth != 4)) {
+                        throw new IOException("Only eight bit grayscale, RGB, and RGB_ALPHA PAM images are supported");
+                    }
+
+                    return new int[] {width, height, depth, p + 1};
+                } else if (fields[0].equals("WIDTH")) {
+                    width = Integer.parseInt(fields[1]);
+                } else if (fields[0].equals("HEIGHT")) {
+                    height = Integer.parseInt(fields[1]);
+                } else if (fields[0].equals("DEPTH")) {
+                    depth = Integer.parseInt(fields[1]);
+                } else if (fields[0].equals("MAXVAL")) {
+                    maxval = Integer.parseInt(fields[1]);
+                }
+
+                /*
+                 * Comments and TUPLTYPE don't matter.  The depth tells us
+                 * everything we need.
+                 */
+            } catch (RuntimeException e) {
+                throw new IOException("The PAM header is damaged: " + text);
+            }
+        }
+
+        throw new IOException("The PAM header is damaged");
+    }
+}
@@ -0,0 +1,113 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest;
+
+import java.io.*;
+
+/*
+ * This is an output stream like ByteArrayOutputStream except that the array
+ * it writes into is borrowed from the BufferPool.  We use it to encode PNG
+ * images in memory so the PNG encoder doesn't have to allocate a new buffer
+ * for every image.  Call release when you are done with the data so the
+ * array can go back to the pool.
+ */
+public class PooledOutputStream extends OutputStream implements ByteSink
+{
+    private final BufferPool m_pool;
+    private byte[] m_buf;
+    private int m_count;
+
+    /**
+     * Create a new stream.
+     *
+     * @param pool         the pool to borrow from
+     * @param expectedSize about how many bytes we think will be written
+     */
+    public PooledOutputStream(BufferPool pool, int expectedSize)
+    {
+        m_pool = pool;
+        m_buf = pool.borrowBytes(Math.max(expectedSize, 1));
+    }
+
+    public void write(int b)
+    {
+        ensureCapacity(m_count + 1);
+        m_buf[m_count++] = (byte) b;
+    }
+
+    public void write(byte[] b, int off, int len)
+    {
+        ensureCapacity(m_count + len);
+        System.arraycopy(b, off, m_buf, m_count, len);
+        m_count += len;
+    }
+
+    /**
+     * Write everything we have so far to another stream.
+     *
+     * @param out    the stream to write to
+     *
+     * @exception IOException
+     *                   if the write fails
+     */
+    public void writeTo(OutputStream out)
+        throws IOException
+    {
+        out.write(m_buf, 0, m_count);
+    }
+
+    /**
+     * @return the array holding the data.  Only the first size() bytes are valid.
+     */
+    public byte[] getBuffer()
+    {
+        return m_buf;
+    }
+
+    public int size()
+    {
+        return m_count;
+    }
+
+    public void reset()
+    {
+        m_count = 0;
+    }
+
+    /**
+     * Give the array back to the pool.  The stream can't be used after this.
+     */
+    public void release()
+    {
+        m_pool.release(m_buf);
+        m_buf = null;
+        m_count = 0;
+    }
+
+    private void ensureCapacity(int capacity)
+    {
+        if (capacity > m_buf.length) {
+            /*
+             * We ran out of room so we borrow a bigger array and give the
+             * old one back.
+             */
+            byte[] buf = m_pool.borrowBytes(Math.max(capacity, m_buf.length * 2));
+            System.arraycopy(m_buf, 0, buf, 0, m_count);
+            m_pool.release(m_buf);
+            m_buf = buf;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest;
+
+import java.io.*;
+import java.nio.*;
+
+/*
+ * This class reads and writes QOI images.  QOI is a lossless format like PNG,
+ * but it only does one quick pass over the pixels and has no deflate step, so
+ * it reads and writes many times faster than PNG and the files are only a
+ * little bigger.  Between our own stages there is no reason to pay for PNG.
+ * We convert to PNG when an image leaves for the outside world.
+ *
+ * The format is described at https://qoiformat.org.  Each pixel is one of:
+ *
+ *     INDEX  00iiiiii           a pixel from a 64 entry table of recent pixels
+ *     DIFF   01rrggbb           a small change from the last pixel
+ *     LUMA   10gggggg rrrrbbbb  a bigger change, with red and blue relative
+ *                               to the change in green
+ *     RUN    11nnnnnn           the last pixel repeated up to 62 times
+ *     RGB    11111110 r g b
+ *     RGBA   11111111 r g b a
+ *
+ * We write three channels just like our PNG files and read three or four.
+ */
+public class QoiImage
+{
+    private static final int MAGIC = 0x716F6966;
+    private static final int HEADER_LENGTH = 14;
+    private static final byte[] END = {0, 0, 0, 0, 0, 0, 0, 1};
+
+    private static final int OP_INDEX = 0x00;
+    private static final int OP_DIFF = 0x40;
+    private static final int OP_LUMA = 0x80;
+    private static final int OP_RUN = 0xC0;
+    private static final int OP_RGB = 0xFE;
+    private static final int OP_RGBA = 0xFF;
+
+    /*
+     * We fill a buffer this big before each write.  Every pixel takes at
+     * most five bytes.
+     */
+    private static final int WRITE_BUFFER = 64 * 1024;
+
+    private QoiImage()
+    {
+        /*
+         * Everything here is static so no one should create one of these.
+         */
+    }
+
+    /**
+     * @param data   the bytes of a file from position 0
+     *
+     * @return true if the bytes are a QOI image
+     */
+    public static boolean isQoi(ByteBuffer data)
+    {
+        return data.limit() >= HEADER_LENGTH && data.getInt(0) == MAGIC;
+    }
+
+    /**
+     * Read the width and height from the header.
+     *
+     * @param data   the bytes of a QOI file from position 0
+     *
+     * @return the width and the height
+     * @exception IOException
+     *                   if the header is damaged
+     */
+    public static int[] readSize(ByteBuffer data)
+        throws IOException
+    {
+        long width = data.getInt(4) & 0xFFFFFFFFL;
+        long height = data.getInt(8) & 0xFFFFFFFFL;
+        int channels = data.get(12);
+        if (width == 0 || height == 0 || width * height > Integer.MAX_VALUE || (channels != 3 && channels != 4)) {
+            throw new IOException("The QOI header is damaged");
+        }
+
+        /*
+         * The most pixels one byte can hold is a run of 62, so a header
+         * that claims more pixels than that is damaged.  We check before
+         * anyone allocates the pixels.
+         */
+        if (width * height > 62L * Math.max(data.limit() - HEADER_LENGTH - END.length, 0)) {
+            throw new IOException("The QOI image is cut short");
+        }
+
+        return new int[] {(int) width, (int) height};
+    }
+
+    /**
+     * Read a QOI image.
+     *
+     * @param data   the bytes of a QOI file from position 0
+     *
+     * @return the image
+     * @exception IOException
+     *                   if the image is damaged
+     */
+    public static Carrier read(ByteBuffer data)
+        throws IOException
+    {
+        int[] size = readSize(data);
+        int[] pixels = new int[size[0] * size[1]];
+        int[] index = new int[64];
+        int px = 0xFF000000;
+        int run = 0;
+        int end = data.limit() - END.length;
+
+        try {
+            for (int i = 0, p = HEADER_LENGTH; i < pixels.length; i++) {
+                if (run > 0) {
+                    run--;
+                } else if (p < end) {
+                    int b1 = data.get(p++) & 0xFF;
+                    if (b1 == OP_RGB) {
+                        px = (px & 0xFF000000) | ((data.get(p) & 0xFF) << 16) | ((data.get(p + 1) & 0xFF) << 8) |
+                            (data.get(p + 2) & 0xFF);
+                        p += 3;
+                    } else if (b1 == OP_RGBA) {
+                        px = ((data.get(p + 3) & 0xFF) << 24) | ((data.get(p) & 0xFF) << 16) |
+                            ((data.get(p + 1) & 0xFF) << 8) | (data.get(p + 2) & 0xFF);
+                        p += 4;
+                    } else if ((b1 & 0xC0) == OP_INDEX) {
+                        px = index[b1];
+                    } else if ((b1 & 0xC0) == OP_DIFF) {
+                        px = add(px, ((b1 >> 4) & 3) - 2, ((b1 >> 2) & 3) - 2, (b1 & 3) - 2);
+                    } else if ((b1 & 0xC0) == OP_LUMA) {
+                        int b2 = data.get(p++) & 0xFF;
+                        int dg = (b1 & 0x3F) - 32;
+                        px = add(px, dg - 8 + ((b2 >> 4) & 0x0F), dg, dg - 8 + (b2 & 0x0F));
+                    } else {
+                        run = b1 & 0x3F;
+                    }
+
+                    index[hash(px)] = px;
+                }
+
+                pixels[i] = px;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("The QOI image is damaged");
+        }
+
+        return new Carrier(size[0], size[1], pixels);
+    }
+
+    /**
+     * Write an image as QOI.  Like our PNG files the alpha channel isn't
+     * written.
+     *
+     * @param pixels the ARGB pixels of the image
+     * @param cols   the width of the image
+     * @param rows   the height of the image
+     * @param out    the stream to write to.  It isn't closed.
+     *
+     * @exception IOException
+     *                   if the write fails
+     */
+    public static void write(int[] pixels, int cols, int rows, OutputStream out)
+        throws IOException
+    {
+        BufferPool pool = BufferPool.getPool();
+        byte[] buf = pool.borrowBytes(WRITE_BUFFER);
+        try {
+            int n = 0;
+            n = putInt(buf, n, MAGIC);
+            n = putInt(buf, n, cols);
+            n = putInt(buf, n, rows);
+            buf[n++] = 3;
+            buf[n++] = 0;
+
+            int[] index = new int[64];
+            int prev = 0xFF000000;
+            int run = 0;
+            int count = cols * rows;
+            for (int i = 0; i < count; i++) {
+                if (n > buf.length - 8) {
+                    out.write(buf, 0, n);
+                    n = 0;
+                }
+
+                int px = pixels[i] | 0xFF000000;
+                if (px == prev) {
+                    if (++run == 62 || i == count - 1) {
+                        buf[n++] = (byte) (OP_RUN | (run - 1));
+                        run = 0;
+                    }
+                    continue;
+                }
+
+                if (run > 0) {
+                    buf[n++] = (byte) (OP_RUN | (run - 1));
+                    run = 0;
+                }
+
+                int h = hash(px);
+                if (index[h] == px) {
+                    buf[n++] = (byte) (OP_INDEX | h);
+                } else {
+                    index[h] = px;
+
+                    /*
+                     * The differences wrap around just like bytes do.
+                     */
+                    int dr = (byte) ((px >> 16) - (prev >> 16));
+                    int dg = (byte) ((px >> 8) - (prev >> 8));
+                    int db = (byte) (px - prev);
+                    int drg = dr - dg;
+                    int dbg = db - dg;
+                    if (dr >= -2 && dr <= 1 && dg >= -2 && dg <= 1 && db >= -2 && db <= 1) {
+                        buf[n++] = (byte) (OP_DIFF | ((dr + 2) << 4) | ((dg + 2) << 2) | (db + 2));
+                    } else if (dg >= -32 && dg <= 31 && drg >= -8 && drg <= 7 && dbg >= -8 && dbg <= 7) {
+                        buf[n++] = (byte) (OP_LUMA | (dg + 32));
+                        buf[n++] = (byte) (((drg + 8) << 4) | (dbg + 8));
+                    } else {
+                        buf[n++] = (byte) OP_RGB;
+                        buf[n++] = (byte) (px >> 16);
+                        buf[n++] = (byte) (px >> 8);
+                        buf[n++] = (byte) px;
+                    }
+                }
+
+                prev = px;
+            }
+
+            if (n > buf.length - END.length) {
+                out.write(buf, 0, n);
+                n = 0;
+            }
+            System.arraycopy(END, 0, buf, n, END.length);
+            out.write(buf, 0, n + END.length);
+        } finally {
+            pool.release(buf);
+        }
+    }
+
+    private static int hash(int px)
+    {
+        return (((px >> 16) & 0xFF) * 3 + ((px >> 8) & 0xFF) * 5 + (px & 0xFF) * 7 + ((px >>> 24) * 11)) & 63;
+    }
+
+    private static int add(int px, int dr, int dg, int db)
+    {
+        return (px & 0xFF000000) | ((((px >> 16) + dr) & 0xFF) << 16) | ((((px >> 8) + dg) & 0xFF) << 8) |
+            ((px + db) & 0xFF);
+    }
+
+    private static int putInt(byte[] b, int off, int value)
+    {
+        b[off] = (byte) (value >>> 24);
+        b[off + 1] = (byte) (value >>> 16);
+        b[off + 2] = (byte) (value >>> 8);
+        b[off + 3] = (byte) value;
+        return off + 4;
+    }
+}
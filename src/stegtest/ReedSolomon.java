@@ -0,0 +1,358 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest;
+
+/*
+ * This is a Reed-Solomon code over GF(256).  It adds parity bytes to blocks of
+ * data and can fix up to half as many damaged bytes as it added.
+ *
+ * All of the field arithmetic is done with tables.  The log and exp tables
+ * turn multiplication into addition, and since we only ever multiply by the
+ * coefficients of the generator and by the powers of alpha in the syndromes
+ * we build a 256 entry table for each of those too.  Encoding a byte and
+ * checking a byte are then just table lookups and XORs.
+ *
+ * A codeword is up to 255 bytes with the data first and the parity bytes at
+ * the end.  Shorter codewords work too.  They act like full codewords that
+ * start with zeros.
+ */
+public class ReedSolomon
+{
+    /*
+     * This is x^8 + x^4 + x^3 + x^2 + 1, the usual polynomial for GF(256).
+     */
+    private static final int PRIMITIVE = 0x11D;
+
+    public static final int MAX_LENGTH = 255;
+
+    private static final int[] EXP = new int[512];
+    private static final int[] LOG = new int[256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x > 0xFF) {
+                x ^= PRIMITIVE;
+            }
+        }
+
+        /*
+         * The table is doubled so we can add two logs without taking the
+         * remainder.
+         */
+        for (int i = 255; i < EXP.length; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+    }
+
+    private final int m_parity;
+
+    /*
+     * m_encodeTable[b][j] is b times the coefficient of x^(parity - 1 - j)
+     * in the generator.
+     */
+    private final byte[][] m_encodeTable;
+
+    /*
+     * m_syndromeTable[j][b] is b times alpha^j.
+     */
+    private final byte[][] m_syndromeTable;
+
+    /**
+     * Create a new code.
+     *
+     * @param parity the number of parity bytes in each codeword.  The code
+     *               can fix half this many damaged bytes.
+     */
+    public ReedSolomon(int parity)
+    {
+        if (parity < 2 || parity >= MAX_LENGTH) {
+            throw new IllegalArgumentException("The number of parity bytes must be between 2 and 254");
+        }
+        m_parity = parity;
+
+        /*
+         * The generator is (x - alpha^0)(x - alpha^1)...(x - alpha^(parity - 1)).
+         * We keep the highest power first and it always starts with 1.
+         */
+        int[] gen = new int[parity + 1];
+        gen[0] = 1;
+        for (int i = 0; i < parity; i++) {
+            for (int j = i + 1; j > 0; j--) {
+                gen[j] ^= mul(gen[j - 1], EXP[i]);
+            }
+        }
+
+        m_encodeTable = new byte[256][parity];
+        for (int b = 0; b < 256; b++) {
+            for (int j = 0; j < parity; j++) {
+                m_encodeTable[b][j] = (byte) mul(b, gen[j + 1]);
+            }
+        }
+
+        m_syndromeTable = new byte[parity][256];
+        for (int j = 0; j < parity; j++) {
+            for (int b = 0; b < 256; b++) {
+                m_syndromeTable[j][b] = (byte) mul(b, EXP[j]);
+            }
+        }
+    }
+
+    /**
+     * @return the number of parity bytes in each codeword
+     */
+    public int getParity()
+    {
+        return m_parity;
+    }
+
+    /**
+     * Work out the parity bytes of a codeword.
+     *
+     * @param codeword   the codeword.  The data is at the start and the
+     *                   parity bytes are written right after it.
+     * @param off        the index of the first byte of the codeword
+     * @param dataLength the number of data bytes
+     */
+    public void encode(byte[] codeword, int off, int dataLength)
+    {
+        if (dataLength + m_parity > MAX_LENGTH) {
+            throw new IllegalArgumentException("A codeword can't be longer than " + MAX_LENGTH + " bytes");
+        }
+
+        /*
+         * This is long division by the generator done as a shift register.
+         * The register is the parity bytes themselves.
+         */
+        int parityOff = off + dataLength;
+        int last = parityOff + m_parity - 1;
+        for (int i = parityOff; i <= last; i++) {
+            codeword[i] = 0;
+        }
+
+        for (int i = off; i < parityOff; i++) {
+            byte[] row = m_encodeTable[(codeword[i] ^ codeword[parityOff]) & 0xFF];
+            for (int j = 0; j < m_parity - 1; j++) {
+                codeword[parityOff + j] = (byte) (codeword[parityOff + j + 1] ^ row[j]);
+            }
+            codeword[last] = row[m_parity - 1];
+        }
+    }
+
+    /**
+     * Fix the damaged bytes of a codeword in place.
+     *
+     * @param codeword the codeword
+     * @param off      the index of the first byte of the codeword
+     * @param length   the length of the codeword including the parity bytes
+     *
+     * @return the number of bytes we fixed or -1 if there were too many to fix
+     */
+    public int decode(byte[] codeword, int off, int length)
+    {
+        int[] syndromes = new int[m_parity];
+        if (!getSyndromes(codeword, off, length, syndromes)) {
+            return 0;
+        }
+
+        /*
+         * Berlekamp-Massey finds the error locator.  Its roots are the
+         * inverses of alpha raised to the position of each damaged byte,
+         * counting back from the end of the codeword.  The locator is kept
+         * with the lowest power first.
+         */
+        int[] locator = new int[m_parity + 1];
+        int[] prev = new int[m_parity + 1];
+        int[] tmp = new int[m_parity + 1];
+        locator[0] = 1;
+        prev[0] = 1;
+        int errors = 0;
+        int shift = 1;
+        int prevDelta = 1;
+        for (int n = 0; n < m_parity; n++) {
+            int delta = syndromes[n];
+            for (int i = 1; i <= errors; i++) {
+                delta ^= mul(locator[i], syndromes[n - i]);
+            }
+
+            if (delta == 0) {
+                shift++;
+                continue;
+            }
+
+            int scale = div(delta, prevDelta);
+            if (2 * errors <= n) {
+                System.arraycopy(locator, 0, tmp, 0, locator.length);
+                for (int i = 0; i + shift <= m_parity; i++) {
+                    locator[i + shift] ^= mul(scale, prev[i]);
+                }
+                errors = n + 1 - errors;
+                System.arraycopy(tmp, 0, prev, 0, prev.length);
+                prevDelta = delta;
+                shift = 1;
+            } else {
+                for (int i = 0; i + shift <= m_parity; i++) {
+                    locator[i + shift] ^= mul(scale, prev[i]);
+                }
+                shift++;
+            }
+        }
+
+        if (2 * errors > m_parity) {
+            return -1;
+        }
+
+        /*
+         * The error evaluator is the syndromes times the locator, cut off
+         * after the parity bytes.
+         */
+        int[] evaluator = new int[m_parity];
+        for (int i = 0; i < m_parity; i++) {
+            int v = 0;
+            for (int j = 0; j <= i && j <= errors; j++) {
+                v ^= mul(locator[j], syndromes[i - j]);
+            }
+            evaluator[i] = v;
+        }
+
+        /*
+         * The Chien search tries every position in the codeword, and Forney's
+         * formula gives us the value of the error at each one we find.
+         */
+        int found = 0;
+        for (int k = 0; k < length && found < errors; k++) {
+            int inverse = EXP[(255 - k % 255) % 255];
+            if (evalLowFirst(locator, errors, inverse) != 0) {
+                continue;
+            }
+
+            int derivative = 0;
+            for (int i = 1; i <= errors; i += 2) {
+                derivative ^= mul(locator[i], pow(inverse, i - 1));
+            }
+            if (derivative == 0) {
+                return -1;
+            }
+
+            int value = mul(EXP[k % 255], div(evalLowFirst(evaluator, m_parity - 1, inverse), derivative));
+            codeword[off + length - 1 - k] ^= (byte) value;
+            found++;
+        }
+
+        if (found != errors || getSyndromes(codeword, off, length, syndromes)) {
+            /*
+             * The damage was worse than we can fix.  We already changed the
+             * codeword, but the caller can't use it anyway.
+             */
+            return -1;
+        }
+
+        return errors;
+    }
+
+    /*
+     * Work out r(alpha^j) for each of the parity bytes with Horner's method.
+     * Returns true if any of them aren't zero, which means the codeword is
+     * damaged.  This runs for every codeword we read, damaged or not, so we
+     * work out four syndromes in each pass.  Each one depends on its own last
+     * step, so doing four at once lets the processor overlap them.
+     */
+    private boolean getSyndromes(byte[] codeword, int off, int length, int[] syndromes)
+    {
+        int end = off + length;
+        int j = 0;
+        for (; j + 3 < m_parity; j += 4) {
+            byte[] t0 = m_syndromeTable[j];
+            byte[] t1 = m_syndromeTable[j + 1];
+            byte[] t2 = m_syndromeTable[j + 2];
+            byte[] t3 = m_syndromeTable[j + 3];
+            int s0 = 0;
+            int s1 = 0;
+            int s2 = 0;
+            int s3 = 0;
+            for (int i = off; i < end; i++) {
+                int b = codeword[i];
+                s0 = (t0[s0] ^ b) & 0xFF;
+                s1 = (t1[s1] ^ b) & 0xFF;
+                s2 = (t2[s2] ^ b) & 0xFF;
+                s3 = (t3[s3] ^ b) & 0xFF;
+            }
+            syndromes[j] = s0;
+            syndromes[j + 1] = s1;
+            syndromes[j + 2] = s2;
+            syndromes[j + 3] = s3;
+        }
+
+        for (; j < m_parity; j++) {
+            byte[] table = m_syndromeTable[j];
+            int s = 0;
+            for (int i = off; i < end; i++) {
+                s = (table[s] ^ codeword[i]) & 0xFF;
+            }
+            syndromes[j] = s;
+        }
+
+        for (int s : syndromes) {
+            if (s != 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static int evalLowFirst(int[] poly, int degree, int x)
+    {
+        int v = 0;
+        for (int i = degree; i >= 0; i--) {
+            v = mul(v, x) ^ poly[i];
+        }
+
+        return v;
+    }
+
+    private static int mul(int a, int b)
+    {
+        if (a == 0 || b == 0) {
+            return 0;
+        }
+
+        return EXP[LOG[a] + LOG[b]];
+    }
+
+    private static int div(int a, int b)
+    {
+        if (a == 0) {
+            return 0;
+        }
+
+        return EXP[LOG[a] + 255 - LOG[b]];
+    }
+
+    private static int pow(int a, int n)
+    {
+        if (n == 0) {
+            return 1;
+        } else if (a == 0) {
+            return 0;
+        }
+
+        return EXP[(LOG[a] * n) % 255];
+    }
+}
@@ -0,0 +1,377 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.security.*;
+
+/*
+ * This class caches the image files we write when we encode a message.
+ * Encoding the same message into the same carrier always gives the same file,
+ * so when someone asks us to do it again we can just hand back the file we
+ * wrote last time.  The output format is part of the codec parameters, so PNG,
+ * QOI, and PAM results get different keys.
+ *
+ * The files are named after a SHA-256 hash of the carrier bytes, the message
+ * bytes, and the codec parameters.  We write each file to a temporary name and
+ * rename it into place so other processes sharing the directory never see half
+ * of a file.  When the directory gets bigger than the byte limit we delete the
+ * files that were used the longest time ago.
+ *
+ * The cache is off unless the stegtest.resultCache.dir system property is set.
+ * The size limit defaults to 1GB and can be set with the
+ * stegtest.resultCache.maxBytes property.
+ */
+public class ResultCache
+{
+    private static final ResultCache CACHE;
+
+    static {
+        String dir = System.getProperty("stegtest.resultCache.dir");
+        if (dir != null) {
+            CACHE = new ResultCache(new File(dir),
+                                    Long.getLong("stegtest.resultCache.maxBytes", 1024L * 1024 * 1024).longValue());
+        } else {
+            CACHE = null;
+        }
+    }
+
+    private static final String SUFFIX = ".result";
+
+    private final File m_dir;
+    private final long m_maxBytes;
+
+    /*
+     * This is how many bytes we think are in the directory.  Other processes
+     * might be writing to it too so we check for real before we evict anything.
+     */
+    private final AtomicLong m_bytes = new AtomicLong();
+
+    private final AtomicLong m_hits = new AtomicLong();
+    private final AtomicLong m_misses = new AtomicLong();
+
+    /**
+     * Create a new cache.
+     *
+     * @param dir      the directory to keep the files in
+     * @param maxBytes the largest number of bytes to keep in the directory
+     */
+    public ResultCache(File dir, long maxBytes)
+    {
+        m_dir = dir;
+        m_maxBytes = maxBytes;
+
+        m_dir.mkdirs();
+        m_bytes.set(getDirectorySize());
+    }
+
+    /**
+     * @return the shared result cache or null if it is turned off
+     */
+    public static ResultCache getCache()
+    {
+        return CACHE;
+    }
+
+    /**
+     * Get the cache key for an encode request.
+     *
+     * @param carrier the carrier image file
+     * @param payload the bytes of the message
+     * @param params  the codec parameters
+     *
+     * @return the key
+     * @exception IOException
+     *                   if we can't read the carrier
+     */
+    public String getKey(File carrier, byte[] payload, String params)
+        throws IOException
+    {
+        MessageDigest digest = newDigest();
+
+        byte[] buf = new byte[64 * 1024];
+        FileInputStream in = new FileInputStream(carrier);
+        try {
+            int read;
+            while ((read = in.read(buf)) > 0) {
+                digest.update(buf, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+
+        return getKey(digest, payload, params);
+    }
+
+    /**
+     * Get the cache key for an encode request when we already have the
+     * carrier bytes in memory.
+     *
+     * @param carrier the bytes of the carrier image file
+     * @param payload the bytes of the message
+     * @param params  the codec parameters
+     *
+     * @return the key
+     */
+    public String getKey(byte[] carrier, byte[] payload, String params)
+    {
+        MessageDigest digest = newDigest();
+        digest.update(carrier);
+        return getKey(digest, payload, params);
+    }
+
+    private String getKey(MessageDigest digest, byte[] payload, String params)
+    {
+        /*
+         * We add the lengths so a carrier ending in the same bytes a payload
+         * starts with can't give the same hash as some other split.
+         */
+        updateLength(digest, payload.length);
+        digest.update(payload);
+
+        byte[] paramBytes;
+        try {
+            paramBytes = params.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.toString());
+        }
+        updateLength(digest, paramBytes.length);
+        digest.update(paramBytes);
+
+        StringBuffer key = new StringBuffer();
+        for (byte b : digest.digest()) {
+            key.append(Integer.toHexString((b >> 4) & 0xF));
+            key.append(Integer.toHexString(b & 0xF));
+        }
+
+        return key.toString();
+    }
+
+    /**
+     * Get the cached file for a key.
+     *
+     * @param key    the key from getKey
+     *
+     * @return the file or null if we don't have one
+     */
+    public File get(String key)
+    {
+        File f = new File(m_dir, key + SUFFIX);
+        if (!f.exists()) {
+            m_misses.incrementAndGet();
+            return null;
+        }
+
+        /*
+         * We use the modification time to keep track of which files were
+         * used most recently.
+         */
+        f.setLastModified(System.currentTimeMillis());
+        m_hits.incrementAndGet();
+        return f;
+    }
+
+    /**
+     * Copy the cached file for a key to another file.
+     *
+     * @param key    the key from getKey
+     * @param out    the file to copy to
+     *
+     * @return true if we had the file and false otherwise
+     * @exception IOException
+     *                   if the copy fails
+     */
+    public boolean copyTo(String key, File out)
+        throws IOException
+    {
+        File f = get(key);
+        if (f == null) {
+            return false;
+        }
+
+        FileInputStream in;
+        try {
+            in = new FileInputStream(f);
+        } catch (FileNotFoundException e) {
+            /*
+             * Another process evicted the file since we checked for it.
+             */
+            return false;
+        }
+
+        try {
+            FileOutputStream fout = new FileOutputStream(out);
+            try {
+                FileChannel src = in.getChannel();
+                long size = src.size();
+                long pos = 0;
+                while (pos < size) {
+                    pos += src.transferTo(pos, size - pos, fout.getChannel());
+                }
+            } finally {
+                fout.close();
+            }
+        } finally {
+            in.close();
+        }
+
+        return true;
+    }
+
+    /**
+     * Add a file to the cache.
+     *
+     * @param key    the key from getKey
+     * @param data   the array holding the image file
+     * @param length the number of bytes of the image file in the array
+     *
+     * @exception IOException
+     *                   if we can't write the file
+     */
+    public void put(String key, byte[] data, int length)
+        throws IOException
+    {
+        File f = new File(m_dir, key + SUFFIX);
+        if (f.exists()) {
+            return;
+        }
+
+        File tmp = File.createTempFile(key, ".tmp", m_dir);
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(data, 0, length);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+
+            /*
+             * If another worker wrote the same file first the rename just
+             * replaces it with the same bytes.  On some systems the rename
+             * fails instead, which is fine too.  Either way we only count the
+             * bytes if the file wasn't there already.
+             */
+            long replaced = f.length();
+            if (tmp.renameTo(f)) {
+                if (m_bytes.addAndGet(length - replaced) > m_maxBytes) {
+                    evict();
+                }
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * @return the number of requests we had a file for
+     */
+    public long getHits()
+    {
+        return m_hits.get();
+    }
+
+    /**
+     * @return the number of requests we didn't have a file for
+     */
+    public long getMisses()
+    {
+        return m_misses.get();
+    }
+
+    private synchronized void evict()
+    {
+        File[] files = m_dir.listFiles(new FilenameFilter()
+            {
+                public boolean accept(File dir, String name)
+                {
+                    return name.endsWith(SUFFIX);
+                }
+            });
+
+        if (files == null) {
+            return;
+        }
+
+        final HashMap<File, Long> modified = new HashMap<File, Long>();
+        long total = 0;
+        for (File f : files) {
+            modified.put(f, Long.valueOf(f.lastModified()));
+            total += f.length();
+        }
+
+        Arrays.sort(files, new Comparator<File>()
+            {
+                public int compare(File a, File b)
+                {
+                    return modified.get(a).compareTo(modified.get(b));
+                }
+            });
+
+        /*
+         * We delete down to 90% of the limit so we aren't evicting again on
+         * the very next put.
+         */
+        long target = m_maxBytes - m_maxBytes / 10;
+        for (int i = 0; i < files.length && total > target; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                total -= length;
+            }
+        }
+
+        m_bytes.set(total);
+    }
+
+    private long getDirectorySize()
+    {
+        long total = 0;
+        File[] files = m_dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.getName().endsWith(SUFFIX)) {
+                    total += f.length();
+                }
+            }
+        }
+
+        return total;
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            /*
+             * Every platform has SHA-256 so this should never happen.
+             */
+            throw new IllegalStateException(e.toString());
+        }
+    }
+
+    private static void updateLength(MessageDigest digest, int length)
+    {
+        digest.update((byte) (length >>> 24));
+        digest.update((byte) (length >>> 16));
+        digest.update((byte) (length >>> 8));
+        digest.update((byte) length);
+    }
+}
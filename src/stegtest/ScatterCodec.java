@@ -0,0 +1,385 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+import java.io.*;
+import java.security.*;
+
+/*
+ * This class hides a payload in pixels scattered across the whole image by a
+ * secret key.  The regular codec starts at the insertion point and moves ahead
+ * a few pixels at a time, so the changed pixels are all bunched up near the top
+ * of the image and anyone who knows the program knows where to look.
+ *
+ * Here the Nth pixel of the payload goes at position P(N) where P is a keyed
+ * permutation of the pixel indexes.  We never build a shuffled list of every
+ * pixel, which would be huge for big images.  P is a small Feistel network
+ * over the bits of the index, so we can work out any position on its own in
+ * constant time and memory.  The network works on a power of four number of
+ * indexes which can be up to four times bigger than the image.  When it gives
+ * us an index past the end of the image we just run it again until it lands
+ * inside the image.  That is called cycle walking and it keeps the result a
+ * permutation of the pixels in the image.
+ *
+ * Since each position stands on its own we can read different ranges of the
+ * payload on different threads.  Large payloads are read in parallel.
+ *
+ * The payload is stored with a nine byte header and a CRC-32 at the end:
+ *
+ *     ~~%          3 bytes
+ *     version      1 byte
+ *     length       4 bytes  the length of the payload
+ *     check        1 byte   the XOR of the first eight bytes
+ *     payload
+ *     crc          4 bytes  the CRC-32 of the payload
+ *
+ * The whole thing is padded with zeros to a multiple of three bytes so each
+ * pixel gets a full six bits.
+ */
+public class ScatterCodec
+{
+    private static final byte[] MAGIC = {'~', '~', '%'};
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 9;
+    private static final int ROUNDS = 6;
+
+    /*
+     * Payloads shorter than this many pixels are read on the calling thread.
+     * Handing them to other threads costs more than it saves.
+     */
+    private static final int PARALLEL_PIXELS = 64 * 1024;
+
+    private static ExecutorService s_pool;
+
+    private final int m_cols;
+    private final int m_rows;
+    private final long m_pixelCount;
+    private final int m_halfBits;
+    private final long m_halfMask;
+    private final long[] m_roundKeys = new long[ROUNDS];
+
+    /**
+     * Create a new codec for images of a given size.
+     *
+     * @param key    the secret key
+     * @param cols   the width of the image
+     * @param rows   the height of the image
+     */
+    public ScatterCodec(byte[] key, int cols, int rows)
+    {
+        m_cols = cols;
+        m_rows = rows;
+        m_pixelCount = (long) cols * rows;
+
+        /*
+         * The Feistel network splits the index into two halves of the same
+         * number of bits.  We need enough bits to cover every pixel.
+         */
+        int bits = 2;
+        while ((1L << bits) < m_pixelCount) {
+            bits += 2;
+        }
+        m_halfBits = bits / 2;
+        m_halfMask = (1L << m_halfBits) - 1;
+
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(key);
+        } catch (NoSuchAlgorithmException e) {
+            /*
+             * Every platform has SHA-256 so this should never happen.
+             */
+            throw new IllegalStateException(e.toString());
+        }
+
+        for (int i = 0; i < ROUNDS; i++) {
+            long k = 0;
+            for (int j = 0; j < 8; j++) {
+                k = (k << 8) | (digest[(i * 8 + j) % digest.length] & 0xFF);
+            }
+            m_roundKeys[i] = k ^ (i * 0x9E3779B97F4A7C15L);
+        }
+    }
+
+    /**
+     * Get the pixel index where the Nth pixel of the payload goes.
+     *
+     * @param n      the pixel of the payload
+     *
+     * @return the index of the pixel in the image
+     */
+    public long position(long n)
+    {
+        long x = n;
+        do {
+            x = permute(x);
+        } while (x >= m_pixelCount);
+
+        return x;
+    }
+
+    /**
+     * @return the largest payload in bytes that fits in an image of this size
+     */
+    public long getCapacity()
+    {
+        return (m_pixelCount / 4) * 3 - HEADER_LENGTH - 4;
+    }
+
+    /**
+     * Hide a payload in an image.
+     *
+     * @param pixels  the ARGB pixels of the image.  They are changed in place.
+     * @param payload the payload
+     *
+     * @exception IOException
+     *                   if the payload doesn't fit in the image
+     */
+    public void embed(int[] pixels, byte[] payload)
+        throws IOException
+    {
+        if (payload.length > getCapacity()) {
+            throw new IOException("The payload is " + payload.length + " bytes, but this image only holds " +
+                                  getCapacity() + " bytes");
+        }
+
+        int padded = ((HEADER_LENGTH + payload.length + 4 + 2) / 3) * 3;
+        byte[] bytes = new byte[padded];
+        System.arraycopy(MAGIC, 0, bytes, 0, MAGIC.length);
+        bytes[3] = (byte) VERSION;
+        putInt(bytes, 4, payload.length);
+        bytes[8] = headerCheck(bytes);
+        System.arraycopy(payload, 0, bytes, HEADER_LENGTH, payload.length);
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        putInt(bytes, HEADER_LENGTH + payload.length, (int) crc.getValue());
+
+        BufferPool pool = BufferPool.getPool();
+        byte[] twoBitData = StegCore.splitTwoBits(bytes, bytes.length);
+        try {
+            int pixelCount = (4 * bytes.length) / 3;
+            for (int n = 0, twoBitCount = 0; n < pixelCount; n++, twoBitCount += 3) {
+                int i = (int) position(n);
+                pixels[i] = (pixels[i] & ~0x030303) |
+                    (twoBitData[twoBitCount] << 16) |
+                    (twoBitData[twoBitCount + 1] << 8) |
+                    twoBitData[twoBitCount + 2];
+            }
+        } finally {
+            pool.release(twoBitData);
+        }
+    }
+
+    /**
+     * Get a payload out of an image.
+     *
+     * @param pixels the ARGB pixels of the image
+     *
+     * @return the payload or null if the image doesn't have one for this key
+     * @exception IOException
+     *                   if the payload is damaged
+     */
+    public byte[] extract(final int[] pixels)
+        throws IOException
+    {
+        BufferPool pool = BufferPool.getPool();
+
+        /*
+         * The header takes twelve pixels.  We read it first so we know how
+         * long the payload is.
+         */
+        byte[] header = new byte[HEADER_LENGTH];
+        byte[] twoBitData = pool.borrowBytes(4 * HEADER_LENGTH);
+        try {
+            extractRange(pixels, twoBitData, 0, (4 * HEADER_LENGTH) / 3);
+            StegCore.joinTwoBits(twoBitData, 4 * HEADER_LENGTH, header);
+        } finally {
+            pool.release(twoBitData);
+        }
+
+        if (header[0] != MAGIC[0] || header[1] != MAGIC[1] || header[2] != MAGIC[2] ||
+            header[8] != headerCheck(header)) {
+            /*
+             * Either there is no payload or this is the wrong key.
+             */
+            return null;
+        }
+
+        if (header[3] != VERSION) {
+            throw new IOException("This payload was written by a newer version of this program");
+        }
+
+        int length = getInt(header, 4);
+        if (length < 0 || length > getCapacity()) {
+            return null;
+        }
+
+        int padded = ((HEADER_LENGTH + length + 4 + 2) / 3) * 3;
+        final int pixelCount = (4 * padded) / 3;
+        final byte[] bits = pool.borrowBytes(4 * padded);
+        try {
+            if (pixelCount < PARALLEL_PIXELS) {
+                extractRange(pixels, bits, 0, pixelCount);
+            } else {
+                /*
+                 * Each thread reads its own range of the payload pixels into
+                 * its own part of the array.
+                 */
+                int threads = Runtime.getRuntime().availableProcessors();
+                int step = (pixelCount + threads - 1) / threads;
+                ArrayList<Future<?>> parts = new ArrayList<Future<?>>();
+                for (int t = 0; t < threads; t++) {
+                    final int first = t * step;
+                    final int last = Math.min(pixelCount, first + step);
+                    if (first >= last) {
+                        break;
+                    }
+
+                    parts.add(getPool().submit(new Runnable()
+                        {
+                            public void run()
+                            {
+                                extractRange(pixels, bits, first, last);
+                            }
+                        }));
+                }
+
+                for (Future<?> f : parts) {
+                    try {
+                        f.get();
+                    } catch (Exception e) {
+                        throw new IOException("Unable to read the payload: " + e);
+                    }
+                }
+            }
+
+            byte[] bytes = new byte[padded];
+            StegCore.joinTwoBits(bits, 4 * padded, bytes);
+
+            byte[] payload = new byte[length];
+            System.arraycopy(bytes, HEADER_LENGTH, payload, 0, length);
+
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if ((int) crc.getValue() != getInt(bytes, HEADER_LENGTH + length)) {
+                throw new IOException("The payload is damaged");
+            }
+
+            return payload;
+        } finally {
+            pool.release(bits);
+        }
+    }
+
+    /**
+     * Read the two bit pairs of a range of payload pixels.  Different ranges
+     * can be read at the same time on different threads.
+     *
+     * @param pixels     the ARGB pixels of the image
+     * @param twoBitData the array to read into.  Payload pixel N goes at 3 * N.
+     * @param first      the first payload pixel to read
+     * @param last       one past the last payload pixel to read
+     */
+    public void extractRange(int[] pixels, byte[] twoBitData, int first, int last)
+    {
+        for (int n = first, twoBitCount = 3 * first; n < last; n++) {
+            int pixel = pixels[(int) position(n)];
+            twoBitData[twoBitCount++] = (byte) ((pixel >> 16) & StegCore.LSB_MASK_READ);
+            twoBitData[twoBitCount++] = (byte) ((pixel >> 8) & StegCore.LSB_MASK_READ);
+            twoBitData[twoBitCount++] = (byte) (pixel & StegCore.LSB_MASK_READ);
+        }
+    }
+
+    public int getWidth()
+    {
+        return m_cols;
+    }
+
+    public int getHeight()
+    {
+        return m_rows;
+    }
+
+    /*
+     * This is one pass through the Feistel network.  Each round swaps the
+     * halves and mixes the round key and one half into the other.  Any round
+     * function gives a permutation, so all this one has to do is mix well.
+     */
+    private long permute(long x)
+    {
+        long left = x >>> m_halfBits;
+        long right = x & m_halfMask;
+        for (int i = 0; i < ROUNDS; i++) {
+            long next = left ^ (mix(right ^ m_roundKeys[i]) & m_halfMask);
+            left = right;
+            right = next;
+        }
+
+        return (left << m_halfBits) | right;
+    }
+
+    private static long mix(long z)
+    {
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return z ^ (z >>> 33);
+    }
+
+    private static byte headerCheck(byte[] header)
+    {
+        byte check = 0;
+        for (int i = 0; i < HEADER_LENGTH - 1; i++) {
+            check ^= header[i];
+        }
+
+        return check;
+    }
+
+    private static synchronized ExecutorService getPool()
+    {
+        if (s_pool == null) {
+            s_pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory()
+                {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread t = new Thread(r, "stegtest-scatter");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        }
+
+        return s_pool;
+    }
+
+    private static void putInt(byte[] b, int off, int value)
+    {
+        b[off] = (byte) (value >>> 24);
+        b[off + 1] = (byte) (value >>> 16);
+        b[off + 2] = (byte) (value >>> 8);
+        b[off + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] b, int off)
+    {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+}
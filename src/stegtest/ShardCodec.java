@@ -0,0 +1,523 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+import java.io.*;
+import java.security.*;
+
+/*
+ * This class hides a payload that is too big for one image across several
+ * carrier images.  The payload is split into shards and each shard is stored
+ * in its own image with a header that says which payload it belongs to and
+ * where it goes.  The images can be read back in any order and the shards are
+ * put back together by their headers.
+ *
+ * A shard header is 36 bytes:
+ *
+ *     ~~#          3 bytes  marks this as a shard instead of a message
+ *     version      1 byte
+ *     payload id   8 bytes  the same for every shard of a payload
+ *     index        4 bytes  which shard this is, starting at zero
+ *     count        4 bytes  how many shards there are
+ *     total        8 bytes  the length of the whole payload
+ *     length       4 bytes  the length of the data in this shard
+ *     crc          4 bytes  the CRC-32 of the data in this shard
+ *
+ * The shard data follows the header, padded with zeros to a multiple of three
+ * bytes.  The header and data are stored with the same two bit pairs and skip
+ * values as a regular message.  A regular message starts with ~~~ so getMessage
+ * will just say there is no message in a shard image.
+ *
+ * Unlike a regular message the payload is never cut short.  If the carriers
+ * can't hold all of it we stop with an error before we write anything.
+ */
+public class ShardCodec
+{
+    private static final byte[] MAGIC = {'~', '~', '#'};
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 36;
+
+    /*
+     * The header takes 48 pixels.  We don't know the skip values of the
+     * header until we know the length and CRC of the shard, so when we plan
+     * the shards we save room for the header skipping as far as it can.
+     */
+    private static final int HEADER_CANDIDATES = (HEADER_LENGTH / 3) * 4 * 4;
+
+    private ShardCodec()
+    {
+        /*
+         * Everything here is static so no one should create one of these.
+         */
+    }
+
+    /**
+     * Split a payload across several carrier images and write one PNG for
+     * each carrier.  The shards are embedded in parallel with one thread for
+     * each processor.
+     *
+     * @param payload  the payload to hide
+     * @param carriers the carrier images
+     * @param outDir   the directory to write the PNG files to
+     *
+     * @return the files we wrote
+     * @exception IOException
+     *                   if the payload doesn't fit or a file can't be read or written
+     */
+    public static List<File> encode(final byte[] payload, List<File> carriers, final File outDir)
+        throws IOException
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            /*
+             * First we decode all of the carriers so we know how big they are.
+             * The carrier cache keeps them so we don't decode them again when
+             * we embed.
+             */
+            ArrayList<Future<Carrier>> loads = new ArrayList<Future<Carrier>>();
+            for (final File f : carriers) {
+                loads.add(pool.submit(new Callable<Carrier>()
+                    {
+                        public Carrier call()
+                            throws IOException
+                        {
+                            Carrier carrier = CarrierCache.getCache().get(f);
+                            if (carrier == null) {
+                                throw new IOException("Unable to read the image at " + f);
+                            }
+                            return carrier;
+                        }
+                    }));
+            }
+
+            final Carrier[] loaded = new Carrier[carriers.size()];
+            for (int i = 0; i < loaded.length; i++) {
+                loaded[i] = get(loads.get(i));
+            }
+
+            /*
+             * Now we work out how much of the payload goes in each carrier.
+             */
+            final int[] offsets = new int[loaded.length + 1];
+            plan(payload, loaded, offsets);
+
+            final long id = getPayloadId(payload);
+            final int count = loaded.length;
+
+            ArrayList<Future<File>> writes = new ArrayList<Future<File>>();
+            for (int i = 0; i < count; i++) {
+                final int index = i;
+                final File carrierFile = carriers.get(i);
+                writes.add(pool.submit(new Callable<File>()
+                    {
+                        public File call()
+                            throws IOException
+                        {
+                            File out = new File(outDir, getBaseName(carrierFile) + "-" + (index + 1) + "of" + count + ".png");
+                            writeShard(loaded[index], payload, offsets[index], offsets[index + 1] - offsets[index],
+                                       id, index, count, out);
+                            return out;
+                        }
+                    }));
+            }
+
+            ArrayList<File> files = new ArrayList<File>();
+            for (Future<File> f : writes) {
+                files.add(get(f));
+            }
+
+            return files;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Put a payload back together from the images its shards were stored in.
+     * The images can be in any order.  The shards are extracted in parallel
+     * with one thread for each processor.
+     *
+     * @param images the images holding the shards
+     *
+     * @return the payload
+     * @exception IOException
+     *                   if an image can't be read, a shard is missing or
+     *                   damaged, or the shards are from different payloads
+     */
+    public static byte[] decode(List<File> images)
+        throws IOException
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            ArrayList<Future<Shard>> reads = new ArrayList<Future<Shard>>();
+            for (final File f : images) {
+                reads.add(pool.submit(new Callable<Shard>()
+                    {
+                        public Shard call()
+                            throws IOException
+                        {
+                            Carrier carrier = CarrierCache.getCache().get(f);
+                            if (carrier == null) {
+                                throw new IOException("Unable to read the image at " + f);
+                            }
+
+                            Shard shard = readShard(carrier);
+                            if (shard == null) {
+                                throw new IOException(f + " does not contain a shard");
+                            }
+
+                            return shard;
+                        }
+                    }));
+            }
+
+            ArrayList<Shard> shards = new ArrayList<Shard>();
+            for (Future<Shard> f : reads) {
+                shards.add(get(f));
+            }
+
+            return assemble(shards);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /*
+     * This method puts the shards of a payload back together.  They can be in
+     * any order but they all have to be there.
+     */
+    static byte[] assemble(List<Shard> list)
+        throws IOException
+    {
+        Shard[] shards = null;
+        byte[] payload = null;
+        for (Shard shard : list) {
+            if (shards == null) {
+                if (shard.m_total > Integer.MAX_VALUE) {
+                    throw new IOException("The payload is too large to hold in memory");
+                }
+                shards = new Shard[shard.m_count];
+                payload = new byte[(int) shard.m_total];
+            }
+
+            if (shard.m_count != shards.length || shard.m_index >= shards.length ||
+                shard.m_total != payload.length) {
+                throw new IOException("The images hold shards of different payloads");
+            }
+
+            shards[shard.m_index] = shard;
+        }
+
+        if (shards == null) {
+            throw new IOException("There are no images to decode");
+        }
+
+        long id = 0;
+        int offset = 0;
+        for (int i = 0; i < shards.length; i++) {
+            if (shards[i] == null) {
+                throw new IOException("Shard " + (i + 1) + " of " + shards.length + " is missing");
+            }
+
+            if (i == 0) {
+                id = shards[i].m_id;
+            } else if (shards[i].m_id != id) {
+                throw new IOException("The images hold shards of different payloads");
+            }
+
+            if (offset + shards[i].m_data.length > payload.length) {
+                throw new IOException("The shards are longer than the payload");
+            }
+
+            System.arraycopy(shards[i].m_data, 0, payload, offset, shards[i].m_data.length);
+            offset += shards[i].m_data.length;
+        }
+
+        if (offset != payload.length) {
+            throw new IOException("The shards are shorter than the payload");
+        }
+
+        return payload;
+    }
+
+    /*
+     * This method works out where each shard starts.  We try to give each
+     * carrier a share of the payload that matches its share of the capacity
+     * so the images all look about the same and take about as long to embed.
+     * If a carrier can't hold its share because of the skip values the rest
+     * goes to the carriers after it.
+     */
+    static void plan(byte[] payload, Carrier[] carriers, int[] offsets)
+        throws IOException
+    {
+        long[] budgets = new long[carriers.length];
+        long remainingBudget = 0;
+        for (int i = 0; i < carriers.length; i++) {
+            budgets[i] = Math.max(StegCore.countCandidates(carriers[i].getWidth(), carriers[i].getHeight()) -
+                                  HEADER_CANDIDATES, 0);
+            remainingBudget += budgets[i];
+        }
+
+        int offset = 0;
+        for (int i = 0; i < carriers.length; i++) {
+            offsets[i] = offset;
+
+            int remaining = payload.length - offset;
+            int target = remainingBudget == 0 ? remaining :
+                (int) Math.min(remaining, (remaining * (double) budgets[i] + remainingBudget - 1) / remainingBudget);
+
+            /*
+             * Rounding up to a multiple of three makes sure each shard but the
+             * last fills whole pixels so the shards line up with the budgets.
+             */
+            target = Math.min(remaining, ((target + 2) / 3) * 3);
+
+            offset += Math.min(target, StegCore.bytesThatFit(payload, offset, target, budgets[i]));
+            remainingBudget -= budgets[i];
+        }
+
+        offsets[carriers.length] = offset;
+
+        if (offset < payload.length) {
+            throw new IOException("The payload is " + payload.length + " bytes, but these carriers only hold " +
+                                  offset + " bytes of it.  Add more carrier images.");
+        }
+    }
+
+    private static void writeShard(Carrier carrier, byte[] payload, int off, int len, long id,
+                                   int index, int count, File out)
+        throws IOException
+    {
+        int[] pixels = embedShard(carrier, payload, off, len, id, index, count);
+        try {
+            FileOutputStream fout = new FileOutputStream(out);
+            try {
+                StegCore.writePng(pixels, carrier.getWidth(), carrier.getHeight(), fout);
+            } finally {
+                fout.close();
+            }
+        } finally {
+            BufferPool.getPool().release(pixels);
+        }
+    }
+
+    /*
+     * This method hides one shard in a copy of the carrier's pixels.  The
+     * pixels come from the buffer pool so the caller has to give them back.
+     */
+    static int[] embedShard(Carrier carrier, byte[] payload, int off, int len, long id,
+                            int index, int count)
+        throws IOException
+    {
+        CRC32 crc = new CRC32();
+        crc.update(payload, off, len);
+
+        int padded = ((HEADER_LENGTH + len + 2) / 3) * 3;
+        byte[] bytes = new byte[padded];
+        System.arraycopy(MAGIC, 0, bytes, 0, MAGIC.length);
+        bytes[3] = (byte) VERSION;
+        putLong(bytes, 4, id);
+        putInt(bytes, 12, index);
+        putInt(bytes, 16, count);
+        putLong(bytes, 20, payload.length);
+        putInt(bytes, 28, len);
+        putInt(bytes, 32, (int) crc.getValue());
+        System.arraycopy(payload, off, bytes, HEADER_LENGTH, len);
+
+        BufferPool pool = BufferPool.getPool();
+        int[] pixels = pool.borrowInts(carrier.getPixels().length);
+        System.arraycopy(carrier.getPixels(), 0, pixels, 0, pixels.length);
+
+        byte[] twoBitData = StegCore.splitTwoBits(bytes, bytes.length);
+        try {
+            int written = StegCore.embedPairs(pixels, carrier.getWidth(), carrier.getHeight(), twoBitData, 4 * bytes.length);
+            if (written < 4 * bytes.length) {
+                /*
+                 * The plan should make sure this never happens, but we never
+                 * want to write a shard that's cut short.
+                 */
+                pool.release(pixels);
+                throw new IOException("Shard " + (index + 1) + " does not fit in its carrier");
+            }
+
+            return pixels;
+        } finally {
+            pool.release(twoBitData);
+        }
+    }
+
+    static Shard readShard(Carrier carrier)
+        throws IOException
+    {
+        int cols = carrier.getWidth();
+        int rows = carrier.getHeight();
+        BufferPool pool = BufferPool.getPool();
+
+        /*
+         * First we read just the header so we know how much more to read.
+         */
+        byte[] header = new byte[HEADER_LENGTH];
+        byte[] twoBitData = pool.borrowBytes(4 * HEADER_LENGTH);
+        try {
+            if (StegCore.extractPairs(carrier.getPixels(), cols, rows, twoBitData, 4 * HEADER_LENGTH) <
+                4 * HEADER_LENGTH) {
+                return null;
+            }
+            StegCore.joinTwoBits(twoBitData, 4 * HEADER_LENGTH, header);
+        } finally {
+            pool.release(twoBitData);
+        }
+
+        if (header[0] != MAGIC[0] || header[1] != MAGIC[1] || header[2] != MAGIC[2]) {
+            return null;
+        }
+
+        if (header[3] != VERSION) {
+            throw new IOException("This shard was written by a newer version of this program");
+        }
+
+        Shard shard = new Shard();
+        shard.m_id = getLong(header, 4);
+        shard.m_index = getInt(header, 12);
+        shard.m_count = getInt(header, 16);
+        shard.m_total = getLong(header, 20);
+        int len = getInt(header, 28);
+        int crcValue = getInt(header, 32);
+
+        if (shard.m_index < 0 || shard.m_count <= 0 || shard.m_index >= shard.m_count ||
+            len < 0 || len > shard.m_total) {
+            throw new IOException("The shard header is damaged");
+        }
+
+        /*
+         * The header isn't covered by the CRC, so we make sure the length
+         * could really fit in this image before we allocate anything for it.
+         * At best every four candidate pixels hold three bytes.
+         */
+        if (HEADER_LENGTH + (long) len > (StegCore.countCandidates(cols, rows) / 4) * 3) {
+            throw new IOException("The shard header is damaged");
+        }
+
+        /*
+         * Now we read the header again along with the data.  Reading the
+         * header again is cheaper than keeping track of where we stopped.
+         */
+        int padded = ((HEADER_LENGTH + len + 2) / 3) * 3;
+        byte[] bytes = new byte[padded];
+        twoBitData = pool.borrowBytes(4 * padded);
+        try {
+            if (StegCore.extractPairs(carrier.getPixels(), cols, rows, twoBitData, 4 * padded) < 4 * padded) {
+                throw new IOException("The shard is longer than the image");
+            }
+            StegCore.joinTwoBits(twoBitData, 4 * padded, bytes);
+        } finally {
+            pool.release(twoBitData);
+        }
+
+        shard.m_data = new byte[len];
+        System.arraycopy(bytes, HEADER_LENGTH, shard.m_data, 0, len);
+
+        CRC32 crc = new CRC32();
+        crc.update(shard.m_data);
+        if ((int) crc.getValue() != crcValue) {
+            throw new IOException("Shard " + (shard.m_index + 1) + " of " + shard.m_count + " is damaged");
+        }
+
+        return shard;
+    }
+
+    /*
+     * The payload id is the start of a hash of the payload so the shards of
+     * the same payload always get the same id.
+     */
+    static long getPayloadId(byte[] payload)
+    {
+        try {
+            return getLong(MessageDigest.getInstance("SHA-256").digest(payload), 0);
+        } catch (NoSuchAlgorithmException e) {
+            /*
+             * Every platform has SHA-256 so this should never happen.
+             */
+            throw new IllegalStateException(e.toString());
+        }
+    }
+
+    private static String getBaseName(File f)
+    {
+        String name = f.getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    /*
+     * This method waits for a task and turns any error it threw back into
+     * an IOException.
+     */
+    static <T> T get(Future<T> future)
+        throws IOException
+    {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for the shards");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(String.valueOf(e.getCause()));
+        }
+    }
+
+    private static void putInt(byte[] b, int off, int value)
+    {
+        b[off] = (byte) (value >>> 24);
+        b[off + 1] = (byte) (value >>> 16);
+        b[off + 2] = (byte) (value >>> 8);
+        b[off + 3] = (byte) value;
+    }
+
+    private static void putLong(byte[] b, int off, long value)
+    {
+        putInt(b, off, (int) (value >>> 32));
+        putInt(b, off + 4, (int) value);
+    }
+
+    private static int getInt(byte[] b, int off)
+    {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+
+    private static long getLong(byte[] b, int off)
+    {
+        return ((long) getInt(b, off) << 32) | (getInt(b, off + 4) & 0xFFFFFFFFL);
+    }
+
+    /*
+     * This is one shard we read out of an image.
+     */
+    static class Shard
+    {
+        private long m_id;
+        private int m_index;
+        private int m_count;
+        private long m_total;
+        private byte[] m_data;
+    }
+}
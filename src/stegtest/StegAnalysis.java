@@ -0,0 +1,445 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ * This class scores how easy it would be to tell an image has a hidden
+ * message in it.  It runs the standard statistical attacks on least
+ * significant bit steganography:
+ *
+ *     Chi-square   Hiding random bits in the LSBs makes each pair of values
+ *                  2k and 2k+1 show up about equally often.  The chi-square
+ *                  test gives the probability that the pairs were evened out
+ *                  like that on purpose.
+ *
+ *     RS analysis  Flipping the LSBs of a group of neighboring pixels usually
+ *                  makes the group noisier.  Hidden data changes how often
+ *                  that happens in a way that lets us estimate how many of
+ *                  the pixels were changed.
+ *
+ *     Histograms   How often each value of the two least significant bits
+ *                  shows up in each color.
+ *
+ * Everything is worked out in one pass over the pixels.  The rows are split
+ * between one thread for each processor and each thread counts into its own
+ * histograms.  We add the histograms together at the end, so the threads
+ * never have to wait on each other.
+ */
+public class StegAnalysis
+{
+    private static final String[] CHANNELS = {"red", "green", "blue"};
+
+    /*
+     * RS analysis looks at groups of four pixels side by side and flips the
+     * middle two with this mask.
+     */
+    private static final int GROUP = 4;
+    private static final int[] MASK = {0, 1, 1, 0};
+
+    private static ExecutorService s_pool;
+
+    private StegAnalysis()
+    {
+        /*
+         * Everything here is static so no one should create one of these.
+         */
+    }
+
+    /**
+     * Analyze an image.
+     *
+     * @param pixels the ARGB pixels of the image
+     * @param cols   the width of the image
+     * @param rows   the height of the image
+     *
+     * @return the results
+     */
+    public static Report analyze(final int[] pixels, final int cols, final int rows)
+    {
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), rows);
+        if (threads <= 1) {
+            return new Report(count(pixels, cols, 0, rows), cols, rows);
+        }
+
+        int step = (rows + threads - 1) / threads;
+        ArrayList<Future<Counts>> parts = new ArrayList<Future<Counts>>();
+        for (int t = 0; t < threads; t++) {
+            final int first = t * step;
+            final int last = Math.min(rows, first + step);
+            if (first >= last) {
+                break;
+            }
+
+            parts.add(getPool().submit(new Callable<Counts>()
+                {
+                    public Counts call()
+                    {
+                        return count(pixels, cols, first, last);
+                    }
+                }));
+        }
+
+        Counts total = new Counts();
+        for (Future<Counts> f : parts) {
+            try {
+                total.add(f.get());
+            } catch (Exception e) {
+                throw new IllegalStateException("Unable to analyze the image: " + e);
+            }
+        }
+
+        return new Report(total, cols, rows);
+    }
+
+    /*
+     * This is the part of the pass each thread does.  It counts the rows from
+     * first up to but not including last.
+     */
+    private static Counts count(int[] pixels, int cols, int first, int last)
+    {
+        Counts c = new Counts();
+        int[] group = new int[GROUP];
+
+        for (int row = first; row < last; row++) {
+            int rowStart = row * cols;
+            for (int ch = 0; ch < 3; ch++) {
+                int shift = 16 - 8 * ch;
+                long[] hist = c.m_hist[ch];
+
+                for (int col = 0; col < cols; col++) {
+                    hist[(pixels[rowStart + col] >> shift) & 0xFF]++;
+                }
+
+                /*
+                 * Now the RS groups.  Any pixels left over at the end of the
+                 * row that don't make a whole group are skipped.
+                 */
+                for (int col = 0; col + GROUP <= cols; col += GROUP) {
+                    for (int i = 0; i < GROUP; i++) {
+                        group[i] = (pixels[rowStart + col + i] >> shift) & 0xFF;
+                    }
+
+                    classify(group, false, c.m_rs[ch], 0);
+                    classify(group, true, c.m_rs[ch], 4);
+                }
+            }
+        }
+
+        return c;
+    }
+
+    /*
+     * This method works out if a group is regular or singular under the mask
+     * and the negative mask.  When flipped is true we first flip the LSB of
+     * every value in the group, which is the second half of RS analysis.
+     * The counts go in rs[offset] through rs[offset + 3] in the order R(M),
+     * S(M), R(-M), S(-M).
+     */
+    private static void classify(int[] group, boolean flipped, long[] rs, int offset)
+    {
+        int f0 = 0;
+        int fm = 0;
+        int fn = 0;
+
+        int prev = 0;
+        int prevM = 0;
+        int prevN = 0;
+        for (int i = 0; i < GROUP; i++) {
+            int x = flipped ? group[i] ^ 1 : group[i];
+            int xm = MASK[i] == 1 ? x ^ 1 : x;
+            int xn = MASK[i] == 1 ? ((x + 1) ^ 1) - 1 : x;
+
+            if (i > 0) {
+                f0 += Math.abs(x - prev);
+                fm += Math.abs(xm - prevM);
+                fn += Math.abs(xn - prevN);
+            }
+
+            prev = x;
+            prevM = xm;
+            prevN = xn;
+        }
+
+        if (fm > f0) {
+            rs[offset]++;
+        } else if (fm < f0) {
+            rs[offset + 1]++;
+        }
+
+        if (fn > f0) {
+            rs[offset + 2]++;
+        } else if (fn < f0) {
+            rs[offset + 3]++;
+        }
+    }
+
+    private static synchronized ExecutorService getPool()
+    {
+        if (s_pool == null) {
+            s_pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory()
+                {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread t = new Thread(r, "stegtest-analysis");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        }
+
+        return s_pool;
+    }
+
+    /*
+     * These are the counts one thread collects.
+     */
+    private static class Counts
+    {
+        private final long[][] m_hist = new long[3][256];
+        private final long[][] m_rs = new long[3][8];
+
+        private void add(Counts c)
+        {
+            for (int ch = 0; ch < 3; ch++) {
+                for (int i = 0; i < 256; i++) {
+                    m_hist[ch][i] += c.m_hist[ch][i];
+                }
+                for (int i = 0; i < 8; i++) {
+                    m_rs[ch][i] += c.m_rs[ch][i];
+                }
+            }
+        }
+    }
+
+    /*
+     * These are the results of the analysis.
+     */
+    public static class Report
+    {
+        private final int m_cols;
+        private final int m_rows;
+        private final long[][] m_lsbHist = new long[3][4];
+        private final double[] m_chiSquare = new double[3];
+        private final double[] m_chiProbability = new double[3];
+        private final double[] m_rsEstimate = new double[3];
+
+        private Report(Counts c, int cols, int rows)
+        {
+            m_cols = cols;
+            m_rows = rows;
+
+            for (int ch = 0; ch < 3; ch++) {
+                long[] hist = c.m_hist[ch];
+                for (int i = 0; i < 256; i++) {
+                    m_lsbHist[ch][i & StegCore.LSB_MASK_READ] += hist[i];
+                }
+
+                /*
+                 * The chi-square test compares each value 2k with the
+                 * average of 2k and 2k+1.  Pairs that hardly show up don't
+                 * tell us anything so we leave them out.
+                 */
+                double chi = 0;
+                int categories = 0;
+                for (int k = 0; k < 128; k++) {
+                    double expected = (hist[2 * k] + hist[2 * k + 1]) / 2.0;
+                    if (expected > 4) {
+                        double d = hist[2 * k] - expected;
+                        chi += d * d / expected;
+                        categories++;
+                    }
+                }
+
+                m_chiSquare[ch] = chi;
+                m_chiProbability[ch] = categories > 1 ? upperGamma((categories - 1) / 2.0, chi / 2.0) : 0;
+                m_rsEstimate[ch] = estimate(c.m_rs[ch]);
+            }
+        }
+
+        /*
+         * This method solves the RS equation for the fraction of pixels
+         * with hidden data in them.  See Fridrich, Goljan, and Du, "Reliable
+         * Detection of LSB Steganography in Color and Grayscale Images".
+         */
+        private static double estimate(long[] rs)
+        {
+            double d0 = rs[0] - rs[1];
+            double dn0 = rs[2] - rs[3];
+            double d1 = rs[4] - rs[5];
+            double dn1 = rs[6] - rs[7];
+
+            double a = 2 * (d1 + d0);
+            double b = dn0 - dn1 - d1 - 3 * d0;
+            double c = d0 - dn0;
+
+            double x;
+            if (Math.abs(a) < 1e-9) {
+                if (Math.abs(b) < 1e-9) {
+                    return 0;
+                }
+                x = -c / b;
+            } else {
+                double disc = b * b - 4 * a * c;
+                if (disc < 0) {
+                    return 0;
+                }
+
+                double r1 = (-b + Math.sqrt(disc)) / (2 * a);
+                double r2 = (-b - Math.sqrt(disc)) / (2 * a);
+                x = Math.abs(r1) < Math.abs(r2) ? r1 : r2;
+            }
+
+            double p = x / (x - 0.5);
+            return Math.max(0, Math.min(1, p));
+        }
+
+        /**
+         * Get the overall score.  Zero means we see no sign of hidden data
+         * and one means we're sure there is some.  It is the largest of the
+         * chi-square probabilities and RS estimates.
+         *
+         * @return the score
+         */
+        public double getScore()
+        {
+            double score = 0;
+            for (int ch = 0; ch < 3; ch++) {
+                score = Math.max(score, Math.max(m_chiProbability[ch], m_rsEstimate[ch]));
+            }
+
+            return score;
+        }
+
+        /**
+         * @param channel 0 for red, 1 for green, and 2 for blue
+         *
+         * @return the chi-square probability that the channel has hidden data
+         */
+        public double getChiSquareProbability(int channel)
+        {
+            return m_chiProbability[channel];
+        }
+
+        /**
+         * @param channel 0 for red, 1 for green, and 2 for blue
+         *
+         * @return the RS estimate of the fraction of pixels that were changed
+         */
+        public double getRsEstimate(int channel)
+        {
+            return m_rsEstimate[channel];
+        }
+
+        /**
+         * @param channel 0 for red, 1 for green, and 2 for blue
+         *
+         * @return how many times each value of the two least significant bits showed up
+         */
+        public long[] getLsbHistogram(int channel)
+        {
+            return m_lsbHist[channel].clone();
+        }
+
+        public String toString()
+        {
+            StringBuffer sb = new StringBuffer();
+            sb.append(String.format("Image %dx%d, detectability score %.3f%n", m_cols, m_rows, getScore()));
+            sb.append(String.format("%-6s %12s %9s %8s %10s %10s %10s %10s%n",
+                                    "", "chi-square", "p(hidden)", "RS est", "LSB 00", "LSB 01", "LSB 10", "LSB 11"));
+            for (int ch = 0; ch < 3; ch++) {
+                sb.append(String.format("%-6s %12.1f %9.3f %8.3f %10d %10d %10d %10d%n",
+                                        CHANNELS[ch], m_chiSquare[ch], m_chiProbability[ch], m_rsEstimate[ch],
+                                        m_lsbHist[ch][0], m_lsbHist[ch][1], m_lsbHist[ch][2], m_lsbHist[ch][3]));
+            }
+
+            return sb.toString();
+        }
+    }
+
+    /*
+     * This is the regularized upper incomplete gamma function Q(a, x), which
+     * is one minus the chi-square CDF with 2a degrees of freedom at 2x.  We
+     * use the series for small x and the continued fraction for large x like
+     * everyone else does.
+     */
+    private static double upperGamma(double a, double x)
+    {
+        if (x <= 0) {
+            return 1;
+        }
+
+        double lnPrefix = -x + a * Math.log(x) - logGamma(a);
+
+        if (x < a + 1) {
+            double sum = 1 / a;
+            double term = sum;
+            for (int n = 1; n < 1000; n++) {
+                term *= x / (a + n);
+                sum += term;
+                if (Math.abs(term) < Math.abs(sum) * 1e-14) {
+                    break;
+                }
+            }
+            return Math.max(0, 1 - sum * Math.exp(lnPrefix));
+        }
+
+        double b = x + 1 - a;
+        double c = 1 / 1e-300;
+        double d = 1 / b;
+        double h = d;
+        for (int i = 1; i < 1000; i++) {
+            double an = -i * (i - a);
+            b += 2;
+            d = an * d + b;
+            if (Math.abs(d) < 1e-300) {
+                d = 1e-300;
+            }
+            c = b + an / c;
+            if (Math.abs(c) < 1e-300) {
+                c = 1e-300;
+            }
+            d = 1 / d;
+            double delta = d * c;
+            h *= delta;
+            if (Math.abs(delta - 1) < 1e-14) {
+                break;
+            }
+        }
+
+        return Math.min(1, Math.exp(lnPrefix) * h);
+    }
+
+    /*
+     * This is the Lanczos approximation of ln(gamma(x)).
+     */
+    private static double logGamma(double x)
+    {
+        double[] coef = {76.18009172947146, -86.50532032941677, 24.01409824083091,
+                         -1.231739572450155, 0.1208650973866179e-2, -0.5395239384953e-5};
+        double y = x;
+        double tmp = x + 5.5;
+        tmp -= (x + 0.5) * Math.log(tmp);
+        double ser = 1.000000000190015;
+        for (double c : coef) {
+            ser += c / ++y;
+        }
+
+        return -tmp + Math.log(2.5066282746310005 * ser / x);
+    }
+}
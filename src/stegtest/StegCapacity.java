@@ -0,0 +1,241 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest;
+
+import java.io.*;
+
+/*
+ * This class works out how much fits in an image without decoding it.  The
+ * codec only looks at the width and height of the image to decide which
+ * pixels it can use, and the skip values come from the payload itself, so we
+ * can tell exactly which pixels a payload will touch before we ever read a
+ * pixel.  The width and height come from the image header which ImageIO reads
+ * without decoding the rest of the file.
+ *
+ * A message is stored as ~~~, the message, some ! padding, and a ! on the
+ * end.  Every three bytes take four pixels, and after each pixel we skip as
+ * many candidate pixels as the value of its blue pair, so a payload full of
+ * large skip values takes up to four times as much room as one without.
+ */
+public class StegCapacity
+{
+    private StegCapacity()
+    {
+        /*
+         * Everything here is static so no one should create one of these.
+         */
+    }
+
+    /**
+     * Read the width and height of an image from its header.
+     *
+     * @param f      the image file
+     *
+     * @return the width and the height or null if this isn't an image we can read
+     * @exception IOException
+     *                   if the file can't be read
+     */
+    public static int[] readSize(File f)
+        throws IOException
+    {
+        return ImageInput.readSize(f);
+    }
+
+    /**
+     * @param cols   the width of the image
+     * @param rows   the height of the image
+     *
+     * @return the number of pixels the codec is allowed to change
+     */
+    public static long getCandidates(int cols, int rows)
+    {
+        return StegCore.countCandidates(cols, rows);
+    }
+
+    /**
+     * Get the length of the longest message that could fit.  That only
+     * happens if none of its pixels skip ahead.
+     *
+     * @param cols   the width of the image
+     * @param rows   the height of the image
+     *
+     * @return the length in bytes
+     */
+    public static long getMaxMessageLength(int cols, int rows)
+    {
+        return Math.max((getCandidates(cols, rows) / 4) * 3 - 4, 0);
+    }
+
+    /**
+     * Get the length of the longest message that always fits, even if every
+     * pixel skips as far as it can.
+     *
+     * @param cols   the width of the image
+     * @param rows   the height of the image
+     *
+     * @return the length in bytes
+     */
+    public static long getSafeMessageLength(int cols, int rows)
+    {
+        return Math.max((getCandidates(cols, rows) / 16) * 3 - 4, 0);
+    }
+
+    /**
+     * Check if a message fits in an image.
+     *
+     * @param cols   the width of the image
+     * @param rows   the height of the image
+     * @param msg    the message
+     *
+     * @return where the message would go
+     */
+    public static Fit checkMessage(int cols, int rows, String msg)
+    {
+        byte[] bytes = StegCore.frameMessage(msg);
+        return check(cols, rows, bytes, bytes.length);
+    }
+
+    /**
+     * Check if the bytes we store in an image fit.
+     *
+     * @param cols   the width of the image
+     * @param rows   the height of the image
+     * @param bytes  the bytes with any header and padding.  The length must be
+     *               a multiple of three.
+     * @param length the number of bytes
+     *
+     * @return where the bytes would go
+     */
+    static Fit check(int cols, int rows, byte[] bytes, int length)
+    {
+        Fit fit = new Fit();
+        fit.m_cols = cols;
+        fit.m_rows = rows;
+        fit.m_candidates = getCandidates(cols, rows);
+        fit.m_pixelsTouched = (4L * length) / 3;
+
+        /*
+         * This is the same walk embedPairs does, except we only count.  The
+         * skip value of each pixel is the last of its three pairs.
+         */
+        long position = 0;
+        long pixels = 0;
+        for (int i = 0; i < length; i += 3) {
+            int b0 = bytes[i] & 0xFF;
+            int b1 = bytes[i + 1] & 0xFF;
+            int b2 = bytes[i + 2] & 0xFF;
+            int[] skips = {(b0 >> 4) & StegCore.LSB_MASK_READ, (b1 >> 2) & StegCore.LSB_MASK_READ,
+                           b2 & StegCore.LSB_MASK_READ, (b2 >> 6) & StegCore.LSB_MASK_READ};
+            for (int skip : skips) {
+                if (position < fit.m_candidates) {
+                    pixels++;
+                }
+                fit.m_lastCandidate = position;
+                position += 1 + skip;
+            }
+        }
+
+        fit.m_candidatesNeeded = fit.m_lastCandidate + 1;
+        fit.m_pixelsThatFit = pixels;
+        return fit;
+    }
+
+    /*
+     * This is where a payload would go in an image.
+     */
+    public static class Fit
+    {
+        private int m_cols;
+        private int m_rows;
+        private long m_candidates;
+        private long m_candidatesNeeded;
+        private long m_lastCandidate;
+        private long m_pixelsTouched;
+        private long m_pixelsThatFit;
+
+        /**
+         * @return true if the whole payload fits
+         */
+        public boolean fits()
+        {
+            return m_candidatesNeeded <= m_candidates;
+        }
+
+        /**
+         * @return the number of pixels the payload changes
+         */
+        public long getPixelsTouched()
+        {
+            return m_pixelsTouched;
+        }
+
+        /**
+         * @return the number of candidate pixels from the first changed
+         *         pixel to the last, including the ones we skip over
+         */
+        public long getCandidatesNeeded()
+        {
+            return m_candidatesNeeded;
+        }
+
+        /**
+         * @return the number of pixels the codec is allowed to change
+         */
+        public long getCandidates()
+        {
+            return m_candidates;
+        }
+
+        /**
+         * @return the number of payload pixels that fit.  If the payload
+         *         doesn't fit the rest are cut off.
+         */
+        public long getPixelsThatFit()
+        {
+            return m_pixelsThatFit;
+        }
+
+        /**
+         * @return the row of the last pixel the payload changes, or the last
+         *         row of the image if it doesn't fit
+         */
+        public int getLastRow()
+        {
+            if (!fits()) {
+                return m_rows - 1;
+            }
+
+            long remaining = m_lastCandidate;
+            for (int row = 1; row < m_rows; row++) {
+                int first = StegCore.INSERTIONPOINT / row + 1;
+                if (first < m_cols) {
+                    if (remaining < m_cols - first) {
+                        return row;
+                    }
+                    remaining -= m_cols - first;
+                }
+            }
+
+            return m_rows - 1;
+        }
+
+        public String toString()
+        {
+            return (fits() ? "fits" : "does not fit") + ": " + m_pixelsTouched + " pixels touched, " +
+                m_candidatesNeeded + " of " + m_candidates + " candidate pixels used, last row " + getLastRow();
+        }
+    }
+}
@@ -0,0 +1,496 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest;
+
+import java.util.*;
+
+import java.io.*;
+
+/*
+ * This is the command line version of the program.  It runs the same codec as
+ * the GUI without ever opening a window so it can be used from scripts and
+ * other programs.
+ */
+public class StegCli
+{
+    private static final String[] COMMANDS = {
+        "encode", "decode", "batch", "scatter-encode", "scatter-decode", "secure-encode", "secure-decode", "fec-encode", "fec-decode",
+        "anim-encode", "anim-decode",
+        "analyze", "shard-encode", "shard-decode", "capacity",
+        "queue-add", "queue-work", "queue-status", "catalog-update", "catalog-best",
+        "watch", "wav-encode", "wav-decode", "index-update", "index-search"
+    };
+
+    public static void main(String args[])
+    {
+        /*
+         * We never open a window so we tell AWT not to look for a display.
+         * Without this drawing into an image can load the whole windowing
+         * toolkit, which takes longer than decoding a small image.
+         */
+        if (System.getProperty("java.awt.headless") == null) {
+            System.setProperty("java.awt.headless", "true");
+        }
+
+        if (args.length == 0) {
+            usage();
+            System.exit(1);
+        }
+
+        try {
+            System.exit(run(args));
+        } catch (NumberFormatException e) {
+            /*
+             * Somebody typed something that isn't a number where we wanted
+             * one, like a thread count.
+             */
+            System.err.println("Error: " + e.getMessage());
+            usage();
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Run a command.
+     *
+     * @param args   the command and its arguments
+     *
+     * @return the exit code
+     * @exception IOException
+     *                   if any of the files can't be read or written
+     */
+    public static int run(String args[])
+        throws IOException
+    {
+        String cmd = args[0];
+
+        if (cmd.equals("encode") && args.length == 4) {
+            StegCore.encodeFile(new File(args[1]), args[3], new File(args[2]));
+            return 0;
+        } else if (cmd.equals("decode") && args.length == 2) {
+            Carrier carrier = load(new File(args[1]));
+            String message = StegCore.decode(carrier);
+            if (message == null) {
+                System.err.println("This image did not contain an encoded message.");
+                return 1;
+            }
+
+            System.out.println(message);
+            return 0;
+        } else if (cmd.equals("batch") && (args.length == 2 || args.length == 6)) {
+            return batch(args);
+        } else if (cmd.equals("scatter-encode") && args.length == 5) {
+            Carrier carrier = load(new File(args[1]));
+            ScatterCodec codec = new ScatterCodec(args[3].getBytes("UTF-8"), carrier.getWidth(), carrier.getHeight());
+
+            int[] pixels = new int[carrier.getPixels().length];
+            System.arraycopy(carrier.getPixels(), 0, pixels, 0, pixels.length);
+            codec.embed(pixels, args[4].getBytes("ISO-8859-1"));
+
+            FileOutputStream out = new FileOutputStream(args[2]);
+            try {
+                StegCore.writeImage(pixels, carrier.getWidth(), carrier.getHeight(),
+                                    StegCore.getImageFormat(new File(args[2])), out);
+            } finally {
+                out.close();
+            }
+            return 0;
+        } else if (cmd.equals("scatter-decode") && args.length == 3) {
+            Carrier carrier = load(new File(args[1]));
+            ScatterCodec codec = new ScatterCodec(args[2].getBytes("UTF-8"), carrier.getWidth(), carrier.getHeight());
+
+            byte[] payload = codec.extract(carrier.getPixels());
+            if (payload == null) {
+                System.err.println("This image did not contain a message for this key.");
+                return 1;
+            }
+
+            System.out.println(new String(payload, "ISO-8859-1"));
+            return 0;
+        } else if (cmd.equals("secure-encode") && args.length == 5) {
+            Carrier carrier = load(new File(args[1]));
+            CipherCodec codec = new CipherCodec(args[3].toCharArray());
+
+            int[] pixels = new int[carrier.getPixels().length];
+            System.arraycopy(carrier.getPixels(), 0, pixels, 0, pixels.length);
+
+            File payload = new File(args[4]);
+            InputStream in = new BufferedInputStream(new FileInputStream(payload));
+            try {
+                codec.embed(pixels, in, payload.length());
+            } finally {
+                in.close();
+            }
+
+            FileOutputStream out = new FileOutputStream(args[2]);
+            try {
+                StegCore.writeImage(pixels, carrier.getWidth(), carrier.getHeight(),
+                                    StegCore.getImageFormat(new File(args[2])), out);
+            } finally {
+                out.close();
+            }
+            return 0;
+        } else if (cmd.equals("secure-decode") && args.length == 4) {
+            Carrier carrier = load(new File(args[1]));
+            CipherCodec codec = new CipherCodec(args[2].toCharArray());
+
+            File payload = new File(args[3]);
+            boolean found;
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(payload));
+            try {
+                found = codec.extract(carrier.getPixels(), out);
+            } catch (IOException e) {
+                /*
+                 * Some of the payload might already be written, but none of
+                 * it can be trusted.
+                 */
+                out.close();
+                payload.delete();
+                throw e;
+            }
+            out.close();
+
+            if (!found) {
+                payload.delete();
+                System.err.println("This image did not contain an encrypted payload.");
+                return 1;
+            }
+            return 0;
+        } else if (cmd.equals("fec-encode") && (args.length == 4 || args.length == 5)) {
+            Carrier carrier = load(new File(args[1]));
+            int parity = args.length == 5 ? Integer.parseInt(args[4]) : FecCodec.DEFAULT_PARITY;
+
+            int[] pixels = new int[carrier.getPixels().length];
+            System.arraycopy(carrier.getPixels(), 0, pixels, 0, pixels.length);
+            FecCodec.embed(pixels, carrier.getWidth(), carrier.getHeight(), readFile(new File(args[3])), parity);
+
+            FileOutputStream out = new FileOutputStream(args[2]);
+            try {
+                StegCore.writeImage(pixels, carrier.getWidth(), carrier.getHeight(),
+                                    StegCore.getImageFormat(new File(args[2])), out);
+            } finally {
+                out.close();
+            }
+            return 0;
+        } else if (cmd.equals("fec-decode") && args.length == 3) {
+            Carrier carrier = load(new File(args[1]));
+
+            File payload = new File(args[2]);
+            int fixed;
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(payload));
+            try {
+                fixed = FecCodec.extract(carrier.getPixels(), carrier.getWidth(), carrier.getHeight(), out);
+            } catch (IOException e) {
+                out.close();
+                payload.delete();
+                throw e;
+            }
+            out.close();
+
+            if (fixed < 0) {
+                payload.delete();
+                System.err.println("This image did not contain an error corrected payload.");
+                return 1;
+            }
+            System.err.println(fixed + " damaged bytes fixed");
+            return 0;
+        } else if (cmd.equals("anim-encode") && args.length == 4) {
+            Animation animation = AnimatedCodec.read(new File(args[1]));
+            if (animation == null) {
+                throw new IOException("Unable to read the image at " + args[1]);
+            }
+
+            FileOutputStream out = new FileOutputStream(args[2]);
+            try {
+                AnimatedCodec.encode(animation, args[3].getBytes("ISO-8859-1"), out);
+            } finally {
+                out.close();
+            }
+            System.err.println(animation.getFrameCount() + " frames");
+            return 0;
+        } else if (cmd.equals("anim-decode") && args.length == 2) {
+            Animation animation = AnimatedCodec.read(new File(args[1]));
+            if (animation == null) {
+                throw new IOException("Unable to read the image at " + args[1]);
+            }
+
+            byte[] payload = AnimatedCodec.decode(animation);
+            if (payload == null) {
+                System.err.println("This image did not contain an encoded message.");
+                return 1;
+            }
+
+            System.out.println(new String(payload, "ISO-8859-1"));
+            return 0;
+        } else if (cmd.equals("capacity") && (args.length == 2 || args.length == 3)) {
+            int[] size = StegCapacity.readSize(new File(args[1]));
+            if (size == null) {
+                throw new IOException("Unable to read the image at " + args[1]);
+            }
+
+            System.out.println(size[0] + " x " + size[1] + ", " + StegCapacity.getCandidates(size[0], size[1]) +
+                               " candidate pixels");
+            System.out.println("Messages up to " + StegCapacity.getSafeMessageLength(size[0], size[1]) +
+                               " bytes always fit and no message over " +
+                               StegCapacity.getMaxMessageLength(size[0], size[1]) + " bytes fits");
+
+            if (args.length == 3) {
+                StegCapacity.Fit fit = StegCapacity.checkMessage(size[0], size[1], args[2]);
+                System.out.println("This message " + fit);
+                return fit.fits() ? 0 : 1;
+            }
+            return 0;
+        } else if (cmd.equals("queue-add") && args.length == 3) {
+            WorkQueue queue = new WorkQueue(new File(args[1]));
+            System.err.println(queue.add(new File(args[2])) + " jobs added");
+            System.err.println(queue.getStatus());
+            return 0;
+        } else if (cmd.equals("queue-work") && (args.length == 2 || args.length == 3)) {
+            WorkQueue queue = new WorkQueue(new File(args[1]));
+            int threads = args.length == 3 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+            try {
+                queue.work(threads);
+            } catch (InterruptedException e) {
+                throw new IOException("The worker was interrupted");
+            }
+            System.err.println(queue);
+            System.err.println(queue.getStatus());
+            return 0;
+        } else if (cmd.equals("queue-status") && args.length == 2) {
+            System.out.println(new WorkQueue(new File(args[1])).getStatus());
+            return 0;
+        } else if (cmd.equals("catalog-update") && args.length >= 3) {
+            CarrierCatalog catalog = new CarrierCatalog(new File(args[1]));
+            ArrayList<File> roots = new ArrayList<File>();
+            for (int i = 2; i < args.length; i++) {
+                roots.add(new File(args[i]));
+            }
+
+            int read;
+            try {
+                read = catalog.update(roots, Runtime.getRuntime().availableProcessors());
+            } catch (InterruptedException e) {
+                throw new IOException("The update was interrupted");
+            }
+            System.err.println(read + " images read, " + catalog.size() + " carriers in the catalog");
+            return 0;
+        } else if (cmd.equals("catalog-best") && args.length == 3) {
+            CarrierCatalog.Entry best = new CarrierCatalog(new File(args[1])).best(Long.parseLong(args[2]));
+            if (best == null) {
+                System.err.println("None of the carriers can hold " + args[2] + " bytes.");
+                return 1;
+            }
+
+            System.out.println(best);
+            return 0;
+        } else if (cmd.equals("watch") && (args.length == 3 || args.length == 4)) {
+            WatchFolder folder = new WatchFolder(new File(args[1]), new File(args[2]));
+            int threads = args.length == 4 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+            try {
+                folder.run(threads);
+            } catch (InterruptedException e) {
+                throw new IOException("The watch was interrupted");
+            }
+            System.err.println(folder);
+            return 0;
+        } else if (cmd.equals("wav-encode") && args.length == 4) {
+            WavCodec.encode(new File(args[1]), new File(args[2]), args[3]);
+            return 0;
+        } else if (cmd.equals("wav-decode") && args.length == 2) {
+            String message = WavCodec.decode(new File(args[1]));
+            if (message == null) {
+                System.err.println("This audio did not contain a message.");
+                return 1;
+            }
+
+            System.out.println(message);
+            return 0;
+        } else if (cmd.equals("index-update") && args.length >= 3) {
+            MessageIndex index = new MessageIndex(new File(args[1]));
+            ArrayList<File> roots = new ArrayList<File>();
+            for (int i = 2; i < args.length; i++) {
+                roots.add(new File(args[i]));
+            }
+
+            int decoded;
+            try {
+                decoded = index.update(roots, Runtime.getRuntime().availableProcessors());
+            } catch (InterruptedException e) {
+                throw new IOException("The update was interrupted");
+            }
+            System.err.println(decoded + " images decoded, " + index.size() + " images in the index");
+            return 0;
+        } else if (cmd.equals("index-search") && (args.length == 3 ||
+                                                  (args.length == 4 && args[2].equals("-words")))) {
+            List<MessageIndex.Hit> hits =
+                new MessageIndex(new File(args[1])).search(args[args.length - 1], args.length == 4);
+            for (MessageIndex.Hit hit : hits) {
+                System.out.println(hit.getFile());
+            }
+            return hits.isEmpty() ? 1 : 0;
+        } else if (cmd.equals("analyze") && args.length >= 2) {
+            for (int i = 1; i < args.length; i++) {
+                Carrier carrier = load(new File(args[i]));
+                System.out.println(args[i]);
+                System.out.println(StegAnalysis.analyze(carrier.getPixels(), carrier.getWidth(), carrier.getHeight()));
+            }
+            return 0;
+        } else if (cmd.equals("shard-encode") && args.length >= 4) {
+            ArrayList<File> carriers = new ArrayList<File>();
+            for (int i = 3; i < args.length; i++) {
+                carriers.add(new File(args[i]));
+            }
+
+            for (File f : ShardCodec.encode(readFile(new File(args[1])), carriers, new File(args[2]))) {
+                System.out.println(f);
+            }
+            return 0;
+        } else if (cmd.equals("shard-decode") && args.length >= 3) {
+            ArrayList<File> images = new ArrayList<File>();
+            for (int i = 2; i < args.length; i++) {
+                images.add(new File(args[i]));
+            }
+
+            FileOutputStream out = new FileOutputStream(args[1]);
+            try {
+                out.write(ShardCodec.decode(images));
+            } finally {
+                out.close();
+            }
+            return 0;
+        }
+
+        usage();
+        return 1;
+    }
+
+    /**
+     * @param name   a command line argument
+     *
+     * @return true if the argument is the name of one of our commands
+     */
+    public static boolean isCommand(String name)
+    {
+        for (int i = 0; i < COMMANDS.length; i++) {
+            if (COMMANDS[i].equals(name)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static int batch(String args[])
+        throws IOException
+    {
+        List<BatchJob> jobs = BatchJob.readJobs(new File(args[1]));
+
+        int cpus = Runtime.getRuntime().availableProcessors();
+        BatchPipeline pipeline;
+        if (args.length == 6) {
+            pipeline = new BatchPipeline(Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+                                         Integer.parseInt(args[4]), Integer.parseInt(args[5]));
+        } else {
+            pipeline = new BatchPipeline(2, cpus, cpus, 2);
+        }
+
+        try {
+            pipeline.run(jobs);
+        } catch (InterruptedException e) {
+            throw new IOException("The batch was interrupted");
+        }
+
+        int failed = 0;
+        for (BatchJob job : jobs) {
+            if (job.getError() != null) {
+                failed++;
+                System.err.println(job.getCarrierFile() + ": " + job.getError());
+            }
+        }
+
+        System.err.print(pipeline.getReport());
+        System.err.println((jobs.size() - failed) + " of " + jobs.size() + " images encoded");
+        return failed == 0 ? 0 : 1;
+    }
+
+    private static Carrier load(File f)
+        throws IOException
+    {
+        Carrier carrier = CarrierCache.getCache().get(f);
+        if (carrier == null) {
+            throw new IOException("Unable to read the image at " + f);
+        }
+
+        return carrier;
+    }
+
+    private static byte[] readFile(File f)
+        throws IOException
+    {
+        if (f.length() > Integer.MAX_VALUE) {
+            throw new IOException(f + " is too large");
+        }
+
+        byte[] data = new byte[(int) f.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+
+        return data;
+    }
+
+    private static void usage()
+    {
+        System.err.println("Usage: java -cp stegtest.jar stegtest.StegCli <command> <arguments>");
+        System.err.println();
+        System.err.println("Commands:");
+        System.err.println("    encode <carrier> <output.png> <message>");
+        System.err.println("    decode <image>");
+        System.err.println("    batch <jobs.txt> [readers embedders compressors writers]");
+        System.err.println("    scatter-encode <carrier> <output.png> <key> <message>");
+        System.err.println("    scatter-decode <image> <key>");
+        System.err.println("    secure-encode <carrier> <output.png> <key> <payload>");
+        System.err.println("    secure-decode <image> <key> <payload>");
+        System.err.println("    fec-encode <carrier> <output.png> <payload> [parity]");
+        System.err.println("    fec-decode <image> <payload>");
+        System.err.println("    shard-encode <payload> <output-dir> <carrier>...");
+        System.err.println("    shard-decode <payload> <image>...");
+        System.err.println("    anim-encode <carrier.gif|png> <output.png> <message>");
+        System.err.println("    anim-decode <image>");
+        System.err.println("    analyze <image>...");
+        System.err.println("    capacity <image> [message]");
+        System.err.println("    queue-add <queue-dir> <jobs.txt>");
+        System.err.println("    queue-work <queue-dir> [threads]");
+        System.err.println("    queue-status <queue-dir>");
+        System.err.println("    catalog-update <catalog> <dir>...");
+        System.err.println("    catalog-best <catalog> <bytes>");
+        System.err.println("    watch <inbox-dir> <output-dir> [threads]");
+        System.err.println("    wav-encode <carrier.wav> <output.wav> <message>");
+        System.err.println("    wav-decode <audio.wav>");
+        System.err.println("    index-update <index> <dir>...");
+        System.err.println("    index-search <index> [-words] <text>");
+        System.err.println();
+        System.err.println("Each line of a batch file is the carrier, the output, and the message separated by tabs.");
+        System.err.println("Each line of a queue job file is encode, decode, or scan followed by its files and message.");
+        System.err.println("Outputs ending in .qoi or .pam are written in those raw formats instead of PNG.");
+    }
+}
@@ -0,0 +1,424 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import java.io.*;
+import java.nio.*;
+
+import java.awt.image.*;
+
+/*
+ * This is the codec as a library for programs that want to hide data in images
+ * without touching the disk.  Carriers come in as encoded image bytes in an
+ * array, a ByteBuffer, or a stream, and the encoded image comes back as a PNG
+ * in a ByteBuffer.
+ *
+ * There are two kinds of payload.  A message is Latin-1 text stored the same
+ * way the GUI and the encode command store it, so the GUI can read it.  The
+ * message can't contain ! since that marks the end.  Binary payloads can hold
+ * any bytes.  They are stored as a single shard with a length and a CRC-32 so
+ * shard-decode can read them too and we can tell if they are damaged.
+ *
+ * Every method is safe to call from any number of threads at once.  The
+ * codec only keeps statistics about how well PNG compresses so it can guess
+ * how big the next output buffer needs to be.
+ */
+public class StegCodec
+{
+    private static final StegCodec CODEC = new StegCodec();
+
+    /*
+     * PNG compresses photos to about eighty percent of their raw size once
+     * the low bits are full of payload.  We start with that guess and then
+     * keep track of what we really see.
+     */
+    private static final long PRIOR_RAW_BYTES = 1000000;
+    private static final long PRIOR_PNG_BYTES = 800000;
+
+    /*
+     * This covers the PNG signature, the header and end chunks, and the
+     * chunk headers around each block of image data.
+     */
+    private static final int PNG_OVERHEAD = 1024;
+
+    private final AtomicLong m_rawBytes = new AtomicLong(PRIOR_RAW_BYTES);
+    private final AtomicLong m_pngBytes = new AtomicLong(PRIOR_PNG_BYTES);
+    private final AtomicLong m_outputs = new AtomicLong();
+    private final AtomicLong m_regrows = new AtomicLong();
+
+    public static StegCodec getCodec()
+    {
+        return CODEC;
+    }
+
+    /**
+     * Decode a carrier image.
+     *
+     * @param image  the bytes of a JPEG, PNG, GIF, or BMP image
+     *
+     * @return the carrier
+     * @exception IOException
+     *                   if the bytes aren't an image we can read
+     */
+    public Carrier readCarrier(byte[] image)
+        throws IOException
+    {
+        return readCarrier(ByteBuffer.wrap(image));
+    }
+
+    /**
+     * Decode a carrier image.  The position of the buffer isn't changed.
+     *
+     * @param image  the bytes of the image from the position to the limit
+     *
+     * @return the carrier
+     * @exception IOException
+     *                   if the bytes aren't an image we can read
+     */
+    public Carrier readCarrier(ByteBuffer image)
+        throws IOException
+    {
+        BufferedImage buffImage = ImageInput.read(image);
+        if (buffImage == null) {
+            throw new IOException("The carrier is not an image we can read");
+        }
+
+        return Carrier.fromImage(buffImage);
+    }
+
+    /**
+     * Decode a carrier image.  The stream isn't closed.
+     *
+     * @param image  the stream to read the image from
+     *
+     * @return the carrier
+     * @exception IOException
+     *                   if the stream can't be read or isn't an image we can read
+     */
+    public Carrier readCarrier(InputStream image)
+        throws IOException
+    {
+        /*
+         * We read the whole stream into a pooled buffer so the reader can
+         * seek around in memory instead of through ImageIO's cache.
+         */
+        PooledOutputStream bytes = new PooledOutputStream(BufferPool.getPool(), 64 * 1024);
+        try {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = image.read(buf)) != -1) {
+                bytes.write(buf, 0, n);
+            }
+
+            return readCarrier(ByteBuffer.wrap(bytes.getBuffer(), 0, bytes.size()));
+        } finally {
+            bytes.release();
+        }
+    }
+
+    /**
+     * Hide a message in a carrier.
+     *
+     * @param carrier the carrier.  It isn't changed.
+     * @param message the message.  It should only have Latin-1 characters
+     *                and can't contain !.
+     *
+     * @return the encoded PNG from position zero to the limit
+     * @exception IOException
+     *                   if the message doesn't fit or the PNG can't be written
+     */
+    public ByteBuffer encodeMessage(Carrier carrier, String message)
+        throws IOException
+    {
+        /*
+         * A message that is cut short loses its terminator and can't be read
+         * back, so we turn it away like encodeFile does.
+         */
+        StegCapacity.Fit fit = StegCapacity.checkMessage(carrier.getWidth(), carrier.getHeight(), message);
+        if (!fit.fits()) {
+            throw new IOException("The message is too long for this carrier.  It needs " +
+                                  fit.getCandidatesNeeded() + " candidate pixels and the image only has " +
+                                  fit.getCandidates() + ".");
+        }
+
+        return toPng(StegCore.encode(carrier, message), carrier.getWidth(), carrier.getHeight(), false);
+    }
+
+    /**
+     * Hide a binary payload in a carrier.
+     *
+     * @param carrier the carrier.  It isn't changed.
+     * @param payload the payload
+     *
+     * @return the encoded PNG from position zero to the limit
+     * @exception IOException
+     *                   if the payload doesn't fit or the PNG can't be written
+     */
+    public ByteBuffer encode(Carrier carrier, byte[] payload)
+        throws IOException
+    {
+        int[] pixels = ShardCodec.embedShard(carrier, payload, 0, payload.length,
+                                             ShardCodec.getPayloadId(payload), 0, 1);
+        return toPng(pixels, carrier.getWidth(), carrier.getHeight(), true);
+    }
+
+    /**
+     * Hide a binary payload in a carrier.  The positions of the buffers
+     * aren't changed.
+     *
+     * @param carrier the bytes of the carrier image
+     * @param payload the payload
+     *
+     * @return the encoded PNG from position zero to the limit
+     * @exception IOException
+     *                   if the payload doesn't fit or the images can't be read or written
+     */
+    public ByteBuffer encode(ByteBuffer carrier, ByteBuffer payload)
+        throws IOException
+    {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.duplicate().get(bytes);
+        return encode(readCarrier(carrier), bytes);
+    }
+
+    /**
+     * Hide a binary payload in a carrier.
+     *
+     * @param carrier the bytes of the carrier image
+     * @param payload the payload
+     *
+     * @return the encoded PNG from position zero to the limit
+     * @exception IOException
+     *                   if the payload doesn't fit or the images can't be read or written
+     */
+    public ByteBuffer encode(byte[] carrier, byte[] payload)
+        throws IOException
+    {
+        return encode(readCarrier(carrier), payload);
+    }
+
+    /**
+     * Hide a binary payload in a carrier.  The streams are read to the end
+     * but not closed.
+     *
+     * @param carrier the stream to read the carrier image from
+     * @param payload the stream to read the payload from
+     *
+     * @return the encoded PNG from position zero to the limit
+     * @exception IOException
+     *                   if the payload doesn't fit or the streams can't be read
+     */
+    public ByteBuffer encode(InputStream carrier, InputStream payload)
+        throws IOException
+    {
+        Carrier c = readCarrier(carrier);
+
+        PooledOutputStream bytes = new PooledOutputStream(BufferPool.getPool(), 64 * 1024);
+        try {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = payload.read(buf)) != -1) {
+                bytes.write(buf, 0, n);
+            }
+
+            byte[] data = new byte[bytes.size()];
+            System.arraycopy(bytes.getBuffer(), 0, data, 0, data.length);
+            return encode(c, data);
+        } finally {
+            bytes.release();
+        }
+    }
+
+    /**
+     * Get a message out of an image.
+     *
+     * @param image  the image
+     *
+     * @return the message or null if the image doesn't have one
+     */
+    public String decodeMessage(Carrier image)
+    {
+        return StegCore.readMessage(image.getPixels(), image.getWidth(), image.getHeight());
+    }
+
+    /**
+     * Get a binary payload out of an image.
+     *
+     * @param image  the image
+     *
+     * @return the payload or null if the image doesn't have one
+     * @exception IOException
+     *                   if the payload is damaged
+     */
+    public byte[] decode(Carrier image)
+        throws IOException
+    {
+        ShardCodec.Shard shard = ShardCodec.readShard(image);
+        if (shard == null) {
+            return null;
+        }
+
+        return ShardCodec.assemble(Collections.singletonList(shard));
+    }
+
+    /**
+     * Get a binary payload out of an image.
+     *
+     * @param image  the bytes of the PNG image
+     *
+     * @return the payload or null if the image doesn't have one
+     * @exception IOException
+     *                   if the image can't be read or the payload is damaged
+     */
+    public byte[] decode(byte[] image)
+        throws IOException
+    {
+        return decode(readCarrier(image));
+    }
+
+    /**
+     * Get a binary payload out of an image.  The position of the buffer
+     * isn't changed.
+     *
+     * @param image  the bytes of the PNG image
+     *
+     * @return the payload or null if the image doesn't have one
+     * @exception IOException
+     *                   if the image can't be read or the payload is damaged
+     */
+    public byte[] decode(ByteBuffer image)
+        throws IOException
+    {
+        return decode(readCarrier(image));
+    }
+
+    /**
+     * Get a binary payload out of an image.  The stream isn't closed.
+     *
+     * @param image  the stream to read the PNG image from
+     *
+     * @return the payload or null if the image doesn't have one
+     * @exception IOException
+     *                   if the image can't be read or the payload is damaged
+     */
+    public byte[] decode(InputStream image)
+        throws IOException
+    {
+        return decode(readCarrier(image));
+    }
+
+    /**
+     * Guess how big the PNG of an encoded image will be.  The guess is a
+     * little high on purpose so the buffer almost never has to grow.
+     *
+     * @param cols   the width of the image
+     * @param rows   the height of the image
+     *
+     * @return the guess in bytes
+     */
+    public int estimatePngSize(int cols, int rows)
+    {
+        /*
+         * The raw PNG data is three bytes a pixel and a filter byte a row.
+         */
+        long raw = (long) rows * (3L * cols + 1);
+        double ratio = (double) m_pngBytes.get() / m_rawBytes.get();
+        return (int) Math.min(Integer.MAX_VALUE - 8, (long) (raw * ratio * 1.1) + PNG_OVERHEAD);
+    }
+
+    /*
+     * writePng tells us how big each PNG it writes turns out to be so the
+     * next guess is closer.
+     */
+    void recordPngSize(int cols, int rows, int size)
+    {
+        m_rawBytes.addAndGet((long) rows * (3L * cols + 1));
+        m_pngBytes.addAndGet(size);
+    }
+
+    public String toString()
+    {
+        return "StegCodec[outputs=" + m_outputs.get() + ", regrows=" + m_regrows.get() +
+            ", ratio=" + ((double) m_pngBytes.get() / m_rawBytes.get()) + "]";
+    }
+
+    /*
+     * This method compresses the pixels into a buffer sized by our guess and
+     * gives the pixels back to the pool if they came from there.
+     */
+    private ByteBuffer toPng(int[] pixels, int cols, int rows, boolean pooled)
+        throws IOException
+    {
+        BufferOutput out = new BufferOutput(estimatePngSize(cols, rows));
+        try {
+            StegCore.writePng(pixels, cols, rows, out);
+        } finally {
+            if (pooled) {
+                BufferPool.getPool().release(pixels);
+            }
+        }
+
+        m_outputs.incrementAndGet();
+        if (out.m_grown) {
+            m_regrows.incrementAndGet();
+        }
+
+        return ByteBuffer.wrap(out.m_buf, 0, out.m_count);
+    }
+
+    /*
+     * This is a ByteArrayOutputStream that lets us have its array without
+     * copying it and isn't synchronized.
+     */
+    private static class BufferOutput
+        extends OutputStream
+    {
+        private byte[] m_buf;
+        private int m_count;
+        private boolean m_grown;
+
+        private BufferOutput(int size)
+        {
+            m_buf = new byte[size];
+        }
+
+        public void write(int b)
+        {
+            ensureCapacity(m_count + 1);
+            m_buf[m_count++] = (byte) b;
+        }
+
+        public void write(byte[] b, int off, int len)
+        {
+            ensureCapacity(m_count + len);
+            System.arraycopy(b, off, m_buf, m_count, len);
+            m_count += len;
+        }
+
+        private void ensureCapacity(int size)
+        {
+            if (size > m_buf.length) {
+                byte[] bigger = new byte[Math.max(size, m_buf.length + m_buf.length / 2)];
+                System.arraycopy(m_buf, 0, bigger, 0, m_count);
+                m_buf = bigger;
+                m_grown = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,1115 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest;
+
+import java.util.concurrent.atomic.*;
+
+import java.io.*;
+
+import java.awt.image.*;
+import javax.imageio.*;
+import javax.imageio.stream.*;
+
+/*
+ * This class is the steganography codec.  It knows how to hide a message in the
+ * pixels of an image and how to get it back out again.  It has no user interface
+ * so the GUI, the command line, and anyone else who wants to encode images can
+ * all share it.
+ */
+public class StegCore
+{
+    /*
+     * This string describes everything about how we encode a message that
+     * changes the output.  If any of these change then results we cached
+     * for the old settings are no longer good.
+     */
+    static final String CODEC_PARAMS = getCodecParams("png");
+
+    /*
+     * Set the stegtest.verifyOutput system property to true to read back the
+     * rows of each PNG we write that hold the message and check them.
+     */
+    private static final boolean VERIFY_OUTPUT = Boolean.getBoolean("stegtest.verifyOutput");
+
+    /*
+     * Set the stegtest.countPixels system property to true to count how many
+     * pixels the codec looks at.  The budget tests use this to catch changes
+     * that go back to scanning the whole image.  It is off by default and
+     * since it is final the counting code is compiled away when it is off.
+     */
+    static final boolean COUNT_PIXELS = Boolean.getBoolean("stegtest.countPixels");
+    private static final AtomicLong s_pixelsExamined = new AtomicLong();
+
+    private StegCore()
+    {
+        /*
+         * Everything here is static so no one should create one of these.
+         */
+    }
+
+    /*
+     * This is the number of pixels the codec has looked at so far.  It is
+     * always zero unless stegtest.countPixels is set.
+     */
+    static long getPixelsExamined()
+    {
+        return s_pixelsExamined.get();
+    }
+
+    private static void countPixels(long count)
+    {
+        if (COUNT_PIXELS) {
+            s_pixelsExamined.addAndGet(count);
+        }
+    }
+
+    /*
+     * This is CODEC_PARAMS for images written in another format.
+     */
+    static String getCodecParams(String format)
+    {
+        return "lsb2;insertion=4096;terminator=!;" + format + "-rgb";
+    }
+
+    /**
+     * Encode a message in a carrier image and write the result as a PNG file.
+     * If the result cache is turned on and we've already encoded this message
+     * into this carrier we just copy the PNG we wrote last time.  If the name
+     * of the output ends in .qoi or .pam we write that format instead.
+     *
+     * @param carrierFile
+     *               the image to hide the message in
+     * @param msg    the message
+     * @param out    the file to write
+     *
+     * @exception IOException
+     *                   if the message doesn't fit or we can't read the carrier
+     *                   or write the output
+     */
+    public static void encodeFile(File carrierFile, String msg, File out)
+        throws IOException
+    {
+        ResultCache cache = ResultCache.getCache();
+        String key = null;
+        if (cache != null) {
+            key = cache.getKey(carrierFile, msg.getBytes("ISO-8859-1"), getCodecParams(getImageFormat(out)));
+            if (cache.copyTo(key, out)) {
+                return;
+            }
+        }
+
+        checkFit(carrierFile, msg);
+
+        Carrier carrier = CarrierCache.getCache().get(carrierFile);
+        if (carrier == null) {
+            throw new IOException("Unable to read the image at " + carrierFile);
+        }
+
+        int[] encoded = encode(carrier, msg);
+
+        /*
+         * This only looks at the pixels the message went in so it costs
+         * next to nothing.
+         */
+        if (!StegVerify.verify(encoded, carrier.getWidth(), carrier.getHeight(), msg)) {
+            throw new IOException("The message was not encoded correctly in " + carrierFile);
+        }
+
+        BufferPool pool = BufferPool.getPool();
+        String format = getImageFormat(out);
+        PooledOutputStream png = new PooledOutputStream(pool, estimateImageSize(format, carrier.getWidth(),
+                                                                                carrier.getHeight()));
+        try {
+            writeImage(encoded, carrier.getWidth(), carrier.getHeight(), format, png);
+
+            FileOutputStream fout = new FileOutputStream(out);
+            try {
+                png.writeTo(fout);
+            } finally {
+                fout.close();
+            }
+
+            if (VERIFY_OUTPUT && !StegVerify.verifyFile(out, msg)) {
+                throw new IOException("The message did not make it into " + out + " correctly");
+            }
+
+            if (cache != null) {
+                cache.put(key, png.getBuffer(), png.size());
+            }
+        } finally {
+            png.release();
+        }
+    }
+
+    /**
+     * Make sure a message fits in a carrier image before we decode it.  This
+     * only reads the image header so it is very fast.
+     *
+     * @param carrierFile
+     *               the image to hide the message in
+     * @param msg    the message
+     *
+     * @exception IOException
+     *                   if the message doesn't fit or we can't read the header
+     */
+    public static void checkFit(File carrierFile, String msg)
+        throws IOException
+    {
+        int[] size = StegCapacity.readSize(carrierFile);
+        if (size == null) {
+            throw new IOException("Unable to read the image at " + carrierFile);
+        }
+
+        StegCapacity.Fit fit = StegCapacity.checkMessage(size[0], size[1], msg);
+        if (!fit.fits()) {
+            throw new IOException("The message is too long for " + carrierFile + ".  It needs " +
+                                  fit.getCandidatesNeeded() + " candidate pixels and the image only has " +
+                                  fit.getCandidates() + ".");
+        }
+    }
+
+    /**
+     * Encode a message in a carrier image.
+     *
+     * @param carrier the image to hide the message in.  It isn't changed.
+     * @param msg     the message
+     *
+     * @return the ARGB pixels of the encoded image
+     */
+    public static int[] encode(Carrier carrier, String msg)
+    {
+        int[] encoded = new int[carrier.getPixels().length];
+        System.arraycopy(carrier.getPixels(), 0, encoded, 0, encoded.length);
+
+        byte[] msgBytes = frameMessage(msg);
+        byte[] twoBitData = splitTwoBits(msgBytes, msgBytes.length);
+        embedPairs(encoded, carrier.getWidth(), carrier.getHeight(), twoBitData, 4 * msgBytes.length);
+        BufferPool.getPool().release(twoBitData);
+
+        return encoded;
+    }
+
+    /**
+     * Get the message out of an image.
+     *
+     * @param carrier the image with the message in it
+     *
+     * @return the message or null if the image doesn't have one
+     */
+    public static String decode(Carrier carrier)
+    {
+        return readMessage(carrier.getPixels(), carrier.getWidth(), carrier.getHeight());
+    }
+
+    /**
+     * Get the format to write an image file in from its name.
+     *
+     * @param f      the file
+     *
+     * @return qoi for .qoi files, pam for .pam files, and png for everything else
+     */
+    public static String getImageFormat(File f)
+    {
+        String name = f.getName().toLowerCase();
+        if (name.endsWith(".qoi")) {
+            return "qoi";
+        } else if (name.endsWith(".pam")) {
+            return "pam";
+        }
+
+        return "png";
+    }
+
+    /*
+     * This method guesses how many bytes an image will take in the given
+     * format so we can size the buffer we write it to.  For PNG we use the
+     * compression the codec has seen so far.  PAM is just the raw pixels, and
+     * QOI is usually a little smaller than that.  The buffer grows if we guess
+     * low.
+     */
+    static int estimateImageSize(String format, int cols, int rows)
+    {
+        if (format.equals("png")) {
+            return StegCodec.getCodec().estimatePngSize(cols, rows);
+        }
+
+        return (int) Math.min(Integer.MAX_VALUE - 8, 3L * cols * rows + 1024);
+    }
+
+    /**
+     * Write an image as PNG, QOI, or PAM.  QOI and PAM are much faster to
+     * write and read than PNG, so they are good for images we only pass
+     * between our own programs.  Anything that leaves should be a PNG.
+     *
+     * @param pixels the ARGB pixels of the image
+     * @param cols   the width of the image
+     * @param rows   the height of the image
+     * @param format png, qoi, or pam
+     * @param out    the stream to write to.  It isn't closed.
+     *
+     * @exception IOException
+     *                   if the write fails
+     */
+    public static void writeImage(int[] pixels, int cols, int rows, String format, OutputStream out)
+        throws IOException
+    {
+        if (format.equals("qoi")) {
+            QoiImage.write(pixels, cols, rows, out);
+        } else if (format.equals("pam")) {
+            PamImage.write(pixels, cols, rows, out);
+        } else {
+            writePng(pixels, cols, rows, out);
+        }
+    }
+
+    /**
+     * Write an image as a PNG.
+     *
+     * @param pixels the ARGB pixels of the image
+     * @param cols   the width of the image
+     * @param rows   the height of the image
+     * @param out    the stream to write to.  It isn't closed.
+     *
+     * @exception IOException
+     *                   if the write fails
+     */
+    public static void writePng(int[] pixels, int cols, int rows, OutputStream out)
+        throws IOException
+    {
+        /*
+         * This is the buffered image we will use to write our image with the encoded message.  Up to 
+         * this point we have always used TYPE_INT_ARGB.  We use that because it is an easy format
+         * to parse the data.  However, TYPE_INT_ARGB will create a CMYK (Cyan, Magenta, Yellow, and
+         * Black or key) image.  This image format doesn't work in most of the browsers and we want
+         * to create an image using the more popular RGB (Red, Green, Blue) format.  The RGB image
+         * just ignores the alpha bits so we can copy the pixels right in.
+         */
+        BufferPool pool = BufferPool.getPool();
+        BufferedImage buffImage = pool.borrowImage(cols, rows, false);
+        int[] rgb = ((DataBufferInt) buffImage.getRaster().getDataBuffer()).getData();
+        System.arraycopy(pixels, 0, rgb, 0, cols * rows);
+
+        /*
+         * The PNG goes straight into the caller's stream, so callers that
+         * write into memory should size their buffer with estimatePngSize.
+         * We tell the codec how big the PNG turned out so its next guess is
+         * closer.
+         */
+        ImageOutputStream png = ImageIO.createImageOutputStream(out);
+        if (png == null) {
+            pool.release(buffImage);
+            throw new IOException("Unable to write a PNG to " + out);
+        }
+
+        try {
+            ImageIO.write(buffImage, "png", png);
+            StegCodec.getCodec().recordPngSize(cols, rows, (int) png.getStreamPosition());
+        } finally {
+            png.close();
+            pool.release(buffImage);
+        }
+    }
+
+    /*
+     * When we encode our write our string onto the image we need to
+     * change only the last two bits of the byte.  When we read the 
+     * String back we need to read only the last two bits of the byte.
+     * The problem is that those last two bits might already have 
+     * data in them.  This mask will clear out the data in the last
+     * two bits when we write and clear out all the rest of the data
+     * when we read.
+     */
+    static final int LSB_MASK_READ = 0x03;
+    static final int LSB_MASK_WRITE = 0xFF & ~LSB_MASK_READ;
+
+    /*
+     * This method will take a one dimension array and break it up into a three dimensional
+     * array which is easier to work with.
+     */
+    static int[][][] get3DArray(int[] imageData, int cols, int rows)
+    {
+        /*
+         * This is the array which will be populated with the pixel
+         * color data.  The array has a length of four with the 
+         * elements alpha data, red, green, and blue.  We borrow it
+         * from the pool so give it back when you are done with it.
+         */
+        int[][][] data = BufferPool.getPool().borrowPixels(rows, cols);
+
+        long examined = 0;
+        for (int row = 0; row < rows; row++) {
+            /*
+             * We'll deal with each row separately.
+             */
+            int rowStart = row * cols;
+
+            /*
+             * Now we want to move the data into the three dimensional
+             * array.  We will use the bitwise AND and bitwise right 
+             * operations to filter out all but the correct set of eight
+             * bits we are looking for.
+             */
+            int col = 0;
+            for (; col < cols; col++) {
+                int pixel = imageData[rowStart + col];
+                int[] rgb = data[row][col];
+
+                /*
+                 * Alpha Data
+                 */
+                rgb[0] = (pixel >> 24) & 0xFF;
+
+                /*
+                 * Red data
+                 */
+                rgb[1] = (pixel >> 16) & 0xFF;
+
+                /*
+                 * Green data
+                 */
+                rgb[2] = (pixel >> 8) & 0xFF;
+
+                /*
+                 * Blue data
+                 */
+                rgb[3] = (pixel) & 0xFF;
+            }
+            examined += col;
+        }
+
+        countPixels(examined);
+        return data;
+    }
+
+    /*
+     * This method will take our easy to work with three dimensional array and
+     * process it back into a one dimensional array so we can make it into 
+     * an actual image.  This is exaclty the opposite process of the get3DArray
+     * method.
+     */
+    static int[] get1DArray(int[][][] imageData, int cols, int rows)
+    {
+        /*
+         * This one dimensional array will be populated with the pixel information
+         * in the three dimensional array.  This array will need to be large enough
+         * to hold four numbers for each pixel in the image.
+         */
+        int[] data = new int[cols * rows * 4];
+
+        /*
+         * Now we can move the pixel data back into the one dimensional array.
+         * we will use the bitwise OR operator and the left operator to put
+         * the four eight bit bytes into each int in the array.
+         */
+        long examined = 0;
+        for (int row = 0, count = 0; row < rows; row++) {
+            int col = 0;
+            for (;col < cols;col++) {
+                data[count] = ((imageData[row][col][0] << 24) & 0xFF000000)
+                               | ((imageData[row][col][1] << 16) & 0x00FF0000)
+                               | ((imageData[row][col][2] << 8) & 0x0000FF00)
+                               | ((imageData[row][col][3]) & 0x000000FF);
+                count++;
+            }
+            examined += col;
+        }
+
+        countPixels(examined);
+        return data;
+    }
+
+    static final int INSERTIONPOINT = 4096;
+
+    static int[][][] encodeMessage(int[][][] origData, int cols, int rows, String msg)
+    {
+        /*
+         * First we will make a copy so we don't change the original
+         * image.  The copy comes from the pool so the caller has to
+         * give it back.
+         */
+        BufferPool pool = BufferPool.getPool();
+        int[][][] imgData = pool.borrowPixels(rows, cols);
+        long examined = 0;
+        for (int row = 0;row < rows;row++) {
+            int col = 0;
+            for (;col < cols;col++) {
+                imgData[row][col][0] = origData[row][col][0];
+                imgData[row][col][1] = origData[row][col][1];
+                imgData[row][col][2] = origData[row][col][2];
+                imgData[row][col][3] = origData[row][col][3];
+            }
+            examined += col;
+        }
+
+        byte[] msgBytes = frameMessage(msg);
+        int twoBitLength = 4 * msgBytes.length;
+        byte[] twoBitData = splitTwoBits(msgBytes, msgBytes.length);
+
+        /*
+         * At this point we have finished encoding our string, but we
+         * haven't added it to the image yet.  Now we will actually
+         * change the pixels values and encode out message.
+         * 
+         * We will start adding our values at a predefined insertion
+         * point.  We don't want to start right at the beginning
+         * since that might be more noticeable.  We could make our
+         * application even more secure by making the user specify
+         * the insertion point, but this application is about
+         * obscurity rather than security so we will just have a set
+         * insertion point. 
+         * 
+         * We don't want to edit all of our pixels all in a row since
+         * that would also be more noticeable.  We will use the last
+         * value of the six bits as the skip value to make things a 
+         * little more difficult to detect
+         */
+        int skipCount = 0;
+
+        /*
+         * Now we can actually encode our values.
+         */
+        int twoBitCount = 0;
+        for (int row = 0; row < rows; row++) {
+            int col = 0;
+            for (; col < cols; col++) {
+                /*
+                 * We want to embed siz bits in each RGB value
+                 * and then skip ahead based on the last two bits
+                 * of that value.  We know that our byte array will
+                 * work well with this scheme since we padded it
+                 * out before we encoded our string.
+                 */
+                if ((row * col > INSERTIONPOINT) && 
+                    (twoBitCount < twoBitLength) && 
+                    skipCount-- == 0) {
+                    /*
+                     * We want to replace the two least significant bits of
+                     * red, green, and blue values with our value.  The least
+                     * significant bits are the last bits of the byte and 
+                     * replacing them will cause the smallest visual change
+                     * in the color.
+                     */
+                    imgData[row][col][1] = (imgData[row][col][1] & LSB_MASK_WRITE) | twoBitData[twoBitCount++];
+                    imgData[row][col][2] = (imgData[row][col][2] & LSB_MASK_WRITE) | twoBitData[twoBitCount++];
+                    imgData[row][col][3] = (imgData[row][col][3] & LSB_MASK_WRITE) | twoBitData[twoBitCount++];
+
+                    /*
+                     * The last step is to see how many pixels we will skip 
+                     * before changing the next pixel
+                     */
+                    skipCount = twoBitData[twoBitCount - 1];
+                }
+            }
+            examined += col;
+        }
+
+        countPixels(examined);
+        pool.release(twoBitData);
+        return imgData;
+    }
+
+    /*
+     * This method turns a message into the bytes we store in the image.  It
+     * adds the start sequence and the terminator and pads the message so it
+     * fills up a whole number of pixels.
+     */
+    static byte[] frameMessage(String msg)
+    {
+        /*
+         * Each pixel has three two bit pairs of information, one for
+         * the red value, one for the green value, and one for the
+         * blue value.  We will store two bits ot information in each 
+         * of these values.  The first step is to convert the String
+         * into an array of bytes.  Java make space for two bytes 
+         * for every character in a string.  This is enough space
+         * to cover "wide" langauges like Japanese and Chinese.  
+         * However, that also makes every string twice as long.  Our
+         * sample will only support one byte for each character 
+         * which is long enough for all the ASCII or Latin-1 
+         * characters.  This makes the routine easier to handle and
+         * makes our footprint on the image even smaller.  
+         * 
+         * We could employ various schemes to make the space we need
+         * for each character even smaller, but that would reduce the
+         * number of characters we could support.  Latin-1 is 
+         * important because many encryption schemes represent 
+         * encrypted values in Latin-1 characters.  By supporting
+         * Latin-1 our program will support hiding encrypted data
+         * from many encryption schemes.
+         */
+        
+        byte[] msgBytes = null;
+        try {
+            msgBytes = msg.getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            /*
+             * Java makes us catch this exception, but all platforms
+             * support ISO-8859-1 (which is code for Latin-1) so
+             * this exception should never be thrown.
+             */
+            throw new IllegalStateException(e.toString());
+        }
+        
+
+        /*
+         * Each pixel can hold six bits of information.  However, 
+         * each of our characters contains 8 bits (one byte) of 
+         * information.  If we let the last byte run into the next
+         * siz bit section we could have a pixel where we only 
+         * changed the red value.  That would be a noticable change.
+         * We need to make sure our string will fill up an even
+         * number of RGB values.  8 bits - 6 = 2 remaining.  Add
+         * those to our next value means 10 bits - 6 = 4 remaining.
+         * Add those to our next value means 12 bits - 6 = 6 bits 
+         * remaining.  That means the rest of the 8 bits from that
+         * last character (6 bits) will fit into the next 6 bit
+         * RGB value.  So... we need to make sure that the length
+         * of our array of bytes is a multiple of three.
+         * 
+         * Instead of trying to track this later, it is easier to 
+         * just pad our array out to a multiple of three.  However,
+         * we need to take into account the fact that we are going
+         * to add a terminator character on the end so we really 
+         * need to pad it out until the length plus one is a multiple
+         * of three.  Since the byte value of ! is our terminator
+         * we can just pad with extra ! bytes and they will be ignored
+         * when they are read on the other end.
+         */
+        if ((msgBytes.length + 1 % 3 != 0)) {
+            int toAdd = (3 - (msgBytes.length % 3)) - 1;
+            byte tmpBytes[] = new byte[msgBytes.length + toAdd];
+            
+            for (int i = 0; i < toAdd; i++) {
+                tmpBytes[msgBytes.length + i] = (byte)'!';
+            }
+
+            System.arraycopy(msgBytes, 0, tmpBytes, 0, msgBytes.length);
+            msgBytes = tmpBytes;
+        }
+
+        /*
+         * We need to make sure we know our where our string starts
+         * and stops.  We will make sure our string starts with the 
+         * byte value of ~~~ and ends with the byte value of !.  This
+         * is how we will be sure we found our string.
+         */
+        byte tmpBytes[] = new byte[msgBytes.length + 4];
+        tmpBytes[0] = '~';
+        tmpBytes[1] = '~';
+        tmpBytes[2] = '~';
+        tmpBytes[msgBytes.length + 3] = (byte)'!';
+        System.arraycopy(msgBytes, 0, tmpBytes, 3, msgBytes.length);
+        msgBytes = tmpBytes;
+
+        return msgBytes;
+    }
+
+    /*
+     * This method splits bytes into the two bit pairs we store in each color
+     * value.  The array comes from the pool so give it back when you are done
+     * with it.
+     */
+    static byte[] splitTwoBits(byte[] bytes, int length)
+    {
+        /*
+         * Now that we have the right number of bytes we need to split
+         * them up into two bit chunks.  This will result in an array
+         * which is four times longer than we started with.  This is
+         * why we don't support unicode.  If we did the array would
+         be 8 times longer.  The scratch array comes from the pool
+         * and may be longer than we need so we keep track of the
+         * real length ourselves.
+         */
+        int twoBitLength = 4 * length;
+        byte[] twoBitData = BufferPool.getPool().borrowBytes(twoBitLength);
+
+        /*
+         * We want to break each 8 bit sequence into two bit pairs.  
+         * This means we need to take first bits 1-2, then 3-4, then
+         * 5-6, and then 7-8.  We do this by shifting first 0 then 2, 
+         * then 4, then 6 places.  We will also mask the bits so they 
+         * are value RGB values.
+         */
+        int twoBitCount = 0;
+        for (int i = 0; i < length; i++) {
+            byte element = bytes[i];
+            twoBitData[twoBitCount++] = (byte) (element & LSB_MASK_READ);
+            twoBitData[twoBitCount++] = (byte) ((element >> 2) & LSB_MASK_READ);
+            twoBitData[twoBitCount++] = (byte) ((element >> 4) & LSB_MASK_READ);
+            twoBitData[twoBitCount++] = (byte) ((element >> 6) & LSB_MASK_READ);
+        }
+
+        return twoBitData;
+    }
+
+    /*
+     * This method puts the two bits pairs back together into bytes.  It is
+     * the opposite of splitTwoBits.
+     */
+    static void joinTwoBits(byte[] twoBitData, int twoBitLength, byte[] bytes)
+    {
+        for (int i = 0, twoBitCount = 0; twoBitCount < twoBitLength; i++) {
+            int element = twoBitData[twoBitCount++];
+            element |= twoBitData[twoBitCount++] << 2;
+            element |= twoBitData[twoBitCount++] << 4;
+            element |= twoBitData[twoBitCount++] << 6;
+            bytes[i] = (byte) element;
+        }
+    }
+
+    /*
+     * The three dimensional array is easy to read, but it takes about eight
+     * times as much memory as the image and it has to be copied in and out.
+     * For large images and large payloads we work right on the ARGB ints
+     * instead.  These methods walk the pixels exactly the same way as 
+     * encodeMessage and getMessage so the images are the same either way.
+     *
+     * The mask clears the two least significant bits of the red, green, and
+     * blue values and leaves the alpha alone.
+     */
+    private static final int RGB_MASK_WRITE = ~((LSB_MASK_READ << 16) | (LSB_MASK_READ << 8) | LSB_MASK_READ);
+
+    /*
+     * This method writes two bit pairs into ARGB pixels.  The number of pairs
+     * must be a multiple of three.  It returns the number of pairs it wrote
+     * which is less than twoBitLength if the image ran out of pixels.
+     */
+    static int embedPairs(int[] pixels, int cols, int rows, byte[] twoBitData, int twoBitLength)
+    {
+        long examined = 0;
+        int skipCount = 0;
+        int twoBitCount = 0;
+        for (int row = 1; row < rows && twoBitCount < twoBitLength; row++) {
+            /*
+             * This is the first column where row * col > INSERTIONPOINT.
+             * We can just start there instead of checking every pixel.
+             */
+            int col = INSERTIONPOINT / row + 1;
+            int first = col;
+            for (int i = row * cols + col; col < cols && twoBitCount < twoBitLength; col++, i++) {
+                if (skipCount-- == 0) {
+                    pixels[i] = (pixels[i] & RGB_MASK_WRITE) |
+                        (twoBitData[twoBitCount] << 16) |
+                        (twoBitData[twoBitCount + 1] << 8) |
+                        twoBitData[twoBitCount + 2];
+
+                    skipCount = twoBitData[twoBitCount + 2];
+                    twoBitCount += 3;
+                }
+            }
+            examined += Math.max(col - first, 0);
+        }
+
+        countPixels(examined);
+        return twoBitCount;
+    }
+
+    /*
+     * This method reads two bit pairs out of ARGB pixels.  It is the opposite
+     * of embedPairs.  It returns the number of pairs it read which is less
+     * than twoBitLength if the image ran out of pixels.
+     */
+    static int extractPairs(int[] pixels, int cols, int rows, byte[] twoBitData, int twoBitLength)
+    {
+        long examined = 0;
+        int skipCount = 0;
+        int twoBitCount = 0;
+        for (int row = 1; row < rows && twoBitCount < twoBitLength; row++) {
+            int col = INSERTIONPOINT / row + 1;
+            int first = col;
+            for (int i = row * cols + col; col < cols && twoBitCount < twoBitLength; col++, i++) {
+                if (skipCount-- == 0) {
+                    int pixel = pixels[i];
+                    twoBitData[twoBitCount++] = (byte) ((pixel >> 16) & LSB_MASK_READ);
+                    twoBitData[twoBitCount++] = (byte) ((pixel >> 8) & LSB_MASK_READ);
+                    twoBitData[twoBitCount++] = (byte) (pixel & LSB_MASK_READ);
+                    skipCount = twoBitData[twoBitCount - 1];
+                }
+            }
+            examined += Math.max(col - first, 0);
+        }
+
+        countPixels(examined);
+        return twoBitCount;
+    }
+
+    /*
+     * This method checks that the pixels hold the pairs embedPairs would have
+     * written.  It walks the same pixels so it only looks at the ones the
+     * payload went in.  It returns the number of pairs it checked, which is
+     * less than twoBitLength if the image ran out of pixels, or -1 as soon as
+     * a pair doesn't match.
+     */
+    static int verifyPairs(int[] pixels, int cols, int rows, byte[] twoBitData, int twoBitLength)
+    {
+        long examined = 0;
+        int skipCount = 0;
+        int twoBitCount = 0;
+        for (int row = 1; row < rows && twoBitCount < twoBitLength; row++) {
+            int col = INSERTIONPOINT / row + 1;
+            int first = col;
+            for (int i = row * cols + col; col < cols && twoBitCount < twoBitLength; col++, i++) {
+                if (skipCount-- == 0) {
+                    int expected = (twoBitData[twoBitCount] << 16) |
+                        (twoBitData[twoBitCount + 1] << 8) |
+                        twoBitData[twoBitCount + 2];
+                    if ((pixels[i] & ~RGB_MASK_WRITE) != expected) {
+                        countPixels(examined + col - first + 1);
+                        return -1;
+                    }
+
+                    skipCount = twoBitData[twoBitCount + 2];
+                    twoBitCount += 3;
+                }
+            }
+            examined += Math.max(col - first, 0);
+        }
+
+        countPixels(examined);
+        return twoBitCount;
+    }
+
+    /*
+     * This method counts the pixels we are allowed to change in an image of
+     * the given size.  Those are the pixels where row * col > INSERTIONPOINT.
+     */
+    static long countCandidates(int cols, int rows)
+    {
+        long count = 0;
+        for (int row = 1; row < rows; row++) {
+            int first = INSERTIONPOINT / row + 1;
+            if (first < cols) {
+                count += cols - first;
+            }
+        }
+
+        return count;
+    }
+
+    /*
+     * This method works out how many bytes will fit in the given number of
+     * candidate pixels.  Every three bytes take up four pixels, and after each
+     * pixel we skip ahead by the value of the last pair in that pixel, so the
+     * answer depends on the bytes themselves.  Bytes past off + len count as
+     * zero padding.  The answer is always a multiple of three.
+     */
+    static int bytesThatFit(byte[] bytes, int off, int len, long candidates)
+    {
+        long pos = 0;
+        int fit = 0;
+        while (fit < len) {
+            int b0 = byteAt(bytes, off + fit, off + len);
+            int b1 = byteAt(bytes, off + fit + 1, off + len);
+            int b2 = byteAt(bytes, off + fit + 2, off + len);
+
+            /*
+             * These are the skip values of the four pixels.  They are pairs
+             * 2, 5, 8, and 11 of the twelve pairs in the three bytes.
+             */
+            int[] skips = {(b0 >> 4) & LSB_MASK_READ, (b1 >> 2) & LSB_MASK_READ,
+                           b2 & LSB_MASK_READ, (b2 >> 6) & LSB_MASK_READ};
+            for (int skip : skips) {
+                if (pos >= candidates) {
+                    return fit;
+                }
+                pos += 1 + skip;
+            }
+
+            fit += 3;
+        }
+
+        return fit;
+    }
+
+    private static int byteAt(byte[] bytes, int i, int end)
+    {
+        return i < end ? bytes[i] & 0xFF : 0;
+    }
+
+    /*
+     * This method gets the message out of ARGB pixels and turns it into a
+     * string.  It keeps all of its state on the stack so any number of threads
+     * can call it at once.
+     */
+    static String readMessage(int[] pixels, int cols, int rows)
+    {
+        BufferPool pool = BufferPool.getPool();
+        PooledOutputStream out = new PooledOutputStream(pool, MESSAGE_BUFFER);
+        try {
+            if (extractMessage(pixels, cols, rows, null, out) < 0) {
+                return null;
+            }
+
+            return new String(out.getBuffer(), 0, out.size(), "ISO-8859-1");
+        } catch (IOException e) {
+            /*
+             * A pooled stream never fails and every platform has ISO-8859-1
+             * so this should never happen.
+             */
+            throw new IllegalStateException(e.toString());
+        } finally {
+            out.release();
+        }
+    }
+
+    /**
+     * Read the message out of an image and hand its bytes to a sink.  This
+     * makes one pass over the pixels and allocates nothing for each pixel or
+     * each batch of bytes, so it is the one to use for scanning lots of images.
+     *
+     * @param pixels the ARGB pixels of the image
+     * @param cols   the width of the image
+     * @param rows   the height of the image
+     * @param buffer the array to collect bytes in before we hand them to the
+     *               sink.  Pass the same one each time to reuse it or null to
+     *               borrow one from the pool.
+     * @param sink   where the bytes of the message go
+     *
+     * @return the length of the message or -1 if the image doesn't have one
+     * @exception IOException
+     *                   if the sink fails
+     */
+    public static int extractMessage(int[] pixels, int cols, int rows, byte[] buffer, ByteSink sink)
+        throws IOException
+    {
+        BufferPool pool = BufferPool.getPool();
+        MessageReader reader = new MessageReader(buffer != null ? buffer : pool.borrowBytes(MESSAGE_BUFFER), sink);
+        long examined = 0;
+        try {
+            int skipCount = 0;
+            for (int row = 1; row < rows; row++) {
+                int col = INSERTIONPOINT / row + 1;
+                int first = col;
+                for (int i = row * cols + col; col < cols; col++, i++) {
+                    if (skipCount-- == 0) {
+                        int pixel = pixels[i];
+                        int blue = pixel & LSB_MASK_READ;
+                        if (reader.add((pixel >> 16) & LSB_MASK_READ) ||
+                            reader.add((pixel >> 8) & LSB_MASK_READ) ||
+                            reader.add(blue)) {
+                            examined += col - first + 1;
+                            return reader.getLength();
+                        }
+                        skipCount = blue;
+                    }
+                }
+                examined += Math.max(col - first, 0);
+            }
+
+            /*
+             * We ran out of image before we found the terminator.
+             */
+            return -1;
+        } finally {
+            countPixels(examined);
+            if (buffer == null) {
+                pool.release(reader.m_buf);
+            }
+        }
+    }
+
+    /**
+     * Read the message out of an image and decode it with a character set.
+     *
+     * @param carrier the image with the message in it
+     * @param charset the name of the character set the message was written in
+     *
+     * @return the message or null if the image doesn't have one
+     * @exception IOException
+     *                   if the character set isn't supported
+     */
+    public static String decode(Carrier carrier, String charset)
+        throws IOException
+    {
+        BufferPool pool = BufferPool.getPool();
+        PooledOutputStream out = new PooledOutputStream(pool, MESSAGE_BUFFER);
+        try {
+            if (extractMessage(carrier.getPixels(), carrier.getWidth(), carrier.getHeight(), null, out) < 0) {
+                return null;
+            }
+
+            /*
+             * We only decode the characters once at the very end.
+             */
+            return new String(out.getBuffer(), 0, out.size(), charset);
+        } finally {
+            out.release();
+        }
+    }
+
+    /*
+     * This is how many bytes of the message we collect before we hand them
+     * to the sink.
+     */
+    private static final int MESSAGE_BUFFER = 256;
+
+    static String getMessage(int[][][] data, int cols, int rows)
+    {
+        /**
+         * This method is basically the opposite of the encodeMessage method.
+         * This method will take an image with a message encoded in it and 
+         * extract the message.  
+         * 
+         * We will calculate the skip count as we go along.  We know that the 
+         * first one is always zero.  
+         *
+         * We don't know when the message might end.  We can't be sure if we
+         * have hit the end of the message until we find the terminator
+         * character.  We don't want to parse the whole image because it can
+         * be very slow for large images.  To avoid this problem we put the
+         * two bit pairs back together into characters as we read them and
+         * stop as soon as we find the terminator.
+         */
+        BufferPool pool = BufferPool.getPool();
+        PooledOutputStream out = new PooledOutputStream(pool, MESSAGE_BUFFER);
+        MessageReader reader = new MessageReader(pool.borrowBytes(MESSAGE_BUFFER), out);
+        long examined = (long) rows * cols;
+        try {
+            int skipCount = 0;
+            for (int row=0; row < rows; row++) {
+                for (int col=0; col < cols; col++) {
+                    if ((row * col > INSERTIONPOINT) && (skipCount-- == 0)) {
+                        /*
+                         * Now we will read out the data two bits at a time.
+                         */
+                        if (reader.add(data[row][col][1] & LSB_MASK_READ) ||
+                            reader.add(data[row][col][2] & LSB_MASK_READ) ||
+                            reader.add(data[row][col][3] & LSB_MASK_READ)) {
+                            examined = (long) row * cols + col + 1;
+                            if (reader.getLength() < 0) {
+                                return null;
+                            }
+                            return new String(out.getBuffer(), 0, out.size(), "ISO-8859-1");
+                        }
+
+                        /*
+                         * We can figure out the skip count by looking at the 
+                         * last value we read out of the encoded data.
+                         */
+                        skipCount = data[row][col][3] & LSB_MASK_READ;
+                    }
+                }
+            }
+
+            return null;
+        } catch (IOException e) {
+            /*
+             * A pooled stream never fails and every platform has ISO-8859-1
+             * so this should never happen.
+             */
+            throw new IllegalStateException(e.toString());
+        } finally {
+            countPixels(examined);
+            pool.release(reader.m_buf);
+            out.release();
+        }
+    }
+
+    /*
+     * This class puts the two bit pairs back together into the bytes of the
+     * message as we read them.  The data was stored in three bit pairs a
+     * pixel, but we read it back four two bit pairs (one byte) at a time.
+     * Everything it needs is in its fields so it never allocates anything.
+     * WavCodec reads messages out of audio samples with it too.
+     */
+    static final class MessageReader
+    {
+        private final byte[] m_buf;
+        private final ByteSink m_sink;
+        private int m_count;
+        private int m_length;
+        private int m_element;
+        private int m_pairs;
+        private int m_startCharCount;
+
+        MessageReader(byte[] buf, ByteSink sink)
+        {
+            m_buf = buf;
+            m_sink = sink;
+        }
+
+        /*
+         * This method adds one two bit pair.  It returns true when we've
+         * found the end of the message or found out there isn't one.
+         */
+        boolean add(int pair)
+            throws IOException
+        {
+            /*
+             * Now we can shift and OR the pairs back to normal.
+             */
+            m_element |= pair << (2 * m_pairs);
+            if (++m_pairs < 4) {
+                return false;
+            }
+
+            byte element = (byte) m_element;
+            m_element = 0;
+            m_pairs = 0;
+
+            /*
+             * We want to make sure we are reading a valid string so we look for
+             * our special start sequence which is the byte value of ~~~.  This
+             * lets us give a good error message if the user tries to get a message
+             * out if an image that doesn't have one.
+             */
+            if (element == '~') {
+                m_startCharCount++;
+                return false;
+            }
+
+            /*
+             * If we didn't find our starting sequence then there is no reason to 
+             * read the rest of the data.
+             */
+            if (m_startCharCount < 3) {
+                m_length = -1;
+                return true;
+            }
+
+            /*
+             * Our terminator character is the byte value of !.  When we find that
+             * character we know we are done.
+             */
+            if (element == '!') {
+                flush();
+                return true;
+            }
+
+            /*
+             * All other characters are part of the message.
+             */
+            if (m_count == m_buf.length) {
+                flush();
+            }
+            m_buf[m_count++] = element;
+            return false;
+        }
+
+        private void flush()
+            throws IOException
+        {
+            m_sink.write(m_buf, 0, m_count);
+            m_length += m_count;
+            m_count = 0;
+        }
+
+        int getLength()
+        {
+            return m_length;
+        }
+    }
+}
@@ -54,6 +54,11 @@ public class StegTest extends JPanel implements ActionListener
      */
     private Image m_image;
 
+    /*
+     * These are the decoded pixels of the original image.
+     */
+    private Carrier m_carrier;
+
     /*
      * This is the width of our image.
      */
@@ -100,17 +105,26 @@ public class StegTest extends JPanel implements ActionListener
     private Image m_modImg;
 
     /*
-     * When we encode our write our string onto the image we need to
-     * change only the last two bits of the byte.  When we read the 
-     * String back we need to read only the last two bits of the byte.
-     * The problem is that those last two bits might already have 
-     * data in them.  This mask will clear out the data in the last
-     * two bits when we write and clear out all the rest of the data
-     * when we read.
+     * These are the ARGB pixels of our modified image.
      */
-    private static final int LSB_MASK_READ = 0x03;
-    private static final int LSB_MASK_WRITE = 0xFF & ~LSB_MASK_READ;         
-    
+    private int[] m_modData;
+
+    /*
+     * This is the message we encoded in our modified image.
+     */
+    private String m_modMessage;
+
+    /*
+     * If the original image is animated these are all of its frames.
+     */
+    private Animation m_animation;
+
+    /*
+     * This is the animated PNG with the encoded message when the original
+     * image is animated.
+     */
+    private byte[] m_modApng;
+
     public static StegTest getStegTest()
     {
         return ST;
@@ -368,12 +382,34 @@ public class StegTest extends JPanel implements ActionListener
                                               "No Available Image", JOptionPane.WARNING_MESSAGE);
                 return;
             }
+
+            if (m_animation != null) {
+                encodeAnimation();
+                return;
+            }
+            m_modApng = null;
+
+            StegCapacity.Fit fit = StegCapacity.checkMessage(m_imgWidth, m_imgHeight, m_message.getText());
+            if (!fit.fits()) {
+                /*
+                 * A message that is cut short loses its terminator and can't
+                 * be read back at all, so we turn it away like the command
+                 * line does.
+                 */
+                JOptionPane.showMessageDialog(this, "This message is too long for this image.  It needs " +
+                                              fit.getCandidatesNeeded() + " candidate pixels and the image only has " +
+                                              fit.getCandidates() + ".",
+                                              "Message Too Long", JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+
             /*
              * This is am image where we will draw the original image.  This image will
              * never be drawn on the screen, but we need this to get the int array of 
              * the image.
              */
-            BufferedImage buffImage = new BufferedImage(m_imgWidth, m_imgHeight, BufferedImage.TYPE_INT_ARGB);
+            BufferPool pool = BufferPool.getPool();
+            BufferedImage buffImage = pool.borrowImage(m_imgWidth, m_imgHeight);
 
             /*
              * Draw our image.
@@ -399,30 +435,40 @@ public class StegTest extends JPanel implements ActionListener
              * Having all of the data in a large single length array is difficult to work with
              * so we are going to break up the array into some more easily changed parts.
              */
-            int[][][] imageData3D = get3DArray(imageData, m_imgWidth, m_imgHeight);
+            int[][][] imageData3D = StegCore.get3DArray(imageData, m_imgWidth, m_imgHeight);
+            pool.release(buffImage);
 
             /*
              * Now that we have the three dimensional array we can create the encoded image
              * and convert it back to a one dimensional array.  This method will create a 
              * copy of the original image and change only the copy. 
              */
-            int[][][] encodedImg = encodeMessage(imageData3D, m_imgWidth, m_imgHeight, m_message.getText());
-            imageData = get1DArray(encodedImg, m_imgWidth, m_imgHeight);
+            int[][][] encodedImg = StegCore.encodeMessage(imageData3D, m_imgWidth, m_imgHeight, m_message.getText());
+            pool.release(imageData3D);
+            imageData = StegCore.get1DArray(encodedImg, m_imgWidth, m_imgHeight);
 
             /*
              * Now that we have the data of our new image we want to create an actual image
              * out of it so we can display it to the user.
              */
+            m_modData = imageData;
             m_modImg = createImage(new MemoryImageSource(m_imgWidth, m_imgHeight, imageData, 0, m_imgWidth));
             m_lblEncodedImage.setIcon(new ImageIcon(m_modImg));
 
+            pool.release(encodedImg);
+
             /*
              * The encoded image will look just like the original image so we also want to 
-             * get the message from the image and dispay it to the user so the user knows 
-             * that everything worked well.
-             * 
+             * show the user the message is really in there.  We only have to check the
+             * pixels the message went in, which is much faster than decoding the whole
+             * image again.
              */
-            m_extractedMessage.setText(getMessage(encodedImg, m_imgWidth, m_imgHeight));
+            m_modMessage = m_message.getText();
+            if (StegVerify.verify(imageData, m_imgWidth, m_imgHeight, m_modMessage)) {
+                m_extractedMessage.setText(m_modMessage);
+            } else {
+                m_extractedMessage.setText("The message was not encoded correctly.");
+            }
 
             /*
              * Last but not least we need to resize our frame since we added another image 
@@ -433,6 +479,35 @@ public class StegTest extends JPanel implements ActionListener
         }
     }
 
+    /*
+     * This method encodes the message across all of the frames of an animated
+     * image.  We show the first frame of the result and read the message back
+     * out of it the same way we do for still images.
+     */
+    private void encodeAnimation()
+    {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            AnimatedCodec.encode(m_animation, m_message.getText().getBytes("ISO-8859-1"), out);
+            m_modApng = out.toByteArray();
+
+            Animation encoded = AnimatedCodec.readApng(m_modApng);
+            m_modData = encoded.getFrame(0).getPixels();
+            m_modImg = createImage(new MemoryImageSource(encoded.getWidth(), encoded.getHeight(),
+                                                         m_modData, 0, encoded.getWidth()));
+            m_lblEncodedImage.setIcon(new ImageIcon(m_modImg));
+
+            byte[] payload = AnimatedCodec.decode(encoded);
+            m_extractedMessage.setText(payload == null ? "" : new String(payload, "ISO-8859-1"));
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, e.getMessage(), "Unable to Encode", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        doLayout();
+        m_mainFrame.pack();
+    }
+
     /*
      * This method will prompt the user to choose an image, read that image file, set it as
      * the icon for the original image label, and resize the frame so that the image is visible.
@@ -446,15 +521,18 @@ public class StegTest extends JPanel implements ActionListener
                 {
                     return name.endsWith(".jpg") ||
                         name.endsWith(".gif") ||
-                        name.endsWith(".png");
+                        name.endsWith(".png") ||
+                        name.endsWith(".qoi") ||
+                        name.endsWith(".pam");
                 }
             });
 
         dialog.setVisible(true);
 
-        String file = new File(dialog.getDirectory(), dialog.getFile()).getAbsolutePath();
+        String file = dialog.getFile();
 
         if (file != null) {
+            file = new File(dialog.getDirectory(), file).getAbsolutePath();
             m_imgPath = file;
             Image image = loadImage();
             if (image != null) {
@@ -479,9 +557,9 @@ public class StegTest extends JPanel implements ActionListener
                 public boolean accept(File dir, String name)
                 {
                     /*
-                     * We only save PNG files.
+                     * We only save PNG, QOI, and PAM files.
                      */
-                    return name.endsWith(".png");
+                    return name.endsWith(".png") || name.endsWith(".qoi") || name.endsWith(".pam");
                 }
             });
 
@@ -490,7 +568,11 @@ public class StegTest extends JPanel implements ActionListener
         String file = dialog.getFile();
 
         if (file != null) {
-            m_imgPath = file;
+            /*
+             * The dialog only gives us the name, so we need the directory too
+             * or we'd look for the file in the working directory.
+             */
+            m_imgPath = new File(dialog.getDirectory(), file).getAbsolutePath();
             Image image = loadImage();
             if (image != null) {
                 m_lblEncodedImage.setIcon(new ImageIcon(image));
@@ -512,11 +594,29 @@ public class StegTest extends JPanel implements ActionListener
          */
         m_lblImage.setIcon(null);
 
+        if (m_animation != null) {
+            /*
+             * Animated images hide the message across all of their frames.
+             */
+            try {
+                byte[] payload = AnimatedCodec.decode(m_animation);
+                m_extractedMessage.setText(payload != null ? new String(payload, "ISO-8859-1") :
+                                           "This image did not contain an encoded message.");
+            } catch (IOException e) {
+                m_extractedMessage.setText(e.getMessage());
+            }
+
+            doLayout();
+            m_mainFrame.pack();
+            return;
+        }
+
         /*
          * Now we will create a buffered image for use to get the message from.  We are creating
          * this buffered image so it uses the correct data format for us.
          */
-        BufferedImage buffImage = new BufferedImage(m_imgWidth, m_imgHeight, BufferedImage.TYPE_INT_ARGB);
+        BufferPool pool = BufferPool.getPool();
+        BufferedImage buffImage = pool.borrowImage(m_imgWidth, m_imgHeight);
         Graphics g = buffImage.getGraphics();
         g.drawImage(m_image, 0, 0, null);
 
@@ -530,12 +630,14 @@ public class StegTest extends JPanel implements ActionListener
          * No we want to break the data up into the more managable three dimensional
          * array.
          */
-        int[][][] imageData3D = get3DArray(imageData, m_imgWidth, m_imgHeight);
+        int[][][] imageData3D = StegCore.get3DArray(imageData, m_imgWidth, m_imgHeight);
+        pool.release(buffImage);
 
         /*
          * Then we will get the message out of the image pixel data.
          */
-        String message = getMessage(imageData3D, m_imgWidth, m_imgHeight);
+        String message = StegCore.getMessage(imageData3D, m_imgWidth, m_imgHeight);
+        pool.release(imageData3D);
 
         if (message != null) {
             m_extractedMessage.setText(message);
@@ -573,9 +675,10 @@ public class StegTest extends JPanel implements ActionListener
                 public boolean accept(File dir, String name)
                 {
                     /*
-                     * We only support PNG images
+                     * We only support PNG images and the raw QOI and PAM
+                     * images we pass between our own programs
                      */
-                    return name.endsWith(".png");
+                    return name.endsWith(".png") || name.endsWith(".qoi") || name.endsWith(".pam");
                 }
             });
 
@@ -591,32 +694,34 @@ public class StegTest extends JPanel implements ActionListener
         }
 
         /*
-         * We want to make sure the file has a .png extension
+         * We want to make sure the file has a .png extension, unless they
+         * asked for QOI or PAM
          */
-        if (!file.endsWith(".png")) {
+        if (!file.endsWith(".png") && !file.endsWith(".qoi") && !file.endsWith(".pam")) {
             file = file + ".png";
         }
+
+        /*
+         * Animations can only be saved as animated PNG files, so we change
+         * the extension if they asked for QOI or PAM.
+         */
+        if (m_modApng != null && !file.endsWith(".png")) {
+            file = file.substring(0, file.length() - 4) + ".png";
+        }
         
         File f = new File(dialog.getDirectory(), file);
         
         /*
-         * This is the buffered image we will use to draw our image with the encoded message.  Up to 
-         * this point we have always used TYPE_INT_ARGB.  We use that because it is an easy format
-         * to parse the data.  However, TYPE_INT_ARGB will create a CMYK (Cyan, Magenta, Yellow, and
-         * Black or key) image.  This image format doesn't work in most of the browsers and we want
-         * to create an image using the more popular RGB (Red, Green, Blue) format.
-         */
-        BufferedImage buffImage = new BufferedImage(m_imgWidth, m_imgHeight, BufferedImage.TYPE_INT_RGB);
-        Graphics g = buffImage.getGraphics();
-        g.drawImage(m_modImg, 0, 0, null);
-
-        /*
-         * Now that we have the image in the buffer we just need to write it to the disk
+         * Now that we have the image data we just need to write it to the disk
          */
         try {
             FileOutputStream out = new FileOutputStream(f);
             try {
-                ImageIO.write(buffImage, "png", out);
+                if (m_modApng != null) {
+                    out.write(m_modApng);
+                } else {
+                    StegCore.writeImage(m_modData, m_imgWidth, m_imgHeight, StegCore.getImageFormat(f), out);
+                }
             } finally {
                 /*
                  * We need to make sure to close our stream.
@@ -625,11 +730,56 @@ public class StegTest extends JPanel implements ActionListener
                     out.close();
                 }
             }
+
+            /*
+             * Read back the rows of the file the message is in to make sure
+             * it made it to the disk.
+             */
+            if (m_modApng == null && !StegVerify.verifyFile(f, m_modMessage)) {
+                JOptionPane.showMessageDialog(this, "The message did not save correctly in " + f + ".",
+                                              "Unable to save", JOptionPane.ERROR_MESSAGE);
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /*
+     * This method will show how easy it would be to tell the loaded image and the
+     * encoded image have hidden messages in them.
+     */
+    protected void analyzeImage()
+    {
+        if (m_carrier == null) {
+            JOptionPane.showMessageDialog(this, "You have to open an image before you can analyze it.",
+                                          "No Available Image", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+
+        StringBuffer report = new StringBuffer();
+        report.append("Loaded image - " + m_imgPath + "\n");
+        report.append(StegAnalysis.analyze(m_carrier.getPixels(), m_carrier.getWidth(), m_carrier.getHeight()));
+
+        if (m_modData != null) {
+            report.append("\nEncoded image\n");
+            report.append(StegAnalysis.analyze(m_modData, m_imgWidth, m_imgHeight));
+        }
+
+        JTextArea area = new JTextArea(report.toString());
+        area.setEditable(false);
+        area.setFont(new Font("Monospaced", Font.PLAIN, 12));
+        JOptionPane.showMessageDialog(this, area, "Image Analysis", JOptionPane.INFORMATION_MESSAGE);
+    }
+
+    /*
+     * This method opens the batch queue window where the user can drop lots of
+     * images to encode or decode at once.
+     */
+    protected void showBatchQueue()
+    {
+        BatchQueuePanel.showWindow(m_mainFrame);
+    }
+
     /*
      * This method will load the image to have a message encoded into it.
      */
@@ -649,9 +799,36 @@ public class StegTest extends JPanel implements ActionListener
 
         try {
             /*
-             * Now we read the actual image into memory.
+             * Now we read the actual image into memory.  The carrier cache
+             * will skip decoding the image if we've seen it before.
+             */
+            Carrier carrier = CarrierCache.getCache().get(new File(m_imgPath));
+            if (carrier == null) {
+                JOptionPane.showMessageDialog(this, "Unable to load the image at " + m_imgPath + ".", 
+                                              "Unable To Load Image", JOptionPane.ERROR_MESSAGE);
+                return null;
+            }
+            m_carrier = carrier;
+            m_image = carrier.toImage();
+
+            /*
+             * If the image is animated we keep all of its frames so we can
+             * spread the message across them.  We check first so still
+             * images aren't decoded a second time.
              */
-            m_image = ImageIO.read(new File(m_imgPath));
+            m_animation = null;
+            if (AnimatedCodec.isAnimated(new File(m_imgPath))) {
+                try {
+                    Animation animation = AnimatedCodec.read(new File(m_imgPath));
+                    m_animation = animation != null && animation.getFrameCount() > 1 ? animation : null;
+                } catch (IOException e) {
+                    /*
+                     * We can't read every kind of animation.  When we can't
+                     * we just use the first frame like any other image.
+                     */
+                    e.printStackTrace();
+                }
+            }
         } catch (IOException e) {
             e.printStackTrace();
             return null;
@@ -695,417 +872,4 @@ public class StegTest extends JPanel implements ActionListener
         return m_image;
     }
 
-    /*
-     * This method will take a one dimension array and break it up into a three dimensional
-     * array which is easier to work with.
-     */
-    private static int[][][] get3DArray(int[] imageData, int cols, int rows)
-    {
-        /*
-         * This is the array which will be populated with the pixel
-         * color data.  The array has a length of four with the 
-         * elements alpha data, red, green, and blue.
-         */
-        int[][][] data = new int[rows][cols][4];
-
-        for (int row = 0; row < rows; row++) {
-            /*
-             * We'll deal with each row separately.
-             */
-            int[] aRow = new int[cols];
-            for (int col = 0; col < cols; col++) {
-                int element = row * cols + col;
-                aRow[col] = imageData[element];
-            }
-
-            /*
-             * Now we want to move the data into the three dimensional
-             * array.  We will use the bitwise AND and bitwise right 
-             * operations to filter out all but the correct set of eight
-             * bits we are looking for.
-             */
-            for (int col = 0; col < cols; col++) {
-                /*
-                 * Alpha Data
-                 */
-                data[row][col][0] = (aRow[col] >> 24) & 0xFF;
-
-                /*
-                 * Red data
-                 */
-                data[row][col][1] = (aRow[col] >> 16) & 0xFF;
-
-                /*
-                 * Green data
-                 */
-                data[row][col][2] = (aRow[col] >> 8) & 0xFF;
-
-                /*
-                 * Blue data
-                 */
-                data[row][col][3] = (aRow[col]) & 0xFF;
-            }
-        }
-
-        return data;
-    }
-
-    /*
-     * This method will take our easy to work with three dimensional array and
-     * process it back into a one dimensional array so we can make it into 
-     * an actual image.  This is exaclty the opposite process of the get3DArray
-     * method.
-     */
-    private static int[] get1DArray(int[][][] imageData, int cols, int rows)
-    {
-        /*
-         * This one dimensional array will be populated with the pixel information
-         * in the three dimensional array.  This array will need to be large enough
-         * to hold four numbers for each pixel in the image.
-         */
-        int[] data = new int[cols * rows * 4];
-
-        /*
-         * Now we can move the pixel data back into the one dimensional array.
-         * we will use the bitwise OR operator and the left operator to put
-         * the four eight bit bytes into each int in the array.
-         */
-        for (int row = 0, count = 0; row < rows; row++) {
-            for (int col = 0;col < cols;col++) {
-                data[count] = ((imageData[row][col][0] << 24) & 0xFF000000)
-                               | ((imageData[row][col][1] << 16) & 0x00FF0000)
-                               | ((imageData[row][col][2] << 8) & 0x0000FF00)
-                               | ((imageData[row][col][3]) & 0x000000FF);
-                count++;
-            }
-        }
-        
-        return data;
-    }
-
-    private static final int INSERTIONPOINT = 4096;
-
-    private static int[][][] encodeMessage(int[][][] origData, int cols, int rows, String msg)
-    {
-        /*
-         * First we will make a copy so we don't change the original
-         * image.
-         */
-        int[][][] imgData = new int[rows][cols][4];
-        for (int row = 0;row < rows;row++) {
-            for (int col = 0;col < cols;col++) {
-                imgData[row][col][0] = origData[row][col][0];
-                imgData[row][col][1] = origData[row][col][1];
-                imgData[row][col][2] = origData[row][col][2];
-                imgData[row][col][3] = origData[row][col][3];
-            }
-        }
-
-        /*
-         * Each pixel has three two bit pairs of information, one for
-         * the red value, one for the green value, and one for the
-         * blue value.  We will store two bits ot information in each 
-         * of these values.  The first step is to convert the String
-         * into an array of bytes.  Java make space for two bytes 
-         * for every character in a string.  This is enough space
-         * to cover "wide" langauges like Japanese and Chinese.  
-         * However, that also makes every string twice as long.  Our
-         * sample will only support one byte for each character 
-         * which is long enough for all the ASCII or Latin-1 
-         * characters.  This makes the routine easier to handle and
-         * makes our footprint on the image even smaller.  
-         * 
-         * We could employ various schemes to make the space we need
-         * for each character even smaller, but that would reduce the
-         * number of characters we could support.  Latin-1 is 
-         * important because many encryption schemes represent 
-         * encrypted values in Latin-1 characters.  By supporting
-         * Latin-1 our program will support hiding encrypted data
-         * from many encryption schemes.
-         */
-        
-        byte[] msgBytes = null;
-        try {
-            msgBytes = msg.getBytes("ISO-8859-1");
-        } catch (UnsupportedEncodingException e) {
-            /*
-             * Java makes us catch this exception, but all platforms
-             * support ISO-8859-1 (which is code for Latin-1) so
-             * this exception should never be thrown.
-             */
-            e.printStackTrace();
-            return null;
-        }
-        
-
-        /*
-         * Each pixel can hold six bits of information.  However, 
-         * each of our characters contains 8 bits (one byte) of 
-         * information.  If we let the last byte run into the next
-         * siz bit section we could have a pixel where we only 
-         * changed the red value.  That would be a noticable change.
-         * We need to make sure our string will fill up an even
-         * number of RGB values.  8 bits - 6 = 2 remaining.  Add
-         * those to our next value means 10 bits - 6 = 4 remaining.
-         * Add those to our next value means 12 bits - 6 = 6 bits 
-         * remaining.  That means the rest of the 8 bits from that
-         * last character (6 bits) will fit into the next 6 bit
-         * RGB value.  So... we need to make sure that the length
-         * of our array of bytes is a multiple of three.
-         * 
-         * Instead of trying to track this later, it is easier to 
-         * just pad our array out to a multiple of three.  However,
-         * we need to take into account the fact that we are going
-         * to add a terminator character on the end so we really 
-         * need to pad it out until the length plus one is a multiple
-         * of three.  Since the byte value of ! is our terminator
-         * we can just pad with extra ! bytes and they will be ignored
-         * when they are read on the other end.
-         */
-        if ((msgBytes.length + 1 % 3 != 0)) {
-            int toAdd = (3 - (msgBytes.length % 3)) - 1;
-            byte tmpBytes[] = new byte[msgBytes.length + toAdd];
-            
-            for (int i = 0; i < toAdd; i++) {
-                tmpBytes[msgBytes.length + i] = (byte)'!';
-            }
-
-            System.arraycopy(msgBytes, 0, tmpBytes, 0, msgBytes.length);
-            msgBytes = tmpBytes;
-        }
-
-        /*
-         * We need to make sure we know our where our string starts
-         * and stops.  We will make sure our string starts with the 
-         * byte value of ~~~ and ends with the byte value of !.  This
-         * is how we will be sure we found our string.
-         */
-        byte tmpBytes[] = new byte[msgBytes.length + 4];
-        tmpBytes[0] = '~';
-        tmpBytes[1] = '~';
-        tmpBytes[2] = '~';
-        tmpBytes[msgBytes.length + 3] = (byte)'!';
-        System.arraycopy(msgBytes, 0, tmpBytes, 3, msgBytes.length);
-        msgBytes = tmpBytes;
-        
-        /*
-         * Now that we have the right number of bytes we need to split
-         * them up into two bit chunks.  This will result in an array
-         * which is four times longer than we started with.  This is
-         * why we don't support unicode.  If we did the array would
-         be 8 times longer.  
-         */
-        byte[] twoBitData = new byte[4 * msgBytes.length];
-
-        /*
-         * We want to break each 8 bit sequence into two bit pairs.  
-         * This means we need to take first bits 1-2, then 3-4, then
-         * 5-6, and then 7-8.  We do this by shifting first 0 then 2, 
-         * then 4, then 6 places.  We will also mask the bits so they 
-         * are value RGB values.
-         */
-        int twoBitCount = 0;
-        for (byte element:msgBytes) {
-            twoBitData[twoBitCount++] = (byte) (element & LSB_MASK_READ);
-            twoBitData[twoBitCount++] = (byte) ((element >> 2) & LSB_MASK_READ);
-            twoBitData[twoBitCount++] = (byte) ((element >> 4) & LSB_MASK_READ);
-            twoBitData[twoBitCount++] = (byte) ((element >> 6) & LSB_MASK_READ);
-        }
-
-        /*
-         * At this point we have finished encoding our string, but we
-         * haven't added it to the image yet.  Now we will actually
-         * change the pixels values and encode out message.
-         * 
-         * We will start adding our values at a predefined insertion
-         * point.  We don't want to start right at the beginning
-         * since that might be more noticeable.  We could make our
-         * application even more secure by making the user specify
-         * the insertion point, but this application is about
-         * obscurity rather than security so we will just have a set
-         * insertion point. 
-         * 
-         * We don't want to edit all of our pixels all in a row since
-         * that would also be more noticeable.  We will use the last
-         * value of the six bits as the skip value to make things a 
-         * little more difficult to detect
-         */
-        int skipCount = 0;
-
-        /*
-         * Now we can actually encode our values.
-         */
-        twoBitCount = 0;
-        for (int row = 0; row < rows; row++) {
-            for (int col = 0; col < cols; col++) {
-                /*
-                 * We want to embed siz bits in each RGB value
-                 * and then skip ahead based on the last two bits
-                 * of that value.  We know that our byte array will
-                 * work well with this scheme since we padded it
-                 * out before we encoded our string.
-                 */
-                if ((row * col > INSERTIONPOINT) && 
-                    (twoBitCount < twoBitData.length) && 
-                    skipCount-- == 0) {
-                    /*
-                     * We want to replace the two least significant bits of
-                     * red, green, and blue values with our value.  The least
-                     * significant bits are the last bits of the byte and 
-                     * replacing them will cause the smallest visual change
-                     * in the color.
-                     */
-                    imgData[row][col][1] = (imgData[row][col][1] & LSB_MASK_WRITE) | twoBitData[twoBitCount++];
-                    imgData[row][col][2] = (imgData[row][col][2] & LSB_MASK_WRITE) | twoBitData[twoBitCount++];
-                    imgData[row][col][3] = (imgData[row][col][3] & LSB_MASK_WRITE) | twoBitData[twoBitCount++];
-
-                    /*
-                     * The last step is to see how many pixels we will skip 
-                     * before changing the next pixel
-                     */
-                    skipCount = twoBitData[twoBitCount - 1];
-                }
-            }
-        }
-
-        return imgData;
-    }
-
-    /*
-     * This value must be a multiple of both three and four so we
-     * can parse each RGB value in threes and each byte value in 
-     * fours and make sure we get a whole character each time.
-     */
-    private static final int BUFFER_LENGTH = 768;
-
-    private static int m_startCharCount = 0;
-    private static boolean m_foundTerminator = false;
-
-    private static String getMessage(int[][][] data, int cols, int rows)
-    {
-        /**
-         * This method is basically the opposite of the encodeMessage method.
-         * This method will take an image with a message encoded in it and 
-         * extract the message.  
-         * 
-         * We will calculate the skip count as we go along.  We know that the 
-         * first one is always zero.  
-         * 
-         */
-        int skipCount = 0;
-        int twoBitCount = 0;
-        m_startCharCount = 0;
-        m_foundTerminator = false;
-        
-        /*
-         * We don't know when the value might end, so we will create an array
-         * large enough to hold the largest possible string this image could
-         * hold.  We can't be sure if we have hit the end of the message until
-         * we find the terminator character.  However, we can't figure out if we
-         * have found the terminator character until we can reassemble the byte
-         * value.  We don't want to parse the whole image because it can be very
-         * slow for large images.  To avoid this problem we will parse a chunk
-         * of the bytes, reassemble the characters so we can find the terminator,
-         * and then parse some more.
-         *
-         * We need to initialize an array big enough to hold all of that data.
-         * That will be three times as large as the image because each pixel
-         * holds three two bit pairs of information.
-         */
-        byte[] twoBitData = new byte[(rows * cols - INSERTIONPOINT) * 3];
-        int byteCount = 0;
-        StringBuffer message = new StringBuffer();
-        for (int row=0; row < rows; row++) {
-            for (int col=0; col < cols; col++) {
-                if ((row * col > INSERTIONPOINT) && (skipCount-- == 0)) {
-                    /*
-                     * Now we will read out the data two bits at a time.
-                     */
-                    twoBitData[twoBitCount++] = (byte) (data[row][col][1] & LSB_MASK_READ);
-                    twoBitData[twoBitCount++] = (byte) (data[row][col][2] & LSB_MASK_READ);
-                    twoBitData[twoBitCount++] = (byte) (data[row][col][3] & LSB_MASK_READ);
-
-                    byteCount += 3;
-
-                    /*
-                     * We can figure out the skip count by looking at the 
-                     * last value we read out of the encoded data.
-                     */
-                    skipCount = twoBitData[twoBitCount - 1];
-
-                    if ((byteCount % BUFFER_LENGTH) == 0) {
-                        message.append(decodeString(twoBitData, twoBitCount - BUFFER_LENGTH, twoBitCount));
-                        if (m_foundTerminator) {
-                            return message.toString();
-                        }
-                    }
-                }
-            }
-        }
-
-        return null;
-    }
-
-    private static String decodeString(byte[] twoBitData, int start, int end)
-    {
-        /*
-         * At this point the array twoBitData should be filled with all of the 
-         * two bit pairs in the image after the insertion point.  This will 
-         * include the encoded message and also a lot of junk from all the pixels
-         * after the encoded string.  We now need to create characters after all
-         * the data until the terminator character.
-         */
-        StringBuffer message = new StringBuffer();
-        int twoBitCount = start;
-
-        /*
-         * The data was stored in three bit pairs, but now we have extracted it so
-         * we can we can read through it four two bit pairs (one byte) at a time.
-         */
-        for (int i = start; i < end; i += 4) {
-            /*
-             * Now we can shift and OR the pairs back to normal;
-             */
-            byte element = (byte) twoBitData[twoBitCount++];
-            element = (byte) (element | (twoBitData[twoBitCount++] << 2));
-            element = (byte) (element | (twoBitData[twoBitCount++] << 4));
-            element = (byte) (element | (twoBitData[twoBitCount++] << 6));
-
-            /*
-             * We want to make sure we are reading a valid string so we look for
-             * our special start sequence which is the byte value of ~~~.  This
-             * lets us give a good error message if the user tries to get a message
-             * out if an image that doesn't have one.
-             */
-            if (element == '~') {
-                m_startCharCount++;
-                continue;
-            }
-            
-            /*
-             * If we didn't find our starting sequence then there is no reason to 
-             * read the rest of the data.
-             */
-            if (m_startCharCount < 3) {
-                return null;
-            }
-
-            /*
-             * Our terminator character is the byte value of !.  When we find that
-             * character we know we are done.
-             */
-            if (element == '!') {
-                m_foundTerminator = true;
-                break;
-            }
-
-            /*
-             * All other characters are part of the message.
-             */
-            message.append((char)(element));
-        }
-
-        return message.toString();
-    }
-
 }
@@ -0,0 +1,214 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest;
+
+import java.util.*;
+import java.util.zip.*;
+
+import java.io.*;
+
+import java.awt.image.*;
+
+/*
+ * This class checks that an encoded image really holds the message we put in
+ * it.  The old way was to decode the whole image again, which costs as much as
+ * the image is big even when the message is a few bytes.
+ *
+ * The pixels a message goes in only depend on the message, so we walk the
+ * same pixels embedPairs did and check just those.  That costs about as much
+ * as the message is long.  For a PNG we already wrote we only inflate the rows
+ * down to the last one the message reaches and stop reading the file there.
+ */
+public class StegVerify
+{
+    private static final byte[] PNG_SIGNATURE = {(byte) 137, 'P', 'N', 'G', '\r', '\n', 26, '\n'};
+    private static final int IHDR = 0x49484452;
+    private static final int IDAT = 0x49444154;
+    private static final int IEND = 0x49454E44;
+
+    private StegVerify()
+    {
+        /*
+         * Everything here is static so no one should create one of these.
+         */
+    }
+
+    /**
+     * Check that encoded pixels hold a message.  Only the pixels the message
+     * went in are read.
+     *
+     * @param pixels the ARGB pixels of the encoded image
+     * @param cols   the width of the image
+     * @param rows   the height of the image
+     * @param msg    the message that was encoded
+     *
+     * @return true if every pair of the message is where it should be
+     */
+    public static boolean verify(int[] pixels, int cols, int rows, String msg)
+    {
+        byte[] msgBytes = StegCore.frameMessage(msg);
+        byte[] twoBitData = StegCore.splitTwoBits(msgBytes, msgBytes.length);
+        try {
+            /*
+             * verifyPairs stops early when it runs out of pixels, so we have
+             * to make sure it got all the way to the end of the message.
+             */
+            return StegCore.verifyPairs(pixels, cols, rows, twoBitData, 4 * msgBytes.length) == 4 * msgBytes.length;
+        } finally {
+            BufferPool.getPool().release(twoBitData);
+        }
+    }
+
+    /**
+     * Check that an encoded image file holds a message.  For the PNG files we
+     * write only the rows the message is in are decoded.  Other images are
+     * decoded the regular way.
+     *
+     * @param f      the encoded image
+     * @param msg    the message that was encoded
+     *
+     * @return true if every pair of the message is where it should be
+     * @exception IOException
+     *                   if the file can't be read or is damaged
+     */
+    public static boolean verifyFile(File f, String msg)
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 64 * 1024));
+        try {
+            byte[] signature = new byte[PNG_SIGNATURE.length];
+            in.readFully(signature);
+            if (!Arrays.equals(signature, PNG_SIGNATURE)) {
+                return verifyDecoded(f, msg);
+            }
+
+            if (in.readInt() != 13 || in.readInt() != IHDR) {
+                throw new IOException(f + " is damaged");
+            }
+
+            int cols = in.readInt();
+            int rows = in.readInt();
+            int depth = in.readUnsignedByte();
+            int color = in.readUnsignedByte();
+            in.readUnsignedByte();
+            in.readUnsignedByte();
+            int interlace = in.readUnsignedByte();
+            in.readInt();
+
+            if (depth != 8 || (color != 2 && color != 6) || interlace != 0 || cols <= 0 || rows <= 0) {
+                /*
+                 * We didn't write this one, so we let ImageIO sort it out.
+                 */
+                return verifyDecoded(f, msg);
+            }
+
+            int needed = Math.min(rows, StegCapacity.checkMessage(cols, rows, msg).getLastRow() + 1);
+            int[] pixels = readRows(in, cols, needed, color == 6 ? 4 : 3);
+            return verify(pixels, cols, needed, msg);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean verifyDecoded(File f, String msg)
+        throws IOException
+    {
+        BufferedImage image = ImageInput.read(f);
+        if (image == null) {
+            throw new IOException("Unable to read the image at " + f);
+        }
+
+        Carrier carrier = Carrier.fromImage(image);
+        return verify(carrier.getPixels(), carrier.getWidth(), carrier.getHeight(), msg);
+    }
+
+    /*
+     * Inflate the first rows of the image data.  The stream is just past the
+     * header.  We stop reading as soon as we have the rows we need.
+     */
+    private static int[] readRows(DataInputStream in, int cols, int rows, int bytesPerPixel)
+        throws IOException
+    {
+        int[] pixels = new int[cols * rows];
+        byte[] row = new byte[cols * bytesPerPixel + 1];
+        byte[] prior = new byte[row.length];
+        byte[] chunk = new byte[0];
+        CRC32 crc = new CRC32();
+        Inflater inflater = new Inflater();
+        try {
+            int y = 0;
+            int filled = 0;
+            while (y < rows) {
+                if (inflater.needsInput()) {
+                    int length = in.readInt();
+                    int type = in.readInt();
+                    if (type == IEND) {
+                        throw new IOException("The image data is cut short");
+                    } else if (type != IDAT) {
+                        in.skipBytes(length + 4);
+                        continue;
+                    }
+
+                    if (chunk.length < length) {
+                        chunk = new byte[length];
+                    }
+                    in.readFully(chunk, 0, length);
+
+                    crc.reset();
+                    crc.update(type >>> 24);
+                    crc.update(type >>> 16);
+                    crc.update(type >>> 8);
+                    crc.update(type);
+                    crc.update(chunk, 0, length);
+                    if ((int) crc.getValue() != in.readInt()) {
+                        throw new IOException("The image data is damaged");
+                    }
+
+                    inflater.setInput(chunk, 0, length);
+                    continue;
+                }
+
+                int n = inflater.inflate(row, filled, row.length - filled);
+                if (n == 0 && (inflater.finished() || inflater.needsDictionary())) {
+                    throw new IOException("The image data is cut short");
+                }
+                filled += n;
+                if (filled < row.length) {
+                    continue;
+                }
+
+                AnimatedCodec.unfilter(row, prior, bytesPerPixel);
+                for (int i = 1, p = y * cols; i < row.length; i += bytesPerPixel) {
+                    int alpha = bytesPerPixel == 4 ? row[i + 3] & 0xFF : 0xFF;
+                    pixels[p++] = (alpha << 24) | ((row[i] & 0xFF) << 16) | ((row[i + 1] & 0xFF) << 8) |
+                        (row[i + 2] & 0xFF);
+                }
+
+                byte[] swap = prior;
+                prior = row;
+                row = swap;
+                filled = 0;
+                y++;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("The image data is damaged");
+        } finally {
+            inflater.end();
+        }
+
+        return pixels;
+    }
+}
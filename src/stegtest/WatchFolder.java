@@ -0,0 +1,525 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import java.io.*;
+import java.nio.file.*;
+
+import java.awt.image.*;
+
+/*
+ * This is a daemon that watches a directory and handles each file as soon as
+ * it shows up, instead of rescanning the whole tree every few minutes.
+ *
+ * Two kinds of files are handled:
+ *
+ *     *.jobs   job files with one WorkQueue job on each line.  Every line is
+ *              run the same way a queue worker would run it.
+ *     images   JPEG, PNG, GIF, BMP, QOI, and PAM files.  The message in the image is
+ *              written to a .txt file in the output directory at the same
+ *              place in the tree.
+ *
+ * The operating system tells us when a file is created or changed.  A file
+ * that is still being written changes many times, so we wait until it has been
+ * quiet for a little while before we touch it.  That is a quarter of a second
+ * by default and can be set with the stegtest.watch.quietMillis system
+ * property.  Files named *.tmp or *.part and files starting with a dot are
+ * left alone so the usual write and rename tricks work too.
+ *
+ * Each file we finish goes in a journal in the output directory with its size
+ * and modification time.  After a restart we look at the tree once and only
+ * handle files that aren't in the journal or have changed since.  The journal
+ * only grows by one line for each file and we compact it when we start and
+ * whenever it gets much bigger than the number of files in it.  The only other
+ * time we look at a whole directory is when the operating system tells us it
+ * lost track of the events for it.
+ */
+public class WatchFolder
+{
+    private static final long QUIET_MILLIS = Long.getLong("stegtest.watch.quietMillis", 250).longValue();
+    private static final String JOURNAL_NAME = ".stegtest-journal";
+    private static final String JOB_SUFFIX = ".jobs";
+
+    private final Path m_inbox;
+    private final Path m_outDir;
+    private final File m_journalFile;
+    private final WatchService m_watcher;
+
+    private final HashMap<WatchKey, Path> m_keys = new HashMap<WatchKey, Path>();
+
+    /*
+     * These are the files we've heard about and haven't handled yet, with
+     * the time they go quiet and the time we first heard about them.  Only
+     * the watch thread uses them.
+     */
+    private final HashMap<Path, Long> m_due = new HashMap<Path, Long>();
+    private final HashMap<Path, Long> m_seen = new HashMap<Path, Long>();
+
+    private final Set<Path> m_running = Collections.synchronizedSet(new HashSet<Path>());
+
+    /*
+     * The journal maps each file we've handled to the size and modification
+     * time it had when we did.
+     */
+    private final HashMap<String, String> m_journal = new HashMap<String, String>();
+    private Writer m_journalOut;
+    private int m_journalLines;
+
+    private final AtomicLong m_handled = new AtomicLong();
+    private final AtomicLong m_failed = new AtomicLong();
+
+    /**
+     * Create a watch folder.
+     *
+     * @param inbox  the directory to watch
+     * @param outDir the directory to write the messages and the journal to.
+     *               It can be inside the inbox.  We ignore it if it is.
+     *
+     * @exception IOException
+     *                   if the directories or the journal can't be used
+     */
+    public WatchFolder(File inbox, File outDir)
+        throws IOException
+    {
+        m_inbox = inbox.getAbsoluteFile().toPath().normalize();
+        if (!Files.isDirectory(m_inbox)) {
+            throw new IOException(inbox + " is not a directory");
+        }
+
+        outDir.mkdirs();
+        m_outDir = outDir.getAbsoluteFile().toPath().normalize();
+        m_journalFile = new File(outDir, JOURNAL_NAME);
+        m_watcher = FileSystems.getDefault().newWatchService();
+
+        loadJournal();
+    }
+
+    /**
+     * Watch the directory and handle files as they come in.  This only
+     * returns if it is interrupted or the directory goes away.
+     *
+     * @param threads the number of files to handle at the same time
+     *
+     * @exception IOException
+     *                   if we can't watch the directory or write the journal
+     * @exception InterruptedException
+     *                   if we are interrupted
+     */
+    public void run(int threads)
+        throws IOException, InterruptedException
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(threads, 1), new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "stegtest-watch");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+        try {
+            /*
+             * We register the tree before we look at it so nothing that
+             * shows up in between gets missed.  Anything we see twice is
+             * only handled once.
+             */
+            watchTree(m_inbox);
+            System.err.println("Watching " + m_inbox + ", " + m_due.size() + " files to catch up on");
+
+            while (!m_keys.isEmpty()) {
+                long now = System.currentTimeMillis();
+                long next = Long.MAX_VALUE;
+                for (Long due : m_due.values()) {
+                    next = Math.min(next, due.longValue());
+                }
+
+                WatchKey key;
+                if (next == Long.MAX_VALUE) {
+                    key = m_watcher.take();
+                } else {
+                    key = m_watcher.poll(Math.max(next - now, 0), TimeUnit.MILLISECONDS);
+                }
+
+                while (key != null) {
+                    handleEvents(key);
+                    key = m_watcher.poll();
+                }
+
+                dispatch(pool);
+            }
+        } catch (ClosedWatchServiceException e) {
+            /*
+             * Someone closed us.
+             */
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+            synchronized (this) {
+                if (m_journalOut != null) {
+                    m_journalOut.close();
+                    m_journalOut = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop watching.  Files that are being handled are finished first.
+     */
+    public void close()
+        throws IOException
+    {
+        m_watcher.close();
+    }
+
+    public String toString()
+    {
+        return "WatchFolder[handled=" + m_handled.get() + ", failed=" + m_failed.get() + "]";
+    }
+
+    private void handleEvents(WatchKey key)
+        throws IOException
+    {
+        Path dir = m_keys.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (dir == null) {
+                break;
+            }
+
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                /*
+                 * Too much happened at once and the operating system lost
+                 * track of it.  This is the one time we look at the whole
+                 * directory again.
+                 */
+                watchTree(dir);
+                continue;
+            }
+
+            Path child = dir.resolve((Path) event.context());
+            if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    /*
+                     * Files can be written to a new directory before we get
+                     * around to watching it, so we look at what is already
+                     * in it.
+                     */
+                    watchTree(child);
+                }
+            } else if (isWanted(child)) {
+                schedule(child);
+            }
+        }
+
+        if (!key.reset()) {
+            m_keys.remove(key);
+        }
+    }
+
+    /*
+     * Watch a directory and everything under it and schedule the files in it
+     * that we haven't handled.
+     */
+    private void watchTree(Path root)
+        throws IOException
+    {
+        if (root.startsWith(m_outDir)) {
+            return;
+        }
+
+        m_keys.put(root.register(m_watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                                 StandardWatchEventKinds.ENTRY_MODIFY), root);
+
+        DirectoryStream<Path> children = Files.newDirectoryStream(root);
+        try {
+            for (Path child : children) {
+                if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                    watchTree(child);
+                } else if (isWanted(child) && !isDone(child)) {
+                    schedule(child);
+                }
+            }
+        } finally {
+            children.close();
+        }
+    }
+
+    private void schedule(Path file)
+    {
+        long now = System.currentTimeMillis();
+        m_due.put(file, now + QUIET_MILLIS);
+        if (!m_seen.containsKey(file)) {
+            m_seen.put(file, now);
+        }
+    }
+
+    /*
+     * Hand every file that has been quiet long enough to the pool.
+     */
+    private void dispatch(ExecutorService pool)
+    {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Path, Long>> it = m_due.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, Long> e = it.next();
+            if (e.getValue().longValue() > now) {
+                continue;
+            }
+
+            final Path file = e.getKey();
+            if (m_running.contains(file)) {
+                /*
+                 * It changed while we were handling it.  We'll do it again
+                 * when we're done with the old version.
+                 */
+                e.setValue(now + QUIET_MILLIS);
+                continue;
+            }
+
+            it.remove();
+            final long seen = m_seen.remove(file).longValue();
+            if (!Files.isRegularFile(file) || isDone(file)) {
+                continue;
+            }
+
+            m_running.add(file);
+            pool.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        try {
+                            handle(file, seen);
+                        } finally {
+                            m_running.remove(file);
+                        }
+                    }
+                });
+        }
+    }
+
+    /*
+     * Handle one file.  This runs on the pool.
+     */
+    private void handle(Path file, long seen)
+    {
+        File f = file.toFile();
+        String stamp = getStamp(f);
+        String status;
+        try {
+            if (f.getName().endsWith(JOB_SUFFIX)) {
+                status = runJobs(f);
+            } else {
+                status = decode(f);
+            }
+            m_handled.incrementAndGet();
+        } catch (Exception e) {
+            m_failed.incrementAndGet();
+            status = "failed";
+            try {
+                WorkQueue.writeAtomically(getOutput(file, ".err"), (e + "\n").getBytes("UTF-8"));
+            } catch (IOException ioe) {
+                /*
+                 * The journal still says it failed so we don't keep trying.
+                 */
+            }
+        }
+
+        /*
+         * If the file changed while we were handling it we leave it out of
+         * the journal.  Its change event is already on the way.
+         */
+        if (stamp.equals(getStamp(f))) {
+            try {
+                journal(f.getPath(), stamp, status);
+            } catch (IOException e) {
+                System.err.println("Unable to write the journal: " + e);
+            }
+        }
+
+        System.err.println(m_inbox.relativize(file) + ": " + status + " in " +
+                           (System.currentTimeMillis() - seen) + " ms");
+    }
+
+    private String runJobs(File f)
+        throws IOException
+    {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+        StringBuffer errors = new StringBuffer();
+        int count = 0;
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+
+                count++;
+                try {
+                    WorkQueue.runJob(line);
+                } catch (Exception e) {
+                    errors.append(line).append('\n').append(e).append('\n');
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        if (errors.length() > 0) {
+            throw new IOException("Some of the " + count + " jobs failed:\n" + errors);
+        }
+
+        return count + " jobs";
+    }
+
+    private String decode(File f)
+        throws IOException
+    {
+        /*
+         * Each image only comes through once so we don't put it in the
+         * carrier cache.
+         */
+        BufferedImage image = ImageInput.read(f);
+        if (image == null) {
+            throw new IOException("Unable to read the image at " + f);
+        }
+
+        Carrier carrier = Carrier.fromImage(image);
+        String message = StegCore.decode(carrier);
+        if (message == null) {
+            return "no message";
+        }
+
+        WorkQueue.writeAtomically(getOutput(f.toPath(), ".txt"), message.getBytes("ISO-8859-1"));
+        return "decoded";
+    }
+
+    private File getOutput(Path file, String suffix)
+    {
+        File out = new File(m_outDir.resolve(m_inbox.relativize(file)).toString() + suffix);
+        out.getParentFile().mkdirs();
+        return out;
+    }
+
+    private boolean isWanted(Path file)
+    {
+        if (file.startsWith(m_outDir)) {
+            return false;
+        }
+
+        String name = file.getFileName().toString().toLowerCase();
+        if (name.startsWith(".") || name.endsWith(".tmp") || name.endsWith(".part")) {
+            return false;
+        }
+
+        return name.endsWith(JOB_SUFFIX) || name.endsWith(".jpg") || name.endsWith(".jpeg") ||
+            name.endsWith(".png") || name.endsWith(".gif") || name.endsWith(".bmp") || name.endsWith(".qoi") ||
+            name.endsWith(".pam");
+    }
+
+    private synchronized boolean isDone(Path file)
+    {
+        File f = file.toFile();
+        return getStamp(f).equals(m_journal.get(f.getPath()));
+    }
+
+    private static String getStamp(File f)
+    {
+        return f.length() + ":" + f.lastModified();
+    }
+
+    /*
+     * Each journal line is the size and modification time, the status, and
+     * the path separated by tabs.  A later line for the same path replaces
+     * an earlier one.
+     */
+    private synchronized void journal(String path, String stamp, String status)
+        throws IOException
+    {
+        m_journal.put(path, stamp);
+        m_journalOut.write(stamp + "\t" + status + "\t" + path + "\n");
+        m_journalOut.flush();
+
+        if (++m_journalLines > 2 * m_journal.size() + 1000) {
+            compactJournal();
+        }
+    }
+
+    private void loadJournal()
+        throws IOException
+    {
+        if (m_journalFile.exists()) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(m_journalFile), "UTF-8"));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] fields = line.split("\t", 3);
+                    if (fields.length == 3) {
+                        m_journal.put(fields[2], fields[0]);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        compactJournal();
+    }
+
+    /*
+     * Write the journal again with one line for each file that is still
+     * there.  We write it to a temporary file and rename it so a crash never
+     * loses the journal.
+     */
+    private synchronized void compactJournal()
+        throws IOException
+    {
+        if (m_journalOut != null) {
+            m_journalOut.close();
+        }
+
+        Iterator<String> it = m_journal.keySet().iterator();
+        while (it.hasNext()) {
+            if (!new File(it.next()).exists()) {
+                it.remove();
+            }
+        }
+
+        File tmp = new File(m_journalFile.getPath() + ".tmp");
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+        try {
+            for (Map.Entry<String, String> e : m_journal.entrySet()) {
+                out.write(e.getValue() + "\tdone\t" + e.getKey() + "\n");
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(m_journalFile)) {
+            m_journalFile.delete();
+            if (!tmp.renameTo(m_journalFile)) {
+                throw new IOException("Unable to write " + m_journalFile);
+            }
+        }
+
+        m_journalLines = m_journal.size();
+        m_journalOut = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(m_journalFile, true), "UTF-8"));
+    }
+}
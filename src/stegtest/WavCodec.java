@@ -0,0 +1,425 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/*
+ * This class hides messages in PCM WAV audio files.  The samples of a WAV file
+ * take the place of the red, green, and blue values of a pixel.  Every three
+ * samples are a group and everything else works just like an image.  We skip
+ * the first 4096 groups, put two bits of the message in the two least
+ * significant bits of each sample in a group, and skip ahead by the value of
+ * the last two bits.  The samples are little endian, so those bits are always
+ * in the first byte of the sample no matter how big it is.  In a 16 bit sample
+ * a change in the last two bits is far too quiet to hear.
+ *
+ * We never read the samples into the heap.  The data chunk is mapped into
+ * memory a window at a time and the message is written right into the mapped
+ * file.  Only the pages the message touches are ever read from the disk, so a
+ * recording that is hours long costs no more memory or time than a short one,
+ * apart from the copy when we encode into a new file.
+ */
+public class WavCodec
+{
+    /*
+     * The groups before this one are never changed, the same as the pixels
+     * before the insertion point in an image.
+     */
+    private static final int INSERTIONPOINT = StegCore.INSERTIONPOINT;
+
+    /*
+     * We map this much of the data chunk at a time.  Windows keep the address
+     * space we use small and let us work on files too big for one mapping.
+     */
+    private static final long WINDOW_BYTES = 64L * 1024 * 1024;
+
+    private static final int FORMAT_PCM = 1;
+    private static final int FORMAT_EXTENSIBLE = 0xFFFE;
+
+    private WavCodec()
+    {
+        /*
+         * Everything here is static so no one should create one of these.
+         */
+    }
+
+    /**
+     * Get the longest message that always fits in a WAV file.
+     *
+     * @param wav    the WAV file
+     *
+     * @return the length of the message in bytes
+     * @exception IOException
+     *                   if the file can't be read or isn't PCM audio
+     */
+    public static long getCapacity(File wav)
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(wav, "r");
+        try {
+            Layout layout = readLayout(raf.getChannel());
+
+            /*
+             * In the worst case every group is followed by three skipped
+             * groups.  Three bytes take four groups and the terminator and
+             * start sequence take four bytes.
+             */
+            long fit = (getCandidates(layout) / 16) * 3 - 4;
+            return Math.max(fit, 0);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Copy a WAV file and hide a message in the copy.  If the two files are
+     * the same the message is written in place without a copy.
+     *
+     * @param in     the carrier file
+     * @param out    the file to write
+     * @param msg    the message
+     *
+     * @exception IOException
+     *                   if the message doesn't fit or the files can't be used
+     */
+    public static void encode(File in, File out, String msg)
+        throws IOException
+    {
+        /*
+         * We check first so we don't copy a huge file for nothing.
+         */
+        RandomAccessFile raf = new RandomAccessFile(in, "r");
+        try {
+            checkFit(readLayout(raf.getChannel()), msg);
+        } finally {
+            raf.close();
+        }
+
+        if (in.getCanonicalFile().equals(out.getCanonicalFile())) {
+            embed(out, msg);
+            return;
+        }
+
+        /*
+         * The operating system can copy the file without it ever coming
+         * into the JVM.
+         */
+        FileInputStream src = new FileInputStream(in);
+        try {
+            FileOutputStream dest = new FileOutputStream(out);
+            try {
+                FileChannel from = src.getChannel();
+                FileChannel to = dest.getChannel();
+                long size = from.size();
+                for (long pos = 0; pos < size; ) {
+                    pos += from.transferTo(pos, size - pos, to);
+                }
+            } finally {
+                dest.close();
+            }
+        } finally {
+            src.close();
+        }
+
+        embed(out, msg);
+    }
+
+    /**
+     * Hide a message in a WAV file in place.
+     *
+     * @param wav    the file to change
+     * @param msg    the message
+     *
+     * @exception IOException
+     *                   if the message doesn't fit or the file can't be used
+     */
+    public static void embed(File wav, String msg)
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(wav, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            Layout layout = readLayout(channel);
+            checkFit(layout, msg);
+
+            byte[] msgBytes = StegCore.frameMessage(msg);
+            int twoBitLength = 4 * msgBytes.length;
+            byte[] twoBitData = StegCore.splitTwoBits(msgBytes, msgBytes.length);
+            Window window = new Window(channel, FileChannel.MapMode.READ_WRITE, layout);
+            try {
+                int skipCount = 0;
+                int twoBitCount = 0;
+                for (long group = INSERTIONPOINT + 1; group < layout.m_groups && twoBitCount < twoBitLength;
+                     group++) {
+                    if (skipCount-- == 0) {
+                        long pos = layout.getSample(3 * group);
+                        for (int i = 0; i < 3; i++, pos += layout.m_sampleBytes) {
+                            int b = window.get(pos);
+                            window.put(pos, (b & ~StegCore.LSB_MASK_READ) | twoBitData[twoBitCount++]);
+                        }
+                        skipCount = twoBitData[twoBitCount - 1];
+                    }
+                }
+            } finally {
+                window.close();
+                BufferPool.getPool().release(twoBitData);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Get the message out of a WAV file.  We only read as far into the file
+     * as the message goes.
+     *
+     * @param wav    the WAV file
+     *
+     * @return the message or null if the file doesn't have one
+     * @exception IOException
+     *                   if the file can't be read or isn't PCM audio
+     */
+    public static String decode(File wav)
+        throws IOException
+    {
+        PooledOutputStream out = new PooledOutputStream(BufferPool.getPool(), 256);
+        try {
+            if (extract(wav, out) < 0) {
+                return null;
+            }
+
+            return new String(out.getBuffer(), 0, out.size(), "ISO-8859-1");
+        } finally {
+            out.release();
+        }
+    }
+
+    /**
+     * Read the message out of a WAV file and hand its bytes to a sink.
+     *
+     * @param wav    the WAV file
+     * @param sink   where the bytes of the message go
+     *
+     * @return the length of the message or -1 if the file doesn't have one
+     * @exception IOException
+     *                   if the file can't be read or isn't PCM audio or the
+     *                   sink fails
+     */
+    public static int extract(File wav, ByteSink sink)
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(wav, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            Layout layout = readLayout(channel);
+            Window window = new Window(channel, FileChannel.MapMode.READ_ONLY, layout);
+            StegCore.MessageReader reader = new StegCore.MessageReader(new byte[256], sink);
+
+            int skipCount = 0;
+            for (long group = INSERTIONPOINT + 1; group < layout.m_groups; group++) {
+                if (skipCount-- == 0) {
+                    long pos = layout.getSample(3 * group);
+                    int last = 0;
+                    for (int i = 0; i < 3; i++, pos += layout.m_sampleBytes) {
+                        last = window.get(pos) & StegCore.LSB_MASK_READ;
+                        if (reader.add(last)) {
+                            return reader.getLength();
+                        }
+                    }
+                    skipCount = last;
+                }
+            }
+
+            /*
+             * We ran out of samples before we found the terminator.
+             */
+            return -1;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static long getCandidates(Layout layout)
+    {
+        return Math.max(layout.m_groups - INSERTIONPOINT - 1, 0);
+    }
+
+    private static void checkFit(Layout layout, String msg)
+        throws IOException
+    {
+        byte[] msgBytes = StegCore.frameMessage(msg);
+        long candidates = getCandidates(layout);
+        if (StegCore.bytesThatFit(msgBytes, 0, msgBytes.length, candidates) < msgBytes.length) {
+            throw new IOException("The message is too long for this audio.  It only has " + candidates +
+                                  " groups of samples we can use.");
+        }
+    }
+
+    /*
+     * Walk the chunks of the file to find the format and the samples.  We
+     * only read the chunk headers, never the samples.
+     */
+    private static Layout readLayout(FileChannel channel)
+        throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header, 0);
+        if (header.getInt(0) != 0x46464952 || header.getInt(8) != 0x45564157) {
+            throw new IOException("This is not a WAV file");
+        }
+
+        long size = channel.size();
+        int format = -1;
+        int sampleBytes = 0;
+        ByteBuffer chunk = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+        for (long pos = 12; pos + 8 <= size; ) {
+            chunk.clear().limit(8);
+            readFully(channel, chunk, pos);
+            int id = chunk.getInt(0);
+            long length = chunk.getInt(4) & 0xFFFFFFFFL;
+            pos += 8;
+
+            if (id == 0x20746D66) {
+                /*
+                 * This is the fmt chunk.
+                 */
+                chunk.clear().limit((int) Math.min(length, chunk.capacity()));
+                readFully(channel, chunk, pos);
+                format = chunk.getShort(0) & 0xFFFF;
+                if (format == FORMAT_EXTENSIBLE && length >= 26) {
+                    format = chunk.getShort(24) & 0xFFFF;
+                }
+
+                int bits = chunk.getShort(14) & 0xFFFF;
+                sampleBytes = (bits + 7) / 8;
+            } else if (id == 0x61746164) {
+                /*
+                 * This is the data chunk.  Files that were written as a
+                 * stream sometimes never fill in the length, so we believe
+                 * the size of the file over the length.
+                 */
+                if (format != FORMAT_PCM || sampleBytes < 1 || sampleBytes > 4) {
+                    throw new IOException("Only integer PCM WAV files are supported");
+                }
+
+                return new Layout(pos, Math.min(length, size - pos), sampleBytes);
+            }
+
+            pos += length + (length & 1);
+        }
+
+        throw new IOException("This WAV file has no audio data");
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long pos)
+        throws IOException
+    {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, pos);
+            if (n < 0) {
+                throw new IOException("The WAV file is damaged");
+            }
+            pos += n;
+        }
+    }
+
+    /*
+     * This is where the samples are in the file.
+     */
+    private static final class Layout
+    {
+        final long m_offset;
+        final long m_length;
+        final int m_sampleBytes;
+        final long m_groups;
+
+        Layout(long offset, long length, int sampleBytes)
+        {
+            m_offset = offset;
+            m_length = length;
+            m_sampleBytes = sampleBytes;
+            m_groups = (length / sampleBytes) / 3;
+        }
+
+        /*
+         * This is where the byte with the two least significant bits of a
+         * sample is in the file.
+         */
+        long getSample(long sample)
+        {
+            return m_offset + sample * m_sampleBytes;
+        }
+    }
+
+    /*
+     * This maps one window of the data chunk at a time and moves along as we
+     * ask for bytes past the end of it.
+     */
+    private static final class Window
+    {
+        private final FileChannel m_channel;
+        private final FileChannel.MapMode m_mode;
+        private final long m_end;
+        private MappedByteBuffer m_buf;
+        private long m_start;
+
+        Window(FileChannel channel, FileChannel.MapMode mode, Layout layout)
+        {
+            m_channel = channel;
+            m_mode = mode;
+            m_end = layout.m_offset + layout.m_length;
+        }
+
+        int get(long pos)
+            throws IOException
+        {
+            return map(pos).get((int) (pos - m_start));
+        }
+
+        void put(long pos, int b)
+            throws IOException
+        {
+            map(pos).put((int) (pos - m_start), (byte) b);
+        }
+
+        private MappedByteBuffer map(long pos)
+            throws IOException
+        {
+            if (m_buf == null || pos < m_start || pos >= m_start + m_buf.capacity()) {
+                close();
+                m_start = pos;
+                m_buf = m_channel.map(m_mode, pos, Math.min(WINDOW_BYTES, m_end - pos));
+            }
+
+            return m_buf;
+        }
+
+        /*
+         * Make sure everything we wrote is on the disk before we let go of
+         * the window.
+         */
+        void close()
+        {
+            if (m_buf != null && m_mode == FileChannel.MapMode.READ_WRITE) {
+                m_buf.force();
+            }
+            m_buf = null;
+        }
+    }
+}
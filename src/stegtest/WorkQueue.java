@@ -0,0 +1,572 @@
+/*******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package stegtest;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import java.io.*;
+import java.lang.management.*;
+
+import java.awt.image.*;
+
+/*
+ * This is a work queue kept in a directory so any number of worker processes
+ * on any number of machines can share it.  All they need is the same
+ * directory, on a local disk or a shared file system.  There is no server.
+ *
+ * The queue directory looks like this:
+ *
+ *     pending/           jobs waiting for a worker
+ *     claimed/<worker>/  jobs a worker is running
+ *     done/              jobs that finished
+ *     failed/            jobs that failed, with a .err file saying why
+ *     workers/           a heartbeat file for each running worker
+ *     tmp/               jobs being written by queue-add
+ *
+ * Everything depends on rename being atomic.  A worker claims a job by
+ * renaming it from pending into its own claimed directory.  If two workers
+ * try to claim the same job only one rename works and the other worker just
+ * moves on to the next job.  New jobs are written to tmp and renamed into
+ * pending so a worker never sees half a job.
+ *
+ * Each worker touches its heartbeat file every few seconds.  If a worker
+ * crashes its heartbeat goes stale and the next worker that notices moves the
+ * jobs in its claimed directory back to pending.  Jobs are written so running
+ * one twice gives the same result, so it doesn't hurt if a worker that was
+ * only slow finishes a job someone else already put back.
+ *
+ * Each job is one line of text with fields separated by tabs:
+ *
+ *     encode   <carrier>  <output.png>  <message>
+ *     decode   <image>    <output.txt>
+ *     scan     <image>    <output.txt>
+ *
+ * A scan writes the detectability analysis of the image and the message if
+ * it has one.
+ */
+public class WorkQueue
+{
+    private static final String JOB_SUFFIX = ".job";
+    private static final String HEARTBEAT_SUFFIX = ".heartbeat";
+
+    /*
+     * How often we touch our heartbeat and how old a heartbeat has to be
+     * before we decide the worker is dead.
+     */
+    private static final long HEARTBEAT_MILLIS = 5000;
+    private static final long TIMEOUT_MILLIS =
+        Long.getLong("stegtest.queue.timeoutMillis", 60000).longValue();
+
+    private final File m_pending;
+    private final File m_claimed;
+    private final File m_done;
+    private final File m_failed;
+    private final File m_workers;
+    private final File m_tmp;
+
+    private final AtomicLong m_finished = new AtomicLong();
+    private final AtomicLong m_errors = new AtomicLong();
+    private final AtomicLong m_requeued = new AtomicLong();
+
+    /**
+     * Open a queue.  The directories are created if they aren't there.
+     *
+     * @param dir    the queue directory
+     *
+     * @exception IOException
+     *                   if the directories can't be created
+     */
+    public WorkQueue(File dir)
+        throws IOException
+    {
+        m_pending = mkdir(new File(dir, "pending"));
+        m_claimed = mkdir(new File(dir, "claimed"));
+        m_done = mkdir(new File(dir, "done"));
+        m_failed = mkdir(new File(dir, "failed"));
+        m_workers = mkdir(new File(dir, "workers"));
+        m_tmp = mkdir(new File(dir, "tmp"));
+    }
+
+    /**
+     * Add jobs to the queue from a file with one job on each line.  Blank
+     * lines and lines starting with # are skipped.
+     *
+     * @param jobFile the file to read
+     *
+     * @return the number of jobs we added
+     * @exception IOException
+     *                   if the file can't be read, a line isn't a job, or we
+     *                   can't write to the queue
+     */
+    public int add(File jobFile)
+        throws IOException
+    {
+        /*
+         * The prefix keeps the names of jobs from different calls apart and
+         * the line number keeps them in order.
+         */
+        String prefix = Long.toString(System.currentTimeMillis(), 36) + "-" +
+            Integer.toString(new Random().nextInt(Integer.MAX_VALUE), 36);
+
+        /*
+         * We check every line before we add any of them so a mistake in the
+         * file doesn't leave half of it in the queue.
+         */
+        ArrayList<String> lines = new ArrayList<String>();
+        ArrayList<String> names = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(jobFile), "UTF-8"));
+        try {
+            String line;
+            int lineNum = 0;
+            while ((line = in.readLine()) != null) {
+                lineNum++;
+                if (line.trim().length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+
+                if (parse(line) == null) {
+                    throw new IOException(jobFile + ":" + lineNum + ": expected encode, decode, or scan " +
+                                          "and its files separated by tabs");
+                }
+
+                lines.add(line);
+                names.add(prefix + "-" + String.format("%08d", lineNum) + JOB_SUFFIX);
+            }
+        } finally {
+            in.close();
+        }
+
+        for (int i = 0; i < lines.size(); i++) {
+            File tmp = new File(m_tmp, names.get(i));
+            Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+            try {
+                out.write(lines.get(i));
+            } finally {
+                out.close();
+            }
+
+            if (!tmp.renameTo(new File(m_pending, names.get(i)))) {
+                throw new IOException("Unable to add " + names.get(i) + " to the queue");
+            }
+        }
+
+        return lines.size();
+    }
+
+    /**
+     * Run jobs until the queue is empty.  This starts a worker with its own
+     * heartbeat and claimed directory.  Other workers can run at the same
+     * time in this process or any other.
+     *
+     * @param threads the number of threads to run jobs on
+     *
+     * @exception IOException
+     *                   if we can't use the queue directory
+     * @exception InterruptedException
+     *                   if we are interrupted while waiting for the threads
+     */
+    public void work(int threads)
+        throws IOException, InterruptedException
+    {
+        final String id = getWorkerId();
+        final File heartbeat = new File(m_workers, id + HEARTBEAT_SUFFIX);
+
+        /*
+         * The heartbeat has to be there before the claimed directory or
+         * another worker could see the directory, decide we are dead, and
+         * delete it.
+         */
+        touch(heartbeat);
+        final File claimed = mkdir(new File(m_claimed, id));
+
+        Thread beat = new Thread("stegtest-heartbeat")
+            {
+                public void run()
+                {
+                    while (!isInterrupted()) {
+                        try {
+                            Thread.sleep(HEARTBEAT_MILLIS);
+                            heartbeat.setLastModified(System.currentTimeMillis());
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            };
+        beat.setDaemon(true);
+        beat.start();
+
+        try {
+            Thread[] workers = new Thread[Math.max(threads, 1)];
+            for (int i = 0; i < workers.length; i++) {
+                final long seed = i;
+                workers[i] = new Thread("stegtest-queue-" + i)
+                    {
+                        public void run()
+                        {
+                            runJobs(claimed, heartbeat, new Random(seed ^ System.nanoTime()));
+                        }
+                    };
+                workers[i].start();
+            }
+
+            for (Thread t : workers) {
+                t.join();
+            }
+        } finally {
+            beat.interrupt();
+            heartbeat.delete();
+            claimed.delete();
+        }
+    }
+
+    /**
+     * Put the jobs of workers whose heartbeat has gone stale back in the queue.
+     *
+     * @param heartbeat our own heartbeat, which tells us the time on the
+     *                  file system the queue is on
+     *
+     * @return the number of jobs we put back
+     */
+    int requeueDeadWorkers(File heartbeat)
+    {
+        /*
+         * Other machines might not agree with our clock, so we compare
+         * heartbeats with the time the file system put on our own.
+         */
+        heartbeat.setLastModified(System.currentTimeMillis());
+        long now = heartbeat.lastModified();
+
+        int count = 0;
+        File[] dirs = m_claimed.listFiles();
+        if (dirs == null) {
+            return 0;
+        }
+
+        for (File dir : dirs) {
+            File beat = new File(m_workers, dir.getName() + HEARTBEAT_SUFFIX);
+            if (beat.exists() && now - beat.lastModified() < TIMEOUT_MILLIS) {
+                continue;
+            }
+
+            /*
+             * Each job moves with its own rename, so if another worker is
+             * doing this at the same time each job still goes back just once.
+             */
+            beat.delete();
+            File[] jobs = dir.listFiles();
+            if (jobs != null) {
+                for (File job : jobs) {
+                    if (job.renameTo(new File(m_pending, job.getName()))) {
+                        count++;
+                    }
+                }
+            }
+            dir.delete();
+        }
+
+        m_requeued.addAndGet(count);
+        return count;
+    }
+
+    /**
+     * Get the number of jobs in each part of the queue.
+     *
+     * @return a report of the queue
+     */
+    public String getStatus()
+    {
+        int claimed = 0;
+        int workers = 0;
+        File[] dirs = m_claimed.listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                claimed += count(dir, JOB_SUFFIX);
+            }
+        }
+        workers = count(m_workers, HEARTBEAT_SUFFIX);
+
+        return "pending " + count(m_pending, JOB_SUFFIX) + ", running " + claimed + " on " + workers +
+            " workers, done " + count(m_done, JOB_SUFFIX) + ", failed " + count(m_failed, JOB_SUFFIX);
+    }
+
+    public String toString()
+    {
+        return "WorkQueue[finished=" + m_finished.get() + ", errors=" + m_errors.get() +
+            ", requeued=" + m_requeued.get() + "]";
+    }
+
+    /*
+     * This is the loop each worker thread runs.  Each thread lists the
+     * pending directory on its own and tries the jobs in a random order so
+     * the workers don't all fight over the same job.  Listing a big directory
+     * is slow, so we only list it again when we've tried every job we saw.
+     */
+    private void runJobs(File claimed, File heartbeat, Random random)
+    {
+        while (heartbeat.exists()) {
+            String[] names = m_pending.list();
+            boolean ranAny = false;
+            if (names != null) {
+                Collections.shuffle(Arrays.asList(names), random);
+            } else {
+                names = new String[0];
+            }
+
+            for (String name : names) {
+                if (!name.endsWith(JOB_SUFFIX)) {
+                    continue;
+                }
+
+                File job = new File(claimed, name);
+                if (!new File(m_pending, name).renameTo(job)) {
+                    if (claimed.isDirectory()) {
+                        /*
+                         * Someone else got it first.
+                         */
+                        continue;
+                    }
+
+                    /*
+                     * Our claimed directory is gone, so another worker
+                     * decided we were dead.  If it took our heartbeat too we
+                     * stop.  Otherwise we make the directory again and try
+                     * once more.
+                     */
+                    if (!heartbeat.exists() || (!claimed.mkdirs() && !claimed.isDirectory())) {
+                        return;
+                    }
+                    if (!new File(m_pending, name).renameTo(job)) {
+                        continue;
+                    }
+                }
+
+                ranAny = true;
+                run(job);
+
+                if (!heartbeat.exists()) {
+                    /*
+                     * Someone decided we were dead and gave our jobs away.
+                     * We stop so we don't take any more.
+                     */
+                    return;
+                }
+            }
+
+            if (ranAny) {
+                continue;
+            }
+
+            /*
+             * There was nothing we could claim.  The queue looks empty, but
+             * a dead worker might be sitting on some jobs.  We always sleep
+             * here so a worker that can't claim anything never spins.
+             */
+            if (requeueDeadWorkers(heartbeat) == 0 && isIdle(claimed)) {
+                return;
+            }
+
+            try {
+                Thread.sleep(HEARTBEAT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /*
+     * When the queue is empty we still wait while any live worker is running
+     * jobs, since it might crash and leave them for us.  Our own claimed
+     * directory doesn't count.
+     */
+    private boolean isIdle(File ourClaimed)
+    {
+        File[] dirs = m_claimed.listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                if (!dir.equals(ourClaimed) && count(dir, JOB_SUFFIX) > 0) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    private void run(File job)
+    {
+        String line = null;
+        try {
+            line = readLine(job);
+            runJob(line);
+
+            if (job.renameTo(new File(m_done, job.getName()))) {
+                m_finished.incrementAndGet();
+            }
+        } catch (Exception e) {
+            m_errors.incrementAndGet();
+            try {
+                writeAtomically(new File(m_failed, job.getName().replace(JOB_SUFFIX, ".err")),
+                                (line + "\n" + e + "\n").getBytes("UTF-8"));
+            } catch (IOException ioe) {
+                /*
+                 * The job still goes to the failed directory so no one
+                 * runs it again.
+                 */
+            }
+            job.renameTo(new File(m_failed, job.getName()));
+        }
+    }
+
+    /*
+     * This runs one job line.  The watch folder runs the lines of the job
+     * files dropped into it through here too.
+     */
+    static void runJob(String line)
+        throws IOException
+    {
+        String[] fields = parse(line);
+        if (fields == null) {
+            throw new IOException("This is not a job: " + line);
+        }
+
+        if (fields[0].equals("encode")) {
+            StegCore.encodeFile(new File(fields[1]), fields[3], new File(fields[2]));
+        } else {
+            /*
+             * A queue usually sweeps through each image once so we don't
+             * put it in the carrier cache.
+             */
+            BufferedImage image = ImageInput.read(new File(fields[1]));
+            if (image == null) {
+                throw new IOException("Unable to read the image at " + fields[1]);
+            }
+
+            Carrier carrier = Carrier.fromImage(image);
+            String message = StegCore.decode(carrier);
+            StringBuffer result = new StringBuffer();
+            if (fields[0].equals("scan")) {
+                result.append(StegAnalysis.analyze(carrier.getPixels(), carrier.getWidth(), carrier.getHeight()));
+                result.append(message == null ? "No message\n" : "Message:\n");
+            }
+            if (message != null) {
+                result.append(message);
+            }
+
+            writeAtomically(new File(fields[2]), result.toString().getBytes("ISO-8859-1"));
+        }
+    }
+
+    /*
+     * We write results to a temporary file first so no one ever reads half
+     * a result.  Each write gets its own temporary file, since workers in
+     * other JVMs may be writing the same result at the same time.
+     */
+    static void writeAtomically(File f, byte[] data)
+        throws IOException
+    {
+        File tmp = File.createTempFile(f.getName(), ".tmp", f.getAbsoluteFile().getParentFile());
+        boolean written = false;
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                tmp.delete();
+            }
+        }
+
+        if (!tmp.renameTo(f)) {
+            f.delete();
+            if (!tmp.renameTo(f)) {
+                tmp.delete();
+                throw new IOException("Unable to write " + f);
+            }
+        }
+    }
+
+    private static String[] parse(String line)
+    {
+        String[] fields = line.split("\t", 4);
+        if (fields[0].equals("encode") && fields.length == 4) {
+            return fields;
+        } else if ((fields[0].equals("decode") || fields[0].equals("scan")) && fields.length == 3) {
+            return fields;
+        }
+
+        return null;
+    }
+
+    private static String readLine(File f)
+        throws IOException
+    {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+        try {
+            String line = in.readLine();
+            return line == null ? "" : line;
+        } finally {
+            in.close();
+        }
+    }
+
+    /*
+     * The worker id has the host and process id in it so it's easy to tell
+     * which machine a stuck job is on, and a random part in case a process id
+     * gets used again.
+     */
+    private static String getWorkerId()
+    {
+        String name = ManagementFactory.getRuntimeMXBean().getName().replaceAll("[^A-Za-z0-9.@-]", "_");
+        return name + "-" + Integer.toString(new Random().nextInt(Integer.MAX_VALUE), 36);
+    }
+
+    private static int count(File dir, String suffix)
+    {
+        String[] names = dir.list();
+        int count = 0;
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(suffix)) {
+                    count++;
+                }
+            }
+        }
+
+        return count;
+    }
+
+    private static void touch(File f)
+        throws IOException
+    {
+        new FileOutputStream(f).close();
+    }
+
+    private static File mkdir(File dir)
+        throws IOException
+    {
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Unable to create " + dir);
+        }
+
+        return dir;
+    }
+}